@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.benchmarks;
+
+import org.apache.commons.io.FilenameUtils;
+import org.campagnelab.goby.alignments.AlignmentReaderImpl;
+import org.campagnelab.goby.alignments.Alignments;
+import org.campagnelab.goby.compression.MessageChunksWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast AlignmentReaderImpl reads a sorted alignment from start to end, and how fast it jumps to
+ * positions with skipTo.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AlignmentReaderBenchmark {
+    private static final int NUM_TARGETS = 4;
+    private static final int TARGET_LENGTH = 10000000;
+    private static final int NUM_SKIPS = 1000;
+
+    @Param({"gzip", "hybrid-2"})
+    public String writerCodec;
+
+    @Param({"500000"})
+    public int numEntries;
+
+    private File directory;
+    private String basename;
+    private int[] skipTargets;
+    private int[] skipPositions;
+
+    @Setup
+    public void writeAlignment() throws IOException {
+        directory = SyntheticData.createTempDirectory("alignment-reader");
+        basename = FilenameUtils.concat(directory.getPath(), "alignment");
+        MessageChunksWriter.doc().setValue("codec", writerCodec);
+        SyntheticData.writeSortedAlignment(basename, numEntries, NUM_TARGETS, TARGET_LENGTH, 0, SyntheticData.SEED);
+
+        // skipTo only moves forward, so visit the locations in genomic order:
+        final Random random = new Random(SyntheticData.SEED);
+        final long[] locations = new long[NUM_SKIPS];
+        for (int i = 0; i < NUM_SKIPS; i++) {
+            locations[i] = ((long) random.nextInt(NUM_TARGETS) << 32) | random.nextInt(TARGET_LENGTH);
+        }
+        Arrays.sort(locations);
+        skipTargets = new int[NUM_SKIPS];
+        skipPositions = new int[NUM_SKIPS];
+        for (int i = 0; i < NUM_SKIPS; i++) {
+            skipTargets[i] = (int) (locations[i] >>> 32);
+            skipPositions[i] = (int) locations[i];
+        }
+    }
+
+    @TearDown
+    public void deleteAlignment() throws IOException {
+        SyntheticData.delete(directory);
+    }
+
+    @Benchmark
+    public long sequential() throws IOException {
+        final AlignmentReaderImpl reader = new AlignmentReaderImpl(basename);
+        long sum = 0;
+        try {
+            for (final Alignments.AlignmentEntry entry : reader) {
+                sum += entry.getPosition();
+            }
+        } finally {
+            reader.close();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long skipTo() throws IOException {
+        final AlignmentReaderImpl reader = new AlignmentReaderImpl(basename);
+        long sum = 0;
+        try {
+            reader.readHeader();
+            for (int i = 0; i < NUM_SKIPS; i++) {
+                final Alignments.AlignmentEntry entry = reader.skipTo(skipTargets[i], skipPositions[i]);
+                if (entry == null) {
+                    break;
+                }
+                sum += entry.getPosition();
+            }
+        } finally {
+            reader.close();
+        }
+        return sum;
+    }
+}
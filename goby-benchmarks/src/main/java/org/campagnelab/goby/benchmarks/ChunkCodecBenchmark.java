@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.benchmarks;
+
+import com.google.protobuf.Message;
+import org.campagnelab.goby.alignments.AlignmentCollectionHandler;
+import org.campagnelab.goby.compression.ChunkCodec;
+import org.campagnelab.goby.compression.ChunkCodecHelper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast each chunk codec encodes and decodes one chunk of alignment entries. {@link GobyBenchmarks}
+ * runs this benchmark for every codec registered in META-INF/services.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ChunkCodecBenchmark {
+    @Param({"no-compression", "gzip", "bzip2", "zstd", "lz4", "hybrid-1", "hybrid-2", "hybrid-3"})
+    public String codecName;
+
+    @Param({"10000"})
+    public int entriesPerChunk;
+
+    private ChunkCodec encoder;
+    private ChunkCodec decoder;
+    private Message collection;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() throws IOException {
+        // codecs and handlers keep state between chunks, use one of each to encode and decode, as readers and
+        // writers do:
+        encoder = newCodec(codecName);
+        decoder = newCodec(codecName);
+        collection = SyntheticData.alignmentCollection(entriesPerChunk);
+        encoded = encoder.encode(collection).toByteArray();
+    }
+
+    private static ChunkCodec newCodec(final String name) {
+        final ChunkCodec codec = ChunkCodecHelper.load(name);
+        if (codec == null) {
+            throw new IllegalArgumentException("Codec is not registered: " + name);
+        }
+        codec.setHandler(new AlignmentCollectionHandler());
+        return codec;
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        return encoder.encode(collection).size();
+    }
+
+    @Benchmark
+    public Message decode() throws IOException {
+        return decoder.decode(encoded);
+    }
+}
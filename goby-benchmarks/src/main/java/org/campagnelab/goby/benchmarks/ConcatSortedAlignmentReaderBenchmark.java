@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.benchmarks;
+
+import org.apache.commons.io.FilenameUtils;
+import org.campagnelab.goby.alignments.Alignments;
+import org.campagnelab.goby.alignments.ConcatSortedAlignmentReader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the k-way merge of sorted alignments done by ConcatSortedAlignmentReader. The total number of entries
+ * is the same for every number of inputs, so that scores reflect the cost of merging more inputs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConcatSortedAlignmentReaderBenchmark {
+    private static final int NUM_TARGETS = 4;
+    private static final int TARGET_LENGTH = 10000000;
+
+    @Param({"2", "8", "32"})
+    public int numInputs;
+
+    @Param({"400000"})
+    public int numEntries;
+
+    private File directory;
+    private String[] basenames;
+
+    @Setup
+    public void writeAlignments() throws IOException {
+        directory = SyntheticData.createTempDirectory("concat-sorted");
+        basenames = new String[numInputs];
+        final int entriesPerInput = numEntries / numInputs;
+        for (int i = 0; i < numInputs; i++) {
+            basenames[i] = FilenameUtils.concat(directory.getPath(), "input-" + i);
+            SyntheticData.writeSortedAlignment(basenames[i], entriesPerInput, NUM_TARGETS, TARGET_LENGTH,
+                    i * entriesPerInput, SyntheticData.SEED + i);
+        }
+    }
+
+    @TearDown
+    public void deleteAlignments() throws IOException {
+        SyntheticData.delete(directory);
+    }
+
+    @Benchmark
+    public long merge() throws IOException {
+        final ConcatSortedAlignmentReader reader = new ConcatSortedAlignmentReader(basenames);
+        long sum = 0;
+        try {
+            while (reader.hasNext()) {
+                final Alignments.AlignmentEntry entry = reader.next();
+                sum += entry.getPosition();
+            }
+        } finally {
+            reader.close();
+        }
+        return sum;
+    }
+}
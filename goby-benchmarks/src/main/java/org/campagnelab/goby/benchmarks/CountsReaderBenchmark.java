@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.benchmarks;
+
+import it.unimi.dsi.fastutil.io.FastByteArrayInputStream;
+import org.campagnelab.goby.counts.CountsReader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast CountsReader decodes count transitions, and how fast it skips to positions with the help of
+ * the counts index.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CountsReaderBenchmark {
+    private static final int NUM_SKIPS = 1000;
+
+    @Param({"1000000"})
+    public int numTransitions;
+
+    private byte[] counts;
+    private byte[] index;
+    private int[] skipPositions;
+
+    @Setup
+    public void writeCounts() throws IOException {
+        counts = SyntheticData.counts(numTransitions);
+        index = SyntheticData.countsIndex(counts);
+        final CountsReader reader = new CountsReader(new ByteArrayInputStream(counts));
+        int lastPosition = 0;
+        while (reader.hasNextTransition()) {
+            reader.nextTransition();
+            lastPosition = reader.getPosition();
+        }
+        reader.close();
+        final Random random = new Random(SyntheticData.SEED);
+        skipPositions = new int[NUM_SKIPS];
+        for (int i = 0; i < NUM_SKIPS; i++) {
+            skipPositions[i] = random.nextInt(lastPosition);
+        }
+        Arrays.sort(skipPositions);
+    }
+
+    @Benchmark
+    public long transitions() throws IOException {
+        final CountsReader reader = new CountsReader(new ByteArrayInputStream(counts));
+        long sum = 0;
+        while (reader.hasNextTransition()) {
+            reader.nextTransition();
+            sum += (long) reader.getCount() * reader.getLength();
+        }
+        reader.close();
+        return sum;
+    }
+
+    @Benchmark
+    public long skipTo() throws IOException {
+        // the reader repositions its input stream to the offsets stored in the index:
+        final CountsReader reader = new CountsReader(new FastByteArrayInputStream(counts),
+                new DataInputStream(new ByteArrayInputStream(index)));
+        long sum = 0;
+        for (final int position : skipPositions) {
+            reader.skipTo(position);
+            sum += reader.getCount();
+        }
+        reader.close();
+        return sum;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.benchmarks;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.campagnelab.goby.compression.ChunkCodec;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ServiceLoader;
+
+/**
+ * Runs the Goby benchmarks. Accepts the command line options of the JMH runner (use -h to list them), with
+ * different defaults:
+ * <ul>
+ * <li>results are written in JSON format to goby-benchmarks.json, for regression tracking (override with -rf and
+ * -rff),</li>
+ * <li>chunk codecs are benchmarked for every codec registered in META-INF/services on the class path (override
+ * with -p codecName=gzip,hybrid-2).</li>
+ * </ul>
+ * For instance, java -jar benchmarks.jar AlignmentReader runs the alignment reader benchmarks only.
+ */
+public class GobyBenchmarks {
+    public static final String DEFAULT_RESULT_FILE = "goby-benchmarks.json";
+
+    public static void main(final String[] args) throws Exception {
+        final CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListWithParams()
+                || commandLine.shouldListProfilers() || commandLine.shouldListResultFormats()) {
+            // let JMH print the information requested:
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        final ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+        if (!commandLine.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (!commandLine.getResult().hasValue()) {
+            options.result(DEFAULT_RESULT_FILE);
+        }
+        if (!commandLine.getParameter("codecName").hasValue()) {
+            options.param("codecName", registeredCodecNames());
+        }
+        new Runner(options.build()).run();
+    }
+
+    /**
+     * Return the names of the codecs that can encode and decode chunks.
+     */
+    static String[] registeredCodecNames() {
+        final ObjectArrayList<String> names = new ObjectArrayList<String>();
+        for (final ChunkCodec codec : ServiceLoader.load(ChunkCodec.class)) {
+            // the null codec discards chunks and cannot decode:
+            if (!"null".equals(codec.name())) {
+                names.add(codec.name());
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+}
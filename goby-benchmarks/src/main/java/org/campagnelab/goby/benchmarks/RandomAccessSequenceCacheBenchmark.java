@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.benchmarks;
+
+import it.unimi.dsi.lang.MutableString;
+import org.campagnelab.goby.reads.RandomAccessSequenceCache;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures random access to the bases of a genome held in a RandomAccessSequenceCache. Each invocation reads
+ * the same set of random locations, so scores are reported per location. Bases are read from a cache saved and
+ * loaded again, so that they come from a memory mapping, as in production.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RandomAccessSequenceCacheBenchmark {
+    private static final int NUM_SEQUENCES = 4;
+    private static final int SEQUENCE_LENGTH = 5000000;
+    private static final int NUM_LOCATIONS = 4096;
+    /**
+     * Bases returned by one call to getRange(int,int,int), which packs two bits per base in an int.
+     */
+    private static final int PACKED_LENGTH = 14;
+    private static final int READ_LENGTH = 100;
+
+    private File directory;
+    private String basename;
+    private RandomAccessSequenceCache cache;
+    private String[] referenceNames;
+    private int[] referenceIndices;
+    private int[] positions;
+    private final MutableString bases = new MutableString();
+
+    @Setup
+    public void loadGenome() throws IOException, ClassNotFoundException {
+        directory = SyntheticData.createTempDirectory("sequence-cache");
+        basename = new File(directory, "genome").getPath();
+        final RandomAccessSequenceCache builder = new RandomAccessSequenceCache();
+        builder.loadFasta(new StringReader(SyntheticData.fasta(NUM_SEQUENCES, SEQUENCE_LENGTH)));
+        builder.save(basename);
+        cache = new RandomAccessSequenceCache();
+        cache.load(basename);
+        final Random random = new Random(SyntheticData.SEED);
+        referenceNames = new String[NUM_LOCATIONS];
+        referenceIndices = new int[NUM_LOCATIONS];
+        positions = new int[NUM_LOCATIONS];
+        for (int i = 0; i < NUM_LOCATIONS; i++) {
+            referenceIndices[i] = random.nextInt(NUM_SEQUENCES);
+            referenceNames[i] = cache.getReferenceName(referenceIndices[i]);
+            positions[i] = random.nextInt(SEQUENCE_LENGTH - READ_LENGTH - 1);
+        }
+    }
+
+    @TearDown
+    public void deleteGenome() throws IOException {
+        SyntheticData.delete(directory);
+    }
+
+    /**
+     * Time to load the cache, as paid by every process that starts with a genome.
+     */
+    @Benchmark
+    public RandomAccessSequenceCache load() throws IOException, ClassNotFoundException {
+        final RandomAccessSequenceCache loaded = new RandomAccessSequenceCache();
+        loaded.load(basename);
+        return loaded;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_LOCATIONS)
+    public int get() {
+        int sum = 0;
+        for (int i = 0; i < NUM_LOCATIONS; i++) {
+            sum += cache.get(referenceIndices[i], positions[i]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_LOCATIONS)
+    public int getByName() {
+        int sum = 0;
+        for (int i = 0; i < NUM_LOCATIONS; i++) {
+            sum += cache.get(referenceNames[i], positions[i]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_LOCATIONS)
+    public int getRangePacked() {
+        int sum = 0;
+        for (int i = 0; i < NUM_LOCATIONS; i++) {
+            sum += cache.getRange(referenceIndices[i], positions[i], PACKED_LENGTH);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_LOCATIONS)
+    public int getRange() {
+        int sum = 0;
+        for (int i = 0; i < NUM_LOCATIONS; i++) {
+            cache.getRange(referenceIndices[i], positions[i], READ_LENGTH, bases);
+            sum += bases.charAt(READ_LENGTH / 2);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.benchmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.goby.alignments.AlignmentWriterImpl;
+import org.campagnelab.goby.alignments.Alignments;
+import org.campagnelab.goby.counts.CountIndexBuilder;
+import org.campagnelab.goby.counts.CountsWriter;
+import org.campagnelab.goby.counts.CountsWriterI;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Generates the data the benchmarks run on. Data is derived from a seed, so that every run of a benchmark sees
+ * the same input and results can be compared across builds without downloading any dataset.
+ */
+public final class SyntheticData {
+    public static final long SEED = 2389L;
+    private static final char[] BASES = {'A', 'C', 'G', 'T'};
+
+    private SyntheticData() {
+    }
+
+    /**
+     * Create an empty directory for the files of a benchmark. Remove it with {@link #delete(File)}.
+     */
+    public static File createTempDirectory(final String prefix) throws IOException {
+        return Files.createTempDirectory("goby-benchmarks-" + prefix).toFile();
+    }
+
+    public static void delete(final File directory) throws IOException {
+        if (directory != null) {
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * Create an alignment entry that looks like the output of a short read aligner: fixed read length, most reads
+     * matching the reference, some with a mismatch, a few with an indel.
+     */
+    public static Alignments.AlignmentEntry alignmentEntry(final Random random, final int queryIndex,
+                                                           final int targetIndex, final int position) {
+        final Alignments.AlignmentEntry.Builder entry = Alignments.AlignmentEntry.newBuilder()
+                .setQueryIndex(queryIndex)
+                .setTargetIndex(targetIndex)
+                .setPosition(position)
+                .setMatchingReverseStrand(random.nextBoolean())
+                .setQueryLength(100)
+                .setQueryPosition(0)
+                .setQueryAlignedLength(100)
+                .setTargetAlignedLength(100)
+                .setMappingQuality(random.nextInt(4) == 0 ? random.nextInt(60) : 60)
+                .setScore(100)
+                .setMultiplicity(1)
+                .setNumberOfMismatches(0)
+                .setNumberOfIndels(0);
+        if (random.nextInt(4) == 0) {
+            entry.setNumberOfMismatches(1);
+            entry.setScore(99);
+            entry.addSequenceVariations(Alignments.SequenceVariation.newBuilder()
+                    .setPosition(1 + random.nextInt(90)).setReadIndex(1 + random.nextInt(90))
+                    .setFrom(Character.toString(BASES[random.nextInt(4)]))
+                    .setTo(Character.toString(BASES[random.nextInt(4)])));
+        }
+        if (random.nextInt(20) == 0) {
+            entry.setNumberOfIndels(1);
+            entry.setScore(97);
+            entry.addSequenceVariations(Alignments.SequenceVariation.newBuilder()
+                    .setPosition(95).setReadIndex(95).setFrom("--").setTo("GT"));
+        }
+        return entry.build();
+    }
+
+    /**
+     * Create a collection of entries sorted by position on one reference sequence, as found in a chunk of a
+     * sorted alignment.
+     */
+    public static Alignments.AlignmentCollection alignmentCollection(final int numEntries) {
+        final Random random = new Random(SEED);
+        final Alignments.AlignmentCollection.Builder collection = Alignments.AlignmentCollection.newBuilder();
+        int position = 0;
+        for (int queryIndex = 0; queryIndex < numEntries; queryIndex++) {
+            position += random.nextInt(3) == 0 ? random.nextInt(20) : 0;
+            collection.addAlignmentEntries(alignmentEntry(random, queryIndex, 0, position));
+        }
+        return collection.build();
+    }
+
+    /**
+     * Write a sorted and indexed alignment. Entries are spread evenly over the reference sequences.
+     *
+     * @param basename      basename of the alignment to write.
+     * @param numEntries    number of entries to write.
+     * @param numTargets    number of reference sequences.
+     * @param targetLength  length of each reference sequence.
+     * @param firstQuery    query index of the first entry. Consecutive entries have consecutive query indices.
+     * @param seed          seed of the random generator, alignments written with distinct seeds differ.
+     */
+    public static void writeSortedAlignment(final String basename, final int numEntries, final int numTargets,
+                                            final int targetLength, final int firstQuery, final long seed)
+            throws IOException {
+        final Random random = new Random(seed);
+        final AlignmentWriterImpl writer = new AlignmentWriterImpl(basename);
+        try {
+            final int[] targetLengths = new int[numTargets];
+            final String[] targetIds = new String[numTargets];
+            for (int i = 0; i < numTargets; i++) {
+                targetLengths[i] = targetLength;
+                targetIds[i] = "ref-" + i;
+            }
+            writer.setTargetLengths(targetLengths);
+            writer.setTargetIdentifiersArray(targetIds);
+            writer.setSorted(true);
+            final int entriesPerTarget = Math.max(1, numEntries / numTargets);
+            final double spacing = (double) targetLength / (entriesPerTarget + 1);
+            for (int i = 0; i < numEntries; i++) {
+                final int targetIndex = Math.min(numTargets - 1, i / entriesPerTarget);
+                final int rank = i - targetIndex * entriesPerTarget;
+                final int position = (int) (rank * spacing + random.nextDouble() * spacing);
+                writer.appendEntry(alignmentEntry(random, firstQuery + i, targetIndex, position));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Return a multi-sequence fasta file, with a short stretch of Ns in each sequence.
+     */
+    public static String fasta(final int numSequences, final int sequenceLength) {
+        final Random random = new Random(SEED);
+        final StringBuilder fasta = new StringBuilder(numSequences * (sequenceLength + sequenceLength / 60 + 16));
+        for (int s = 0; s < numSequences; s++) {
+            fasta.append(">chr").append(s + 1).append(" synthetic\n");
+            final int nStart = random.nextInt(sequenceLength - 1000);
+            for (int i = 0; i < sequenceLength; i++) {
+                fasta.append(i >= nStart && i < nStart + 1000 ? 'N' : BASES[random.nextInt(4)]);
+                if (i % 60 == 59) {
+                    fasta.append('\n');
+                }
+            }
+            fasta.append('\n');
+        }
+        return fasta.toString();
+    }
+
+    /**
+     * Encode counts along a sequence, as computed from the coverage of an alignment.
+     *
+     * @param numTransitions number of count transitions to write.
+     * @return the encoded counts.
+     */
+    public static byte[] counts(final int numTransitions) throws IOException {
+        final Random random = new Random(SEED);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final CountsWriterI writer = new CountsWriter(bytes, 0);
+        int count = 0;
+        for (int i = 0; i < numTransitions; i++) {
+            // counts must change at each transition:
+            final int delta = 1 + random.nextInt(5);
+            count = count > delta && random.nextBoolean() ? count - delta : count + delta;
+            writer.appendCount(count, 1 + random.nextInt(100));
+        }
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Build the index of encoded counts, so that readers can reposition.
+     */
+    public static byte[] countsIndex(final byte[] counts) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream index = new DataOutputStream(bytes);
+        new CountIndexBuilder().buildIndex(counts, index);
+        index.close();
+        return bytes.toByteArray();
+    }
+}
@@ -28,7 +28,7 @@ import it.unimi.dsi.fastutil.objects.ObjectList;
 
 import java.util.Collections;
 
-public class AnnotationCount implements AnnotationCountInterface {
+public class AnnotationCount implements AnnotationCountInterface, AnnotationJoinCountInterface {
     private final ObjectList<Read> reads;
     private final IntList readStart;
     private final ComputeCount baseCounter;
@@ -203,6 +203,19 @@ public class AnnotationCount implements AnnotationCountInterface {
     }
 
 
+    public void joinIntervals(final AnnotationIntervalIndex index, final double[] overlapCounts,
+                              final double[] withinCounts) {
+        final int n = reads.size();
+        final int[] starts = new int[n];
+        final int[] ends = new int[n];
+        for (int i = 0; i < n; i++) {
+            final Read read = reads.get(i);
+            starts[i] = read.start;
+            ends[i] = read.end;
+        }
+        index.join(starts, ends, null, n, overlapCounts, withinCounts);
+    }
+
     /**
      * Returns the number of reads that partially overlap  with the given annotation interval.
      *
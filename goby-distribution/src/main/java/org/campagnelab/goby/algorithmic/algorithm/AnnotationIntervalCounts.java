@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.algorithmic.algorithm;
+
+import org.campagnelab.goby.algorithmic.data.Annotation;
+import org.campagnelab.goby.algorithmic.data.Segment;
+import it.unimi.dsi.fastutil.objects.ObjectList;
+
+/**
+ * Gene, exon and intron intervals of the annotations of one reference sequence, laid out in an
+ * {@link AnnotationIntervalIndex}. The layout does not depend on the sample, and can be shared by threads that
+ * count different samples. Annotation a has its gene interval at element offset(a), its exons next, and its introns
+ * after its exons.
+ */
+public class AnnotationIntervalCounts {
+    private final ObjectList<Annotation> annotations;
+    private final int[] offsets;
+    private final AnnotationIntervalIndex index;
+
+    /**
+     * Lay out the intervals of a list of annotations.
+     *
+     * @param annotations annotations of one reference sequence.
+     */
+    public AnnotationIntervalCounts(final ObjectList<Annotation> annotations) {
+        this.annotations = annotations;
+        final int numAnnotations = annotations.size();
+        offsets = new int[numAnnotations + 1];
+        for (int a = 0; a < numAnnotations; a++) {
+            final int numExons = annotations.get(a).getSegments().size();
+            offsets[a + 1] = offsets[a] + 1 + numExons + Math.max(0, numExons - 1);
+        }
+        final int numElements = offsets[numAnnotations];
+        final int[] starts = new int[numElements];
+        final int[] ends = new int[numElements];
+        for (int a = 0; a < numAnnotations; a++) {
+            final Annotation annot = annotations.get(a);
+            final ObjectList<Segment> segments = annot.getSegments();
+            final int numExons = segments.size();
+            starts[offsets[a]] = annot.getStart();
+            ends[offsets[a]] = annot.getEnd();
+            for (int i = 0; i < numExons; i++) {
+                final Segment segment = segments.get(i);
+                starts[exon(a, i)] = segment.getStart();
+                ends[exon(a, i)] = segment.getEnd();
+                if (i < numExons - 1) {
+                    starts[intron(a, i)] = segment.getEnd() + 1;
+                    ends[intron(a, i)] = segments.get(i + 1).getStart() - 1;
+                }
+            }
+        }
+        index = new AnnotationIntervalIndex(starts, ends);
+    }
+
+    private int exon(final int annotation, final int exonIndex) {
+        return offsets[annotation] + 1 + exonIndex;
+    }
+
+    private int intron(final int annotation, final int intronIndex) {
+        return offsets[annotation] + 1 + annotations.get(annotation).getSegments().size() + intronIndex;
+    }
+
+    /**
+     * Returns the index of the gene, exon and intron intervals.
+     *
+     * @return the index.
+     */
+    public AnnotationIntervalIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Count the reads of one sample and reference sequence against every gene, exon and intron. Counters that
+     * implement {@link AnnotationJoinCountInterface} are joined with the index in a single pass. Other counters are
+     * queried for each interval.
+     *
+     * @param counter reads of one sample aligned to the reference sequence of the annotations.
+     * @return counts for each gene, exon and intron.
+     */
+    public Counts count(final AnnotationCountInterface counter) {
+        counter.sortReads();
+        final int numElements = offsets[annotations.size()];
+        final double[] overlapCounts = new double[numElements];
+        final double[] withinCounts = new double[numElements];
+        final double[] expressions = new double[annotations.size()];
+        if (counter instanceof AnnotationJoinCountInterface) {
+            ((AnnotationJoinCountInterface) counter).joinIntervals(index, overlapCounts, withinCounts);
+            for (int a = 0; a < annotations.size(); a++) {
+                double expression = overlapCounts[offsets[a]];
+                final int numIntrons = annotations.get(a).getSegments().size() - 1;
+                for (int i = 0; i < numIntrons; i++) {
+                    expression -= withinCounts[intron(a, i)];
+                }
+                expressions[a] = expression;
+            }
+        } else {
+            counter.accumulate();
+            for (int a = 0; a < annotations.size(); a++) {
+                final Annotation annot = annotations.get(a);
+                final ObjectList<Segment> segments = annot.getSegments();
+                for (int element = offsets[a]; element < offsets[a + 1]; element++) {
+                    final int start;
+                    final int end;
+                    if (element == offsets[a]) {
+                        start = annot.getStart();
+                        end = annot.getEnd();
+                    } else if (element < intron(a, 0)) {
+                        final Segment segment = segments.get(element - exon(a, 0));
+                        start = segment.getStart();
+                        end = segment.getEnd();
+                    } else {
+                        final int i = element - intron(a, 0);
+                        start = segments.get(i).getEnd() + 1;
+                        end = segments.get(i + 1).getStart() - 1;
+                    }
+                    overlapCounts[element] = counter.countReadsPartiallyOverlappingWithInterval(start, end);
+                    withinCounts[element] = counter.countReadsStriclyWithinInterval(start, end);
+                }
+                expressions[a] = counter.geneExpressionCount(annot);
+            }
+        }
+        return new Counts(overlapCounts, withinCounts, expressions);
+    }
+
+    /**
+     * Counts of one sample. Annotations are identified by their index in the list of annotations, exons and introns
+     * by their index in the annotation.
+     */
+    public final class Counts {
+        private final double[] overlapCounts;
+        private final double[] withinCounts;
+        private final double[] expressions;
+
+        private Counts(final double[] overlapCounts, final double[] withinCounts, final double[] expressions) {
+            this.overlapCounts = overlapCounts;
+            this.withinCounts = withinCounts;
+            this.expressions = expressions;
+        }
+
+        public double getGeneOverlapCount(final int annotation) {
+            return overlapCounts[offsets[annotation]];
+        }
+
+        public double getGeneWithinCount(final int annotation) {
+            return withinCounts[offsets[annotation]];
+        }
+
+        /**
+         * Returns the number of reads that overlap the gene, minus those strictly within its introns.
+         */
+        public double getGeneExpression(final int annotation) {
+            return expressions[annotation];
+        }
+
+        public double getExonOverlapCount(final int annotation, final int exonIndex) {
+            return overlapCounts[exon(annotation, exonIndex)];
+        }
+
+        public double getExonWithinCount(final int annotation, final int exonIndex) {
+            return withinCounts[exon(annotation, exonIndex)];
+        }
+
+        /**
+         * Returns the overlap count of the intron that follows exon intronIndex.
+         */
+        public double getIntronOverlapCount(final int annotation, final int intronIndex) {
+            return overlapCounts[intron(annotation, intronIndex)];
+        }
+
+        /**
+         * Returns the within count of the intron that follows exon intronIndex.
+         */
+        public double getIntronWithinCount(final int annotation, final int intronIndex) {
+            return withinCounts[intron(annotation, intronIndex)];
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.algorithmic.algorithm;
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntCollection;
+
+/**
+ * An immutable index over the closed intervals [start, end] of one reference sequence. Intervals are sorted by
+ * start (then end) into flat primitive arrays. The sorted arrays are the in-order layout of an implicit balanced
+ * binary tree: the root of the slots [lo, hi) is slot (lo+hi)/2. Each slot also stores the largest end of its
+ * subtree, which is enough to answer stabbing and range queries in O(log n + hits) without allocating nodes.
+ * <p/>
+ * Intervals are identified by their element number, the index of the interval in the arrays given to the
+ * constructor. Queries report element numbers in increasing start order.
+ * <p/>
+ * The index also joins a stream of reads sorted by start position against all the intervals in a single pass,
+ * see {@link #join(int[], int[], double[], int, double[], double[])}.
+ */
+public class AnnotationIntervalIndex {
+    private final int[] starts;
+    private final int[] ends;
+    private final int[] maxEnds;
+    private final int[] elements;
+
+    /**
+     * Build an index.
+     *
+     * @param starts Start position of each interval, inclusive.
+     * @param ends   End position of each interval, inclusive. An interval whose end is before its start is empty,
+     *               but still overlaps reads that span both of its boundaries.
+     */
+    public AnnotationIntervalIndex(final int[] starts, final int[] ends) {
+        if (starts.length != ends.length) {
+            throw new IllegalArgumentException("starts and ends must have the same length.");
+        }
+        final int n = starts.length;
+        elements = new int[n];
+        for (int i = 0; i < n; i++) {
+            elements[i] = i;
+        }
+        IntArrays.radixSortIndirect(elements, starts, ends, true);
+        this.starts = new int[n];
+        this.ends = new int[n];
+        for (int slot = 0; slot < n; slot++) {
+            this.starts[slot] = starts[elements[slot]];
+            this.ends[slot] = ends[elements[slot]];
+        }
+        maxEnds = new int[n];
+        if (n > 0) {
+            buildMaxEnds(0, n);
+        }
+    }
+
+    private int buildMaxEnds(final int lo, final int hi) {
+        final int mid = (lo + hi) >>> 1;
+        int maxEnd = ends[mid];
+        if (lo < mid) {
+            maxEnd = Math.max(maxEnd, buildMaxEnds(lo, mid));
+        }
+        if (mid + 1 < hi) {
+            maxEnd = Math.max(maxEnd, buildMaxEnds(mid + 1, hi));
+        }
+        maxEnds[mid] = maxEnd;
+        return maxEnd;
+    }
+
+    /**
+     * Returns the number of intervals in this index.
+     *
+     * @return number of intervals.
+     */
+    public int size() {
+        return elements.length;
+    }
+
+    /**
+     * Collect the intervals that contain a position.
+     *
+     * @param position position on the reference sequence.
+     * @param result   where element numbers of the matching intervals are added.
+     * @return the number of intervals added to result.
+     */
+    public int stab(final int position, final IntCollection result) {
+        return collect(position, position, result);
+    }
+
+    /**
+     * Collect the intervals that overlap the range [start, end] by at least one position.
+     *
+     * @param start start of the range, inclusive.
+     * @param end   end of the range, inclusive.
+     * @param result where element numbers of the matching intervals are added.
+     * @return the number of intervals added to result.
+     */
+    public int overlapping(final int start, final int end, final IntCollection result) {
+        return collect(end, start, result);
+    }
+
+    /**
+     * Collect the intervals that fully contain the range [start, end].
+     *
+     * @param start start of the range, inclusive.
+     * @param end   end of the range, inclusive.
+     * @param result where element numbers of the matching intervals are added.
+     * @return the number of intervals added to result.
+     */
+    public int containing(final int start, final int end, final IntCollection result) {
+        return collect(start, end, result);
+    }
+
+    /**
+     * Collect the intervals with start &lt;= maxStart and end &gt;= minEnd.
+     */
+    private int collect(final int maxStart, final int minEnd, final IntCollection result) {
+        if (elements.length == 0) {
+            return 0;
+        }
+        return collect(0, elements.length, maxStart, minEnd, result);
+    }
+
+    private int collect(final int lo, final int hi, final int maxStart, final int minEnd, final IntCollection result) {
+        final int mid = (lo + hi) >>> 1;
+        if (maxEnds[mid] < minEnd) {
+            // no interval of this subtree ends late enough.
+            return 0;
+        }
+        int count = 0;
+        if (lo < mid) {
+            count += collect(lo, mid, maxStart, minEnd, result);
+        }
+        if (starts[mid] > maxStart) {
+            // this interval and the right subtree start too late.
+            return count;
+        }
+        if (ends[mid] >= minEnd) {
+            result.add(elements[mid]);
+            count++;
+        }
+        if (mid + 1 < hi) {
+            count += collect(mid + 1, hi, maxStart, minEnd, result);
+        }
+        return count;
+    }
+
+    /**
+     * Join reads sorted by start position with the intervals of this index, in a single pass. For each interval,
+     * accumulate the weights of the reads that overlap the interval by at least one position, and of the reads that
+     * are strictly within the interval. The pass keeps the intervals that can still overlap the next reads in an
+     * active set, which is scanned for each read. Intervals leave the active set as soon as they end before the start
+     * of the current read.
+     *
+     * @param readStarts  start position of the reads, sorted in increasing order.
+     * @param readEnds    end position of the reads, inclusive.
+     * @param readWeights weight of each read, or null to count each read once.
+     * @param numReads    number of reads to join.
+     * @param overlapSums where the weights of overlapping reads are added, indexed by element number.
+     * @param withinSums  where the weights of reads strictly within intervals are added, indexed by element number.
+     */
+    public void join(final int[] readStarts, final int[] readEnds, final double[] readWeights, final int numReads,
+                     final double[] overlapSums, final double[] withinSums) {
+        final int n = elements.length;
+        final int[] active = new int[n];
+        int numActive = 0;
+        int next = 0;
+        int previousStart = Integer.MIN_VALUE;
+        for (int r = 0; r < numReads; r++) {
+            final int readStart = readStarts[r];
+            final int readEnd = readEnds[r];
+            if (readStart < previousStart) {
+                throw new IllegalArgumentException("Reads must be sorted by start position.");
+            }
+            previousStart = readStart;
+            final double weight = readWeights == null ? 1 : readWeights[r];
+            while (next < n && starts[next] <= readEnd) {
+                active[numActive++] = next++;
+            }
+            int k = 0;
+            while (k < numActive) {
+                final int slot = active[k];
+                if (ends[slot] < readStart) {
+                    // later reads start after this interval as well:
+                    active[k] = active[--numActive];
+                    continue;
+                }
+                if (starts[slot] <= readEnd) {
+                    final int element = elements[slot];
+                    overlapSums[element] += weight;
+                    if (starts[slot] <= readStart && readEnd <= ends[slot]) {
+                        withinSums[element] += weight;
+                    }
+                }
+                k++;
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.algorithmic.algorithm;
+
+/**
+ * Implemented by annotation counters whose counts are sums of per-read weights. Such counters can count
+ * all the intervals of an annotation index in a single pass over their sorted reads.
+ */
+public interface AnnotationJoinCountInterface {
+    /**
+     * Count reads against every interval of an index. Must be called after sortReads().
+     *
+     * @param index         intervals to count reads for.
+     * @param overlapCounts where counts of reads that partially overlap each interval are added, indexed by element
+     *                      number.
+     * @param withinCounts  where counts of reads strictly within each interval are added, indexed by element number.
+     */
+    void joinIntervals(AnnotationIntervalIndex index, double[] overlapCounts, double[] withinCounts);
+}
@@ -34,7 +34,7 @@ import java.util.Collections;
  * Calculates annotation counts with count reweighting.
  * This class was copied from AnnotationCount and adapted to use ReadWithIndex and ComputeWeightCount.
  */
-public class AnnotationWeightCount implements AnnotationCountInterface {
+public class AnnotationWeightCount implements AnnotationCountInterface, AnnotationJoinCountInterface {
     private final ObjectList<ReadWithIndex> reads;
     private final IntList readStart;
     private final ComputeWeightCount baseCounter;
@@ -216,6 +216,21 @@ public class AnnotationWeightCount implements AnnotationCountInterface {
     }
 
 
+    public void joinIntervals(final AnnotationIntervalIndex index, final double[] overlapCounts,
+                              final double[] withinCounts) {
+        final int n = reads.size();
+        final int[] starts = new int[n];
+        final int[] ends = new int[n];
+        final double[] readWeights = new double[n];
+        for (int i = 0; i < n; i++) {
+            final ReadWithIndex read = reads.get(i);
+            starts[i] = read.start;
+            ends[i] = read.end;
+            readWeights[i] = weights.getWeight(read.readIndex);
+        }
+        index.join(starts, ends, readWeights, n, overlapCounts, withinCounts);
+    }
+
     /**
      * Returns the number of reads that partially overlap  with the given annotation interval.
      *
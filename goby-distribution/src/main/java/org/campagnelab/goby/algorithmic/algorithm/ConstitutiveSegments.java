@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.algorithmic.algorithm;
+
+import org.campagnelab.goby.algorithmic.data.Annotation;
+import org.campagnelab.goby.algorithmic.data.Segment;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectList;
+
+/**
+ * Keeps the segments of annotations that uniquely tag one annotation. A segment is shared, and removed, when at
+ * least one of its bases is also covered by a segment of another annotation. Annotations left without segments are
+ * removed as well.
+ * <p/>
+ * Shared segments are found with a sweep over the segments of each chromosome sorted by start, which tracks the
+ * largest end seen so far for two distinct annotations. Together with a backward pass that finds the next segment
+ * of another annotation, this detects every overlap in O(n log n) time for n segments, independently of their
+ * lengths.
+ */
+public class ConstitutiveSegments {
+
+    private ConstitutiveSegments() {
+    }
+
+    /**
+     * Remove shared segments from annotations, in place.
+     *
+     * @param annotations annotations grouped by chromosome.
+     * @return the annotations argument.
+     */
+    public static Object2ObjectMap<String, ObjectList<Annotation>> removeSharedSegments(
+            final Object2ObjectMap<String, ObjectList<Annotation>> annotations) {
+        for (final ObjectList<Annotation> chromosomeAnnotations : annotations.values()) {
+            removeSharedSegments(chromosomeAnnotations);
+        }
+        return annotations;
+    }
+
+    /**
+     * Remove shared segments from annotations of a single chromosome, in place.
+     *
+     * @param annotations annotations of one chromosome.
+     */
+    public static void removeSharedSegments(final ObjectList<Annotation> annotations) {
+        int numSegments = 0;
+        for (final Annotation annotation : annotations) {
+            numSegments += annotation.getSegments().size();
+        }
+        final int[] starts = new int[numSegments];
+        final int[] ends = new int[numSegments];
+        final int[] owners = new int[numSegments];
+        int n = 0;
+        for (int a = 0; a < annotations.size(); a++) {
+            for (final Segment segment : annotations.get(a).getSegments()) {
+                starts[n] = segment.getStart();
+                ends[n] = segment.getEnd();
+                owners[n] = a;
+                n++;
+            }
+        }
+        final int[] order = new int[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            order[i] = i;
+        }
+        IntArrays.radixSortIndirect(order, starts, true);
+
+        final boolean[] shared = new boolean[numSegments];
+        // forward: overlaps with segments of other annotations that start at or before the segment.
+        int bestEnd = Integer.MIN_VALUE;
+        int bestOwner = -1;
+        int otherEnd = Integer.MIN_VALUE;
+        for (int k = 0; k < numSegments; k++) {
+            final int segment = order[k];
+            final int owner = owners[segment];
+            final int end = bestOwner != owner ? bestEnd : otherEnd;
+            if (end >= starts[segment]) {
+                shared[segment] = true;
+            }
+            if (owner == bestOwner) {
+                bestEnd = Math.max(bestEnd, ends[segment]);
+            } else if (ends[segment] > bestEnd) {
+                otherEnd = bestEnd;
+                bestEnd = ends[segment];
+                bestOwner = owner;
+            } else if (ends[segment] > otherEnd) {
+                otherEnd = ends[segment];
+            }
+        }
+        // backward: overlaps with segments of other annotations that start at or after the segment. The closest such
+        // segment in start order is enough to decide.
+        int nextOther = -1;
+        for (int k = numSegments - 2; k >= 0; k--) {
+            final int segment = order[k];
+            final int next = order[k + 1];
+            if (owners[next] != owners[segment]) {
+                nextOther = next;
+            }
+            // otherwise, the next segment of another annotation is the same as for the next segment.
+            if (nextOther != -1 && owners[nextOther] != owners[segment] && starts[nextOther] <= ends[segment]) {
+                shared[segment] = true;
+            }
+        }
+
+        final ObjectList<Annotation> kept = new ObjectArrayList<Annotation>(annotations.size());
+        int s = 0;
+        for (final Annotation annotation : annotations) {
+            final ObjectList<Segment> segments = annotation.getSegments();
+            final ObjectList<Segment> constitutive = new ObjectArrayList<Segment>(segments.size());
+            for (final Segment segment : segments) {
+                if (!shared[s++]) {
+                    constitutive.add(segment);
+                }
+            }
+            if (!constitutive.isEmpty()) {
+                segments.clear();
+                segments.addAll(constitutive);
+                kept.add(annotation);
+            }
+        }
+        annotations.clear();
+        annotations.addAll(kept);
+    }
+}
@@ -55,6 +55,38 @@ public class FenwickTree implements Serializable {
         }
     }
 
+    /**
+     * Increment the count of an element by several observations at once.
+     *
+     * @param index index of the element. Elements past the capacity of the tree only count in the total.
+     * @param count number of observations of the element.
+     */
+    public void incrementCount(int index, final long count) {
+        ++index;
+        totalCount += count;
+        while (index <= n) {
+            cumCount[index] += count;
+            index += index & -index;
+        }
+    }
+
+    /**
+     * Add the counts of another tree to this tree. Since the cumulative counts of a Fenwick tree are sums of
+     * element counts, the trees are summed element-wise.
+     *
+     * @param other a tree with the same size as this tree.
+     */
+    public void add(final FenwickTree other) {
+        if (other.n != n) {
+            throw new IllegalArgumentException(String.format("cannot add a tree of size %d to a tree of size %d.",
+                    other.n, n));
+        }
+        for (int i = 0; i < cumCount.length; i++) {
+            cumCount[i] += other.cumCount[i];
+        }
+        totalCount += other.totalCount;
+    }
+
     /**
      * Get the cumulative count for elements between [0-index].
      *
@@ -66,7 +98,7 @@ public class FenwickTree implements Serializable {
             // past the capacity of the array is all the counts we have seen:
             return totalCount;
         }
-        int count = 0;
+        long count = 0;
         index++;
         while (index != 0) {
             count += cumCount[index];
@@ -22,15 +22,16 @@ import org.campagnelab.goby.algorithmic.data.Annotation;
 import org.campagnelab.goby.algorithmic.data.Interval;
 import org.campagnelab.goby.modes.CompactAlignmentToAnnotationCountsMode;
 import edu.cornell.med.icb.identifier.IndexedIdentifier;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.objects.Object2ObjectArrayMap;
 import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectList;
 import it.unimi.dsi.lang.MutableString;
 
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Map;
@@ -42,13 +43,6 @@ import java.util.Map;
  */
 public class RandomAccessAnnotations {
 
-    private Comparator<Interval> compareIntervals = new Comparator<Interval>() {
-        @Override
-        public int compare(final Interval a, final Interval b) {
-            return a.start - b.start;
-        }
-    };
-
     /**
      * Load and sort annotations by their end position.
      *
@@ -95,12 +89,18 @@ public class RandomAccessAnnotations {
                 }
 
                 chromosomeToMap.put(key, intervals);
+                chromosomeToIndex.remove(key);
             }
         }
 
     }
 
     Object2ObjectMap<String, Interval[]> chromosomeToMap = new Object2ObjectArrayMap<String, Interval[]>();
+    /**
+     * Interval index over chromosomeToMap, built on demand for each chromosome.
+     */
+    private final Object2ObjectMap<String, AnnotationIntervalIndex> chromosomeToIndex =
+            new Object2ObjectArrayMap<String, AnnotationIntervalIndex>();
     private final Comparator<? super Annotation> compareAnnotationStart = new Comparator<Annotation>() {
         @Override
         public int compare(final Annotation annotation, final Annotation annotation1) {
@@ -119,55 +119,61 @@ public class RandomAccessAnnotations {
         System.arraycopy(array, 0, dest, 0, array.length);
         dest[array.length] = newInterval;
         chromosomeToMap.put(chr, dest);
+        chromosomeToIndex.remove(chr);
 
+    }
 
+    private AnnotationIntervalIndex getIndex(final String chromosome, final Interval[] intervals) {
+        AnnotationIntervalIndex index = chromosomeToIndex.get(chromosome);
+        if (index == null) {
+            final int[] starts = new int[intervals.length];
+            final int[] ends = new int[intervals.length];
+            for (int i = 0; i < intervals.length; i++) {
+                starts[i] = intervals[i].start;
+                ends[i] = intervals[i].end;
+            }
+            index = new AnnotationIntervalIndex(starts, ends);
+            chromosomeToIndex.put(chromosome, index);
+        }
+        return index;
     }
 
     /**
-     * Find the annotation that overlaps an interval.
+     * Find an annotation that contains an interval.
      *
      * @param chromosome
      * @param start
      * @param end
-     * @return The annotation or null is none overlaps the query interval.
+     * @return The annotation with the smallest start that contains the query interval, or null if none does.
      */
     public Interval find(final String chromosome, final int start, final int end) {
         final Interval[] intervals = chromosomeToMap.get(chromosome);
         if (intervals == null) {
             return null;
         }
-        singleton.start = start;
-        final int index = Arrays.binarySearch(intervals, singleton, compareIntervals);
-        final int ip;
-        if (index < 0) {
-
-            // position does not match min exactly, we get the insertion point instead:
-            ip = -index - 1;
-            return checkOverlap(intervals, ip, start, end);
-        } else {
-            ip = index;
-            return checkOverlap(intervals, ip + 1, start, end);
-        }
-
+        final IntArrayList result = new IntArrayList();
+        getIndex(chromosome, intervals).containing(start, end, result);
+        return result.isEmpty() ? null : intervals[result.getInt(0)];
     }
 
-    private Interval checkOverlap(final Interval[] intervals, final int insertionPoint, final int start, final int end) {
-        if (insertionPoint <= 0) {
-            return null;
-        }
-        final Interval previous = intervals[insertionPoint - 1];
-        if (previous.start <= start && previous.end >= end) {
-            return previous;
-        }
-        if (insertionPoint < intervals.length) {
-            final Interval next = intervals[insertionPoint];
-            if (next.start <= start && next.end >= end) {
-                return next;
+    /**
+     * Find the annotations that overlap an interval by at least one position.
+     *
+     * @param chromosome
+     * @param start
+     * @param end
+     * @return The overlapping annotations, in increasing start order.
+     */
+    public ObjectList<Interval> findOverlapping(final String chromosome, final int start, final int end) {
+        final ObjectList<Interval> overlapping = new ObjectArrayList<Interval>();
+        final Interval[] intervals = chromosomeToMap.get(chromosome);
+        if (intervals != null) {
+            final IntArrayList result = new IntArrayList();
+            getIndex(chromosome, intervals).overlapping(start, end, result);
+            for (int i = 0; i < result.size(); i++) {
+                overlapping.add(intervals[result.getInt(i)]);
             }
         }
-        return null;
-
+        return overlapping;
     }
-
-    private Interval singleton = new Interval();
 }
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.algorithmic.algorithm;
+
+import it.unimi.dsi.fastutil.ints.IntHeapPriorityQueue;
+import org.campagnelab.goby.counts.CountsWriterI;
+
+import java.io.IOException;
+
+/**
+ * Computes the base-level read coverage of a reference sequence with a sweep line, for reads populated in order
+ * of increasing start position. Produces the same transitions as {@link ComputeCount#baseCount(CountsWriterI)},
+ * but writes each transition to the writer as soon as no later read can change it. Only the ends of the reads that
+ * overlap the sweep line are kept in memory (in a heap), so memory depends on coverage rather than on the length
+ * of the reference sequence.
+ */
+public class StreamingComputeCount {
+    private final CountsWriterI writer;
+    /**
+     * Positions immediately after the end of the reads that overlap the sweep line.
+     */
+    private final IntHeapPriorityQueue pendingEnds = new IntHeapPriorityQueue();
+    /**
+     * Start position of the last reads populated, whose starts have not been counted yet.
+     */
+    private int pendingStart = -1;
+    private int pendingStartCount;
+    /**
+     * Number of reads that start at or before, and that end before, the last position swept.
+     */
+    private int cumulativeStarts;
+    private int cumulativeEnds;
+    private int previousPosition;
+    private int previousCount;
+    private int lengthConstant;
+
+    /**
+     * Create an instance that writes counts to writer.
+     *
+     * @param writer where transitions are written. The writer is closed by {@link #close()}.
+     */
+    public StreamingComputeCount(final CountsWriterI writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Populate with a read. Reads must be populated in order of increasing start position.
+     *
+     * @param startIndex Start position of the read ON or BEFORE the startIndex on the reference sequence.
+     * @param endIndex   End position of the read BEFORE the endIndex on the reference sequence.
+     * @return length of the read.
+     * @throws IOException If an error occurs writing transitions.
+     */
+    public int populate(final int startIndex, final int endIndex) throws IOException {
+        if (startIndex != pendingStart) {
+            if (startIndex < pendingStart) {
+                throw new IllegalArgumentException(String.format(
+                        "Reads must be populated in order of start position: %d after %d", startIndex, pendingStart));
+            }
+            // positions before startIndex will not see any more read starts:
+            sweepTo(startIndex);
+            pendingStart = startIndex;
+            pendingStartCount = 0;
+        }
+        pendingStartCount++;
+        pendingEnds.enqueue(endIndex + 1);
+        return endIndex - startIndex;
+    }
+
+    /**
+     * Write the transitions of the reads populated so far and close the writer.
+     *
+     * @throws IOException If an error occurs writing transitions.
+     */
+    public void close() throws IOException {
+        sweepTo(Integer.MAX_VALUE);
+        writer.close();
+    }
+
+    /**
+     * Process the positions where starts or ends occur before limit, in order.
+     */
+    private void sweepTo(final int limit) throws IOException {
+        while (true) {
+            int position = limit;
+            if (pendingStartCount > 0) {
+                position = Math.min(position, pendingStart);
+            }
+            if (!pendingEnds.isEmpty()) {
+                position = Math.min(position, pendingEnds.firstInt());
+            }
+            if (position >= limit) {
+                return;
+            }
+            if (pendingStartCount > 0 && pendingStart == position) {
+                cumulativeStarts += pendingStartCount;
+                pendingStartCount = 0;
+            }
+            while (!pendingEnds.isEmpty() && pendingEnds.firstInt() == position) {
+                pendingEnds.dequeueInt();
+                cumulativeEnds++;
+            }
+            // As in ComputeCount, counting starts at position zero with a count of zero.
+            if (position > 0) {
+                lengthConstant += position - previousPosition;
+                final int count = cumulativeStarts - cumulativeEnds;
+                if (count != previousCount) {
+                    writer.appendCount(previousCount, lengthConstant);
+                    previousCount = count;
+                    lengthConstant = 0;
+                }
+                previousPosition = position;
+            }
+        }
+    }
+}
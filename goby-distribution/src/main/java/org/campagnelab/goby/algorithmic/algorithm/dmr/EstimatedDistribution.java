@@ -22,16 +22,24 @@ import org.campagnelab.goby.algorithmic.algorithm.FenwickTree;
 import edu.mssm.crover.cli.CLI;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.io.BinIO;
+import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.Serializable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 
 /**
  * Used to estimate and store null and test distributions to support empirical p-value estimation.
+ * <p/>
+ * Distributions are stored in a compact binary format. For each covariate bin, the format keeps the cumulative count
+ * of the scaled statistic values that were observed at least once, sorted by statistic. Stored distributions are
+ * memory mapped when loaded: p-values are obtained by binary search in the mapped file, and a bin is only copied to a
+ * Fenwick tree when new observations are added to it. Distributions estimated separately (for instance on different
+ * chromosomes, or by different threads) can be summed with {@link #merge(EstimatedDistribution)}. Files written
+ * with Java serialization by earlier versions can still be loaded.
  *
  * @author Fabien Campagne
  *         Date: 2/19/12
@@ -45,6 +53,20 @@ public class EstimatedDistribution implements Serializable {
     private BinningStrategy binningStrategy = new FastSmallAndLog10BinningStrategy();
     private StatisticAdaptor statAdaptor;
     private static boolean DEBUG = false;
+    /**
+     * First bytes of a stored distribution ("GEDF"). Java serialized distributions start with a different magic number.
+     */
+    private static final int MAGIC = 0x47454446;
+    private static final int FORMAT_VERSION = 1;
+    /**
+     * Length of the entry of a bin in the directory of a stored distribution: offset of the bin (long), number of
+     * statistic values (int) and total count (long).
+     */
+    private static final int DIRECTORY_ENTRY_LENGTH = 20;
+    /**
+     * Counts of the bins of a loaded distribution, or null when the distribution was not loaded from the compact format.
+     */
+    private transient MappedDensities mappedDensities;
 
     public EstimatedDistribution(int numberOfContexts) {
         densitities = new ObjectArrayList<FenwickTree>();
@@ -121,8 +143,10 @@ public class EstimatedDistribution implements Serializable {
     };
 
     public FenwickTree getDensity(int... covariates) {
-        final int index = covariateStrategy.getIndex(covariates);
+        return getDensityForBin(covariateStrategy.getIndex(covariates));
+    }
 
+    private FenwickTree getDensityForBin(final int index) {
         while (densitities.size() <= index) {
             densitities.add(null);
         }
@@ -133,20 +157,307 @@ public class EstimatedDistribution implements Serializable {
             // grow the array as needed:
 
             final FenwickTree newTree = new FenwickTree(MAX_ITEMS);
+            if (mappedDensities != null) {
+                // start from the counts loaded for this bin:
+                mappedDensities.copyTo(index, newTree);
+            }
             densitities.set(index, newTree);
             return newTree;
         }
     }
 
+    private FenwickTree getTreeIfPresent(final int index) {
+        return index < densitities.size() ? densitities.get(index) : null;
+    }
+
+    private long getCumulativeCountForBin(final int binIndex, final int scaledStatistic) {
+        if (mappedDensities != null && getTreeIfPresent(binIndex) == null) {
+            return mappedDensities.getCumulativeCount(binIndex, scaledStatistic);
+        }
+        return getDensityForBin(binIndex).getCumulativeCount(scaledStatistic);
+    }
+
+    private long getTotalCountForBin(final int binIndex) {
+        if (mappedDensities != null && getTreeIfPresent(binIndex) == null) {
+            return mappedDensities.getTotalCount(binIndex);
+        }
+        return getDensityForBin(binIndex).getTotalCount();
+    }
+
+    /**
+     * Return the number of covariate bins, including bins without observations.
+     */
+    public int getNumberOfBins() {
+        return Math.max(densitities.size(), mappedDensities == null ? 0 : mappedDensities.numBins);
+    }
+
+    /**
+     * Determine if a density was created for a covariate bin.
+     */
+    public boolean hasBin(final int binIndex) {
+        return getTreeIfPresent(binIndex) != null || mappedDensities != null && mappedDensities.hasBin(binIndex);
+    }
+
+    /**
+     * Add the observations of another distribution to this distribution. Distributions estimated separately, for
+     * instance on different chromosomes or by different threads, are summed this way.
+     *
+     * @param other a distribution estimated with the same statistic, scaling and binning strategy.
+     */
+    public void merge(final EstimatedDistribution other) {
+        if (other.SCALING_FACTOR != SCALING_FACTOR || other.statAdaptor.getClass() != statAdaptor.getClass() ||
+                other.binningStrategy.getClass() != binningStrategy.getClass()) {
+            throw new IllegalArgumentException(String.format(
+                    "Cannot merge a distribution of statistic %s binned with %s into a distribution of statistic %s binned with %s.",
+                    other.statAdaptor.statName(), other.binningStrategy.getName(),
+                    statAdaptor.statName(), binningStrategy.getName()));
+        }
+        for (int binIndex = 0; binIndex < other.getNumberOfBins(); binIndex++) {
+            if (other.hasBin(binIndex)) {
+                final FenwickTree otherTree = other.getTreeIfPresent(binIndex);
+                if (otherTree != null) {
+                    getDensityForBin(binIndex).add(otherTree);
+                } else {
+                    other.mappedDensities.copyTo(binIndex, getDensityForBin(binIndex));
+                }
+            }
+        }
+    }
+
     private ObjectArrayList<Observation> observations = new ObjectArrayList<Observation>();
 
 
-    public static void store(final Serializable estimator, final String filename) throws IOException {
-        BinIO.storeObject(estimator, filename);
+    /**
+     * Write a distribution in the compact binary format. The format starts with a magic number and a version, the
+     * scaling factor, the size of the densities and the number of bins, then the serialized statistic adaptor and
+     * binning strategy. A directory gives the offset, number of statistic values and total count of each bin. For each
+     * bin, the scaled statistic values observed (ints, in increasing order) are followed by the cumulative counts at
+     * these values (longs). Observations past the maximum scaled statistic only count in the total of their bin.
+     *
+     * @param estimator the distribution to write.
+     * @param filename  name of the file to write.
+     * @throws IOException if the file cannot be written.
+     */
+    public static void store(final EstimatedDistribution estimator, final String filename) throws IOException {
+        final DataOutputStream output = new DataOutputStream(new FastBufferedOutputStream(
+                new FileOutputStream(filename)));
+        try {
+            estimator.write(output);
+        } finally {
+            output.close();
+        }
+    }
+
+    private void write(final DataOutputStream output) throws IOException {
+        final byte[] adaptorBytes = serialize(statAdaptor);
+        final byte[] binningBytes = serialize(binningStrategy);
+        final int numBins = getNumberOfBins();
+        final IntArrayList[] statistics = new IntArrayList[numBins];
+        final LongArrayList[] cumulativeCounts = new LongArrayList[numBins];
+        for (int binIndex = 0; binIndex < numBins; binIndex++) {
+            if (hasBin(binIndex)) {
+                statistics[binIndex] = new IntArrayList();
+                cumulativeCounts[binIndex] = new LongArrayList();
+                long previous = 0;
+                for (int scaledStatistic = 0; scaledStatistic < MAX_ITEMS; scaledStatistic++) {
+                    final long cumulativeCount = getCumulativeCountForBin(binIndex, scaledStatistic);
+                    if (cumulativeCount != previous) {
+                        statistics[binIndex].add(scaledStatistic);
+                        cumulativeCounts[binIndex].add(cumulativeCount);
+                        previous = cumulativeCount;
+                    }
+                }
+            }
+        }
+        output.writeInt(MAGIC);
+        output.writeInt(FORMAT_VERSION);
+        output.writeInt(SCALING_FACTOR);
+        output.writeInt(MAX_ITEMS);
+        output.writeInt(numBins);
+        output.writeInt(adaptorBytes.length);
+        output.write(adaptorBytes);
+        output.writeInt(binningBytes.length);
+        output.write(binningBytes);
+        long offset = output.size() + (long) numBins * DIRECTORY_ENTRY_LENGTH;
+        for (int binIndex = 0; binIndex < numBins; binIndex++) {
+            if (statistics[binIndex] == null) {
+                output.writeLong(-1);
+                output.writeInt(0);
+                output.writeLong(0);
+            } else {
+                output.writeLong(offset);
+                output.writeInt(statistics[binIndex].size());
+                output.writeLong(getTotalCountForBin(binIndex));
+                offset += statistics[binIndex].size() * 12L;
+            }
+        }
+        for (int binIndex = 0; binIndex < numBins; binIndex++) {
+            if (statistics[binIndex] != null) {
+                for (final int scaledStatistic : statistics[binIndex]) {
+                    output.writeInt(scaledStatistic);
+                }
+                for (final long cumulativeCount : cumulativeCounts[binIndex]) {
+                    output.writeLong(cumulativeCount);
+                }
+            }
+        }
+    }
+
+    private static byte[] serialize(final Serializable object) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream output = new ObjectOutputStream(bytes);
+        output.writeObject(object);
+        output.close();
+        return bytes.toByteArray();
     }
 
+    private static Object deserialize(final ByteBuffer buffer, final int offset, final int length)
+            throws IOException, ClassNotFoundException {
+        final byte[] bytes = new byte[length];
+        final ByteBuffer source = buffer.duplicate();
+        source.position(offset);
+        source.get(bytes);
+        final ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return input.readObject();
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Load a distribution. Distributions in the compact format are memory mapped. Distributions written with Java
+     * serialization are deserialized.
+     *
+     * @param filename name of the file to load.
+     * @return the distribution.
+     * @throws IOException            if the file cannot be read, or has an unsupported version of the format.
+     * @throws ClassNotFoundException if the statistic adaptor or binning strategy cannot be deserialized.
+     */
     public static EstimatedDistribution load(final String filename) throws IOException, ClassNotFoundException {
-        return (EstimatedDistribution) BinIO.loadObject(filename);
+        final RandomAccessFile file = new RandomAccessFile(filename, "r");
+        final ByteBuffer buffer;
+        try {
+            if (file.length() < 4 || file.readInt() != MAGIC) {
+                file.close();
+                return (EstimatedDistribution) BinIO.loadObject(filename);
+            }
+            if (file.length() > Integer.MAX_VALUE) {
+                throw new IOException("Distribution file is too large to be mapped: " + filename);
+            }
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } finally {
+            file.close();
+        }
+        final int version = buffer.getInt(4);
+        if (version > FORMAT_VERSION) {
+            throw new IOException(String.format("Distribution file %s has format version %d, only versions up to %d are supported.",
+                    filename, version, FORMAT_VERSION));
+        }
+        final int scalingFactor = buffer.getInt(8);
+        final int maxItems = buffer.getInt(12);
+        final int numBins = buffer.getInt(16);
+        int offset = 20;
+        final int adaptorLength = buffer.getInt(offset);
+        final StatisticAdaptor adaptor = (StatisticAdaptor) deserialize(buffer, offset + 4, adaptorLength);
+        offset += 4 + adaptorLength;
+        final int binningLength = buffer.getInt(offset);
+        final BinningStrategy binning = (BinningStrategy) deserialize(buffer, offset + 4, binningLength);
+        offset += 4 + binningLength;
+
+        final EstimatedDistribution distribution = new EstimatedDistribution(1, adaptor);
+        if (distribution.SCALING_FACTOR != scalingFactor || maxItems != MAX_ITEMS) {
+            throw new IOException(String.format("Distribution file %s was written with scaling factor %d and %d items, expected %d and %d.",
+                    filename, scalingFactor, maxItems, distribution.SCALING_FACTOR, MAX_ITEMS));
+        }
+        distribution.setBinningStrategy(binning);
+        distribution.mappedDensities = new MappedDensities(buffer, offset, numBins, maxItems);
+        return distribution;
+    }
+
+    /**
+     * The bins of a stored distribution, read from a memory mapped file.
+     */
+    private static final class MappedDensities {
+        private final ByteBuffer buffer;
+        private final int directoryOffset;
+        private final int numBins;
+        private final int maxItems;
+
+        private MappedDensities(final ByteBuffer buffer, final int directoryOffset, final int numBins,
+                                final int maxItems) {
+            this.buffer = buffer;
+            this.directoryOffset = directoryOffset;
+            this.numBins = numBins;
+            this.maxItems = maxItems;
+        }
+
+        private int getOffset(final int binIndex) {
+            return (int) buffer.getLong(directoryOffset + binIndex * DIRECTORY_ENTRY_LENGTH);
+        }
+
+        private int getNumStatistics(final int binIndex) {
+            return buffer.getInt(directoryOffset + binIndex * DIRECTORY_ENTRY_LENGTH + 8);
+        }
+
+        boolean hasBin(final int binIndex) {
+            return binIndex < numBins && getOffset(binIndex) >= 0;
+        }
+
+        long getTotalCount(final int binIndex) {
+            if (!hasBin(binIndex)) {
+                return 0;
+            }
+            return buffer.getLong(directoryOffset + binIndex * DIRECTORY_ENTRY_LENGTH + 12);
+        }
+
+        /**
+         * Get the cumulative count at a scaled statistic, with the same semantic as
+         * {@link FenwickTree#getCumulativeCount(int)}.
+         */
+        long getCumulativeCount(final int binIndex, final int scaledStatistic) {
+            if (!hasBin(binIndex)) {
+                return 0;
+            }
+            if (scaledStatistic >= maxItems) {
+                return getTotalCount(binIndex);
+            }
+            final int offset = getOffset(binIndex);
+            final int numStatistics = getNumStatistics(binIndex);
+            // find the last statistic value less or equal to scaledStatistic:
+            int low = 0;
+            int high = numStatistics - 1;
+            int found = -1;
+            while (low <= high) {
+                final int middle = (low + high) >>> 1;
+                if (buffer.getInt(offset + middle * 4) <= scaledStatistic) {
+                    found = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return found == -1 ? 0 : buffer.getLong(offset + numStatistics * 4 + found * 8);
+        }
+
+        /**
+         * Add the counts of a bin to a tree.
+         */
+        void copyTo(final int binIndex, final FenwickTree tree) {
+            if (!hasBin(binIndex)) {
+                return;
+            }
+            final int offset = getOffset(binIndex);
+            final int numStatistics = getNumStatistics(binIndex);
+            long previous = 0;
+            for (int i = 0; i < numStatistics; i++) {
+                final long cumulativeCount = buffer.getLong(offset + numStatistics * 4 + i * 8);
+                tree.incrementCount(buffer.getInt(offset + i * 4), cumulativeCount - previous);
+                previous = cumulativeCount;
+            }
+            // observations past the last element of the tree only count in the total:
+            tree.incrementCount(maxItems, getTotalCount(binIndex) - previous);
+        }
     }
 
     /**
@@ -157,8 +468,7 @@ public class EstimatedDistribution implements Serializable {
      * @return the number of observations with similar covariates for which the statistic is less than the specified value.
      */
     public long getCumulativeCount(final int scaledStatistic, final int... covariates) {
-        final FenwickTree tree = getDensity(covariates);
-        return tree.getCumulativeCount(scaledStatistic);
+        return getCumulativeCountForBin(covariateStrategy.getIndex(covariates), scaledStatistic);
     }
 
     /**
@@ -169,8 +479,7 @@ public class EstimatedDistribution implements Serializable {
      * @return the number of observations with similar covariates for which the unscaled statistic is less than the specified value.
      */
     public long getCumulativeCount(final double statistic, final int... covariates) {
-        final FenwickTree tree = getDensity(covariates);
-        return tree.getCumulativeCount(scale(statistic));
+        return getCumulativeCountForBin(covariateStrategy.getIndex(covariates), scale(statistic));
     }
 
     /**
@@ -183,9 +492,12 @@ public class EstimatedDistribution implements Serializable {
      */
     public double getP(final double statistic, final int... covariates) {
         final int scaledStatistic = (int) Math.round(statistic * SCALING_FACTOR);
-        final FenwickTree tree = getDensity(covariates);
-        final long totalCount = tree.getTotalCount();
-        final double r = totalCount - tree.getCumulativeCount(scaledStatistic);
+        return getPForBin(covariateStrategy.getIndex(covariates), scaledStatistic);
+    }
+
+    private double getPForBin(final int binIndex, final int scaledStatistic) {
+        final long totalCount = getTotalCountForBin(binIndex);
+        final double r = totalCount - getCumulativeCountForBin(binIndex, scaledStatistic);
         final double n = totalCount;
         // estimated as per Morgan, Linda Am. J. Hum. Genet. 71 439-441, 2002
         final double p = (r + 1.0d) / (n + 1.0d);
@@ -203,15 +515,15 @@ public class EstimatedDistribution implements Serializable {
     public double getEmpiricalFdr(final EstimatedDistribution testDistribution,
                                   final double statistic, final int... covariates) {
         final int scaledStatistic = (int) Math.round(statistic * SCALING_FACTOR);
-        final FenwickTree nullTree = getDensity(covariates);
-        final FenwickTree testTree = testDistribution.getDensity(covariates);
-        final long nullTotalCount = nullTree.getTotalCount();
+        final int nullBinIndex = covariateStrategy.getIndex(covariates);
+        final int testBinIndex = testDistribution.covariateStrategy.getIndex(covariates);
+        final long nullTotalCount = getTotalCountForBin(nullBinIndex);
         // the number of observations in the null distribution that reach or exceed the statistic value:
-        final long b = nullTree.getCumulativeCount(scaledStatistic);
+        final long b = getCumulativeCountForBin(nullBinIndex, scaledStatistic);
         final double r = nullTotalCount - b;
         // the number of observations in the TEST distribution that reach or exceed the statistic value:
-        final long a = testTree.getCumulativeCount(scaledStatistic);
-        final long testTotalCount = testTree.getTotalCount();
+        final long a = testDistribution.getCumulativeCountForBin(testBinIndex, scaledStatistic);
+        final long testTotalCount = testDistribution.getTotalCountForBin(testBinIndex);
         final double y = testTotalCount - a;
         final double p = (r + 1.0d) / (nullTotalCount + 1.0d);
 
@@ -230,13 +542,7 @@ public class EstimatedDistribution implements Serializable {
      * @return
      */
     public double getP(final int scaledStatistic, final int... covariates) {
-        final FenwickTree tree = getDensity(covariates);
-        final long totalCount = tree.getTotalCount();
-        final double r = totalCount - tree.getCumulativeCount(scaledStatistic);
-        final double n = totalCount;
-        // estimated as per Morgan, Linda Am. J. Hum. Genet. 71 439-441, 2002
-        final double p = (r + 1.0d) / (n + 1.0d);
-        return p;
+        return getPForBin(covariateStrategy.getIndex(covariates), scaledStatistic);
     }
 
     public static void main(final String[] args) throws IOException {
@@ -244,6 +550,25 @@ public class EstimatedDistribution implements Serializable {
         boolean printObservations = CLI.isKeywordGiven(args, "--print-observations");
         String filename = CLI.getOption(args, "-f", null);
         String outputFilename = CLI.getOption(args, "-o", "out.tsv");
+        if (CLI.isKeywordGiven(args, "--merge")) {
+            // sum distributions estimated separately (-f takes a comma separated list of files):
+            EstimatedDistribution merged = null;
+            try {
+                for (final String distributionFilename : filename.split(",")) {
+                    final EstimatedDistribution distribution = load(distributionFilename);
+                    if (merged == null) {
+                        merged = distribution;
+                    } else {
+                        merged.merge(distribution);
+                    }
+                }
+            } catch (ClassNotFoundException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            store(merged, outputFilename);
+            return;
+        }
         PrintWriter outWriter = new PrintWriter(new FileWriter(outputFilename));
         if (printDensity) {
             EstimatedDistribution estimated = null;
@@ -256,8 +581,9 @@ public class EstimatedDistribution implements Serializable {
                 int index = 0;
                 outWriter.println("midPointSumTotal\tsumTotal range\t" + statName + "\tcount-at-" + statName);
                 final BinningStrategy binningStrategy = estimated.getBinningStrategy();
-                for (final FenwickTree tree : estimated.densitities) {
-                    if (tree != null) {
+                for (index = 0; index < estimated.getNumberOfBins(); index++) {
+                    if (estimated.hasBin(index)) {
+                        final FenwickTree tree = estimated.getDensityForBin(index);
                         int low = binningStrategy.getLowerBound(index);
                         int high = binningStrategy.getUpperBound(index);
 
@@ -275,8 +601,6 @@ public class EstimatedDistribution implements Serializable {
                             }
                         }
                     }
-                    index++;
-
                 }
                 outWriter.close();
             } catch (Exception e) {
@@ -48,6 +48,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
@@ -417,14 +418,53 @@ public final class AlignmentCollectionHandler implements ProtobuffCollectionHand
 
     @Override
     public Message decompressCollection(final Message reducedCollection, final byte[] compressedBytes) throws IOException {
-        reset();
-        final byte[] moreRoom = new byte[compressedBytes.length + 100];
-        System.arraycopy(compressedBytes, 0, moreRoom, 0, compressedBytes.length);
+        return decompressCollection(reducedCollection, ByteBuffer.wrap(compressedBytes));
+    }
 
+    @Override
+    public Message decompressCollection(final Message reducedCollection, final ByteBuffer compressedBytes) throws IOException {
         final Alignments.AlignmentCollection alignmentCollection = (Alignments.AlignmentCollection) reducedCollection;
+        final int numEntriesInChunk = alignmentCollection.getAlignmentEntriesCount();
+        final int streamVersion = decompressLists(compressedBytes, numEntriesInChunk);
+        if (columnsTarget != null) {
+            decompressColumns(alignmentCollection, streamVersion, columnsTarget);
+            // the entries were decoded to columns, return the reduced collection to signal success:
+            return reducedCollection;
+        }
         final Alignments.AlignmentCollection.Builder result = Alignments.AlignmentCollection.newBuilder();
+        int originalIndex = 0;
+        for (int templateIndex = 0; templateIndex < numEntriesInChunk; templateIndex++) {
+            final int templatePositionIndex = varPositionIndex;
+            final int templateVarFromToIndex = varFromToIndex;
+            final int templateVarHasToQualsIndex = varToQualLengthIndex;
+            while (multiplicities.get(templateIndex) >= 1) {
+                result.addAlignmentEntries(
+                        andBack(templateIndex, originalIndex, alignmentCollection.getAlignmentEntries(templateIndex), streamVersion));
+                if (multiplicities.get(templateIndex) >= 1) {
+                    // go back to the indices for the template:
+                    varPositionIndex = templatePositionIndex;
+                    varFromToIndex = templateVarFromToIndex;
+                }
+                originalIndex++;
+            }
+        }
+        restoreStrings(result);
+        restoreLinks(result);
+        ++chunkIndex;
+        return result.build();
+    }
+
+    /**
+     * Reset the state of the handler and decode the lists stored in the compressed bits of a chunk.
+     *
+     * @return the version of the stream.
+     */
+    private int decompressLists(final ByteBuffer compressedBytes, final int numEntriesInChunk) throws IOException {
+        reset();
+        final int length = compressedBytes.remaining();
+        final byte[] moreRoom = new byte[length + 100];
+        compressedBytes.duplicate().get(moreRoom, 0, length);
         final InputBitStream bitInput = new InputBitStream(new FastByteArrayInputStream(moreRoom));
-        final int numEntriesInChunk = alignmentCollection.getAlignmentEntriesCount();
 
         final int streamVersion = decompressBits(bitInput, numEntriesInChunk);
         if (streamVersion > VERSION) {
@@ -434,15 +474,41 @@ public final class AlignmentCollectionHandler implements ProtobuffCollectionHand
                     "they will read older versions though) ", streamVersion, VERSION);
             System.exit(1);
         }
+        return streamVersion;
+    }
+
+    /**
+     * When not null, decompressCollection decodes entries to these columns instead of building a collection.
+     */
+    private AlignmentColumns columnsTarget;
+
+    /**
+     * Decode the entries of the next chunks to columns instead of protocol buffer entries. When columns is not null,
+     * decompressCollection fills columns and returns the reduced collection, without building entries. Only the
+     * fields represented in {@link AlignmentColumns} are decoded.
+     *
+     * @param columns where to decode entries, or null to build protocol buffer entries.
+     */
+    public void setColumnsTarget(final AlignmentColumns columns) {
+        this.columnsTarget = columns;
+    }
+
+    /**
+     * Decode entries to columns. Follows the same steps as andBack, but skips the fields that columns do not
+     * represent.
+     */
+    private void decompressColumns(final Alignments.AlignmentCollection alignmentCollection,
+                                   final int streamVersion, final AlignmentColumns columns) {
+        columns.clear();
+        final int numEntriesInChunk = alignmentCollection.getAlignmentEntriesCount();
         int originalIndex = 0;
         for (int templateIndex = 0; templateIndex < numEntriesInChunk; templateIndex++) {
+            final Alignments.AlignmentEntry reduced = alignmentCollection.getAlignmentEntries(templateIndex);
             final int templatePositionIndex = varPositionIndex;
             final int templateVarFromToIndex = varFromToIndex;
-            final int templateVarHasToQualsIndex = varToQualLengthIndex;
-            while (multiplicities.get(templateIndex) >= 1) {
-                result.addAlignmentEntries(
-                        andBack(templateIndex, originalIndex, alignmentCollection.getAlignmentEntries(templateIndex), streamVersion));
-                if (multiplicities.get(templateIndex) >= 1) {
+            for (int copy = multiplicities.getInt(templateIndex); copy >= 1; copy--) {
+                decodeColumns(templateIndex, originalIndex, reduced, streamVersion, columns);
+                if (copy > 1) {
                     // go back to the indices for the template:
                     varPositionIndex = templatePositionIndex;
                     varFromToIndex = templateVarFromToIndex;
@@ -450,10 +516,115 @@ public final class AlignmentCollectionHandler implements ProtobuffCollectionHand
                 originalIndex++;
             }
         }
-        restoreStrings(result);
-        restoreLinks(result);
         ++chunkIndex;
-        return result.build();
+    }
+
+    private void decodeColumns(final int index, final int originalIndex, final Alignments.AlignmentEntry reduced,
+                               final int streamVersion, final AlignmentColumns columns) {
+        final int entry = columns.addEntry();
+        int present = multiplicityFieldsAllMissing ? 0 : AlignmentColumns.MULTIPLICITY;
+        columns.queryIndices[entry] = queryIndices.getInt(originalIndex);
+        if (originalIndex == 0 || reduced.hasPosition() || reduced.hasTargetIndex()) {
+            previousPosition = reduced.getPosition();
+            previousTargetIndex = reduced.getTargetIndex();
+        } else {
+            previousPosition += deltaPositions.getInt(deltaPosIndex);
+            previousTargetIndex += deltaTargetIndices.getInt(deltaPosIndex);
+            deltaPosIndex++;
+        }
+        columns.positions[entry] = previousPosition;
+        columns.targetIndices[entry] = previousTargetIndex;
+        if (streamVersion >= 2) {
+            // read quality scores are not represented in columns:
+            qualScoreIndex += numReadQualityScores.getInt(numReadQualScoresIndex++);
+        }
+        int anInt = mappingQualities.getInt(index);
+        if (anInt != MISSING_VALUE) {
+            columns.mappingQualities[entry] = anInt;
+            present |= AlignmentColumns.MAPPING_QUALITY;
+        }
+        anInt = fragmentIndices.getInt(index);
+        if (anInt != MISSING_VALUE) {
+            columns.fragmentIndices[entry] = anInt;
+            present |= AlignmentColumns.FRAGMENT_INDEX;
+        }
+        anInt = matchingReverseStrand.getInt(index);
+        final boolean reverseStrand = anInt == 1;
+        if (anInt != MISSING_VALUE) {
+            columns.matchingReverseStrand[entry] = reverseStrand;
+            present |= AlignmentColumns.MATCHING_REVERSE_STRAND;
+        }
+        anInt = numberOfMismatches.getInt(index);
+        if (anInt != MISSING_VALUE) {
+            columns.numberOfMismatches[entry] = anInt;
+            present |= AlignmentColumns.NUMBER_OF_MISMATCHES;
+        }
+        anInt = numberOfIndels.getInt(index);
+        if (anInt != MISSING_VALUE) {
+            columns.numberOfIndels[entry] = anInt;
+            present |= AlignmentColumns.NUMBER_OF_INDELS;
+        }
+        final int queryLength = queryLengths.getInt(index);
+        if (queryLength != MISSING_VALUE) {
+            columns.queryLengths[entry] = queryLength;
+            present |= AlignmentColumns.QUERY_LENGTH;
+        }
+        anInt = queryPositions.getInt(index);
+        if (anInt != MISSING_VALUE) {
+            columns.queryPositions[entry] = anInt;
+            present |= AlignmentColumns.QUERY_POSITION;
+        }
+        final int targetAlignedLength = targetAlignedLengths.getInt(index);
+        if (targetAlignedLength != MISSING_VALUE) {
+            columns.targetAlignedLengths[entry] = targetAlignedLength;
+            present |= AlignmentColumns.TARGET_ALIGNED_LENGTH;
+        }
+        anInt = queryAlignedLengths.getInt(index);
+        if (anInt != MISSING_VALUE) {
+            columns.queryAlignedLengths[entry] = decodeQueryAlignedLength(anInt, targetAlignedLength);
+            present |= AlignmentColumns.QUERY_ALIGNED_LENGTH;
+        }
+        anInt = sampleIndices.getInt(index);
+        if (anInt != MISSING_VALUE) {
+            columns.sampleIndices[entry] = anInt;
+            present |= AlignmentColumns.SAMPLE_INDEX;
+        }
+        anInt = readOriginIndices.getInt(index);
+        if (anInt != MISSING_VALUE) {
+            columns.readOriginIndices[entry] = anInt;
+            present |= AlignmentColumns.READ_ORIGIN_INDEX;
+        }
+        anInt = pairFlags.getInt(index);
+        if (anInt != MISSING_VALUE) {
+            columns.pairFlags[entry] = restoreSamFlags(anInt, reverseStrand);
+            present |= AlignmentColumns.PAIR_FLAGS;
+        }
+        anInt = scores.getInt(index);
+        if (anInt != MISSING_VALUE) {
+            columns.scores[entry] = Float.intBitsToFloat(anInt);
+            present |= AlignmentColumns.SCORE;
+        }
+        columns.presentFields[entry] = present;
+        final int numVariations = variationCount.getInt(index);
+        for (int varIndex = 0; varIndex < numVariations; varIndex++) {
+            final int fromLength = fromLengths.getInt(varPositionIndex);
+            final int toLength = toLengths.getInt(varPositionIndex);
+            final int position = varPositions.getInt(varPositionIndex);
+            final int recodedReadIndex = varReadIndex.getInt(varPositionIndex);
+            final int readIndex = reverseStrand ? recodedReadIndex + (queryLength - position) - 5 : -recodedReadIndex + position + 5;
+            ++varPositionIndex;
+            final int k = columns.addVariation(position, readIndex);
+            final int maxLength = Math.max(fromLength, toLength);
+            for (int i = 0; i < maxLength; i++) {
+                final int fromTo = varFromTo.getInt(varFromToIndex++);
+                if (i < fromLength) {
+                    columns.appendFromBase(k, (char) (fromTo >> 8));
+                }
+                if (i < toLength) {
+                    columns.appendToBase(k, (char) (fromTo & 0xFF));
+                }
+            }
+        }
     }
 
     private void restoreLinks(final Alignments.AlignmentCollection.Builder alignmentCollection) {
@@ -0,0 +1,559 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.alignments;
+
+import it.unimi.dsi.fastutil.booleans.BooleanArrays;
+import it.unimi.dsi.fastutil.bytes.ByteArrays;
+import it.unimi.dsi.fastutil.floats.FloatArrays;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+
+/**
+ * The entries of one chunk of alignment, decoded to parallel primitive arrays. Element i of each array describes
+ * entry i of the chunk, for i between zero and size()-1. Arrays are reused from one chunk to the next, so that
+ * iterating through an alignment does not allocate objects per entry. Arrays may be longer than size().
+ * <p/>
+ * Fields that were not stored in the alignment hold the value a protocol buffer AlignmentEntry would return for
+ * the field (zero, or false), except multiplicity, which defaults to one. Whether an optional field was stored is
+ * recorded in a bit set per entry, see {@link #has(int, int)}, so that a missing field can be told apart from a
+ * field stored with the default value. The sequence variations of entry i are the
+ * variations numbered from getVariationStarts()[i] to getVariationStarts()[i+1]-1. The from and to bases of variation
+ * k are the bytes of getVariationFromBases() (resp. getVariationToBases()) between the offsets stored at k and k+1.
+ * <p/>
+ * Use {@link AlignmentEntryCursor} to iterate through the entries of an alignment with this representation.
+ */
+public class AlignmentColumns {
+    /*
+     * Bits of the optional fields in getPresentFields(), set when the field was stored for an entry.
+     */
+    public static final int MATCHING_REVERSE_STRAND = 1;
+    public static final int QUERY_LENGTH = 1 << 1;
+    public static final int QUERY_POSITION = 1 << 2;
+    public static final int QUERY_ALIGNED_LENGTH = 1 << 3;
+    public static final int TARGET_ALIGNED_LENGTH = 1 << 4;
+    public static final int MAPPING_QUALITY = 1 << 5;
+    public static final int MULTIPLICITY = 1 << 6;
+    public static final int FRAGMENT_INDEX = 1 << 7;
+    public static final int SAMPLE_INDEX = 1 << 8;
+    public static final int READ_ORIGIN_INDEX = 1 << 9;
+    public static final int PAIR_FLAGS = 1 << 10;
+    public static final int NUMBER_OF_MISMATCHES = 1 << 11;
+    public static final int NUMBER_OF_INDELS = 1 << 12;
+    public static final int SCORE = 1 << 13;
+
+    private int size;
+
+    int[] queryIndices = IntArrays.EMPTY_ARRAY;
+    int[] targetIndices = IntArrays.EMPTY_ARRAY;
+    int[] positions = IntArrays.EMPTY_ARRAY;
+    boolean[] matchingReverseStrand = BooleanArrays.EMPTY_ARRAY;
+    int[] queryLengths = IntArrays.EMPTY_ARRAY;
+    int[] queryPositions = IntArrays.EMPTY_ARRAY;
+    int[] queryAlignedLengths = IntArrays.EMPTY_ARRAY;
+    int[] targetAlignedLengths = IntArrays.EMPTY_ARRAY;
+    int[] mappingQualities = IntArrays.EMPTY_ARRAY;
+    int[] multiplicities = IntArrays.EMPTY_ARRAY;
+    int[] fragmentIndices = IntArrays.EMPTY_ARRAY;
+    int[] sampleIndices = IntArrays.EMPTY_ARRAY;
+    int[] readOriginIndices = IntArrays.EMPTY_ARRAY;
+    int[] pairFlags = IntArrays.EMPTY_ARRAY;
+    int[] numberOfMismatches = IntArrays.EMPTY_ARRAY;
+    int[] numberOfIndels = IntArrays.EMPTY_ARRAY;
+    float[] scores = FloatArrays.EMPTY_ARRAY;
+    int[] presentFields = IntArrays.EMPTY_ARRAY;
+
+    int[] variationStarts = new int[]{0};
+    private int numVariations;
+    int[] variationPositions = IntArrays.EMPTY_ARRAY;
+    int[] variationReadIndices = IntArrays.EMPTY_ARRAY;
+    int[] variationFromOffsets = new int[]{0};
+    int[] variationToOffsets = new int[]{0};
+    byte[] variationFromBases = ByteArrays.EMPTY_ARRAY;
+    byte[] variationToBases = ByteArrays.EMPTY_ARRAY;
+
+    /**
+     * Return the number of entries in the chunk.
+     *
+     * @return the number of entries.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Remove all entries, keeping the arrays allocated.
+     */
+    public void clear() {
+        size = 0;
+        numVariations = 0;
+    }
+
+    /**
+     * Copy the entries of a decoded collection. Used when the codec of a chunk decodes whole collections.
+     *
+     * @param collection the collection to copy.
+     */
+    public void fill(final Alignments.AlignmentCollection collection) {
+        clear();
+        final int numEntries = collection.getAlignmentEntriesCount();
+        for (int i = 0; i < numEntries; i++) {
+            final Alignments.AlignmentEntry entry = collection.getAlignmentEntries(i);
+            final int index = addEntry();
+            presentFields[index] = presentFields(entry);
+            queryIndices[index] = entry.getQueryIndex();
+            targetIndices[index] = entry.getTargetIndex();
+            positions[index] = entry.getPosition();
+            matchingReverseStrand[index] = entry.getMatchingReverseStrand();
+            queryLengths[index] = entry.getQueryLength();
+            queryPositions[index] = entry.getQueryPosition();
+            queryAlignedLengths[index] = entry.getQueryAlignedLength();
+            targetAlignedLengths[index] = entry.getTargetAlignedLength();
+            mappingQualities[index] = entry.getMappingQuality();
+            multiplicities[index] = entry.hasMultiplicity() ? entry.getMultiplicity() : 1;
+            fragmentIndices[index] = entry.getFragmentIndex();
+            sampleIndices[index] = entry.getSampleIndex();
+            readOriginIndices[index] = entry.getReadOriginIndex();
+            pairFlags[index] = entry.getPairFlags();
+            numberOfMismatches[index] = entry.getNumberOfMismatches();
+            numberOfIndels[index] = entry.getNumberOfIndels();
+            scores[index] = entry.getScore();
+            final int count = entry.getSequenceVariationsCount();
+            for (int v = 0; v < count; v++) {
+                final Alignments.SequenceVariation variation = entry.getSequenceVariations(v);
+                final int k = addVariation(variation.getPosition(), variation.getReadIndex());
+                final String from = variation.getFrom();
+                for (int c = 0; c < from.length(); c++) {
+                    appendFromBase(k, from.charAt(c));
+                }
+                final String to = variation.getTo();
+                for (int c = 0; c < to.length(); c++) {
+                    appendToBase(k, to.charAt(c));
+                }
+            }
+        }
+    }
+
+    private static int presentFields(final Alignments.AlignmentEntry entry) {
+        int present = 0;
+        if (entry.hasMatchingReverseStrand()) {
+            present |= MATCHING_REVERSE_STRAND;
+        }
+        if (entry.hasQueryLength()) {
+            present |= QUERY_LENGTH;
+        }
+        if (entry.hasQueryPosition()) {
+            present |= QUERY_POSITION;
+        }
+        if (entry.hasQueryAlignedLength()) {
+            present |= QUERY_ALIGNED_LENGTH;
+        }
+        if (entry.hasTargetAlignedLength()) {
+            present |= TARGET_ALIGNED_LENGTH;
+        }
+        if (entry.hasMappingQuality()) {
+            present |= MAPPING_QUALITY;
+        }
+        if (entry.hasMultiplicity()) {
+            present |= MULTIPLICITY;
+        }
+        if (entry.hasFragmentIndex()) {
+            present |= FRAGMENT_INDEX;
+        }
+        if (entry.hasSampleIndex()) {
+            present |= SAMPLE_INDEX;
+        }
+        if (entry.hasReadOriginIndex()) {
+            present |= READ_ORIGIN_INDEX;
+        }
+        if (entry.hasPairFlags()) {
+            present |= PAIR_FLAGS;
+        }
+        if (entry.hasNumberOfMismatches()) {
+            present |= NUMBER_OF_MISMATCHES;
+        }
+        if (entry.hasNumberOfIndels()) {
+            present |= NUMBER_OF_INDELS;
+        }
+        if (entry.hasScore()) {
+            present |= SCORE;
+        }
+        return present;
+    }
+
+    /**
+     * Replace the content of these columns with a copy of other. Used to read columns shared through a cache.
+     *
+     * @param other the columns to copy.
+     */
+    public void copyFrom(final AlignmentColumns other) {
+        final int n = other.size;
+        ensureCapacity(n);
+        size = n;
+        System.arraycopy(other.queryIndices, 0, queryIndices, 0, n);
+        System.arraycopy(other.targetIndices, 0, targetIndices, 0, n);
+        System.arraycopy(other.positions, 0, positions, 0, n);
+        System.arraycopy(other.matchingReverseStrand, 0, matchingReverseStrand, 0, n);
+        System.arraycopy(other.queryLengths, 0, queryLengths, 0, n);
+        System.arraycopy(other.queryPositions, 0, queryPositions, 0, n);
+        System.arraycopy(other.queryAlignedLengths, 0, queryAlignedLengths, 0, n);
+        System.arraycopy(other.targetAlignedLengths, 0, targetAlignedLengths, 0, n);
+        System.arraycopy(other.mappingQualities, 0, mappingQualities, 0, n);
+        System.arraycopy(other.multiplicities, 0, multiplicities, 0, n);
+        System.arraycopy(other.fragmentIndices, 0, fragmentIndices, 0, n);
+        System.arraycopy(other.sampleIndices, 0, sampleIndices, 0, n);
+        System.arraycopy(other.readOriginIndices, 0, readOriginIndices, 0, n);
+        System.arraycopy(other.pairFlags, 0, pairFlags, 0, n);
+        System.arraycopy(other.numberOfMismatches, 0, numberOfMismatches, 0, n);
+        System.arraycopy(other.numberOfIndels, 0, numberOfIndels, 0, n);
+        System.arraycopy(other.scores, 0, scores, 0, n);
+        System.arraycopy(other.presentFields, 0, presentFields, 0, n);
+        System.arraycopy(other.variationStarts, 0, variationStarts, 0, n + 1);
+        final int v = other.numVariations;
+        numVariations = v;
+        variationPositions = IntArrays.ensureCapacity(variationPositions, v);
+        variationReadIndices = IntArrays.ensureCapacity(variationReadIndices, v);
+        variationFromOffsets = IntArrays.ensureCapacity(variationFromOffsets, v + 1);
+        variationToOffsets = IntArrays.ensureCapacity(variationToOffsets, v + 1);
+        System.arraycopy(other.variationPositions, 0, variationPositions, 0, v);
+        System.arraycopy(other.variationReadIndices, 0, variationReadIndices, 0, v);
+        System.arraycopy(other.variationFromOffsets, 0, variationFromOffsets, 0, v + 1);
+        System.arraycopy(other.variationToOffsets, 0, variationToOffsets, 0, v + 1);
+        final int fromLength = other.variationFromOffsets[v];
+        final int toLength = other.variationToOffsets[v];
+        variationFromBases = ByteArrays.ensureCapacity(variationFromBases, fromLength);
+        variationToBases = ByteArrays.ensureCapacity(variationToBases, toLength);
+        System.arraycopy(other.variationFromBases, 0, variationFromBases, 0, fromLength);
+        System.arraycopy(other.variationToBases, 0, variationToBases, 0, toLength);
+    }
+
+    /**
+     * Exchange the content of these columns with the content of other, without copying arrays. Used to hand
+     * columns decoded on another thread to a consumer.
+     *
+     * @param other the columns to exchange content with.
+     */
+    public void swap(final AlignmentColumns other) {
+        int n = size;
+        size = other.size;
+        other.size = n;
+        n = numVariations;
+        numVariations = other.numVariations;
+        other.numVariations = n;
+        int[] ints = queryIndices;
+        queryIndices = other.queryIndices;
+        other.queryIndices = ints;
+        ints = targetIndices;
+        targetIndices = other.targetIndices;
+        other.targetIndices = ints;
+        ints = positions;
+        positions = other.positions;
+        other.positions = ints;
+        final boolean[] booleans = matchingReverseStrand;
+        matchingReverseStrand = other.matchingReverseStrand;
+        other.matchingReverseStrand = booleans;
+        ints = queryLengths;
+        queryLengths = other.queryLengths;
+        other.queryLengths = ints;
+        ints = queryPositions;
+        queryPositions = other.queryPositions;
+        other.queryPositions = ints;
+        ints = queryAlignedLengths;
+        queryAlignedLengths = other.queryAlignedLengths;
+        other.queryAlignedLengths = ints;
+        ints = targetAlignedLengths;
+        targetAlignedLengths = other.targetAlignedLengths;
+        other.targetAlignedLengths = ints;
+        ints = mappingQualities;
+        mappingQualities = other.mappingQualities;
+        other.mappingQualities = ints;
+        ints = multiplicities;
+        multiplicities = other.multiplicities;
+        other.multiplicities = ints;
+        ints = fragmentIndices;
+        fragmentIndices = other.fragmentIndices;
+        other.fragmentIndices = ints;
+        ints = sampleIndices;
+        sampleIndices = other.sampleIndices;
+        other.sampleIndices = ints;
+        ints = readOriginIndices;
+        readOriginIndices = other.readOriginIndices;
+        other.readOriginIndices = ints;
+        ints = pairFlags;
+        pairFlags = other.pairFlags;
+        other.pairFlags = ints;
+        ints = numberOfMismatches;
+        numberOfMismatches = other.numberOfMismatches;
+        other.numberOfMismatches = ints;
+        ints = numberOfIndels;
+        numberOfIndels = other.numberOfIndels;
+        other.numberOfIndels = ints;
+        final float[] floats = scores;
+        scores = other.scores;
+        other.scores = floats;
+        ints = presentFields;
+        presentFields = other.presentFields;
+        other.presentFields = ints;
+        ints = variationStarts;
+        variationStarts = other.variationStarts;
+        other.variationStarts = ints;
+        ints = variationPositions;
+        variationPositions = other.variationPositions;
+        other.variationPositions = ints;
+        ints = variationReadIndices;
+        variationReadIndices = other.variationReadIndices;
+        other.variationReadIndices = ints;
+        ints = variationFromOffsets;
+        variationFromOffsets = other.variationFromOffsets;
+        other.variationFromOffsets = ints;
+        ints = variationToOffsets;
+        variationToOffsets = other.variationToOffsets;
+        other.variationToOffsets = ints;
+        byte[] bytes = variationFromBases;
+        variationFromBases = other.variationFromBases;
+        other.variationFromBases = bytes;
+        bytes = variationToBases;
+        variationToBases = other.variationToBases;
+        other.variationToBases = bytes;
+    }
+
+    /**
+     * Estimate the heap memory used by the arrays of these columns, in bytes.
+     */
+    public long estimateHeapSize() {
+        // 16 int or float columns, the bit set of present fields and the variation starts:
+        long bytes = 18L * 4 * queryIndices.length + matchingReverseStrand.length;
+        bytes += 4L * (variationPositions.length + variationReadIndices.length + variationFromOffsets.length +
+                variationToOffsets.length) + variationFromBases.length + variationToBases.length;
+        // object headers of the arrays and of this object:
+        return bytes + 28 * 16;
+    }
+
+    /**
+     * Append an entry with default field values.
+     *
+     * @return the index of the new entry.
+     */
+    int addEntry() {
+        final int index = size++;
+        ensureCapacity(size);
+        queryIndices[index] = 0;
+        targetIndices[index] = 0;
+        positions[index] = 0;
+        matchingReverseStrand[index] = false;
+        queryLengths[index] = 0;
+        queryPositions[index] = 0;
+        queryAlignedLengths[index] = 0;
+        targetAlignedLengths[index] = 0;
+        mappingQualities[index] = 0;
+        multiplicities[index] = 1;
+        fragmentIndices[index] = 0;
+        sampleIndices[index] = 0;
+        readOriginIndices[index] = 0;
+        pairFlags[index] = 0;
+        numberOfMismatches[index] = 0;
+        numberOfIndels[index] = 0;
+        scores[index] = 0;
+        presentFields[index] = 0;
+        variationStarts[index] = numVariations;
+        variationStarts[index + 1] = numVariations;
+        return index;
+    }
+
+    private void ensureCapacity(final int numEntries) {
+        if (numEntries > queryIndices.length) {
+            final int capacity = Math.max(numEntries, queryIndices.length * 2);
+            queryIndices = IntArrays.setLength(queryIndices, capacity);
+            targetIndices = IntArrays.setLength(targetIndices, capacity);
+            positions = IntArrays.setLength(positions, capacity);
+            matchingReverseStrand = BooleanArrays.setLength(matchingReverseStrand, capacity);
+            queryLengths = IntArrays.setLength(queryLengths, capacity);
+            queryPositions = IntArrays.setLength(queryPositions, capacity);
+            queryAlignedLengths = IntArrays.setLength(queryAlignedLengths, capacity);
+            targetAlignedLengths = IntArrays.setLength(targetAlignedLengths, capacity);
+            mappingQualities = IntArrays.setLength(mappingQualities, capacity);
+            multiplicities = IntArrays.setLength(multiplicities, capacity);
+            fragmentIndices = IntArrays.setLength(fragmentIndices, capacity);
+            sampleIndices = IntArrays.setLength(sampleIndices, capacity);
+            readOriginIndices = IntArrays.setLength(readOriginIndices, capacity);
+            pairFlags = IntArrays.setLength(pairFlags, capacity);
+            numberOfMismatches = IntArrays.setLength(numberOfMismatches, capacity);
+            numberOfIndels = IntArrays.setLength(numberOfIndels, capacity);
+            scores = FloatArrays.setLength(scores, capacity);
+            presentFields = IntArrays.setLength(presentFields, capacity);
+            variationStarts = IntArrays.setLength(variationStarts, capacity + 1);
+        }
+    }
+
+    /**
+     * Append a sequence variation to the last entry added.
+     *
+     * @return the index of the new variation.
+     */
+    int addVariation(final int position, final int readIndex) {
+        final int k = numVariations++;
+        if (numVariations > variationPositions.length) {
+            final int capacity = Math.max(numVariations, variationPositions.length * 2);
+            variationPositions = IntArrays.setLength(variationPositions, capacity);
+            variationReadIndices = IntArrays.setLength(variationReadIndices, capacity);
+            variationFromOffsets = IntArrays.setLength(variationFromOffsets, capacity + 1);
+            variationToOffsets = IntArrays.setLength(variationToOffsets, capacity + 1);
+        }
+        variationPositions[k] = position;
+        variationReadIndices[k] = readIndex;
+        if (k == 0) {
+            variationFromOffsets[0] = 0;
+            variationToOffsets[0] = 0;
+        }
+        variationFromOffsets[k + 1] = variationFromOffsets[k];
+        variationToOffsets[k + 1] = variationToOffsets[k];
+        variationStarts[size] = numVariations;
+        return k;
+    }
+
+    void appendFromBase(final int k, final char base) {
+        final int offset = variationFromOffsets[k + 1]++;
+        if (offset >= variationFromBases.length) {
+            variationFromBases = ByteArrays.grow(variationFromBases, offset + 1);
+        }
+        variationFromBases[offset] = (byte) base;
+    }
+
+    void appendToBase(final int k, final char base) {
+        final int offset = variationToOffsets[k + 1]++;
+        if (offset >= variationToBases.length) {
+            variationToBases = ByteArrays.grow(variationToBases, offset + 1);
+        }
+        variationToBases[offset] = (byte) base;
+    }
+
+    public int[] getQueryIndices() {
+        return queryIndices;
+    }
+
+    public int[] getTargetIndices() {
+        return targetIndices;
+    }
+
+    public int[] getPositions() {
+        return positions;
+    }
+
+    public boolean[] getMatchingReverseStrand() {
+        return matchingReverseStrand;
+    }
+
+    public int[] getQueryLengths() {
+        return queryLengths;
+    }
+
+    public int[] getQueryPositions() {
+        return queryPositions;
+    }
+
+    public int[] getQueryAlignedLengths() {
+        return queryAlignedLengths;
+    }
+
+    public int[] getTargetAlignedLengths() {
+        return targetAlignedLengths;
+    }
+
+    public int[] getMappingQualities() {
+        return mappingQualities;
+    }
+
+    public int[] getMultiplicities() {
+        return multiplicities;
+    }
+
+    public int[] getFragmentIndices() {
+        return fragmentIndices;
+    }
+
+    public int[] getSampleIndices() {
+        return sampleIndices;
+    }
+
+    public int[] getReadOriginIndices() {
+        return readOriginIndices;
+    }
+
+    public int[] getPairFlags() {
+        return pairFlags;
+    }
+
+    public int[] getNumberOfMismatches() {
+        return numberOfMismatches;
+    }
+
+    public int[] getNumberOfIndels() {
+        return numberOfIndels;
+    }
+
+    public float[] getScores() {
+        return scores;
+    }
+
+    /**
+     * Return the optional fields stored for each entry, as bit sets of the field constants of this class.
+     */
+    public int[] getPresentFields() {
+        return presentFields;
+    }
+
+    /**
+     * Determine whether an optional field was stored for an entry.
+     *
+     * @param index index of the entry.
+     * @param field one of the field constants of this class, such as {@link #MAPPING_QUALITY}.
+     * @return True if the field was stored, false if the entry holds the default value of the field.
+     */
+    public boolean has(final int index, final int field) {
+        return (presentFields[index] & field) != 0;
+    }
+
+    public int[] getVariationStarts() {
+        return variationStarts;
+    }
+
+    public int[] getVariationPositions() {
+        return variationPositions;
+    }
+
+    public int[] getVariationReadIndices() {
+        return variationReadIndices;
+    }
+
+    public int[] getVariationFromOffsets() {
+        return variationFromOffsets;
+    }
+
+    public int[] getVariationToOffsets() {
+        return variationToOffsets;
+    }
+
+    public byte[] getVariationFromBases() {
+        return variationFromBases;
+    }
+
+    public byte[] getVariationToBases() {
+        return variationToBases;
+    }
+}
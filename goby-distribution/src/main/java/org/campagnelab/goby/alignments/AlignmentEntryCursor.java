@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.alignments;
+
+/**
+ * A flyweight over the entries of an alignment. The cursor decodes one chunk at a time to {@link AlignmentColumns}
+ * and exposes the fields of the current entry through accessors, so that iterating does not allocate an object per
+ * entry. Typical use:
+ * <pre>
+ * AlignmentEntryCursor cursor = new AlignmentEntryCursor(reader);
+ * while (cursor.next()) {
+ *     int position = cursor.getPosition();
+ *     ...
+ * }
+ * </pre>
+ * Entries outside the genomic window of the reader are skipped, as with {@link AlignmentReaderImpl#next()}.
+ * The reader should not be used to read entries directly while a cursor iterates over it.
+ */
+public class AlignmentEntryCursor {
+    private final AlignmentReaderImpl reader;
+    private final AlignmentColumns columns = new AlignmentColumns();
+    private int index = -1;
+    private boolean done;
+
+    public AlignmentEntryCursor(final AlignmentReaderImpl reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Advance to the next entry.
+     *
+     * @return True if the cursor is positioned on an entry, false when the reader has no more entries.
+     */
+    public boolean next() {
+        while (!done) {
+            index++;
+            while (index >= columns.size()) {
+                if (!reader.readColumns(columns)) {
+                    done = true;
+                    return false;
+                }
+                index = 0;
+            }
+            final int order = reader.compareToWindow(columns.targetIndices[index], columns.positions[index]);
+            if (order > 0) {
+                done = true;
+                return false;
+            }
+            if (order == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the columns of the chunk that contains the current entry.
+     */
+    public AlignmentColumns getColumns() {
+        return columns;
+    }
+
+    /**
+     * Return the index of the current entry in {@link #getColumns()}.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Determine whether an optional field was stored for the current entry.
+     *
+     * @param field one of the field constants of {@link AlignmentColumns}, such as
+     *              {@link AlignmentColumns#MAPPING_QUALITY}.
+     * @return True if the field was stored, false if the accessor of the field returns its default value.
+     */
+    public boolean has(final int field) {
+        return columns.has(index, field);
+    }
+
+    public int getQueryIndex() {
+        return columns.queryIndices[index];
+    }
+
+    public int getTargetIndex() {
+        return columns.targetIndices[index];
+    }
+
+    public int getPosition() {
+        return columns.positions[index];
+    }
+
+    public boolean getMatchingReverseStrand() {
+        return columns.matchingReverseStrand[index];
+    }
+
+    public int getQueryLength() {
+        return columns.queryLengths[index];
+    }
+
+    public int getQueryPosition() {
+        return columns.queryPositions[index];
+    }
+
+    public int getQueryAlignedLength() {
+        return columns.queryAlignedLengths[index];
+    }
+
+    public int getTargetAlignedLength() {
+        return columns.targetAlignedLengths[index];
+    }
+
+    public int getMappingQuality() {
+        return columns.mappingQualities[index];
+    }
+
+    public int getMultiplicity() {
+        return columns.multiplicities[index];
+    }
+
+    public int getFragmentIndex() {
+        return columns.fragmentIndices[index];
+    }
+
+    public int getSampleIndex() {
+        return columns.sampleIndices[index];
+    }
+
+    public int getReadOriginIndex() {
+        return columns.readOriginIndices[index];
+    }
+
+    public int getPairFlags() {
+        return columns.pairFlags[index];
+    }
+
+    public int getNumberOfMismatches() {
+        return columns.numberOfMismatches[index];
+    }
+
+    public int getNumberOfIndels() {
+        return columns.numberOfIndels[index];
+    }
+
+    public float getScore() {
+        return columns.scores[index];
+    }
+
+    public int getSequenceVariationsCount() {
+        return columns.variationStarts[index + 1] - columns.variationStarts[index];
+    }
+
+    /**
+     * Return the position of a sequence variation of the current entry.
+     *
+     * @param varIndex index of the variation, between zero and getSequenceVariationsCount()-1.
+     */
+    public int getVariationPosition(final int varIndex) {
+        return columns.variationPositions[columns.variationStarts[index] + varIndex];
+    }
+
+    public int getVariationReadIndex(final int varIndex) {
+        return columns.variationReadIndices[columns.variationStarts[index] + varIndex];
+    }
+
+    public int getVariationFromLength(final int varIndex) {
+        final int k = columns.variationStarts[index] + varIndex;
+        return columns.variationFromOffsets[k + 1] - columns.variationFromOffsets[k];
+    }
+
+    /**
+     * Return a base of the reference sequence (from) of a sequence variation of the current entry.
+     *
+     * @param varIndex index of the variation, between zero and getSequenceVariationsCount()-1.
+     * @param i        index of the base, between zero and getVariationFromLength(varIndex)-1.
+     */
+    public char getVariationFrom(final int varIndex, final int i) {
+        final int k = columns.variationStarts[index] + varIndex;
+        return (char) columns.variationFromBases[columns.variationFromOffsets[k] + i];
+    }
+
+    public int getVariationToLength(final int varIndex) {
+        final int k = columns.variationStarts[index] + varIndex;
+        return columns.variationToOffsets[k + 1] - columns.variationToOffsets[k];
+    }
+
+    /**
+     * Return a base of the read sequence (to) of a sequence variation of the current entry.
+     *
+     * @param varIndex index of the variation, between zero and getSequenceVariationsCount()-1.
+     * @param i        index of the base, between zero and getVariationToLength(varIndex)-1.
+     */
+    public char getVariationTo(final int varIndex, final int i) {
+        final int k = columns.variationStarts[index] + varIndex;
+        return (char) columns.variationToBases[columns.variationToOffsets[k] + i];
+    }
+}
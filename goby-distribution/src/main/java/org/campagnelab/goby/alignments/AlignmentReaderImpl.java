@@ -20,9 +20,16 @@
 
 package org.campagnelab.goby.alignments;
 
+import com.google.protobuf.ByteString;
 import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.Message;
 import org.campagnelab.goby.compression.ChunkCodec;
+import org.campagnelab.goby.compression.ChunkDecodingPipeline;
+import org.campagnelab.goby.compression.DecodedChunkCache;
 import org.campagnelab.goby.compression.FastBufferedMessageChunksReader;
+import org.campagnelab.goby.compression.MappedMessageChunksReader;
+import org.campagnelab.goby.compression.ProtobuffCollectionHandler;
+import org.campagnelab.goby.compression.SeekableMessageChunksReader;
 import org.campagnelab.goby.exception.GobyRuntimeException;
 import org.campagnelab.goby.util.AlignmentHelper;
 import edu.cornell.med.icb.identifier.DoubleIndexedIdentifier;
@@ -40,7 +47,9 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -58,7 +67,8 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
 
     private InputStream headerStream;
     private int numberOfAlignedReads;
-    private final FastBufferedMessageChunksReader alignmentEntryReader;
+    private final SeekableMessageChunksReader alignmentEntryReader;
+    private final AlignmentCollectionHandler collectionHandler = new AlignmentCollectionHandler();
     private Alignments.AlignmentCollection collection;
     private Properties stats;
     private String basename;
@@ -108,6 +118,34 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
     private boolean hasQueryIndexOccurrences;
     private List<Alignments.ReadOriginInfo> readOriginInfoList;
     private boolean hasAmbiguity;
+    /**
+     * When not null, chunks are decoded ahead of the consumer by this pipeline.
+     */
+    private ChunkDecodingPipeline decodingPipeline;
+    /**
+     * Index of the next entry to return from collection, when chunks are decoded by the pipeline.
+     */
+    private int pipelinedEntryIndex;
+    /**
+     * When not null, decoded collections are looked up in and added to this cache.
+     */
+    private DecodedChunkCache chunkCache;
+    /**
+     * Identifies the entries file in the chunk cache.
+     */
+    private String chunkCacheSource;
+    /**
+     * Identifies the chunks of the entries file decoded to columns in the chunk cache.
+     */
+    private String columnsCacheSource;
+    /**
+     * True when the pipeline decodes chunks to columns, after the first call to readColumns.
+     */
+    private volatile boolean pipelineDecodesColumns;
+    /**
+     * Columns decoded by the pipeline and no longer used, recycled by the decoding tasks.
+     */
+    private final Queue<AlignmentColumns> idleColumns = new ConcurrentLinkedQueue<AlignmentColumns>();
 
 
     /**
@@ -230,7 +268,6 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
         if (!indexed)
             throw new UnsupportedOperationException("The alignment must be sorted and indexed to read slices of data by reference position.");
         readIndex();
-        final InputStream stream = new RepositionableInputStream(this.basename + ".entries");
         final long startOffset = getByteOffset(startReferenceIndex, startPosition, 0);
         long endOffset = getByteOffset(endReferenceIndex, endPosition + 1, 1);
 
@@ -239,10 +276,11 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
         this.endReferenceIndex = endReferenceIndex;
         this.startPosition = startPosition;
         this.startReferenceIndex = startReferenceIndex;
-        alignmentEntryReader = new FastBufferedMessageChunksReader(startOffset > 0 ? startOffset : 0,
-                endOffset > 0 ? endOffset : Long.MAX_VALUE,
-                new FastBufferedInputStream(stream));
-        alignmentEntryReader.setHandler(new AlignmentCollectionHandler());
+        alignmentEntryReader = openEntries(this.basename + ".entries", startOffset > 0 ? startOffset : 0,
+                endOffset > 0 ? endOffset : Long.MAX_VALUE);
+        alignmentEntryReader.setHandler(collectionHandler);
+        configureChunkCache(this.basename + ".entries");
+        configureDecoding();
         LOG.trace("start offset :" + startOffset + " end offset " + endOffset);
 
         stats = new Properties();
@@ -296,10 +334,10 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
         final String entriesFile = this.basename + ".entries";
         boolean entriesFileExist = RepositionableInputStream.resourceExist(entriesFile);
         if (entriesFileExist) {
-            final InputStream stream = new RepositionableInputStream(entriesFile);
-
-            alignmentEntryReader = new FastBufferedMessageChunksReader(startOffset, endOffset, new FastBufferedInputStream(stream));
-            alignmentEntryReader.setHandler(new AlignmentCollectionHandler());
+            alignmentEntryReader = openEntries(entriesFile, startOffset, endOffset);
+            alignmentEntryReader.setHandler(collectionHandler);
+            configureChunkCache(entriesFile);
+            configureDecoding();
         } else {
             alignmentEntryReader = null;
         }
@@ -358,7 +396,8 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
     public AlignmentReaderImpl(final InputStream entriesStream) throws IOException {
         super(true, null);
         alignmentEntryReader = new FastBufferedMessageChunksReader(0, Long.MAX_VALUE, new FastBufferedInputStream(entriesStream));
-        alignmentEntryReader.setHandler(new AlignmentCollectionHandler());
+        alignmentEntryReader.setHandler(collectionHandler);
+        configureDecoding();
     }
 
     /**
@@ -375,7 +414,187 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
             throws IOException {
         super(true, null);
         alignmentEntryReader = new FastBufferedMessageChunksReader(start, end, stream);
-        alignmentEntryReader.setHandler(new AlignmentCollectionHandler());
+        alignmentEntryReader.setHandler(collectionHandler);
+        configureDecoding();
+    }
+
+    /**
+     * Open a reader over the chunks of an entries file. Local files are mapped in memory when the dynamic option
+     * MappedMessageChunksReader:enabled is true. Other resources (e.g., URLs) are read through a buffered stream.
+     */
+    private static SeekableMessageChunksReader openEntries(final String entriesFile, final long start, final long end)
+            throws IOException {
+        final File file = new File(entriesFile);
+        if (MappedMessageChunksReader.isEnabledByDefault() && file.isFile()) {
+            return new MappedMessageChunksReader(start, end, file);
+        }
+        return new FastBufferedMessageChunksReader(start, end,
+                new FastBufferedInputStream(new RepositionableInputStream(entriesFile)));
+    }
+
+    private void configureChunkCache(final String entriesFile) throws IOException {
+        chunkCache = DecodedChunkCache.getSharedCache();
+        chunkCacheSource = chunkCache == null ? null : DecodedChunkCache.sourceOf(new File(entriesFile));
+        columnsCacheSource = chunkCacheSource == null ? null : chunkCacheSource + "#columns";
+        if (chunkCacheSource == null) {
+            chunkCache = null;
+        }
+    }
+
+    private static final int ENTRY_BYTES = DecodedChunkCache.OBJECT_BYTES +
+            DecodedChunkCache.FIELD_BYTES * Alignments.AlignmentEntry.getDescriptor().getFields().size();
+    private static final int VARIATION_BYTES = DecodedChunkCache.OBJECT_BYTES +
+            DecodedChunkCache.FIELD_BYTES * Alignments.SequenceVariation.getDescriptor().getFields().size();
+    private static final int LINK_BYTES = DecodedChunkCache.OBJECT_BYTES +
+            DecodedChunkCache.FIELD_BYTES * Alignments.RelatedAlignmentEntry.getDescriptor().getFields().size();
+
+    /**
+     * Estimate the heap memory used by a decoded collection, in bytes. Gives the same order of magnitude as
+     * {@link DecodedChunkCache#estimateHeapSize(com.google.protobuf.Message)}, without reflection.
+     */
+    static long estimateHeapSize(final Alignments.AlignmentCollection collection) {
+        final int numEntries = collection.getAlignmentEntriesCount();
+        long size = DecodedChunkCache.OBJECT_BYTES + DecodedChunkCache.LIST_BYTES +
+                (long) (DecodedChunkCache.FIELD_BYTES + ENTRY_BYTES) * numEntries;
+        for (int i = 0; i < numEntries; i++) {
+            final Alignments.AlignmentEntry entry = collection.getAlignmentEntries(i);
+            final int numVariations = entry.getSequenceVariationsCount();
+            if (numVariations > 0) {
+                size += DecodedChunkCache.LIST_BYTES;
+                for (int v = 0; v < numVariations; v++) {
+                    final Alignments.SequenceVariation variation = entry.getSequenceVariations(v);
+                    size += DecodedChunkCache.FIELD_BYTES + VARIATION_BYTES +
+                            stringSize(variation.getFromBytes()) + stringSize(variation.getToBytes());
+                    if (variation.hasToQuality()) {
+                        size += stringSize(variation.getToQuality());
+                    }
+                }
+            }
+            if (entry.hasPairAlignmentLink()) {
+                size += LINK_BYTES;
+            }
+            if (entry.hasSplicedForwardAlignmentLink()) {
+                size += LINK_BYTES;
+            }
+            if (entry.hasSplicedBackwardAlignmentLink()) {
+                size += LINK_BYTES;
+            }
+            final int numAttributes = entry.getBamAttributesCount();
+            if (numAttributes > 0) {
+                size += DecodedChunkCache.LIST_BYTES;
+                for (int a = 0; a < numAttributes; a++) {
+                    size += DecodedChunkCache.FIELD_BYTES + stringSize(entry.getBamAttributesBytes(a));
+                }
+            }
+            if (entry.hasReadQualityScores()) {
+                size += stringSize(entry.getReadQualityScores());
+            }
+            if (entry.hasSoftClippedBasesLeft()) {
+                size += stringSize(entry.getSoftClippedBasesLeftBytes());
+            }
+            if (entry.hasSoftClippedBasesRight()) {
+                size += stringSize(entry.getSoftClippedBasesRightBytes());
+            }
+            if (entry.hasSoftClippedQualityLeft()) {
+                size += stringSize(entry.getSoftClippedQualityLeft());
+            }
+            if (entry.hasSoftClippedQualityRight()) {
+                size += stringSize(entry.getSoftClippedQualityRight());
+            }
+            if (entry.hasPlacedUnmappedSequence()) {
+                size += stringSize(entry.getPlacedUnmappedSequenceBytes());
+            }
+            if (entry.hasPlacedUnmappedQuality()) {
+                size += stringSize(entry.getPlacedUnmappedQuality());
+            }
+            if (entry.hasReadName()) {
+                size += stringSize(entry.getReadNameBytes());
+            }
+        }
+        return size;
+    }
+
+    private static long stringSize(final ByteString bytes) {
+        return DecodedChunkCache.STRING_BYTES + bytes.size();
+    }
+
+    private void configureDecoding() {
+        if (ChunkDecodingPipeline.isEnabledByDefault()) {
+            setChunksDecodedAhead(ChunkDecodingPipeline.doc().getInteger("chunks-ahead"));
+        }
+    }
+
+    /**
+     * Decode chunks of entries ahead of the consumer with the pool of decoder threads shared by all readers.
+     * Entries are returned in the same order as when chunks are decoded on the calling thread. This method must be
+     * called before entries are read. Parallel decoding is also enabled for all readers when the dynamic option
+     * ChunkDecodingPipeline:decode-threads is larger than zero.
+     *
+     * @param chunksAhead Maximum number of chunks decoded ahead of the consumer, or zero to decode chunks on the
+     *                    calling thread.
+     */
+    public void setChunksDecodedAhead(final int chunksAhead) {
+        if (alignmentEntryReader == null || chunksAhead <= 0) {
+            decodingPipeline = null;
+            return;
+        }
+        decodingPipeline = new ChunkDecodingPipeline(alignmentEntryReader, chunksAhead) {
+            @Override
+            protected ProtobuffCollectionHandler newHandler() {
+                return new AlignmentCollectionHandler();
+            }
+
+            @Override
+            protected Object decode(final ProtobuffCollectionHandler handler, final ChunkCodec codec,
+                                    final ByteBuffer compressedBytes) throws IOException {
+                if (!pipelineDecodesColumns) {
+                    return codec.decode(compressedBytes);
+                }
+                AlignmentColumns columns = idleColumns.poll();
+                if (columns == null) {
+                    columns = new AlignmentColumns();
+                }
+                return decodeColumns((AlignmentCollectionHandler) handler, codec, compressedBytes, columns) ?
+                        columns : null;
+            }
+
+            @Override
+            protected long estimateHeapSize(final Object decoded) {
+                if (decoded instanceof AlignmentColumns) {
+                    return ((AlignmentColumns) decoded).estimateHeapSize();
+                }
+                return AlignmentReaderImpl.estimateHeapSize((Alignments.AlignmentCollection) decoded);
+            }
+        };
+        decodingPipeline.setCache(chunkCache, pipelineDecodesColumns ? columnsCacheSource : chunkCacheSource);
+    }
+
+    /**
+     * Decode a chunk to columns, through the handler when the codec of the chunk supports it.
+     *
+     * @param handler the handler installed in codec.
+     * @param columns where to decode the entries of the chunk. Previous content is replaced.
+     * @return True if the chunk was decoded, false otherwise.
+     */
+    private static boolean decodeColumns(final AlignmentCollectionHandler handler, final ChunkCodec codec,
+                                         final ByteBuffer compressedBytes, final AlignmentColumns columns)
+            throws IOException {
+        columns.clear();
+        final Message decoded;
+        handler.setColumnsTarget(columns);
+        try {
+            decoded = codec.decode(compressedBytes);
+        } finally {
+            handler.setColumnsTarget(null);
+        }
+        if (decoded == null) {
+            return false;
+        }
+        if (columns.size() == 0) {
+            // the codec parsed a whole collection without going through the handler:
+            columns.fill((Alignments.AlignmentCollection) decoded);
+        }
+        return true;
     }
 
     private int numberOfEntries() {
@@ -456,20 +675,35 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
     private boolean hasNextEntry() {
         //    System.out.println("hasNextEntry");
         if (nextEntryNoFilter != null) return true;
-
+        if (decodingPipeline != null) {
+            return hasNextPipelinedEntry();
+        }
         if (collection != null && alignmentEntryReader.getEntryIndex() < collection.getAlignmentEntriesCount()) {
             nextEntryNoFilter = collection.getAlignmentEntries(alignmentEntryReader.getEntryIndex());
             alignmentEntryReader.incrementEntryIndex();
             return true;
         } else {
             collection = null;
+            final long chunkOffset;
+            try {
+                chunkOffset = alignmentEntryReader.position();
+            } catch (IOException e) {
+                throw new GobyRuntimeException(e);
+            }
             final boolean hasNext = alignmentEntryReader.hasNext(collection, numberOfEntries());
 
             final ChunkCodec codec = alignmentEntryReader.getChunkCodec();
             try {
-                final byte[] compressedBytes = alignmentEntryReader.getCompressedBytes();
+                final ByteBuffer compressedBytes = alignmentEntryReader.getCompressedBuffer();
                 if (compressedBytes != null) {
-                    collection = (Alignments.AlignmentCollection) codec.decode(compressedBytes);
+                    collection = chunkCache == null ? null :
+                            (Alignments.AlignmentCollection) chunkCache.get(chunkCacheSource, chunkOffset);
+                    if (collection == null) {
+                        collection = (Alignments.AlignmentCollection) codec.decode(compressedBytes);
+                        if (chunkCache != null) {
+                            chunkCache.put(chunkCacheSource, chunkOffset, collection, estimateHeapSize(collection));
+                        }
+                    }
                     if (collection == null || collection.getAlignmentEntriesCount() == 0) {
                         return false;
                     }
@@ -503,6 +737,104 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
 
     }
 
+    private boolean hasNextPipelinedEntry() {
+        if (collection != null && pipelinedEntryIndex < collection.getAlignmentEntriesCount()) {
+            nextEntryNoFilter = collection.getAlignmentEntries(pipelinedEntryIndex++);
+            return true;
+        }
+        try {
+            collection = (Alignments.AlignmentCollection) decodingPipeline.nextCollection();
+        } catch (IOException e) {
+            throw new GobyRuntimeException(e);
+        }
+        pipelinedEntryIndex = 0;
+        if (collection == null || collection.getAlignmentEntriesCount() == 0) {
+            return false;
+        }
+        nextEntryNoFilter = collection.getAlignmentEntries(pipelinedEntryIndex++);
+        return true;
+    }
+
+    /**
+     * Decode the next chunk of entries to columns, without building protocol buffer entries when the codec of the
+     * chunk supports it. Entries are not filtered by the genomic window the reader was restricted to at construction
+     * time, see {@link AlignmentEntryCursor}, which applies the window. Chunks read with this method are not returned
+     * by {@link #next()}, and the two methods should not be mixed.
+     *
+     * @param columns where to decode the entries of the chunk. Previous content is replaced.
+     * @return True if a chunk was decoded, false when the input has no more entries.
+     */
+    public boolean readColumns(final AlignmentColumns columns) {
+        nextEntry = null;
+        nextEntryNoFilter = null;
+        collection = null;
+        columns.clear();
+        if (alignmentEntryReader == null) {
+            return false;
+        }
+        try {
+            if (decodingPipeline != null) {
+                if (!pipelineDecodesColumns) {
+                    pipelineDecodesColumns = true;
+                    decodingPipeline.setCache(chunkCache, columnsCacheSource);
+                }
+                final AlignmentColumns decoded = (AlignmentColumns) decodingPipeline.nextDecoded();
+                if (decoded == null) {
+                    return false;
+                }
+                if (chunkCache == null) {
+                    // the decoded columns are not shared, take their arrays and recycle ours:
+                    columns.swap(decoded);
+                    idleColumns.add(decoded);
+                } else {
+                    columns.copyFrom(decoded);
+                }
+                return columns.size() > 0;
+            }
+            final long chunkOffset = alignmentEntryReader.position();
+            if (!alignmentEntryReader.hasNext(null, 0)) {
+                return false;
+            }
+            final ByteBuffer compressedBytes = alignmentEntryReader.getCompressedBuffer();
+            if (compressedBytes == null) {
+                return false;
+            }
+            final AlignmentColumns cached = chunkCache == null ? null :
+                    (AlignmentColumns) chunkCache.get(columnsCacheSource, chunkOffset);
+            if (cached != null) {
+                columns.copyFrom(cached);
+                return columns.size() > 0;
+            }
+            if (!decodeColumns(collectionHandler, alignmentEntryReader.getChunkCodec(), compressedBytes, columns)) {
+                return false;
+            }
+            if (chunkCache != null) {
+                final AlignmentColumns copy = new AlignmentColumns();
+                copy.copyFrom(columns);
+                chunkCache.put(columnsCacheSource, chunkOffset, copy, copy.estimateHeapSize());
+            }
+            return columns.size() > 0;
+        } catch (IOException e) {
+            throw new GobyRuntimeException(e);
+        }
+    }
+
+    /**
+     * Compare a location to the genomic window this reader was restricted to at construction time.
+     *
+     * @return a negative number if the location is before the window, zero if it is inside, a positive number
+     * if it is past the window.
+     */
+    int compareToWindow(final int targetIndex, final int position) {
+        if (targetIndex > endReferenceIndex || (targetIndex == endReferenceIndex && position > endPosition)) {
+            return 1;
+        }
+        if (targetIndex < startReferenceIndex || (targetIndex == startReferenceIndex && position < startPosition)) {
+            return -1;
+        }
+        return 0;
+    }
+
     private Alignments.AlignmentEntry nextEntry() {
         //      System.out.println("nextEntry");
         if (!hasNextEntry()) {
@@ -584,6 +916,10 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
         }
         readIndex();
         this.alignmentEntryReader.flush();
+        if (decodingPipeline != null) {
+            // chunks read ahead are no longer consistent with the flushed input:
+            decodingPipeline.reset();
+        }
         repositionInternal(targetIndex, position, true);
     }
 
@@ -618,7 +954,7 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
         // max below ensures we never go back to before the start of the slice the reader was restricted to at
         // construction time:
         final long newBytePosition = Math.max(startOffset, indexOffsets.getLong(offsetIndex));
-        final long currentPosition = alignmentEntryReader.position();
+        final long currentPosition = decodingPipeline != null ? decodingPipeline.position() : alignmentEntryReader.position();
         if (newBytePosition >= currentPosition) {
 
             seek(newBytePosition);
@@ -638,7 +974,10 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
      * @throws IOException If an error occured.
      */
     protected void seek(long byteOffset) throws IOException {
-        alignmentEntryReader.seek(byteOffset);
+        if (decodingPipeline == null || !decodingPipeline.skipTo(byteOffset)) {
+            // the chunk at byteOffset was not already read ahead by the pipeline:
+            alignmentEntryReader.seek(byteOffset);
+        }
         nextEntry = null;
         nextEntryNoFilter = null;
         collection = null;
@@ -825,6 +1164,9 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
      * {@inheritDoc}
      */
     public void close() {
+        if (decodingPipeline != null) {
+            decodingPipeline.reset();
+        }
         if (alignmentEntryReader != null) {
             alignmentEntryReader.close();
         }
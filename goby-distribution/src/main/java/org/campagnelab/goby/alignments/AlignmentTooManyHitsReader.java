@@ -21,21 +21,40 @@
 package org.campagnelab.goby.alignments;
 
 import com.google.protobuf.CodedInputStream;
-import it.unimi.dsi.fastutil.ints.*;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.WireFormat;
+import it.unimi.dsi.fastutil.ints.AbstractIntIterator;
+import it.unimi.dsi.fastutil.ints.AbstractIntSet;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntSet;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Iterator;
-import java.util.List;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.NoSuchElementException;
 import java.util.zip.GZIPInputStream;
 
 /**
  * Reads alignments too many hits data structure written with
  * {@link AlignmentTooManyHitsWriter}.
+ * <p/>
+ * Hits are kept in parallel primitive arrays sorted by query index, and looked up by binary search. This takes
+ * twelve bytes per ambiguous query. When the writer also produced a sorted index file (basename.tmh-index, see
+ * {@link AlignmentTooManyHitsWriter#setWriteIndex(boolean)}) that is not older than the .tmh file, the arrays are
+ * memory-mapped from it instead of being decoded, so that jobs that read the same alignment share one copy in the
+ * page cache.
  *
  * @author Fabien Campagne
  *         Date: Apr 30, 2009
@@ -47,16 +66,31 @@ public class AlignmentTooManyHitsReader {
      */
     private static final Log LOG = LogFactory.getLog(AlignmentTooManyHitsReader.class);
 
+    /**
+     * Extension of the sorted index file.
+     */
+    public static final String INDEX_EXTENSION = ".tmh-index";
+
+    private static final int INDEX_MAGIC = 0x544d4849;
+    private static final int INDEX_VERSION = 1;
+    private static final int INDEX_HEADER_SIZE = 16;
+
+    /**
+     * Query indices with too many hits, in increasing order.
+     */
+    private IntBuffer queryIndices;
 
     /**
-     * A map from query index to the number of hits at that index.
+     * Number of hits of each query, in the order of queryIndices.
      */
-    private Int2IntMap queryIndex2NumHits = new Int2IntAVLTreeMap();
+    private IntBuffer numHits;
 
     /**
-     * A map from query index to depth/length of match.
+     * Depth/length of match of each query, in the order of queryIndices, or -1 when not known.
      */
-    private Int2IntMap queryIndex2Depth = new Int2IntAVLTreeMap();
+    private IntBuffer lengthsOfMatch;
+
+    private int numEntries;
 
     /**
      * The threshold used by the aligner to determine that a query is ambiguous and
@@ -68,7 +102,12 @@ public class AlignmentTooManyHitsReader {
     public AlignmentTooManyHitsReader(final String basename) throws IOException {
         final String filename = basename + ".tmh";
         final File optionalFile = new File(filename);
+        final File indexFile = new File(basename + INDEX_EXTENSION);
 
+        if (optionalFile.exists() && indexFile.exists() && indexFile.lastModified() >= optionalFile.lastModified()
+                && mapIndex(indexFile)) {
+            return;
+        }
         InputStream tmhStream = null;
         try {
             if (optionalFile.exists()) {
@@ -84,29 +123,16 @@ public class AlignmentTooManyHitsReader {
                 // accept very large too many hits messages, since these may describe more than 60 million reads:
                 final CodedInputStream codedInput = CodedInputStream.newInstance(tmhStream);
                 codedInput.setSizeLimit(Integer.MAX_VALUE);
-
-                final Alignments.AlignmentTooManyHits tmh = Alignments.AlignmentTooManyHits.parseFrom(codedInput);
-
-                queryIndex2NumHits.defaultReturnValue(-1);
-                queryIndex2Depth.defaultReturnValue(-1);
-                final List<Alignments.AmbiguousLocation> hitsList = tmh.getHitsList();
-                final Iterator<Alignments.AmbiguousLocation> iterator = hitsList.iterator();
-                while (iterator.hasNext()) {
-                    Alignments.AmbiguousLocation hit = iterator.next();
-                    queryIndex2NumHits.put(hit.getQueryIndex(), hit.getAtLeastNumberOfHits());
-                    if (hit.hasLengthOfMatch()) {
-                        queryIndex2Depth.put(hit.getQueryIndex(), hit.getLengthOfMatch());
-                    }
-
-                }
-
-                this.alignerThreshold = tmh.getAlignerThreshold();
+                parse(codedInput);
             } else {
 
                 // the file does not exist. Log this fact, and act as if no query had too many hits.
                 LOG.info("basename " + optionalFile + " has no 'too many hits' information ("
                         + basename + ".tmh does not exist)."
                         + " Assuming no queries have too many hits.");
+                queryIndices = IntBuffer.allocate(0);
+                numHits = queryIndices;
+                lengthsOfMatch = queryIndices;
             }
         } finally
 
@@ -118,6 +144,177 @@ public class AlignmentTooManyHitsReader {
 
     }
 
+    /**
+     * Decode the hits one at a time, instead of materializing the whole message, and sort them in primitive arrays.
+     */
+    private void parse(final CodedInputStream codedInput) throws IOException {
+        final IntArrayList queries = new IntArrayList();
+        final IntArrayList hits = new IntArrayList();
+        final IntArrayList lengths = new IntArrayList();
+        final Alignments.AmbiguousLocation.Builder hit = Alignments.AmbiguousLocation.newBuilder();
+        final ExtensionRegistryLite registry = ExtensionRegistryLite.getEmptyRegistry();
+        while (true) {
+            final int tag = codedInput.readTag();
+            if (tag == 0) {
+                break;
+            }
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case Alignments.AlignmentTooManyHits.HITS_FIELD_NUMBER:
+                    hit.clear();
+                    codedInput.readMessage(hit, registry);
+                    queries.add(hit.getQueryIndex());
+                    hits.add(hit.getAtLeastNumberOfHits());
+                    lengths.add(hit.hasLengthOfMatch() ? hit.getLengthOfMatch() : -1);
+                    break;
+                case Alignments.AlignmentTooManyHits.ALIGNER_THRESHOLD_FIELD_NUMBER:
+                    alignerThreshold = codedInput.readUInt32();
+                    break;
+                default:
+                    if (!codedInput.skipField(tag)) {
+                        return;
+                    }
+            }
+        }
+        numEntries = sort(queries.elements(), hits.elements(), lengths.elements(), queries.size());
+        queryIndices = IntBuffer.wrap(queries.elements(), 0, numEntries).slice();
+        numHits = IntBuffer.wrap(hits.elements(), 0, numEntries).slice();
+        lengthsOfMatch = IntBuffer.wrap(lengths.elements(), 0, numEntries).slice();
+    }
+
+    /**
+     * Sort hits by query index, in place. When a query index occurs several times, the last number of hits and the
+     * last known length of match are kept, as they would have been in a map.
+     *
+     * @param queries    query indices.
+     * @param hits       number of hits of each query.
+     * @param lengths    length of match of each query, -1 when unknown.
+     * @param numEntries number of hits in the arrays.
+     * @return the number of distinct query indices, stored at the beginning of the arrays.
+     */
+    static int sort(final int[] queries, final int[] hits, final int[] lengths, final int numEntries) {
+        final int[] order = new int[numEntries];
+        for (int i = 0; i < numEntries; i++) {
+            order[i] = i;
+        }
+        IntArrays.radixSortIndirect(order, queries, 0, numEntries, true);
+        final int[] sortedQueries = new int[numEntries];
+        final int[] sortedHits = new int[numEntries];
+        final int[] sortedLengths = new int[numEntries];
+        int n = 0;
+        for (int k = 0; k < numEntries; k++) {
+            final int i = order[k];
+            if (n > 0 && sortedQueries[n - 1] == queries[i]) {
+                sortedHits[n - 1] = hits[i];
+                if (lengths[i] != -1) {
+                    sortedLengths[n - 1] = lengths[i];
+                }
+            } else {
+                sortedQueries[n] = queries[i];
+                sortedHits[n] = hits[i];
+                sortedLengths[n] = lengths[i];
+                n++;
+            }
+        }
+        System.arraycopy(sortedQueries, 0, queries, 0, n);
+        System.arraycopy(sortedHits, 0, hits, 0, n);
+        System.arraycopy(sortedLengths, 0, lengths, 0, n);
+        return n;
+    }
+
+    /**
+     * Write sorted hits to an index file.
+     *
+     * @param indexFile        the index file to write.
+     * @param alignerThreshold the aligner threshold.
+     * @param queries          distinct query indices, in increasing order.
+     * @param hits             number of hits of each query.
+     * @param lengths          length of match of each query, -1 when unknown.
+     * @param numEntries       number of queries.
+     * @throws IOException if the index cannot be written.
+     */
+    static void writeIndex(final File indexFile, final int alignerThreshold, final int[] queries, final int[] hits,
+                           final int[] lengths, final int numEntries) throws IOException {
+        final File tmpFile = new File(indexFile.getPath() + ".tmp");
+        final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            output.writeInt(INDEX_MAGIC);
+            output.writeInt(INDEX_VERSION);
+            output.writeInt(alignerThreshold);
+            output.writeInt(numEntries);
+            for (final int[] array : new int[][]{queries, hits, lengths}) {
+                for (int i = 0; i < numEntries; i++) {
+                    output.writeInt(array[i]);
+                }
+            }
+        } finally {
+            output.close();
+        }
+        if (!tmpFile.renameTo(indexFile)) {
+            tmpFile.delete();
+            throw new IOException("Unable to write too many hits index " + indexFile);
+        }
+    }
+
+    /**
+     * Map the sorted arrays from an index file.
+     *
+     * @return false if the index could not be used, in which case the .tmh file must be decoded.
+     */
+    private boolean mapIndex(final File indexFile) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+        final ByteBuffer buffer;
+        try {
+            if (file.length() < INDEX_HEADER_SIZE || file.length() > Integer.MAX_VALUE) {
+                return false;
+            }
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } finally {
+            file.close();
+        }
+        final int entries = buffer.getInt(12);
+        if (buffer.getInt(0) != INDEX_MAGIC || buffer.getInt(4) != INDEX_VERSION
+                || buffer.capacity() != INDEX_HEADER_SIZE + 12L * entries) {
+            LOG.warn("Ignoring invalid too many hits index " + indexFile);
+            return false;
+        }
+        alignerThreshold = buffer.getInt(8);
+        numEntries = entries;
+        queryIndices = slice(buffer, 0);
+        numHits = slice(buffer, 1);
+        lengthsOfMatch = slice(buffer, 2);
+        return true;
+    }
+
+    private IntBuffer slice(final ByteBuffer buffer, final int array) {
+        final ByteBuffer view = buffer.duplicate();
+        view.position(INDEX_HEADER_SIZE + array * 4 * numEntries);
+        view.limit(INDEX_HEADER_SIZE + (array + 1) * 4 * numEntries);
+        return view.slice().asIntBuffer();
+    }
+
+    /**
+     * Returns the position of a query index in the sorted arrays, or -1 if the query has not too many hits.
+     */
+    private int find(final int queryIndex) {
+        return find(queryIndices, numEntries, queryIndex);
+    }
+
+    private static int find(final IntBuffer queries, final int size, final int queryIndex) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int value = queries.get(mid);
+            if (value < queryIndex) {
+                low = mid + 1;
+            } else if (value > queryIndex) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
 
     /**
      * The number of hits against the reference that the aligner considered was too many to report.
@@ -140,7 +337,8 @@ public class AlignmentTooManyHitsReader {
      */
     public final int getNumberOfHits(final int queryIndex) {
         assert !closed : "TMH reader was already closed.";
-        return queryIndex2NumHits.get(queryIndex);
+        final int position = find(queryIndex);
+        return position == -1 ? -1 : numHits.get(position);
     }
 
     /**
@@ -153,12 +351,19 @@ public class AlignmentTooManyHitsReader {
      */
     public final int getLengthOfMatch(final int queryIndex) {
         assert !closed : "TMH reader was already closed.";
-        return queryIndex2Depth.get(queryIndex);
+        final int position = find(queryIndex);
+        return position == -1 ? -1 : lengthsOfMatch.get(position);
     }
 
+    /**
+     * Returns the query indices that have too many hits, in increasing order. The set is a read-only view of the
+     * reader and must not be used after the reader is closed.
+     *
+     * @return the set of ambiguous query indices.
+     */
     public final IntSet getQueryIndices() {
         assert !closed : "TMH reader was already closed.";
-        return queryIndex2NumHits.keySet();
+        return new QueryIndexSet();
     }
 
     /**
@@ -169,7 +374,7 @@ public class AlignmentTooManyHitsReader {
      */
     public boolean isQueryAmbiguous(final int queryIndex) {
         assert !closed : "TMH reader was already closed.";
-        return queryIndex2NumHits.containsKey(queryIndex);
+        return find(queryIndex) != -1;
     }
 
     /**
@@ -187,7 +392,7 @@ public class AlignmentTooManyHitsReader {
      */
     public final boolean isQueryAmbiguous(final int queryIndex, final int k) {
         assert !closed : "TMH reader was already closed.";
-        final int atLeastNumberOfHits = queryIndex2NumHits.get(queryIndex);
+        final int atLeastNumberOfHits = getNumberOfHits(queryIndex);
         if (atLeastNumberOfHits == -1) {
             return false;
         }
@@ -223,10 +428,47 @@ public class AlignmentTooManyHitsReader {
     }
 
     public void close() {
-        this.queryIndex2Depth.clear();
-        this.queryIndex2NumHits.clear();
-        this.queryIndex2Depth = null;
-        this.queryIndex2NumHits = null;
+        this.queryIndices = null;
+        this.numHits = null;
+        this.lengthsOfMatch = null;
         closed = true;
     }
+
+    /**
+     * Read-only set view of the sorted query indices.
+     */
+    private final class QueryIndexSet extends AbstractIntSet {
+        private final IntBuffer queries = queryIndices;
+        private final int size = numEntries;
+
+        @Override
+        public boolean contains(final int queryIndex) {
+            return find(queries, size, queryIndex) != -1;
+        }
+
+        @Override
+        public IntIterator iterator() {
+            return new AbstractIntIterator() {
+                private int position;
+
+                @Override
+                public boolean hasNext() {
+                    return position < size;
+                }
+
+                @Override
+                public int nextInt() {
+                    if (position >= size) {
+                        throw new NoSuchElementException();
+                    }
+                    return queries.get(position++);
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
 }
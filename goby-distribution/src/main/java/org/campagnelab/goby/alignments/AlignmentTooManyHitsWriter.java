@@ -21,8 +21,11 @@
 package org.campagnelab.goby.alignments;
 
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.campagnelab.goby.util.dynoptions.DynamicOptionClient;
+import org.campagnelab.goby.util.dynoptions.RegisterThis;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -37,7 +40,17 @@ import java.util.zip.GZIPOutputStream;
  *         Time: 2:03 PM
  */
 public class AlignmentTooManyHitsWriter implements Closeable {
+    @RegisterThis
+    public static DynamicOptionClient doc = new DynamicOptionClient(AlignmentTooManyHitsWriter.class,
+            "write-index:boolean, when true also writes the hits sorted by query index in basename.tmh-index, which readers memory-map instead of decoding the .tmh file:false"
+    );
+
+    public static DynamicOptionClient doc() {
+        return doc;
+    }
+
     private boolean tooManyHitsWritten;
+    private final String outputBasename;
     private final OutputStream tooManyHitsOutput;
     private final Alignments.AlignmentTooManyHits.Builder tooManyHits;
     private Alignments.AmbiguousLocation.Builder newAmbiguousLocation;
@@ -47,12 +60,22 @@ public class AlignmentTooManyHitsWriter implements Closeable {
        */
       private ObjectArrayList<Alignments.AmbiguousLocation>localCachedCollection=new ObjectArrayList<Alignments.AmbiguousLocation>();
 
+    /**
+     * When true, a sorted index is written next to the .tmh file.
+     */
+    private boolean writeIndex;
+
 
     public AlignmentTooManyHitsWriter(final String outputBasename, final int alignerThreshold) throws IOException {
+        this.outputBasename = outputBasename;
+        // an index left by a previous writer would describe the hits of the .tmh file we replace:
+        new File(outputBasename + AlignmentTooManyHitsReader.INDEX_EXTENSION).delete();
         tooManyHitsOutput = new GZIPOutputStream(new FileOutputStream(outputBasename + ".tmh"));
         newAmbiguousLocation = Alignments.AmbiguousLocation.newBuilder();
         tooManyHits = Alignments.AlignmentTooManyHits.newBuilder();
         tooManyHits.setAlignerThreshold(alignerThreshold);
+        final Boolean option = doc().getBoolean("write-index");
+        writeIndex = option != null && option;
     }
 
     /**
@@ -63,16 +86,34 @@ public class AlignmentTooManyHitsWriter implements Closeable {
         tooManyHits.setAlignerThreshold(alignerThreshold);
     }
 
+    /**
+     * Request that the hits also be written sorted by query index, in basename.tmh-index. Readers memory-map this
+     * index instead of decoding the .tmh file, which saves memory and time when the same alignment is read by many
+     * jobs. The index takes twelve bytes per ambiguous query. It is written when the writer is closed. The default is
+     * set by the dynamic option AlignmentTooManyHitsWriter:write-index, so that every mode that writes .tmh files
+     * can produce the index.
+     *
+     * @param writeIndex true to write the index.
+     */
+    public void setWriteIndex(final boolean writeIndex) {
+        this.writeIndex = writeIndex;
+    }
+
     /**
      * {@inheritDoc}
      */
     public void close() throws IOException {
+        final boolean indexNeeded = writeIndex && !tooManyHitsWritten;
+        final int alignerThreshold = tooManyHits.getAlignerThreshold();
         if (!localCachedCollection.isEmpty()) {
              tooManyHits.addAllHits(localCachedCollection);
-             localCachedCollection.clear();
         }
         write();
-
+        if (indexNeeded) {
+            // written after the .tmh file, so that readers find the index up to date:
+            writeIndex(alignerThreshold);
+        }
+        localCachedCollection.clear();
     }
 
     public void write() throws IOException {
@@ -85,6 +126,22 @@ public class AlignmentTooManyHitsWriter implements Closeable {
         }
     }
 
+    private void writeIndex(final int alignerThreshold) throws IOException {
+        final int size = localCachedCollection.size();
+        final int[] queries = new int[size];
+        final int[] hits = new int[size];
+        final int[] lengths = new int[size];
+        for (int i = 0; i < size; i++) {
+            final Alignments.AmbiguousLocation hit = localCachedCollection.get(i);
+            queries[i] = hit.getQueryIndex();
+            hits[i] = hit.getAtLeastNumberOfHits();
+            lengths[i] = hit.hasLengthOfMatch() ? hit.getLengthOfMatch() : -1;
+        }
+        final int numEntries = AlignmentTooManyHitsReader.sort(queries, hits, lengths, size);
+        AlignmentTooManyHitsReader.writeIndex(new File(outputBasename + AlignmentTooManyHitsReader.INDEX_EXTENSION),
+                alignerThreshold, queries, hits, lengths, numEntries);
+    }
+
     public Alignments.AmbiguousLocation.Builder getNewAmbiguousLocation() {
         return newAmbiguousLocation;
     }
@@ -123,6 +123,12 @@ public class AlignmentWriterImpl implements AlignmentWriter {
     private boolean firstEntryInChunk = true;
     private int firstPositionInChunk;
     private final LongArrayList indexOffsets = new LongArrayList();
+    /**
+     * Index of the chunk that starts at each position of indexAbsolutePositions. Chunk indices are resolved to byte
+     * offsets when the index is written, because offsets are not known until chunks are committed when the chunk
+     * writer encodes chunks asynchronously.
+     */
+    private final IntArrayList indexChunkIndices = new IntArrayList();
     private final LongArrayList indexAbsolutePositions = new LongArrayList();
     private boolean indexWritten;
     private long[] targetPositionOffsets;
@@ -237,6 +243,16 @@ public class AlignmentWriterImpl implements AlignmentWriter {
         entriesChunkWriter.setNumEntriesPerChunk(numEntriesPerChunk);
     }
 
+    /**
+     * Encode chunks of entries with a pool of threads. Chunks are still written in the order entries were appended.
+     * Must be called before the first chunk is written.
+     *
+     * @param numThreads number of encoding threads, or zero to encode chunks on the thread that appends entries.
+     */
+    public void setNumEncodingThreads(final int numThreads) {
+        entriesChunkWriter.setNumEncodingThreads(numThreads);
+    }
+
     /**
      * Set fields for the next alignment extry.
      *
@@ -318,13 +334,11 @@ public class AlignmentWriterImpl implements AlignmentWriter {
             firstPositionInChunk = builtEntry.getPosition();
             firstEntryInChunk = false;
         }
-        final long currentChunkOffset = entriesChunkWriter.writeAsNeeded(collectionBuilder,
+        final boolean flushedChunk = entriesChunkWriter.writeAsNeeded(collectionBuilder,
                 builtEntry.hasMultiplicity() ? builtEntry.getMultiplicity() : 1);
-        // LOG.warn(String.format("#entriesWritten: %d currentChunkOffset: %d previousChunkOffset: %d",
-        //        entriesChunkWriter.getTotalEntriesWritten(), currentChunkOffset, previousChunkOffset));
-        if (sortedState && entriesChunkWriter.getAppendedInChunk() == 0) {
+        if (sortedState && flushedChunk) {
             // we have just written a new chunk.
-            pushIndex(currentChunkOffset, firstTargetIndexInChunk, firstPositionInChunk);
+            pushIndex(entriesChunkWriter.getCurrentChunkIndex(), firstTargetIndexInChunk, firstPositionInChunk);
             firstEntryInChunk = true;
 
 
@@ -335,8 +349,7 @@ public class AlignmentWriterImpl implements AlignmentWriter {
 
     }
 
-    private void pushIndex(final long startOfChunkOffset, final int firstTargetIndexInChunk, final int firstPositionInChunk) {
-        final long newOffset = Math.max(startOfChunkOffset, 0);
+    private void pushIndex(final int chunkIndex, final int firstTargetIndexInChunk, final int firstPositionInChunk) {
         final int size = indexAbsolutePositions.size();
         // remove duplicates because the behavior of binary search is undefined for duplicates:
         /**
@@ -350,13 +363,13 @@ public class AlignmentWriterImpl implements AlignmentWriter {
 
         if (size == 0 || codedPosition != indexAbsolutePositions.get(size - 1)) {
 
-            indexOffsets.add(newOffset);
+            indexChunkIndices.add(chunkIndex);
             indexAbsolutePositions.add(codedPosition);
             if (LOG.isTraceEnabled()) {
-                LOG.trace(String.format("INDEX Pushing targetIndex= %d position= %d offset-in-file= %d absolutePosition= %d",
+                LOG.trace(String.format("INDEX Pushing targetIndex= %d position= %d chunk-index= %d absolutePosition= %d",
                         firstTargetIndexInChunk,
                         firstPositionInChunk,
-                        newOffset, codedPosition));
+                        chunkIndex, codedPosition));
             }
         }
     }
@@ -426,8 +439,13 @@ public class AlignmentWriterImpl implements AlignmentWriter {
     private void writeIndex() throws IOException {
         if (!indexWritten) {
             // Push the last chunkoffset:
-            pushIndex(entriesChunkWriter.getCurrentChunkStartOffset(),
+            pushIndex(entriesChunkWriter.getCurrentChunkIndex(),
                     firstTargetIndexInChunk, firstPositionInChunk);
+            // all chunks have been written, their offsets are now known:
+            indexOffsets.clear();
+            for (final int chunkIndex : indexChunkIndices) {
+                indexOffsets.add(Math.max(entriesChunkWriter.getChunkStartOffset(chunkIndex), 0));
+            }
             GZIPOutputStream indexOutput = null;
             try {
                 indexOutput = new GZIPOutputStream(new FileOutputStream(basename + ".index"));
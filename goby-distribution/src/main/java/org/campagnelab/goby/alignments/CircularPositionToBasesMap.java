@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.alignments;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectAVLTreeMap;
+import it.unimi.dsi.fastutil.ints.IntAVLTreeSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.objects.ObjectSet;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A PositionToBasesMap backed by a circular buffer of slots indexed by position, rather than by tree maps.
+ * Sorted iteration keeps positions in a window that starts at the first position not yet processed and ends a
+ * read length (plus indels) later, so the window is small and slides along the genome: put, get and remove are
+ * constant time and do not rebalance or allocate. The buffer grows when positions span more than its capacity.
+ * <p/>
+ * When recycling is enabled, the value of a removed position stays in its slot, and can be obtained with
+ * {@link #getReusable(int)} to be reset and reused in place for a later position that falls in the same slot.
+ * Recycling is only safe when values are not used after they are removed, i.e., when positions are processed
+ * before they are removed and processing does not keep references to them.
+ */
+public class CircularPositionToBasesMap<T> extends PositionToBasesMap<T> {
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private final boolean recycle;
+    private Object[] values;
+    private boolean[] present;
+    private boolean[] ignored;
+    private int mask;
+    private int size;
+    /**
+     * Smallest and largest position in the map, when the map is not empty.
+     */
+    private int firstPosition;
+    private int lastPosition;
+
+    public CircularPositionToBasesMap(final boolean recycle) {
+        this(recycle, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a map.
+     *
+     * @param recycle  when true, values of removed positions are kept for reuse.
+     * @param capacity initial number of slots, rounded up to a power of two.
+     */
+    public CircularPositionToBasesMap(final boolean recycle, final int capacity) {
+        this.recycle = recycle;
+        allocate(Integer.highestOneBit(Math.max(2, capacity) * 2 - 1));
+    }
+
+    private void allocate(final int capacity) {
+        values = new Object[capacity];
+        present = new boolean[capacity];
+        ignored = new boolean[capacity];
+        mask = capacity - 1;
+    }
+
+    @Override
+    public IntSet keySet() {
+        final IntAVLTreeSet keys = new IntAVLTreeSet();
+        if (size > 0) {
+            for (int position = firstPosition; position <= lastPosition; position++) {
+                if (present[position & mask]) {
+                    keys.add(position);
+                }
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public boolean containsKey(final int position) {
+        return size > 0 && position >= firstPosition && position <= lastPosition && present[position & mask];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(present, false);
+        Arrays.fill(ignored, false);
+        if (!recycle) {
+            Arrays.fill(values, null);
+        }
+        size = 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T remove(final int position) {
+        if (!containsKey(position)) {
+            return null;
+        }
+        final int slot = position & mask;
+        final T value = (T) values[slot];
+        present[slot] = false;
+        ignored[slot] = false;
+        if (!recycle) {
+            values[slot] = null;
+        }
+        if (--size > 0) {
+            if (position == firstPosition) {
+                while (!present[firstPosition & mask]) {
+                    firstPosition++;
+                }
+            } else if (position == lastPosition) {
+                while (!present[lastPosition & mask]) {
+                    lastPosition--;
+                }
+            }
+        }
+        return value;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(final int position) {
+        return containsKey(position) ? (T) values[position & mask] : null;
+    }
+
+    @Override
+    public void put(final int position, final T positionBaseInfos) {
+        if (size == 0) {
+            firstPosition = position;
+            lastPosition = position;
+        } else if (!containsKey(position)) {
+            final int first = Math.min(firstPosition, position);
+            final int last = Math.max(lastPosition, position);
+            if (last - first >= values.length) {
+                grow(last - first + 1);
+            }
+            firstPosition = first;
+            lastPosition = last;
+        }
+        final int slot = position & mask;
+        if (!present[slot]) {
+            present[slot] = true;
+            // the slot may have been marked for a position removed with clear():
+            ignored[slot] = false;
+            size++;
+        }
+        values[slot] = positionBaseInfos;
+    }
+
+    private void grow(final int span) {
+        final Object[] previousValues = values;
+        final boolean[] previousPresent = present;
+        final boolean[] previousIgnored = ignored;
+        final int previousMask = mask;
+        allocate(Integer.highestOneBit(span * 2 - 1) * 2);
+        for (int position = firstPosition; position <= lastPosition; position++) {
+            final int previousSlot = position & previousMask;
+            if (previousPresent[previousSlot]) {
+                final int slot = position & mask;
+                values[slot] = previousValues[previousSlot];
+                present[slot] = true;
+                ignored[slot] = previousIgnored[previousSlot];
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public ObjectSet<Map.Entry<Integer, T>> entrySet() {
+        final Int2ObjectAVLTreeMap<T> entries = new Int2ObjectAVLTreeMap<T>();
+        if (size > 0) {
+            for (int position = firstPosition; position <= lastPosition; position++) {
+                if (present[position & mask]) {
+                    entries.put(position, (T) values[position & mask]);
+                }
+            }
+        }
+        return entries.entrySet();
+    }
+
+    @Override
+    public int firstPosition() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        return firstPosition;
+    }
+
+    @Override
+    public void markIgnoredPosition(final int position) {
+        if (containsKey(position)) {
+            ignored[position & mask] = true;
+        }
+    }
+
+    @Override
+    public boolean isIgnoredPosition(final int position) {
+        return containsKey(position) && ignored[position & mask];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T getReusable(final int position) {
+        final int slot = position & mask;
+        // the slot may hold position, or another position of the window if position is outside of it:
+        if (!recycle || present[slot]) {
+            return null;
+        }
+        return (T) values[slot];
+    }
+
+    @Override
+    public String toString() {
+        if (size == 0) {
+            return "empty";
+        }
+        final StringBuilder builder = new StringBuilder();
+        builder.append(String.format("key span: [%d-%d]%n", firstPosition, lastPosition));
+        for (int position = firstPosition; position <= lastPosition; position++) {
+            if (present[position & mask]) {
+                builder.append(values[position & mask].toString());
+                builder.append("\n");
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -20,30 +20,66 @@
 
 package org.campagnelab.goby.alignments;
 
-import it.unimi.dsi.fastutil.AbstractPriorityQueue;
-import it.unimi.dsi.fastutil.objects.ObjectArrayPriorityQueue;
-import it.unimi.dsi.fastutil.objects.ObjectHeapPriorityQueue;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.campagnelab.goby.exception.GobyRuntimeException;
+import org.campagnelab.goby.util.dynoptions.DynamicOptionClient;
+import org.campagnelab.goby.util.dynoptions.RegisterThis;
 
 import java.io.IOException;
-import java.util.Comparator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Concatenates sorted alignments while preserving entry sort order across inputs. The result is a sorted
  * alignment. Since Goby 2.3, this class supports restricting its output to a genomic range. see setGenomicRange.
+ * <p/>
+ * Inputs are merged with a {@link LoserTree} keyed on the (targetIndex, position) of the next entry of each input.
+ * Entries of each input can also be read ahead of the consumer, in batches, by a pool of threads shared by all
+ * instances (see {@link #setPrefetchedEntries(int)}). Entries read ahead are taken from a budget shared by all
+ * the concatenations open at the same time (option max-prefetched-entries). When a genomic range is set, each input is positioned at the
+ * start of the range once, with its index, and stops producing entries past the end of the range.
  *
  * @author Fabien Campagne
  *         Date: Jun 22, 2010
  *         Time: 10:42:34 AM
  */
 public class ConcatSortedAlignmentReader extends ConcatAlignmentReader {
+    @RegisterThis
+    public static final DynamicOptionClient doc = new DynamicOptionClient(ConcatSortedAlignmentReader.class,
+            "prefetch-threads:integer, number of threads shared by sorted concatenations to read the entries of their inputs ahead of the consumer. Zero reads entries on the calling thread.:0",
+            "max-prefetched-entries:integer, maximum number of entries read ahead over all the sorted concatenations open at the same time, when prefetch-threads is larger than zero. Concatenations opened when this budget is exhausted read entries on the calling thread.:1000000"
+    );
+
+    public static DynamicOptionClient doc() {
+        return doc;
+    }
+
+    /**
+     * Smallest number of entries read ahead in one batch, whatever the number of inputs.
+     */
+    private static final int MIN_BATCH_SIZE = 16;
 
-    AbstractPriorityQueue<Bucket> entryHeap;
-    private static AlignmentPositionComparator comparator = new AlignmentPositionComparator();
-    private boolean[] nextLoadedForReader;
-    private Bucket[] buckets;
+    private static ExecutorService prefetchThreads;
+    /**
+     * Entries that can still be read ahead, shared by all the concatenations.
+     */
+    private static Semaphore prefetchBudget;
+
+    private LoserTree tree;
+    private ReaderSource[] sources;
+    private Alignments.AlignmentEntry[] heads;
+    /**
+     * Index of the source that provided the last entry returned. Its head must be loaded again before the
+     * winner of the tree can be determined.
+     */
+    private int consumedSource = -1;
+    private int maxPrefetchedEntries;
+    /**
+     * Entries of the shared budget reserved by this concatenation, returned when it is closed.
+     */
+    private int reservedEntries;
     private GenomicRange genomicRange;
     /**
      * Used to log debug and informational messages.
@@ -127,24 +163,37 @@ public class ConcatSortedAlignmentReader extends ConcatAlignmentReader {
     }
 
     private void init(final String... basenames) {
-        nextLoadedForReader = new boolean[basenames.length];
+        heads = new Alignments.AlignmentEntry[basenames.length];
+        if (isPrefetchEnabledByDefault()) {
+            setPrefetchedEntries(doc().getInteger("max-prefetched-entries"));
+        }
+    }
 
+    /**
+     * Returns true when the dynamic options request reading entries ahead of the consumer.
+     *
+     * @return True when prefetch-threads is larger than zero.
+     */
+    public static boolean isPrefetchEnabledByDefault() {
+        final Integer numThreads = doc().getInteger("prefetch-threads");
+        return numThreads != null && numThreads > 0;
+    }
 
-        final Comparator<Bucket> bucketComparator = new Comparator<Bucket>() {
-            public int compare(final Bucket bucket, final Bucket bucket1) {
-                return comparator.compare(bucket.entry, bucket1.entry);
-            }
-        };
-        // For small number of input alignments, use the array priority queue.
-        // For more than 10 input alignments, use the heap implementation.
-        // This heuristic tries to pick the data structure implementation that will yield the best
-        // performance.
-        entryHeap = basenames.length < 10 ? new ObjectArrayPriorityQueue<Bucket>(bucketComparator) :
-                new ObjectHeapPriorityQueue<Bucket>(bucketComparator);
-        buckets = new Bucket[basenames.length];
-        for (int i = 0; i < buckets.length; i++) {
-            buckets[i] = new Bucket(null, i);
-        }
+    /**
+     * Read the entries of each input ahead of the consumer with the pool of prefetch threads shared by all
+     * concatenations. The entries are divided evenly among inputs: each input has at most one batch being consumed
+     * and one batch being read. They are reserved from the budget shared by all concatenations
+     * (ConcatSortedAlignmentReader:max-prefetched-entries) when the first entry is read, and returned to it when this
+     * concatenation is closed. When the shared budget cannot hold batches of a useful size, entries are read on the
+     * calling thread. Entries are returned in exactly the same order as when they are read on the
+     * calling thread. This method must be called before entries are read. Prefetching is also enabled for all
+     * concatenations when the dynamic option ConcatSortedAlignmentReader:prefetch-threads is larger than zero.
+     *
+     * @param maxPrefetchedEntries Maximum number of entries held in batches over all inputs of this concatenation,
+     *                             or zero to read entries on the calling thread.
+     */
+    public void setPrefetchedEntries(final int maxPrefetchedEntries) {
+        this.maxPrefetchedEntries = Math.max(0, maxPrefetchedEntries);
     }
 
     /**
@@ -157,92 +206,117 @@ public class ConcatSortedAlignmentReader extends ConcatAlignmentReader {
      * @throws IOException If an error occurs reading the alignment header. The header is accessed to check that the alignment is sorted.
      */
     public final Alignments.AlignmentEntry skipTo(final int targetIndex, final int position) throws IOException {
-        // remove entries from heap if they are located before the skipTo location:
-        {
-            Bucket bucket;
-            while (!entryHeap.isEmpty()) {
-                bucket = entryHeap.first();
-                int bucketTargetIndex = bucket.entry.getTargetIndex();
-                if (bucketTargetIndex < targetIndex || (
-                        (bucketTargetIndex == targetIndex && bucket.entry.getPosition() < position))) {
-                    // the first entry in the heap has location before the skip to location. We remove it.
-                    Bucket removed = entryHeap.dequeue();
-                    nextLoadedForReader[removed.readerIndex] = false;
-                    if (LOG.isDebugEnabled()) {
-                        LOG.debug(String.format("Cleaning the heap: removing %d:%d from reader=%d", bucket.entry.getTargetIndex(),
-                                bucket.entry.getPosition(), activeIndex));
-                    }
+        if (!advanceTo(targetIndex, position)) {
+            return null;
+        }
+        hasNext = false;
+        return consume();
+    }
 
-                } else {
-                    // the first entry in the heap is at or after the skipTo location. We are done cleaning up the heap.
-                    break;
-                }
+    /**
+     * Load the heads of the sources so that the winner of the tree is the next entry at or past
+     * (targetIndex,position).
+     *
+     * @return True when an entry was found.
+     */
+    private boolean advanceTo(final int targetIndex, final int position) throws IOException {
+        if (tree == null) {
+            startMerge(true, targetIndex, position);
+        } else if (consumedSource != -1) {
+            reload(consumedSource, sources[consumedSource].skipTo(targetIndex, position));
+        }
+        // remove entries from the tree if they are located before the skipTo location:
+        final long targetKey = LoserTree.key(targetIndex, position);
+        while (!tree.isEmpty() && tree.winnerKey() < targetKey) {
+            final int sourceIndex = tree.winner();
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(String.format("Cleaning the tree: removing %d:%d from reader=%d",
+                        heads[sourceIndex].getTargetIndex(), heads[sourceIndex].getPosition(), sourceIndex));
             }
+            reload(sourceIndex, sources[sourceIndex].skipTo(targetIndex, position));
         }
-        // populate the heap with the next entry at or past the skipTo position:
-        for (final int readerIndex : readersWithMoreEntries) {
-
-            if (!nextLoadedForReader[readerIndex]) {
-                // the reader at position readerIndex was used in the previous next
-                activeIndex = readerIndex;
-                //     System.out.println("Setting activeIndex to "+readerIndex + " "+ readersWithMoreEntries);
-                final AlignmentReader reader = readers[activeIndex];
-                Alignments.AlignmentEntry alignmentEntry;
-                do {
-                    alignmentEntry = reader.skipTo(targetIndex, position);
-                } while (alignmentEntry != null && genomicRange != null &&
-                        genomicRange.positionIsBeforeStart(alignmentEntry.getTargetIndex(),
-                                alignmentEntry.getPosition()));
-
-                if (alignmentEntry == null) {
-                    // reader has no more entries. Remove from further consideration
-                    readersWithMoreEntries.remove(activeIndex);
-
-                } else {
-
-                    if (genomicRange != null &&
-                            genomicRange.positionIsPastEnd(alignmentEntry.getTargetIndex(),
-                                    alignmentEntry.getPosition())) {
-
-                        // entry is past the slice of interest, we are now done with this reader.
-                        readersWithMoreEntries.remove(activeIndex);
-                        if (LOG.isTraceEnabled()) {
-                            LOG.trace(String.format("Reached the end of slice for reader %d with entry %d:%d", activeIndex,
-                                    alignmentEntry.getTargetIndex(),
-                                    alignmentEntry.getPosition()));
-                        }
-                    } else {
-                        if (LOG.isDebugEnabled()) {
-                            LOG.debug(String.format("Adding to the heap: %d:%d from reader=%d", alignmentEntry.getTargetIndex(),
-                                    alignmentEntry.getPosition(), activeIndex));
-                        }
-                        nextLoadedForReader[readerIndex] = true;
-                        final Bucket bucket = buckets[readerIndex];
-                        bucket.entry = alignmentEntry;
-                        bucket.readerIndex = readerIndex;
-                        entryHeap.enqueue(bucket);
-                        //    System.out.println("entryHeap.size()" + entryHeap.size());
+        return !tree.isEmpty();
+    }
 
-                    }
-                }
+    /**
+     * Create the sources and the tree, and load the first entry of each input that has entries.
+     */
+    private void startMerge(final boolean skip, final int targetIndex, final int position) throws IOException {
+        final int numReaders = readers.length;
+        final int batchSize = maxPrefetchedEntries > 0 ? reservePrefetchedEntries(numReaders) : 0;
+        sources = new ReaderSource[numReaders];
+        tree = new LoserTree(numReaders);
+        for (int readerIndex = 0; readerIndex < numReaders; readerIndex++) {
+            sources[readerIndex] = new ReaderSource(readers[readerIndex], batchSize);
+            if (!readersWithMoreEntries.contains(readerIndex)) {
+                continue;
+            }
+            final Alignments.AlignmentEntry entry = skip ? sources[readerIndex].skipTo(targetIndex, position) :
+                    sources[readerIndex].next();
+            heads[readerIndex] = entry;
+            if (entry == null) {
+                // reader has no more entries. Remove from further consideration
+                readersWithMoreEntries.remove(readerIndex);
+            } else {
+                tree.set(readerIndex, LoserTree.key(entry.getTargetIndex(), entry.getPosition()));
             }
         }
-        // return the next entry from the heap:
-        if (entryHeap.isEmpty()) return null;
-
-        final Bucket bucket = entryHeap.dequeue();
-        nextLoadedForReader[bucket.readerIndex] = false;
-
-        //   minEntry = null;
-        hasNext = false;
-        final Alignments.AlignmentEntry alignmentEntry = bucket.entry;
+        tree.build();
+    }
 
-        // the reader at position readerIndex was used in the previous next
-        activeIndex = bucket.readerIndex;
-        //             System.out.println("Setting activeIndex to "+activeIndex + " "+ readersWithMoreEntries);
+    /**
+     * Reserve the entries of the batches of this concatenation from the budget shared by all concatenations.
+     *
+     * @return the number of entries read ahead in one batch, or zero when the shared budget is exhausted and entries
+     * must be read on the calling thread.
+     */
+    private int reservePrefetchedEntries(final int numReaders) {
+        // each input has at most one batch being consumed and one being read:
+        final long numBatches = 2L * numReaders;
+        final Semaphore budget = getPrefetchBudget();
+        while (true) {
+            final long requested = Math.max(MIN_BATCH_SIZE, maxPrefetchedEntries / numBatches) * numBatches;
+            final int batchSize = (int) (Math.min(requested, budget.availablePermits()) / numBatches);
+            if (batchSize < MIN_BATCH_SIZE) {
+                LOG.debug("Shared budget of entries read ahead is exhausted, reading entries on the calling thread.");
+                return 0;
+            }
+            if (budget.tryAcquire((int) (batchSize * numBatches))) {
+                reservedEntries = (int) (batchSize * numBatches);
+                return batchSize;
+            }
+        }
+    }
 
+    /**
+     * Replace the head of the source that is currently the winner of the tree.
+     */
+    private void reload(final int sourceIndex, final Alignments.AlignmentEntry entry) {
+        assert tree.winner() == sourceIndex : "only the winner of the tree can be reloaded.";
+        consumedSource = -1;
+        heads[sourceIndex] = entry;
+        if (entry == null) {
+            // reader has no more entries, or no more entries in the genomic range. Remove from further consideration
+            readersWithMoreEntries.remove(sourceIndex);
+            tree.removeWinner();
+        } else {
+            tree.replaceWinner(LoserTree.key(entry.getTargetIndex(), entry.getPosition()));
+        }
+    }
 
-        final int newQueryIndex = mergedQueryIndex(activeIndex, alignmentEntry.getQueryIndex());
+    /**
+     * Return the winner of the tree, with query index, sample index and read groups adjusted for the concatenation.
+     * The source of the winner is reloaded lazily, by the next call to hasNext or skipTo.
+     */
+    private Alignments.AlignmentEntry consume() {
+        final int readerIndex = tree.winner();
+        final Alignments.AlignmentEntry alignmentEntry = heads[readerIndex];
+        heads[readerIndex] = null;
+        consumedSource = readerIndex;
+        // the reader at position readerIndex provided this entry:
+        activeIndex = readerIndex;
+
+        final int newQueryIndex = mergedQueryIndex(readerIndex, alignmentEntry.getQueryIndex());
         final int queryIndex = alignmentEntry.getQueryIndex();
         Alignments.AlignmentEntry.Builder builder = alignmentEntry.newBuilderForType().mergeFrom(alignmentEntry);
         if (adjustQueryIndices && newQueryIndex != queryIndex) {
@@ -250,31 +324,12 @@ public class ConcatSortedAlignmentReader extends ConcatAlignmentReader {
             builder = builder.setQueryIndex(newQueryIndex);
         }
         if (adjustSampleIndices) {
-            builder = builder.setSampleIndex(activeIndex);
+            builder = builder.setSampleIndex(readerIndex);
         }
-        builder=processReadGroups(alignmentEntry,builder, activeIndex);
+        builder = processReadGroups(alignmentEntry, builder, readerIndex);
         return builder.build();
-
-
-    }
-
-
-    class Bucket {
-        Alignments.AlignmentEntry entry;
-        int readerIndex;
-
-        public Bucket(final Alignments.AlignmentEntry alignmentEntry, final int index) {
-            this.entry = alignmentEntry;
-            this.readerIndex = index;
-        }
-
     }
 
-    /**
-     * The index of the reader that provided minEntry.
-     */
-    int minReaderIndex;
-
     /**
      * Returns true if the input has more entries.
      *
@@ -285,62 +340,19 @@ public class ConcatSortedAlignmentReader extends ConcatAlignmentReader {
         if (hasNext) {
             return true;
         }
-
-        for (final int readerIndex : readersWithMoreEntries) {
-            if (!nextLoadedForReader[readerIndex]) {
-                // the reader at position readerIndex was used in the previous next
-                activeIndex = readerIndex;
+        try {
+            if (tree == null) {
+                startMerge(false, 0, 0);
+            } else if (consumedSource != -1) {
                 if (LOG.isDebugEnabled()) {
-                    LOG.debug(String.format("Obtaining entry from reader=%d", activeIndex));
-                }
-                final AlignmentReader reader = readers[activeIndex];
-                try {
-                    final Alignments.AlignmentEntry alignmentEntry;
-                    if (genomicRange != null) {
-                        alignmentEntry = reader.skipTo(genomicRange.startReferenceIndex, genomicRange.startPosition);
-                    } else {
-                        alignmentEntry = reader.hasNext() ? reader.next() : null;
-                    }
-                    final boolean hasNext = alignmentEntry != null;
-                    if (!hasNext) {
-                        // reader has no more entries. Remove from further consideration
-                        readersWithMoreEntries.remove(activeIndex);
-
-                    } else {
-
-                        if (LOG.isDebugEnabled()) {
-                            LOG.debug(String.format("Considering %d:%d", alignmentEntry.getTargetIndex(), alignmentEntry.getPosition()));
-                        }
-                        if (genomicRange != null && genomicRange.positionIsPastEnd(alignmentEntry.getTargetIndex(),
-                                alignmentEntry.getPosition())) {
-
-                            // entry is past the slice of interest, we are now done with this reader.
-                            readersWithMoreEntries.remove(activeIndex);
-                            if (LOG.isTraceEnabled()) {
-                                LOG.trace("Reached the end of slice for reader # " + activeIndex);
-                            }
-                        } else {
-
-                            nextLoadedForReader[readerIndex] = true;
-                            final Bucket bucket = buckets[readerIndex];
-                            bucket.readerIndex=readerIndex;
-                            bucket.entry = alignmentEntry;
-                            entryHeap.enqueue(bucket);
-
-                            //    System.out.println("entryHeap.size()" + entryHeap.size());
-                        }
-
-                    }
-                } catch (IOException e) {
-                    // ignore this exception. the headers are sorted.
-                    LOG.error("Could not read headers for sorted alignments.");
+                    LOG.debug(String.format("Obtaining entry from reader=%d", consumedSource));
                 }
-
+                reload(consumedSource, sources[consumedSource].next());
             }
+        } catch (IOException e) {
+            throw new GobyRuntimeException(e);
         }
-
-        return (hasNext = (!entryHeap.isEmpty()));
-
+        return (hasNext = !tree.isEmpty());
     }
 
     /**
@@ -364,44 +376,286 @@ public class ConcatSortedAlignmentReader extends ConcatAlignmentReader {
         if (!hasNext()) {
             throw new NoSuchElementException();
         } else {
+            hasNext = false;
+            return consume();
+        }
+    }
 
-            final Bucket bucket = entryHeap.dequeue();
-           final int readerIndex = bucket.readerIndex;
-            nextLoadedForReader[readerIndex] = false;
+    boolean hasNext;
 
-            //   minEntry = null;
-            hasNext = false;
-            final Alignments.AlignmentEntry alignmentEntry = bucket.entry;
+    /**
+     * Restrict the concatenation to a genomic range. The range start is not inclusive. This method must be
+     * called before entries are read.
+     *
+     * @param genomicRange the range of interest.
+     * @throws IOException If an error occurs positioning the inputs at the start of the range.
+     */
+    public void setGenomicRange(GenomicRange genomicRange) throws IOException {
+        this.genomicRange = genomicRange;
+        // position every input with its index, but leave the first entry in the tree so that hasNext/next return it:
+        hasNext = advanceTo(genomicRange.startReferenceIndex, genomicRange.startPosition);
+    }
+
+    /**
+     * Close the underlying readers, after waiting for the batches being read ahead.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        if (sources != null) {
+            for (final ReaderSource source : sources) {
+                source.stopPrefetch();
+            }
+        }
+        if (reservedEntries > 0) {
+            getPrefetchBudget().release(reservedEntries);
+            reservedEntries = 0;
+        }
+        super.close();
+    }
 
-            final int newQueryIndex = mergedQueryIndex(readerIndex, alignmentEntry.getQueryIndex());
-            final int queryIndex = alignmentEntry.getQueryIndex();
-            Alignments.AlignmentEntry.Builder builder = alignmentEntry.newBuilderForType().mergeFrom(alignmentEntry);
-            if (adjustQueryIndices && newQueryIndex != queryIndex) {
+    private static synchronized ExecutorService getPrefetchThreads() {
+        if (prefetchThreads == null) {
+            final Integer option = doc().getInteger("prefetch-threads");
+            final int numThreads = option != null && option > 0 ? option : Runtime.getRuntime().availableProcessors();
+            LOG.debug(String.format("Reading entries ahead with %d threads", numThreads));
+            final AtomicInteger threadIndex = new AtomicInteger();
+            prefetchThreads = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "entry-prefetch-" + threadIndex.incrementAndGet());
+                    // prefetch threads must not prevent the JVM from exiting:
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return prefetchThreads;
+    }
+
+    private static synchronized Semaphore getPrefetchBudget() {
+        if (prefetchBudget == null) {
+            final Integer option = doc().getInteger("max-prefetched-entries");
+            prefetchBudget = new Semaphore(option != null ? Math.max(0, option) : 0);
+        }
+        return prefetchBudget;
+    }
+
+    /**
+     * Return the number of entries of the shared budget not reserved by open concatenations.
+     */
+    static int availablePrefetchedEntries() {
+        return getPrefetchBudget().availablePermits();
+    }
+
+    /**
+     * A batch of consecutive entries of one input.
+     */
+    private static final class EntryBatch {
+        private final Alignments.AlignmentEntry[] entries;
+        private int size;
+
+        private EntryBatch(final int capacity) {
+            entries = new Alignments.AlignmentEntry[capacity];
+        }
+    }
+
+    /**
+     * Provides the entries of one input, in the genomic range when one is set. When batchSize is larger than zero,
+     * entries are read ahead of the consumer by one task at a time, so that the underlying reader is never accessed
+     * by two threads concurrently. The reader is accessed by the consumer thread only when no task is pending.
+     */
+    private final class ReaderSource {
+        private final AlignmentReader reader;
+        private final int batchSize;
+        /**
+         * True once the reader has been positioned at or past the start of the genomic range.
+         */
+        private boolean positioned;
+        /**
+         * True when the reader has no more entries in the genomic range. Written by prefetch tasks, and read by the
+         * consumer only when no task is pending.
+         */
+        private boolean exhausted;
+        private EntryBatch batch;
+        private int batchPosition;
+        private Future<EntryBatch> pending;
+
+        private ReaderSource(final AlignmentReader reader, final int batchSize) {
+            this.reader = reader;
+            this.batchSize = batchSize;
+        }
 
-                builder = builder.setQueryIndex(newQueryIndex);
+        /**
+         * Return the next entry of this input, or null when the input has no more entries in the genomic range.
+         */
+        Alignments.AlignmentEntry next() throws IOException {
+            if (batchSize == 0) {
+                return read(genomicRange);
             }
-            if (adjustSampleIndices) {
-                builder = builder.setSampleIndex(activeIndex);
+            while (batch == null || batchPosition >= batch.size) {
+                if (!nextBatch()) {
+                    return null;
+                }
             }
+            return batch.entries[batchPosition++];
+        }
 
-            builder=processReadGroups(alignmentEntry,builder, readerIndex);
+        /**
+         * Return the next entry of this input at or past (targetIndex,position), or null when the input has no such
+         * entry in the genomic range. Entries already read ahead are used when they reach the location, otherwise
+         * the reader is positioned with its index.
+         */
+        Alignments.AlignmentEntry skipTo(final int targetIndex, final int position) throws IOException {
+            if (batchSize > 0) {
+                final long targetKey = LoserTree.key(targetIndex, position);
+                while (true) {
+                    while (batch != null && batchPosition < batch.size) {
+                        final Alignments.AlignmentEntry entry = batch.entries[batchPosition++];
+                        if (LoserTree.key(entry.getTargetIndex(), entry.getPosition()) >= targetKey &&
+                                !isBeforeStart(entry)) {
+                            return entry;
+                        }
+                    }
+                    if (pending == null) {
+                        if (exhausted) {
+                            return null;
+                        }
+                        break;
+                    }
+                    final EntryBatch next = await();
+                    if (next.size > 0 && LoserTree.key(next.entries[next.size - 1].getTargetIndex(),
+                            next.entries[next.size - 1].getPosition()) >= targetKey) {
+                        // the batch read ahead reaches the skipTo location:
+                        install(next);
+                    } else if (exhausted) {
+                        return null;
+                    }
+                }
+                batch = null;
+            }
+            Alignments.AlignmentEntry entry;
+            do {
+                entry = reader.skipTo(targetIndex, position);
+            } while (entry != null && isBeforeStart(entry));
+            positioned = true;
+            entry = checkEnd(entry, genomicRange);
+            if (batchSize > 0 && !exhausted) {
+                schedule();
+            }
+            return entry;
+        }
 
-            return builder.build();
+        private boolean isBeforeStart(final Alignments.AlignmentEntry entry) {
+            return genomicRange != null &&
+                    genomicRange.positionIsBeforeStart(entry.getTargetIndex(), entry.getPosition());
+        }
 
+        /**
+         * Read one entry from the reader. The reader is positioned at the start of the range the first time.
+         */
+        private Alignments.AlignmentEntry read(final GenomicRange range) throws IOException {
+            if (exhausted) {
+                return null;
+            }
+            final Alignments.AlignmentEntry entry;
+            if (range != null && !positioned) {
+                entry = reader.skipTo(range.startReferenceIndex, range.startPosition);
+                positioned = true;
+            } else {
+                entry = reader.hasNext() ? reader.next() : null;
+            }
+            return checkEnd(entry, range);
         }
-    }
 
-    boolean hasNext;
+        private Alignments.AlignmentEntry checkEnd(final Alignments.AlignmentEntry entry, final GenomicRange range) {
+            if (entry == null) {
+                exhausted = true;
+                return null;
+            }
+            if (range != null && range.positionIsPastEnd(entry.getTargetIndex(), entry.getPosition())) {
+                // entry is past the slice of interest, we are now done with this reader.
+                if (LOG.isTraceEnabled()) {
+                    LOG.trace(String.format("Reached the end of slice with entry %d:%d",
+                            entry.getTargetIndex(), entry.getPosition()));
+                }
+                exhausted = true;
+                return null;
+            }
+            return entry;
+        }
 
-    public void setGenomicRange(GenomicRange genomicRange) throws IOException {
-        this.genomicRange = genomicRange;
-        Alignments.AlignmentEntry entry = skipTo(genomicRange.startReferenceIndex, genomicRange.startPosition);
+        /**
+         * Make the batch read ahead the current batch, and start reading the following one.
+         *
+         * @return False when the input has no more entries.
+         */
+        private boolean nextBatch() throws IOException {
+            if (pending == null) {
+                if (exhausted) {
+                    return false;
+                }
+                schedule();
+            }
+            install(await());
+            return true;
+        }
+
+        private void install(final EntryBatch next) {
+            batch = next;
+            batchPosition = 0;
+            if (!exhausted) {
+                // keep the prefetch thread busy while the consumer iterates through this batch:
+                schedule();
+            }
+        }
+
+        private void schedule() {
+            final GenomicRange range = genomicRange;
+            pending = getPrefetchThreads().submit(new Callable<EntryBatch>() {
+                @Override
+                public EntryBatch call() throws IOException {
+                    final EntryBatch result = new EntryBatch(batchSize);
+                    Alignments.AlignmentEntry entry;
+                    while (result.size < batchSize && (entry = read(range)) != null) {
+                        result.entries[result.size++] = entry;
+                    }
+                    return result;
+                }
+            });
+        }
 
-        if (entry != null) {
-            hasNext = true;
+        private EntryBatch await() throws IOException {
+            final Future<EntryBatch> result = pending;
+            pending = null;
+            try {
+                return result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GobyRuntimeException(e);
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new GobyRuntimeException(cause);
+            }
+        }
 
-            // push back the entry to the heap so we can get it again with hasNext/next()
-            entryHeap.enqueue(new Bucket(entry, activeIndex));
+        /**
+         * Wait for the pending task, if any, so that the reader can be closed.
+         */
+        void stopPrefetch() {
+            if (pending != null) {
+                try {
+                    await();
+                } catch (IOException e) {
+                    LOG.warn("Error reading entries ahead of a closed concatenation.", e);
+                } catch (GobyRuntimeException e) {
+                    LOG.warn("Error reading entries ahead of a closed concatenation.", e);
+                }
+            }
         }
     }
 }
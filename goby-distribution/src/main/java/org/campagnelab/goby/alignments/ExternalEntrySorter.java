@@ -0,0 +1,435 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.alignments;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import it.unimi.dsi.fastutil.io.FastBufferedInputStream;
+import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * External sort of alignment entries by (targetIndex, position). Entries are kept in memory as serialized protocol
+ * buffer bytes next to a packed long key (see {@link LoserTree#key(int, int)}), ordered with a stable primitive radix
+ * sort of the keys, and spilled to disk as runs in a fast intermediate format (raw, or LZ4 frames). Runs are finally
+ * merged once, with a {@link LoserTree}, into an {@link AlignmentWriter}, so that the alignment codec encodes each
+ * entry exactly once. When there are more runs than can be opened at once, groups of runs are first merged into
+ * larger runs, still in the intermediate format and without parsing entries.
+ * <p/>
+ * Runs may be produced concurrently by several threads, one {@link RunBuilder} per thread. Entries with equal keys
+ * are returned in the order of the ordinal of their run builder, and then in the order they were added, so that the
+ * sort is stable when ordinals follow input order.
+ */
+public class ExternalEntrySorter implements Closeable {
+    /**
+     * Used to log debug and informational messages.
+     */
+    private static final Log LOG = LogFactory.getLog(ExternalEntrySorter.class);
+
+    /**
+     * A run builder spills automatically when its buffer of serialized entries reaches this size.
+     */
+    private static final int MAX_RUN_BYTES = 1 << 30;
+
+    private final File tempDir;
+    private final boolean compressRuns;
+    private final List<Run> runs = new ArrayList<Run>();
+
+    /**
+     * Create a sorter.
+     *
+     * @param tempDir      Directory where runs are spilled.
+     * @param compressRuns When true, runs are written as LZ4 frames, otherwise as raw bytes.
+     */
+    public ExternalEntrySorter(final File tempDir, final boolean compressRuns) {
+        this.tempDir = tempDir;
+        this.compressRuns = compressRuns;
+    }
+
+    /**
+     * Create a builder for a new run. Builders are not thread-safe, but different builders can be used concurrently.
+     *
+     * @param ordinal Order of the run among runs, used to break ties between entries with the same key.
+     * @return a new run builder.
+     */
+    public RunBuilder newRun(final int ordinal) {
+        return new RunBuilder(ordinal);
+    }
+
+    /**
+     * Return the number of runs spilled so far.
+     *
+     * @return number of runs.
+     */
+    public synchronized int getNumberOfRuns() {
+        return runs.size();
+    }
+
+    /**
+     * Return the number of entries in the runs spilled so far.
+     *
+     * @return number of entries.
+     */
+    public synchronized long getNumberOfEntries() {
+        long count = 0;
+        for (final Run run : runs) {
+            count += run.numEntries;
+        }
+        return count;
+    }
+
+    private synchronized void addRun(final Run run) {
+        runs.add(run);
+    }
+
+    /**
+     * Merge all runs into writer, in (targetIndex, position) order. Groups of at most maxRunsPerMerge runs are first
+     * merged in the intermediate format until at most maxRunsPerMerge runs remain. The writer is not closed.
+     *
+     * @param writer          Where to append the sorted entries.
+     * @param maxRunsPerMerge Maximum number of runs open at the same time, at least two.
+     * @param executor        Executor for the intermediate merges, or null to merge on the calling thread.
+     * @return the number of entries written.
+     * @throws IOException If an error occurs reading runs or writing the alignment.
+     */
+    public long mergeTo(final AlignmentWriter writer, final int maxRunsPerMerge, final ExecutorService executor)
+            throws IOException {
+        final int fanIn = Math.max(2, maxRunsPerMerge);
+        final List<Run> sorted;
+        synchronized (this) {
+            sorted = new ArrayList<Run>(runs);
+            runs.clear();
+        }
+        Collections.sort(sorted, RUN_ORDER);
+        List<Run> toMerge = sorted;
+        while (toMerge.size() > fanIn) {
+            toMerge = mergeRuns(toMerge, fanIn, executor);
+        }
+        final RunReader[] readers = new RunReader[toMerge.size()];
+        long numWritten = 0;
+        try {
+            final LoserTree tree = openReaders(toMerge, readers);
+            while (!tree.isEmpty()) {
+                final RunReader reader = readers[tree.winner()];
+                writer.appendEntry(Alignments.AlignmentEntry.parseFrom(
+                        CodedInputStream.newInstance(reader.bytes, 0, reader.length)));
+                numWritten++;
+                advance(tree, reader);
+            }
+        } finally {
+            closeReaders(readers);
+            for (final Run run : toMerge) {
+                run.delete();
+            }
+        }
+        return numWritten;
+    }
+
+    /**
+     * Merge consecutive groups of runs. The order of the runs returned is consistent with the order of the input
+     * runs, so that merges remain stable.
+     */
+    private List<Run> mergeRuns(final List<Run> toMerge, final int fanIn, final ExecutorService executor)
+            throws IOException {
+        final List<Future<Run>> results = new ArrayList<Future<Run>>();
+        final List<Run> merged = new ArrayList<Run>();
+        for (int start = 0; start < toMerge.size(); start += fanIn) {
+            final List<Run> group = toMerge.subList(start, Math.min(toMerge.size(), start + fanIn));
+            final int ordinal = merged.size() + results.size();
+            if (executor == null) {
+                merged.add(mergeGroup(group, ordinal));
+            } else {
+                results.add(executor.submit(new Callable<Run>() {
+                    @Override
+                    public Run call() throws IOException {
+                        return mergeGroup(group, ordinal);
+                    }
+                }));
+            }
+        }
+        for (final Future<Run> result : results) {
+            try {
+                merged.add(result.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while merging runs.");
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new RuntimeException(cause);
+            }
+        }
+        LOG.debug(String.format("Merged %d runs into %d runs", toMerge.size(), merged.size()));
+        return merged;
+    }
+
+    private Run mergeGroup(final List<Run> group, final int ordinal) throws IOException {
+        final Run result = new Run(ordinal, 0, createRunFile());
+        final RunReader[] readers = new RunReader[group.size()];
+        final DataOutputStream output = openOutput(result.file);
+        try {
+            final LoserTree tree = openReaders(group, readers);
+            while (!tree.isEmpty()) {
+                final RunReader reader = readers[tree.winner()];
+                writeRecord(output, reader.key, reader.bytes, 0, reader.length);
+                result.numEntries++;
+                advance(tree, reader);
+            }
+        } finally {
+            output.close();
+            closeReaders(readers);
+        }
+        for (final Run run : group) {
+            run.delete();
+        }
+        return result;
+    }
+
+    private LoserTree openReaders(final List<Run> toMerge, final RunReader[] readers) throws IOException {
+        final LoserTree tree = new LoserTree(Math.max(1, toMerge.size()));
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new RunReader(toMerge.get(i));
+            if (readers[i].next()) {
+                tree.set(i, readers[i].key);
+            }
+        }
+        tree.build();
+        return tree;
+    }
+
+    private static void advance(final LoserTree tree, final RunReader reader) throws IOException {
+        if (reader.next()) {
+            tree.replaceWinner(reader.key);
+        } else {
+            tree.removeWinner();
+        }
+    }
+
+    private static void closeReaders(final RunReader[] readers) throws IOException {
+        for (final RunReader reader : readers) {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Delete the runs that have not been merged.
+     */
+    @Override
+    public synchronized void close() {
+        for (final Run run : runs) {
+            run.delete();
+        }
+        runs.clear();
+    }
+
+    private File createRunFile() throws IOException {
+        final File file = File.createTempFile("sort-run-", compressRuns ? ".lz4" : ".raw", tempDir);
+        file.deleteOnExit();
+        return file;
+    }
+
+    private DataOutputStream openOutput(final File file) throws IOException {
+        final OutputStream output = new FastBufferedOutputStream(new FileOutputStream(file));
+        return new DataOutputStream(compressRuns ?
+                new LZ4FrameOutputStream(output, LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB) : output);
+    }
+
+    private static void writeRecord(final DataOutputStream output, final long key, final byte[] bytes,
+                                    final int offset, final int length) throws IOException {
+        output.writeLong(key);
+        output.writeInt(length);
+        output.write(bytes, offset, length);
+    }
+
+    private static final Comparator<Run> RUN_ORDER = new Comparator<Run>() {
+        @Override
+        public int compare(final Run a, final Run b) {
+            if (a.ordinal != b.ordinal) {
+                return a.ordinal < b.ordinal ? -1 : 1;
+            }
+            return a.part < b.part ? -1 : a.part == b.part ? 0 : 1;
+        }
+    };
+
+    /**
+     * A sorted run spilled to disk.
+     */
+    private static final class Run {
+        private final int ordinal;
+        private final int part;
+        private final File file;
+        private long numEntries;
+
+        private Run(final int ordinal, final int part, final File file) {
+            this.ordinal = ordinal;
+            this.part = part;
+            this.file = file;
+        }
+
+        private void delete() {
+            if (!file.delete() && file.exists()) {
+                LOG.warn("Could not delete sort run " + file);
+            }
+        }
+    }
+
+    /**
+     * Reads the records of a run sequentially.
+     */
+    private final class RunReader implements Closeable {
+        private final DataInputStream input;
+        private long remaining;
+        private long key;
+        private int length;
+        private byte[] bytes = new byte[1024];
+
+        private RunReader(final Run run) throws IOException {
+            final InputStream stream = new FastBufferedInputStream(new FileInputStream(run.file));
+            input = new DataInputStream(compressRuns ? new LZ4FrameInputStream(stream) : stream);
+            remaining = run.numEntries;
+        }
+
+        private boolean next() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            key = input.readLong();
+            length = input.readInt();
+            if (length > bytes.length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            input.readFully(bytes, 0, length);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+
+    /**
+     * Accumulates entries in memory as serialized bytes and spills them as sorted runs.
+     */
+    public final class RunBuilder {
+        private final int ordinal;
+        private int numParts;
+        private byte[] buffer = new byte[1 << 16];
+        private int bufferSize;
+        private long[] keys = new long[1024];
+        private int[] offsets = new int[1024];
+        private int size;
+
+        private RunBuilder(final int ordinal) {
+            this.ordinal = ordinal;
+        }
+
+        /**
+         * Add an entry to the run.
+         *
+         * @param entry the entry to add.
+         * @throws IOException If the run must be spilled and an error occurs writing it.
+         */
+        public void add(final Alignments.AlignmentEntry entry) throws IOException {
+            final int length = entry.getSerializedSize();
+            if (size > 0 && (long) bufferSize + length > MAX_RUN_BYTES) {
+                spill();
+            }
+            if (bufferSize + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, (int) Math.min(Integer.MAX_VALUE - 8,
+                        Math.max((long) bufferSize + length, 2L * buffer.length)));
+            }
+            if (size == keys.length) {
+                keys = LongArrays.grow(keys, size + 1);
+                offsets = IntArrays.grow(offsets, size + 1);
+            }
+            final CodedOutputStream output = CodedOutputStream.newInstance(buffer, bufferSize, length);
+            entry.writeTo(output);
+            output.checkNoSpaceLeft();
+            keys[size] = LoserTree.key(entry.getTargetIndex(), entry.getPosition());
+            offsets[size] = bufferSize;
+            bufferSize += length;
+            size++;
+        }
+
+        /**
+         * Return the number of entries added since the last spill.
+         *
+         * @return number of entries buffered.
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Sort the entries added since the last spill, and write them as a run.
+         *
+         * @throws IOException If an error occurs writing the run.
+         */
+        public void spill() throws IOException {
+            if (size == 0) {
+                return;
+            }
+            final int[] perm = new int[size];
+            for (int i = 0; i < size; i++) {
+                perm[i] = i;
+            }
+            // stable, so that entries with the same position keep their input order:
+            LongArrays.radixSortIndirect(perm, keys, 0, size, true);
+
+            final Run run = new Run(ordinal, numParts++, createRunFile());
+            final DataOutputStream output = openOutput(run.file);
+            try {
+                for (final int index : perm) {
+                    final int end = index + 1 < size ? offsets[index + 1] : bufferSize;
+                    writeRecord(output, keys[index], buffer, offsets[index], end - offsets[index]);
+                }
+            } finally {
+                output.close();
+            }
+            run.numEntries = size;
+            addRun(run);
+            size = 0;
+            bufferSize = 0;
+        }
+    }
+}
@@ -64,6 +64,15 @@ public abstract class IterateSortedAlignments<T> {
     private String startOffsetArgument;
     private String endOffsetArgument;
     private int startFlapLength;
+    /**
+     * True when the window was set with {@link #setWindow}, rather than with position arguments.
+     */
+    private boolean windowSetByIndex;
+    /**
+     * When not null, positions are handed to this sink instead of processPositions. Only positions within the window
+     * are handed to the sink. Used when iterating over a slice of the genome for {@link SlicedIterateSortedAlignments}.
+     */
+    private PositionSink<T> positionSink;
 
     /**
      * Set the maximum number of variants that will be analyzed at a given position. When a site
@@ -105,6 +114,18 @@ public abstract class IterateSortedAlignments<T> {
 
     private AlignmentProcessorFactory alignmentProcessorFactory = new DefaultAlignmentProcessorFactory();
 
+    /**
+     * Accumulate information about positions in a {@link CircularPositionToBasesMap} rather than in tree maps.
+     * Subclasses may then reuse the values of processed positions with {@link PositionToBasesMap#getReusable(int)}.
+     *
+     * @param useCircularWindow True to use a circular window.
+     */
+    public void setUseCircularWindow(final boolean useCircularWindow) {
+        this.useCircularWindow = useCircularWindow;
+    }
+
+    private boolean useCircularWindow;
+
     /**
      * Set the length of the start flap. If length is larger than zero, the iterator will start reading at position
      * start - length.
@@ -222,22 +243,8 @@ public abstract class IterateSortedAlignments<T> {
      * @throws java.io.IOException If an error occured reading the input alignment.
      */
     public void iterate(final String... basenames) throws IOException {
-        ConcatSortedAlignmentReader sortedReaders = new ConcatSortedAlignmentReader(
-                false, basenames);
-
-        checkGenomeMatchAlignment(sortedReaders, getGenome());
-        final int numberOfReferences = sortedReaders.getNumberOfTargets();
-
-        referenceIds = new DoubleIndexedIdentifier(sortedReaders.getTargetIdentifiers());
-
-        if (referenceIds == null) {
-            // no reference Ids, process all the sequences.
-            filterByReferenceNames = false;
-
-        }
-        sortedReaders.close();
-        LOG.info(String.format("Alignment contains %d reference sequences", numberOfReferences));
-        processNumberOfReferences(numberOfReferences);
+        final int numberOfReferences = initializeReferences(basenames);
+        ConcatSortedAlignmentReader sortedReaders;
         //  CountsWriter writers[] = new CountsWriter[numberOfReferences];
         final IntSortedSet referencesToProcess = new IntLinkedOpenHashSet();
 
@@ -262,25 +269,27 @@ public abstract class IterateSortedAlignments<T> {
         }
 
         try {
-            if (StringUtils.isEmpty(startOffsetArgument) && StringUtils.isEmpty(endOffsetArgument)) {
+            if (!windowSetByIndex && StringUtils.isEmpty(startOffsetArgument) && StringUtils.isEmpty(endOffsetArgument)) {
                 sortedReaders = new ConcatSortedAlignmentReader(alignmentReaderFactory, false, basenames);
             } else {
-                assert  isValidOffsetArgument(startOffsetArgument) : "start offset must contain a coma or colon delimiter.";
-                assert  isValidOffsetArgument(endOffsetArgument) : "end offset must contain a coma delimiter.";
-
-                final String[] startTokens = startOffsetArgument.split("[:,]");
-                final String[] endTokens = endOffsetArgument.split("[:,]");
-                startPosition = Integer.parseInt(startTokens[1]);
-                endPosition = Integer.parseInt(endTokens[1]);
-
-                startReferenceIndex = referenceIds.getIndex(startTokens[0]);
-                endReferenceIndex = referenceIds.getIndex(endTokens[0]);
-
-                if (startReferenceIndex == -1 || endReferenceIndex == -1) {
-                    String message = String.format("One of the reference identifier specified for start and end limits does not exist %s %s. ",
-                            startTokens[0], endTokens[0]);
-                    LOG.error(message);
-                    throw new IllegalArgumentException(message);
+                if (!windowSetByIndex) {
+                    assert isValidOffsetArgument(startOffsetArgument) : "start offset must contain a coma or colon delimiter.";
+                    assert isValidOffsetArgument(endOffsetArgument) : "end offset must contain a coma delimiter.";
+
+                    final String[] startTokens = startOffsetArgument.split("[:,]");
+                    final String[] endTokens = endOffsetArgument.split("[:,]");
+                    startPosition = Integer.parseInt(startTokens[1]);
+                    endPosition = Integer.parseInt(endTokens[1]);
+
+                    startReferenceIndex = referenceIds.getIndex(startTokens[0]);
+                    endReferenceIndex = referenceIds.getIndex(endTokens[0]);
+
+                    if (startReferenceIndex == -1 || endReferenceIndex == -1) {
+                        String message = String.format("One of the reference identifier specified for start and end limits does not exist %s %s. ",
+                                startTokens[0], endTokens[0]);
+                        LOG.error(message);
+                        throw new IllegalArgumentException(message);
+                    }
                 }
                 useWindow = true;
                 sortedReaders = new ConcatSortedAlignmentReader(alignmentReaderFactory,
@@ -310,6 +319,11 @@ public abstract class IterateSortedAlignments<T> {
                     "string and ref-position in an integer that encodes a position within the reference sequence.");
             throw e;
         }
+        if (referencesToProcess.isEmpty()) {
+            // none of the references selected for processing overlap the window:
+            sortedReaders.close();
+            return;
+        }
         // track the origin of each sample entry to the reader of origin:
         sortedReaders.setAdjustSampleIndices(true);
 
@@ -320,7 +334,9 @@ public abstract class IterateSortedAlignments<T> {
         // skip to will go to the next entry in or after currentMinTargetIndex with at least position 0
         int lastPosition = -1;
         int lastTarget = -1;
-        PositionToBasesMap<T> positionToBases = new PositionToBasesMap<T>();
+        // values can only be recycled when positions are processed before they are removed, not handed to a sink:
+        PositionToBasesMap<T> positionToBases = useCircularWindow ?
+                new CircularPositionToBasesMap<T>(positionSink == null) : new PositionToBasesMap<T>();
 
 
         int currentPosition;
@@ -336,7 +352,10 @@ public abstract class IterateSortedAlignments<T> {
         while ((alignmentEntry = realigner.nextRealignedEntry(currentMinTargetIndex, 0)) != null) {
 
             pg.lightUpdate();
-            numAlignmentEntries = advanceReference(numAlignmentEntries);
+            if (positionSink == null || isWithinWindow(alignmentEntry.getTargetIndex(), alignmentEntry.getPosition())) {
+                // entries in the start flap of a slice are counted by the previous slice:
+                numAlignmentEntries = advanceReference(numAlignmentEntries);
+            }
             final int referenceIndex = alignmentEntry.getTargetIndex();
             if (lastTarget != -1 && referenceIndex != lastTarget) {
                 // we switch to a new reference. Cleanup any previous
@@ -553,6 +572,114 @@ public abstract class IterateSortedAlignments<T> {
 
 
 
+    /**
+     * Read the header of the alignments, check them against the genome and prepare the identifiers of the
+     * reference sequences.
+     *
+     * @param basenames Basenames of the alignments to iterate over.
+     * @return the number of reference sequences in the alignments.
+     * @throws IOException If an error occured reading the alignment headers.
+     */
+    int initializeReferences(final String... basenames) throws IOException {
+        final ConcatSortedAlignmentReader sortedReaders = new ConcatSortedAlignmentReader(
+                false, basenames);
+
+        checkGenomeMatchAlignment(sortedReaders, getGenome());
+        final int numberOfReferences = sortedReaders.getNumberOfTargets();
+
+        referenceIds = new DoubleIndexedIdentifier(sortedReaders.getTargetIdentifiers());
+
+        if (referenceIds == null) {
+            // no reference Ids, process all the sequences.
+            filterByReferenceNames = false;
+
+        }
+        sortedReaders.close();
+        LOG.info(String.format("Alignment contains %d reference sequences", numberOfReferences));
+        processNumberOfReferences(numberOfReferences);
+        return numberOfReferences;
+    }
+
+    /**
+     * Hand the information accumulated at a position to processPositions, or to the position sink when one is
+     * installed.
+     */
+    private void emitPosition(final int referenceIndex, final int position, final T positionBaseInfos) {
+        if (positionSink == null) {
+            processPositions(referenceIndex, position, positionBaseInfos);
+        } else if (isWithinWindow(referenceIndex, position)) {
+            positionSink.accept(referenceIndex, position, positionBaseInfos);
+        }
+    }
+
+    private boolean isWithinWindow(final int referenceIndex, final int position) {
+        if (!useWindow) {
+            return true;
+        }
+        if (referenceIndex < startReferenceIndex || referenceIndex == startReferenceIndex && position < startPosition) {
+            return false;
+        }
+        return referenceIndex < endReferenceIndex || referenceIndex == endReferenceIndex && position <= endPosition;
+    }
+
+    /**
+     * Restrict the iteration to a window of the genome. Equivalent to setting the start and end position arguments,
+     * but with reference indices rather than identifiers.
+     *
+     * @param startReferenceIndex Index of the reference where the window starts.
+     * @param startPosition       First position of the window.
+     * @param endReferenceIndex   Index of the reference where the window ends.
+     * @param endPosition         Last position of the window (inclusive).
+     */
+    void setWindow(final int startReferenceIndex, final int startPosition,
+                   final int endReferenceIndex, final int endPosition) {
+        this.startReferenceIndex = startReferenceIndex;
+        this.startPosition = startPosition;
+        this.endReferenceIndex = endReferenceIndex;
+        this.endPosition = endPosition;
+        windowSetByIndex = true;
+    }
+
+    /**
+     * Return true when the iteration was restricted to a window with the start and end position arguments.
+     */
+    boolean hasPositionArguments() {
+        return !StringUtils.isEmpty(startOffsetArgument) || !StringUtils.isEmpty(endOffsetArgument);
+    }
+
+    void setPositionSink(final PositionSink<T> positionSink) {
+        this.positionSink = positionSink;
+    }
+
+    /**
+     * Copy the settings of another iterator to this one: reader and processor factories, start flap, circular window,
+     * threshold and reference names to include.
+     */
+    void copySettings(final IterateSortedAlignments<T> other) {
+        alignmentReaderFactory = other.alignmentReaderFactory;
+        alignmentProcessorFactory = other.alignmentProcessorFactory;
+        startFlapLength = other.startFlapLength;
+        useCircularWindow = other.useCircularWindow;
+        maxThreshold = other.maxThreshold;
+        includeReferenceNames = other.includeReferenceNames;
+        filterByReferenceNames = other.filterByReferenceNames;
+    }
+
+    void addNumAlignmentEntries(final int count) {
+        numAlignmentEntries += count;
+    }
+
+    int getStartFlapLength() {
+        return startFlapLength;
+    }
+
+    /**
+     * Receives the information accumulated at each position, in position order.
+     */
+    interface PositionSink<T> {
+        void accept(int referenceIndex, int position, T positionBaseInfos);
+    }
+
     protected boolean isValidOffsetArgument(String offsetArgument) {
             return offsetArgument.contains(",") |offsetArgument.contains(":");
     }
@@ -628,7 +755,7 @@ public abstract class IterateSortedAlignments<T> {
         while ((!positionToBases.isEmpty())
                 && positionToBases.firstPosition() < lastPosition) {
             int intermediatePosition = positionToBases.firstPosition();
-            processPositions(lastReferenceIndex, intermediatePosition, positionToBases.get(intermediatePosition));
+            emitPosition(lastReferenceIndex, intermediatePosition, positionToBases.get(intermediatePosition));
             positionToBases.remove(intermediatePosition);
         }
         for (int intermediatePosition = lastRemovedPosition + 1;
@@ -636,7 +763,7 @@ public abstract class IterateSortedAlignments<T> {
 
             if (positionToBases.containsKey(intermediatePosition)) {
 
-                processPositions(lastReferenceIndex, intermediatePosition, positionToBases.get(intermediatePosition));
+                emitPosition(lastReferenceIndex, intermediatePosition, positionToBases.get(intermediatePosition));
                 positionToBases.remove(intermediatePosition);
             }
 
@@ -667,7 +794,7 @@ public abstract class IterateSortedAlignments<T> {
         for (final int intermediatePosition : tmpPositions) {
             if (positionToBases.containsKey(intermediatePosition)) {
                 // TODO remove positionToBases from method signature:
-                processPositions(lastReferenceIndex, intermediatePosition, (T) positionToBases.get(intermediatePosition));
+                emitPosition(lastReferenceIndex, intermediatePosition, (T) positionToBases.get(intermediatePosition));
                 positionToBases.remove(intermediatePosition);
                 lastRemovedPosition = intermediatePosition;
             }
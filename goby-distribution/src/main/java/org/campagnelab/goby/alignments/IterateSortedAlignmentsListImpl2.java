@@ -34,7 +34,7 @@ public abstract class IterateSortedAlignmentsListImpl2
                                      Alignments.AlignmentEntry alignmentEntry,
                                      PositionToBasesMap<ObjectArrayList<PositionBaseInfo2>> positionToBases,
                                      int currentReferenceIndex, int currentRefPosition, int currentReadIndex) {
-        PositionBaseInfo2 info = new PositionBaseInfo2();
+        PositionBaseInfo2 info = newPositionBaseInfo();
         info.readerIndex = alignmentEntry.getSampleIndex();
         info.readIndex = currentReadIndex;
         info.from = '\0';
@@ -43,6 +43,7 @@ public abstract class IterateSortedAlignmentsListImpl2
         info.position = currentRefPosition;
         info.qualityScore = 40;
         info.alignmentEntryQueryIndex = alignmentEntry.getQueryIndex();
+        info.variationLength = 0;
 
         addToFuture(positionToBases, info);
     }
@@ -53,13 +54,14 @@ public abstract class IterateSortedAlignmentsListImpl2
                                    Alignments.SequenceVariation var,
                                    char toChar, char fromChar, byte toQual, int currentReferenceIndex, int currentRefPosition, int currentReadIndex) {
 
-        PositionBaseInfo2 info = new PositionBaseInfo2();
+        PositionBaseInfo2 info = newPositionBaseInfo();
         info.readerIndex = alignmentEntry.getSampleIndex();
         info.readIndex = currentReadIndex;
         info.from = fromChar;
         info.to = toChar;
         info.matchesReference = false;
         info.position = currentRefPosition;
+        info.qualityScore = 0;
         info.alignmentEntryQueryIndex = alignmentEntry.getQueryIndex();
         info.variationLength = Math.max(var.getFrom().length(), var.getTo().length());
         addToFuture(positionToBases, info);
@@ -71,12 +73,27 @@ public abstract class IterateSortedAlignmentsListImpl2
 
         ObjectArrayList<PositionBaseInfo2> list = positionToBases.get(info.position);
         if (list == null) {
-            list = new ObjectArrayList<PositionBaseInfo2>();
+            list = positionToBases.getReusable(info.position);
+            if (list == null) {
+                list = new ObjectArrayList<PositionBaseInfo2>();
+            } else {
+                spareInfos.addAll(list);
+                list.clear();
+            }
             positionToBases.put(info.position, list);
         }
         list.add(info);
     }
 
+    /**
+     * Base information objects of processed positions, kept for reuse when the circular window is used.
+     */
+    private final ObjectArrayList<PositionBaseInfo2> spareInfos = new ObjectArrayList<PositionBaseInfo2>();
+
+    private PositionBaseInfo2 newPositionBaseInfo() {
+        return spareInfos.isEmpty() ? new PositionBaseInfo2() : spareInfos.pop();
+    }
+
     public class PositionBaseInfo2 {
         public int readIndex;
         public int readerIndex;
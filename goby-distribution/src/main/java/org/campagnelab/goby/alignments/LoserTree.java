@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2009-2010 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.alignments;
+
+import java.util.Arrays;
+
+/**
+ * A tournament tree of losers over the heads of k sorted sources, used to merge the sources in key order.
+ * Each internal node keeps the source that lost the match played at that node, and the overall winner is kept
+ * at index zero. Replacing the key of the winner replays only the matches on the path from its leaf to the root,
+ * which costs about log2(k) comparisons of primitive long keys. Ties are broken by source index, so that merges
+ * are deterministic. Sources that have no more elements are marked empty and lose every match.
+ * <p/>
+ * Keys of alignment entries are produced with {@link #key(int, int)}, which orders entries by target index and
+ * position, like {@link AlignmentPositionComparator}.
+ */
+public final class LoserTree {
+    private final int numSources;
+    private final long[] keys;
+    private final boolean[] empty;
+    /**
+     * tree[0] is the winner, tree[1..numSources-1] are the losers of the internal nodes. The leaf of source s
+     * is node numSources+s.
+     */
+    private final int[] tree;
+
+    /**
+     * Create a tree over numSources sources. All sources are initially empty.
+     *
+     * @param numSources Number of sources to merge, at least one.
+     */
+    public LoserTree(final int numSources) {
+        if (numSources < 1) {
+            throw new IllegalArgumentException("A loser tree must have at least one source.");
+        }
+        this.numSources = numSources;
+        keys = new long[numSources];
+        empty = new boolean[numSources];
+        tree = new int[numSources];
+        Arrays.fill(empty, true);
+    }
+
+    /**
+     * Pack a target index and a position into a key that sorts like (targetIndex, position).
+     *
+     * @param targetIndex Index of the target sequence, non negative.
+     * @param position    Position on the target sequence, non negative.
+     * @return The packed key.
+     */
+    public static long key(final int targetIndex, final int position) {
+        return ((long) targetIndex << 32) | (position & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Set the key of a source. Call {@link #build()} after the keys of all sources have been set.
+     *
+     * @param source Index of the source.
+     * @param key    Key of the first element of the source.
+     */
+    public void set(final int source, final long key) {
+        keys[source] = key;
+        empty[source] = false;
+    }
+
+    /**
+     * Mark a source as having no elements. Call {@link #build()} after the keys of all sources have been set.
+     *
+     * @param source Index of the source.
+     */
+    public void setEmpty(final int source) {
+        empty[source] = true;
+    }
+
+    /**
+     * Play all the matches of the tournament. Costs numSources-1 comparisons.
+     */
+    public void build() {
+        final int[] winners = new int[2 * numSources];
+        for (int source = 0; source < numSources; source++) {
+            winners[numSources + source] = source;
+        }
+        for (int node = numSources - 1; node >= 1; node--) {
+            final int left = winners[2 * node];
+            final int right = winners[2 * node + 1];
+            if (beats(left, right)) {
+                winners[node] = left;
+                tree[node] = right;
+            } else {
+                winners[node] = right;
+                tree[node] = left;
+            }
+        }
+        tree[0] = numSources == 1 ? 0 : winners[1];
+    }
+
+    /**
+     * Returns true when all sources are empty.
+     *
+     * @return True when no source has elements left.
+     */
+    public boolean isEmpty() {
+        return empty[tree[0]];
+    }
+
+    /**
+     * Return the index of the source with the smallest key.
+     *
+     * @return index of the winning source.
+     */
+    public int winner() {
+        return tree[0];
+    }
+
+    /**
+     * Return the smallest key.
+     *
+     * @return key of the winning source.
+     */
+    public long winnerKey() {
+        return keys[tree[0]];
+    }
+
+    /**
+     * Replace the key of the winning source, typically with the key of its next element, and replay its matches.
+     *
+     * @param key new key for the winning source.
+     */
+    public void replaceWinner(final long key) {
+        final int source = tree[0];
+        keys[source] = key;
+        empty[source] = false;
+        replay(source);
+    }
+
+    /**
+     * Mark the winning source empty and replay its matches.
+     */
+    public void removeWinner() {
+        final int source = tree[0];
+        empty[source] = true;
+        replay(source);
+    }
+
+    private void replay(final int source) {
+        int winner = source;
+        for (int node = (numSources + source) >> 1; node >= 1; node >>= 1) {
+            final int loser = tree[node];
+            if (beats(loser, winner)) {
+                tree[node] = winner;
+                winner = loser;
+            }
+        }
+        tree[0] = winner;
+    }
+
+    private boolean beats(final int a, final int b) {
+        if (empty[a] != empty[b]) {
+            return empty[b];
+        }
+        if (!empty[a] && keys[a] != keys[b]) {
+            return keys[a] < keys[b];
+        }
+        return a < b;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.alignments;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMIndexer;
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.DefaultSAMRecordFactory;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileSource;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordFactory;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.util.BinaryCodec;
+import it.unimi.dsi.fastutil.io.FastByteArrayOutputStream;
+import org.campagnelab.goby.util.ParallelBlockCompressedOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Writes a BAM file from batches of records encoded ahead of time, possibly on other threads. Blocks are deflated by
+ * a {@link ParallelBlockCompressedOutputStream}. When the records are written sorted by genomic position, the BAM
+ * index (.bai) can be built while the file is written: records are added to the index as soon as the blocks that
+ * hold them have been written and their virtual file pointers are known. Records written to an indexed file must be
+ * created with {@link #getRecordFactory()}.
+ */
+public class ParallelBAMWriter implements Closeable {
+    private static final byte[] BAM_MAGIC = {'B', 'A', 'M', 1};
+    private static final SAMRecordFactory RECORD_FACTORY = new DefaultSAMRecordFactory() {
+        @Override
+        public SAMRecord createSAMRecord(final SAMFileHeader header) {
+            return new IndexableRecord(header);
+        }
+    };
+
+    private final ParallelBlockCompressedOutputStream stream;
+    private BAMIndexer indexer;
+    /**
+     * Output of the indexer, kept to close it when the writer is aborted.
+     */
+    private OutputStream indexOutput;
+    private final ArrayDeque<PendingRecord> pendingRecords = new ArrayDeque<PendingRecord>();
+    private long numRecordsWritten;
+
+    /**
+     * Create a writer and write the BAM header.
+     *
+     * @param output     the BAM file to write.
+     * @param header     the header of the BAM file.
+     * @param numThreads number of threads that deflate blocks.
+     * @param indexFile  the BAM index to write, or null to not index the file. Records must then be written sorted
+     *                   by genomic position.
+     * @throws IOException if the file cannot be written.
+     */
+    public ParallelBAMWriter(final File output, final SAMFileHeader header, final int numThreads,
+                             final File indexFile) throws IOException {
+        stream = new ParallelBlockCompressedOutputStream(new FileOutputStream(output), numThreads);
+        final BinaryCodec codec = new BinaryCodec(stream);
+        codec.writeBytes(BAM_MAGIC);
+        final StringWriter textHeader = new StringWriter();
+        new SAMTextHeaderCodec().encode(textHeader, header, true);
+        codec.writeString(textHeader.toString(), true, false);
+        final List<SAMSequenceRecord> sequences = header.getSequenceDictionary().getSequences();
+        codec.writeInt(sequences.size());
+        for (final SAMSequenceRecord sequence : sequences) {
+            codec.writeString(sequence.getSequenceName(), true, true);
+            codec.writeInt(sequence.getSequenceLength());
+        }
+        if (indexFile != null) {
+            indexOutput = new BufferedOutputStream(new FileOutputStream(indexFile));
+            indexer = new BAMIndexer(indexOutput, header);
+        }
+    }
+
+    /**
+     * Returns a factory of records that can be indexed while they are written.
+     *
+     * @return the record factory.
+     */
+    public static SAMRecordFactory getRecordFactory() {
+        return RECORD_FACTORY;
+    }
+
+    /**
+     * Encode records to the BAM format. This method is thread safe, so that records can be encoded by the threads
+     * that create them.
+     *
+     * @param header  the header of the BAM file the records will be written to.
+     * @param records the records, in the order they will be written.
+     * @return the encoded records.
+     */
+    public static EncodedRecords encode(final SAMFileHeader header, final List<SAMRecord> records) {
+        final BAMRecordCodec codec = new BAMRecordCodec(header);
+        final FastByteArrayOutputStream bytes = new FastByteArrayOutputStream();
+        codec.setOutputStream(bytes);
+        final int[] offsets = new int[records.size() + 1];
+        for (int i = 0; i < records.size(); i++) {
+            offsets[i] = (int) bytes.position();
+            codec.encode(records.get(i));
+        }
+        offsets[records.size()] = (int) bytes.position();
+        return new EncodedRecords(records, bytes.array, offsets);
+    }
+
+    /**
+     * Write records encoded with {@link #encode(SAMFileHeader, List)}.
+     *
+     * @param encoded the encoded records.
+     * @throws IOException if the records cannot be written.
+     */
+    public void write(final EncodedRecords encoded) throws IOException {
+        final int size = encoded.records.size();
+        for (int i = 0; i < size; i++) {
+            final long start = stream.getPosition();
+            stream.write(encoded.bytes, encoded.offsets[i], encoded.offsets[i + 1] - encoded.offsets[i]);
+            if (indexer != null) {
+                final SAMRecord record = encoded.records.get(i);
+                if (!(record instanceof IndexableRecord)) {
+                    throw new IllegalArgumentException("Records of an indexed BAM file must be created with getRecordFactory().");
+                }
+                pendingRecords.add(new PendingRecord((IndexableRecord) record, start, stream.getPosition()));
+            }
+        }
+        numRecordsWritten += size;
+        if (indexer != null) {
+            indexPendingRecords();
+        }
+    }
+
+    /**
+     * Returns the number of records written so far.
+     *
+     * @return the number of records.
+     */
+    public long getNumRecordsWritten() {
+        return numRecordsWritten;
+    }
+
+    /**
+     * Add to the index the records whose blocks have been written.
+     */
+    private void indexPendingRecords() {
+        while (!pendingRecords.isEmpty()) {
+            final PendingRecord pending = pendingRecords.peek();
+            final long end = stream.getFilePointer(pending.end);
+            if (end == -1) {
+                return;
+            }
+            final IndexableRecord record = pending.record;
+            record.setFilePointers(stream.getFilePointer(pending.start), end);
+            indexer.processAlignment(record);
+            pendingRecords.poll();
+        }
+    }
+
+    /**
+     * Write the last blocks, then the index.
+     */
+    @Override
+    public void close() throws IOException {
+        stream.close();
+        if (indexer != null) {
+            // all blocks have been written, every record can now be indexed:
+            indexPendingRecords();
+            indexer.finish();
+            indexer = null;
+        }
+    }
+
+    /**
+     * Close the files after a failure, without the BGZF terminator block and without writing the index, so that
+     * the truncated BAM file cannot be mistaken for a complete one. The caller is expected to delete the files.
+     */
+    public void abort() {
+        stream.abort();
+        if (indexer != null) {
+            indexer = null;
+            try {
+                indexOutput.close();
+            } catch (IOException e) {
+                // the index is abandoned.
+            }
+        }
+    }
+
+    /**
+     * Records encoded to the BAM format.
+     */
+    public static final class EncodedRecords {
+        private final List<SAMRecord> records;
+        private final byte[] bytes;
+        private final int[] offsets;
+
+        private EncodedRecords(final List<SAMRecord> records, final byte[] bytes, final int[] offsets) {
+            this.records = records;
+            this.bytes = bytes;
+            this.offsets = offsets;
+        }
+
+        /**
+         * Returns the number of records.
+         */
+        public int size() {
+            return records.size();
+        }
+    }
+
+    /**
+     * A record whose location in the BAM file can be set, for the indexer.
+     */
+    private static final class IndexableRecord extends SAMRecord {
+        private static final long serialVersionUID = 4270543893612618187L;
+
+        private IndexableRecord(final SAMFileHeader header) {
+            super(header);
+        }
+
+        private void setFilePointers(final long start, final long end) {
+            setFileSource(new SAMFileSource(null, new BAMFileSpan(new Chunk(start, end))));
+        }
+    }
+
+    /**
+     * A record written to the stream but not yet indexed, with its start and end positions in the stream.
+     */
+    private static final class PendingRecord {
+        private final IndexableRecord record;
+        private final long start;
+        private final long end;
+
+        private PendingRecord(final IndexableRecord record, final long start, final long end) {
+            this.record = record;
+            this.start = start;
+            this.end = end;
+        }
+    }
+}
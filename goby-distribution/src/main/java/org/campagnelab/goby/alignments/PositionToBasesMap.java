@@ -82,4 +82,15 @@ public class PositionToBasesMap<T> {
     public boolean isIgnoredPosition(int position) {
         return ignoredPositions.get(position);
     }
+
+    /**
+     * Return a value that was removed from the map and can be reset and reused to accumulate information at
+     * position, or null when none is available. This implementation does not keep removed values.
+     *
+     * @param position position that is about to be put in the map.
+     * @return a removed value, or null.
+     */
+    public T getReusable(int position) {
+        return null;
+    }
 }
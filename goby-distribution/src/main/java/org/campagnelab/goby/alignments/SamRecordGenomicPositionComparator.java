@@ -34,10 +34,13 @@ public class SamRecordGenomicPositionComparator implements Comparator< SAMRecord
 
     @Override
     public int compare(SAMRecord a,  SAMRecord b) {
-       if (a.getReferenceIndex()==b.getReferenceIndex()) {
+       // compare int values, reference indices are boxed:
+       final int referenceIndexA = a.getReferenceIndex();
+       final int referenceIndexB = b.getReferenceIndex();
+       if (referenceIndexA == referenceIndexB) {
            return a.getAlignmentStart()-b.getAlignmentStart();
        }  else {
-           return a.getReferenceIndex()-b.getReferenceIndex();
+           return referenceIndexA-referenceIndexB;
        }
     }
 }
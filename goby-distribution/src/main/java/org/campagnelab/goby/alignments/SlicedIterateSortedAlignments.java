@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.alignments;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Iterate through a set of sorted alignments with several threads. The genome is cut into slices that hold about
+ * the same amount of compressed alignment data, using the alignment indices. Each slice is iterated over by its own
+ * {@link IterateSortedAlignments} instance, obtained from a factory, on a thread pool. Slice iterators observe the
+ * bases of the alignment entries as usual, but hand the information accumulated at each position back to this class
+ * instead of processing it. Positions are then processed by a single iterator, the processor, on the calling thread,
+ * in the order of the genome. Clients that write results in processPositions therefore produce the same output as
+ * with a single thread, without synchronization.
+ * <p/>
+ * Slice iterators never wait for the processor: the positions of a slice are buffered until the processor gets to
+ * them, so that slices that follow the one being processed run to completion on the other threads. Memory is bounded
+ * when slices are started instead: a slice is only started when fewer than a maximum number of positions are
+ * buffered, and when at most a few slices per thread are ahead of the processor. The slice the processor needs next
+ * is always started.
+ * <p/>
+ * Reads that overlap the start of a slice are handled with the start flap of the processor: each slice iterator
+ * reads alignment entries from startFlapLength bases before the start of its slice, so that positions at the start
+ * of the slice see all the reads that cover them. A slice only hands over positions between its start and end.
+ * The start flap must be at least as long as the reads for slicing not to change the results.
+ * <p/>
+ * The processor is used in place of slice iterators when a single thread is requested, or when the processor
+ * was restricted to a window with start and end position arguments.
+ */
+public class SlicedIterateSortedAlignments<T> {
+    /**
+     * Used to log debug and informational messages.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(SlicedIterateSortedAlignments.class);
+    /**
+     * Number of positions handed over from a slice iterator to the processor at once.
+     */
+    private static final int BATCH_SIZE = 1024;
+    /**
+     * Number of slices per thread that can be started ahead of the slice being processed.
+     */
+    private static final int MAX_SLICES_AHEAD_PER_THREAD = 2;
+    /**
+     * End position of slices that end with a reference. Reads may extend past the length of the reference recorded
+     * in the header, so the end is not the reference length.
+     */
+    public static final int END_OF_REFERENCE = Integer.MAX_VALUE - 1;
+
+    /**
+     * Creates the iterators that process the slices. Iterators must be configured as the processor would be for
+     * observing bases (genome, indel calling, etc.). Reader and processor factories, start flap, circular window,
+     * threshold and reference names to include are copied from the processor.
+     */
+    public interface IteratorFactory<T> {
+        IterateSortedAlignments<T> create();
+    }
+
+    private final IterateSortedAlignments<T> processor;
+    private final IteratorFactory<T> factory;
+    private final int numThreads;
+    private int slicesPerThread = 16;
+    private long maxBufferedPositions = 1L << 20;
+
+    /**
+     * Create an engine.
+     *
+     * @param processor  iterator that processes the positions of all slices, in order.
+     * @param factory    creates an iterator for each slice.
+     * @param numThreads number of slices iterated over at the same time.
+     */
+    public SlicedIterateSortedAlignments(final IterateSortedAlignments<T> processor,
+                                         final IteratorFactory<T> factory,
+                                         final int numThreads) {
+        this.processor = processor;
+        this.factory = factory;
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Set the number of slices per thread. More slices balance work better across threads, when some regions of the
+     * genome take longer to process than others, and smaller slices buffer fewer positions, but each slice reads the
+     * start flap again. The default is 16.
+     *
+     * @param slicesPerThread number of slices per thread.
+     */
+    public void setSlicesPerThread(final int slicesPerThread) {
+        this.slicesPerThread = slicesPerThread;
+    }
+
+    /**
+     * Set the number of positions that can be buffered for the processor before new slices wait to be started.
+     * Slices that are already running complete regardless, so the buffer can exceed this number by the positions of
+     * the running slices. The default is 2^20 positions.
+     *
+     * @param maxBufferedPositions maximum number of buffered positions.
+     */
+    public void setMaxBufferedPositions(final long maxBufferedPositions) {
+        this.maxBufferedPositions = maxBufferedPositions;
+    }
+
+    /**
+     * Iterate through a set of alignments. The processor receives processNumberOfReferences and processPositions
+     * calls as if it iterated through the alignments itself.
+     *
+     * @param basenames Basenames of the alignments to iterate over.
+     * @throws IOException If an error occured reading the input alignments.
+     */
+    public void iterate(final String... basenames) throws IOException {
+        if (numThreads <= 1 || processor.hasPositionArguments()) {
+            processor.iterate(basenames);
+            return;
+        }
+        final ObjectList<Slice> slices = slice(basenames, numThreads * slicesPerThread);
+        if (slices == null || slices.size() < 2) {
+            processor.iterate(basenames);
+            return;
+        }
+        LOG.info(String.format("Iterating over %d slices with %d threads", slices.size(), numThreads));
+        if (processor.getStartFlapLength() == 0) {
+            LOG.warn("The start flap length is zero: positions at the start of slices will miss reads that start before the slice.");
+        }
+        processor.initializeReferences(basenames);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            final Scheduler scheduler = new Scheduler(executor, slices, basenames);
+            for (int i = 0; i < slices.size(); i++) {
+                scheduler.drain(i);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Starts slices in genome order, ahead of the slice being processed, as long as the buffered positions allow.
+     */
+    private final class Scheduler implements Runnable {
+        private final ExecutorService executor;
+        private final ObjectList<Slice> slices;
+        private final String[] basenames;
+        private final ObjectArrayList<SliceOutput<T>> outputs = new ObjectArrayList<SliceOutput<T>>();
+        private final AtomicLong bufferedPositions = new AtomicLong();
+        private final int maxSlicesAhead = numThreads * MAX_SLICES_AHEAD_PER_THREAD;
+        private int current;
+
+        private Scheduler(final ExecutorService executor, final ObjectList<Slice> slices, final String[] basenames) {
+            this.executor = executor;
+            this.slices = slices;
+            this.basenames = basenames;
+        }
+
+        /**
+         * Hand the positions of a slice to the processor, starting more slices as positions are consumed.
+         */
+        private void drain(final int sliceIndex) throws IOException {
+            current = sliceIndex;
+            if (outputs.size() == sliceIndex) {
+                // the slice the processor needs is started whatever the number of buffered positions:
+                start();
+            }
+            run();
+            outputs.get(sliceIndex).drainTo(processor, this);
+            // release the positions of the slice:
+            outputs.set(sliceIndex, null);
+        }
+
+        /**
+         * Start the slices allowed by the buffered positions. Called each time the processor consumes a batch.
+         */
+        @Override
+        public void run() {
+            while (outputs.size() < slices.size() && outputs.size() - current < maxSlicesAhead &&
+                    bufferedPositions.get() < maxBufferedPositions) {
+                start();
+            }
+        }
+
+        private void start() {
+            final Slice slice = slices.get(outputs.size());
+            final SliceOutput<T> output = new SliceOutput<T>(bufferedPositions);
+            outputs.add(output);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    iterateSlice(slice, output, basenames);
+                }
+            });
+        }
+    }
+
+    private void iterateSlice(final Slice slice, final SliceOutput<T> output, final String[] basenames) {
+        try {
+            final IterateSortedAlignments<T> iterator = factory.create();
+            iterator.copySettings(processor);
+            iterator.setWindow(slice.startReferenceIndex, slice.startPosition,
+                    slice.endReferenceIndex, slice.endPosition);
+            iterator.setPositionSink(output);
+            iterator.iterate(basenames);
+            output.finish(iterator.getNumAlignmentEntries());
+        } catch (Throwable t) {
+            output.fail(t);
+        }
+    }
+
+    /**
+     * Cut the genome into slices that hold about the same amount of compressed alignment data.
+     *
+     * @return slices in genome order, or null when the alignments are not indexed.
+     */
+    public static ObjectList<Slice> slice(final String[] basenames, final int numSlices) throws IOException {
+        final ConcatSortedAlignmentReader input = new ConcatSortedAlignmentReader(basenames);
+        try {
+            input.readHeader();
+            long totalBytes = 0;
+            for (final String basename : basenames) {
+                totalBytes += new File(AlignmentReaderImpl.getBasename(basename) + ".entries").length();
+            }
+            final int bytesPerSlice = (int) Math.min(Integer.MAX_VALUE, Math.max(1, totalBytes / numSlices));
+            final ObjectList<ReferenceLocation> locations;
+            try {
+                locations = input.getLocationsByBytes(bytesPerSlice);
+            } catch (RuntimeException e) {
+                LOG.warn("Unable to slice the alignments, iterating with a single thread.", e);
+                return null;
+            }
+            final int numTargets = input.getNumberOfTargets();
+
+            final ObjectArrayList<ReferenceLocation> starts = new ObjectArrayList<ReferenceLocation>();
+            starts.add(new ReferenceLocation(0, 0));
+            for (final ReferenceLocation location : locations) {
+                if (location.compareTo(starts.get(starts.size() - 1)) > 0) {
+                    starts.add(location);
+                }
+            }
+            final ObjectArrayList<Slice> slices = new ObjectArrayList<Slice>();
+            for (int i = 0; i < starts.size(); i++) {
+                final ReferenceLocation start = starts.get(i);
+                final Slice slice = new Slice();
+                slice.startReferenceIndex = start.targetIndex;
+                slice.startPosition = start.position;
+                if (i + 1 < starts.size()) {
+                    // end just before the start of the next slice:
+                    final ReferenceLocation next = starts.get(i + 1);
+                    if (next.position > 0) {
+                        slice.endReferenceIndex = next.targetIndex;
+                        slice.endPosition = next.position - 1;
+                    } else {
+                        slice.endReferenceIndex = next.targetIndex - 1;
+                        slice.endPosition = END_OF_REFERENCE;
+                    }
+                } else {
+                    slice.endReferenceIndex = numTargets - 1;
+                    slice.endPosition = END_OF_REFERENCE;
+                }
+                slices.add(slice);
+            }
+            return slices;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * A slice of the genome, from start to end inclusive.
+     */
+    public static final class Slice {
+        public int startReferenceIndex;
+        public int startPosition;
+        public int endReferenceIndex;
+        public int endPosition;
+
+        @Override
+        public String toString() {
+            return String.format("%d,%d-%d,%d", startReferenceIndex, startPosition, endReferenceIndex, endPosition);
+        }
+    }
+
+    /**
+     * Positions handed over by a slice iterator, in parallel arrays.
+     */
+    private static final class Batch<T> {
+        private final int[] referenceIndices = new int[BATCH_SIZE];
+        private final int[] positions = new int[BATCH_SIZE];
+        private final Object[] positionBaseInfos = new Object[BATCH_SIZE];
+        private int size;
+    }
+
+    /**
+     * Buffers the positions of one slice until the processor gets to them. The buffer is not bounded, so that the
+     * slice iterator never waits for the processor.
+     */
+    private static final class SliceOutput<T> implements IterateSortedAlignments.PositionSink<T> {
+        private final Batch<T> end = new Batch<T>();
+        private final BlockingQueue<Batch<T>> batches = new LinkedBlockingQueue<Batch<T>>();
+        private final AtomicLong bufferedPositions;
+        private Batch<T> batch = new Batch<T>();
+        private volatile Throwable failure;
+        private volatile int numAlignmentEntries;
+
+        private SliceOutput(final AtomicLong bufferedPositions) {
+            this.bufferedPositions = bufferedPositions;
+        }
+
+        @Override
+        public void accept(final int referenceIndex, final int position, final T positionBaseInfos) {
+            batch.referenceIndices[batch.size] = referenceIndex;
+            batch.positions[batch.size] = position;
+            batch.positionBaseInfos[batch.size] = positionBaseInfos;
+            if (++batch.size == BATCH_SIZE) {
+                put(batch);
+                batch = new Batch<T>();
+            }
+        }
+
+        private void finish(final int numAlignmentEntries) {
+            this.numAlignmentEntries = numAlignmentEntries;
+            if (batch.size > 0) {
+                put(batch);
+            }
+            put(end);
+        }
+
+        private void fail(final Throwable t) {
+            failure = t;
+            put(end);
+        }
+
+        private void put(final Batch<T> batch) {
+            bufferedPositions.addAndGet(batch.size);
+            batches.add(batch);
+        }
+
+        /**
+         * Hand the positions of the slice to the processor, as they become available.
+         *
+         * @param consumed called after each batch of positions is processed.
+         */
+        @SuppressWarnings("unchecked")
+        private void drainTo(final IterateSortedAlignments<T> processor, final Runnable consumed) throws IOException {
+            try {
+                Batch<T> next;
+                while ((next = batches.take()) != end) {
+                    for (int i = 0; i < next.size; i++) {
+                        processor.processPositions(next.referenceIndices[i], next.positions[i],
+                                (T) next.positionBaseInfos[i]);
+                        next.positionBaseInfos[i] = null;
+                    }
+                    bufferedPositions.addAndGet(-next.size);
+                    consumed.run();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a slice.", e);
+            }
+            if (failure != null) {
+                if (failure instanceof IOException) {
+                    throw (IOException) failure;
+                }
+                if (failure instanceof RuntimeException) {
+                    throw (RuntimeException) failure;
+                }
+                if (failure instanceof Error) {
+                    throw (Error) failure;
+                }
+                throw new IOException(failure);
+            }
+            processor.addNumAlignmentEntries(numAlignmentEntries);
+        }
+    }
+}
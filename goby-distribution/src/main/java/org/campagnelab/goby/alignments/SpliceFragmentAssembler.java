@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.alignments;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectAVLTreeMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the fragments of spliced alignment entries until all the fragments of a spliced alignment have been
+ * seen, so that they can be exported as a single record. Fragments are linked to each other with spliced forward and
+ * backward links.
+ */
+public class SpliceFragmentAssembler {
+    private final Int2ObjectMap<Int2ObjectMap<ExportableAlignmentEntryData>> queryIndexToFragmentsMap =
+            new Int2ObjectAVLTreeMap<Int2ObjectMap<ExportableAlignmentEntryData>>();
+    private final List<ExportableAlignmentEntryData> completeSpliceFragments =
+            new ObjectArrayList<ExportableAlignmentEntryData>();
+    private final LinkedList<Integer> needFragmentIndexes = new LinkedList<Integer>();
+    private final LinkedList<Integer> foundFragmentIndexes = new LinkedList<Integer>();
+
+    /**
+     * Returns true if the entry is a fragment of a spliced alignment.
+     *
+     * @param alignmentEntry an alignment entry.
+     * @return true if the entry has a spliced forward or backward link.
+     */
+    public static boolean isSplicedFragment(final Alignments.AlignmentEntry alignmentEntry) {
+        return alignmentEntry.hasSplicedForwardAlignmentLink() || alignmentEntry.hasSplicedBackwardAlignmentLink();
+    }
+
+    /**
+     * Add a fragment of a spliced alignment.
+     *
+     * @param fragment the fragment, which is kept by the assembler until its spliced alignment is complete.
+     * @return the fragments of the spliced alignment(s) completed by this fragment, in splice order, or an empty
+     *         list. The list is reused by the next call.
+     */
+    public List<ExportableAlignmentEntryData> add(final ExportableAlignmentEntryData fragment) {
+        completeSpliceFragments.clear();
+        final int queryIndex = fragment.getAlignmentEntry().getQueryIndex();
+        Int2ObjectMap<ExportableAlignmentEntryData> fragIndexToAlignmentsMap = queryIndexToFragmentsMap.get(queryIndex);
+        if (fragIndexToAlignmentsMap == null) {
+            fragIndexToAlignmentsMap = new Int2ObjectAVLTreeMap<ExportableAlignmentEntryData>();
+            queryIndexToFragmentsMap.put(queryIndex, fragIndexToAlignmentsMap);
+        }
+        fragIndexToAlignmentsMap.put(fragment.getAlignmentEntry().getFragmentIndex(), fragment);
+        findCompleteSpliceFragments(fragIndexToAlignmentsMap);
+        if (fragIndexToAlignmentsMap.isEmpty()) {
+            // since we have complete lists, we can now forget the queryIndex and its fragments:
+            queryIndexToFragmentsMap.remove(queryIndex);
+        }
+        return completeSpliceFragments;
+    }
+
+    /**
+     * Collect the fragments that the fragments kept by the assembler link to, with a spliced forward link, but that
+     * have not been added yet.
+     *
+     * @param missing where the keys of the missing fragments are added, as returned by
+     *                {@link #fragmentKey(int, int)}.
+     * @return the location of the last missing fragment, or null if no fragment is missing.
+     */
+    public ReferenceLocation findMissingFragments(final LongSet missing) {
+        ReferenceLocation last = null;
+        for (final Int2ObjectMap.Entry<Int2ObjectMap<ExportableAlignmentEntryData>> entry :
+                queryIndexToFragmentsMap.int2ObjectEntrySet()) {
+            final Int2ObjectMap<ExportableAlignmentEntryData> fragments = entry.getValue();
+            for (final ExportableAlignmentEntryData fragment : fragments.values()) {
+                final Alignments.AlignmentEntry alignmentEntry = fragment.getAlignmentEntry();
+                if (alignmentEntry.hasSplicedForwardAlignmentLink()) {
+                    final Alignments.RelatedAlignmentEntry link = alignmentEntry.getSplicedForwardAlignmentLink();
+                    if (!fragments.containsKey(link.getFragmentIndex())) {
+                        missing.add(fragmentKey(entry.getIntKey(), link.getFragmentIndex()));
+                        final ReferenceLocation location = new ReferenceLocation(link.getTargetIndex(),
+                                link.getPosition());
+                        if (last == null || location.compareTo(last) > 0) {
+                            last = location;
+                        }
+                    }
+                }
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Returns a key that identifies a fragment of a query.
+     *
+     * @param queryIndex    index of the query.
+     * @param fragmentIndex index of the fragment.
+     * @return the key.
+     */
+    public static long fragmentKey(final int queryIndex, final int fragmentIndex) {
+        return ((long) queryIndex) << 32 | (fragmentIndex & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Given a list of all of the fragments for a single query index, collect in completeSpliceFragments the
+     * fragments that represent a complete splice formation. If the alignment is paired end,
+     * this will represent a single end of the pair, not both of the pairs.
+     * The elements added to completeSpliceFragments are removed from fragIndexToAlignmentsMap.
+     *
+     * @param fragIndexToAlignmentsMap the list of found fragments for a desired query index.
+     */
+    private void findCompleteSpliceFragments(
+            final Int2ObjectMap<ExportableAlignmentEntryData> fragIndexToAlignmentsMap) {
+        for (final Map.Entry<Integer, ExportableAlignmentEntryData> entry :
+                fragIndexToAlignmentsMap.entrySet()) {
+            // For THIS entry, see if all related forward/backward fragments exists in   fragIndexToAlignmentsMap
+            // We need to do this for every entry in our map because this map COULD contain segments
+            // that span multiple alignments (such as if we are aligning ambiguity > 1 or with pairs).
+            needFragmentIndexes.clear();
+            foundFragmentIndexes.clear();
+
+            final Alignments.AlignmentEntry alignmentEntry = entry.getValue().getAlignmentEntry();
+            needFragmentIndexes.add(alignmentEntry.getFragmentIndex());
+            foundFragmentIndexes.add(alignmentEntry.getFragmentIndex());
+            if (alignmentEntry.hasSplicedForwardAlignmentLink()) {
+                walkFragments(fragIndexToAlignmentsMap,
+                        alignmentEntry.getSplicedForwardAlignmentLink(), true);
+            }
+            if (alignmentEntry.hasSplicedBackwardAlignmentLink()) {
+                walkFragments(fragIndexToAlignmentsMap,
+                        alignmentEntry.getSplicedBackwardAlignmentLink(), false);
+            }
+            // We've now walked the entire available distance, forward and backward. See if the fragment
+            // indexes that we need could be found.
+            if (foundFragmentIndexes.containsAll(needFragmentIndexes)) {
+                // We have a complete set of fragments
+                for (final int fragIndex : needFragmentIndexes) {
+                    completeSpliceFragments.add(fragIndexToAlignmentsMap.get(fragIndex));
+                    fragIndexToAlignmentsMap.remove(fragIndex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Used to walk, forward or backward, the splice fragments. Helps with determining if we have
+     * all the fragments for a single spliced alignment entry.
+     *
+     * @param fragIndexToAlignmentsMap the map of fragment index to alignment entry
+     * @param requiredRelated          the related splice fragment we are walking from
+     * @param walkForward              true if we are walking forward
+     */
+    private void walkFragments(final Int2ObjectMap<ExportableAlignmentEntryData> fragIndexToAlignmentsMap,
+                               final Alignments.RelatedAlignmentEntry requiredRelated, final boolean walkForward) {
+        final int fragmentIndex = requiredRelated.getFragmentIndex();
+        if (walkForward) {
+            // Build needFragmentIndexes, foundFragmentIndexes in the order of the aligned splices
+            needFragmentIndexes.addLast(fragmentIndex);
+        } else {
+            needFragmentIndexes.addFirst(fragmentIndex);
+        }
+
+        final ExportableAlignmentEntryData entry = fragIndexToAlignmentsMap.get(fragmentIndex);
+        if (entry != null) {
+            // The current needed entry was found. Look forward or backward for more required fragments
+            if (walkForward) {
+                foundFragmentIndexes.addLast(fragmentIndex);
+            } else {
+                foundFragmentIndexes.addFirst(fragmentIndex);
+            }
+            final Alignments.AlignmentEntry alignmentEntry = entry.getAlignmentEntry();
+            if (walkForward && alignmentEntry.hasSplicedForwardAlignmentLink()) {
+                walkFragments(fragIndexToAlignmentsMap,
+                        alignmentEntry.getSplicedForwardAlignmentLink(), true);
+            }
+            if (!walkForward && alignmentEntry.hasSplicedBackwardAlignmentLink()) {
+                walkFragments(fragIndexToAlignmentsMap,
+                        alignmentEntry.getSplicedBackwardAlignmentLink(), false);
+            }
+        }
+    }
+}
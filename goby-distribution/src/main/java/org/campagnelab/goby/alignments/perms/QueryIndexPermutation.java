@@ -26,6 +26,7 @@ import it.unimi.dsi.fastutil.ints.*;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.BitSet;
 
@@ -47,7 +48,10 @@ public class QueryIndexPermutation implements QueryIndexPermutationInterface {
                     " to point backwards. This can help process some incorrect BAM files where pair-links" +
                     " incorrectly map the mate on the same reference, when it appears on a different chromosome  with " +
                     " a position earlier than the primary read. Please note that this option can consume large amounts of " +
-                    " memory and should be used only for problematic BAM input files:false"
+                    " memory and should be used only for problematic BAM input files:false",
+            "memory-budget-mb:integer, memory used to keep query indices until all their alignments have been written, " +
+                    "in megabytes. Query indices that were not requested recently are spilled to disk, next to the " +
+                    "alignment, when this budget is exceeded.:256"
     );
     private int smallestIndex = Integer.MAX_VALUE;
     private int biggestSmallIndex = Integer.MIN_VALUE;
@@ -68,8 +72,6 @@ public class QueryIndexPermutation implements QueryIndexPermutationInterface {
         biggestSmallIndex = Integer.MIN_VALUE;
         smallIndexCounter = 0;
         queryIndexPermutation.clear();
-        queryIndexPermutation.defaultReturnValue(-1);
-        timesRequested.defaultReturnValue((byte) 1);
         if (permutationWriter != null) {
             permutationWriter.close();
         }
@@ -79,6 +81,8 @@ public class QueryIndexPermutation implements QueryIndexPermutationInterface {
 
     public QueryIndexPermutation(String filename) {
         this.basename = AlignmentReaderImpl.getBasename(filename);
+        queryIndexPermutation = new SpillableIndexMap(doc().getInteger("memory-budget-mb") * 1024L * 1024L,
+                new File(basename).getAbsoluteFile().getParentFile());
         reset();
 
     }
@@ -119,7 +123,7 @@ public class QueryIndexPermutation implements QueryIndexPermutationInterface {
         } else {
             // all entries have at least one occurrence across the genome (this is why they are in the entries file):
             final int queryIndex = entry.getQueryIndex();
-            int queryIndexOccurrences = timesRequested.get(queryIndex) + 1;
+            int queryIndexOccurrences = timesRequested(queryIndex) + 1;
             // entries with a paired entry in the future get a +1
             queryIndexOccurrences += entry.hasPairAlignmentLink() && (isForward(entry, entry.getPairAlignmentLink()) || isSafeMode) ? 1 : 0;
             // entries with a spliced link forward get +1
@@ -196,8 +200,13 @@ public class QueryIndexPermutation implements QueryIndexPermutationInterface {
      * @return
      */
     public int internalDoPerm(final int queryIndex, final int maxQueryIndexOccurrence) {
-        final int smallIndex = queryIndexPermutation.get(queryIndex);
-        final byte timesSeen = (byte) (timesRequested.get(queryIndex) + 1);
+        final int smallIndex = queryIndexPermutation.getValue(queryIndex);
+        queryIndicesAlreadySeen.set(queryIndex);
+        if (smallIndex == -1) {
+            // the index was requested more than its max occurrences and was already written to storage.
+            return -1;
+        }
+        final byte timesSeen = (byte) (queryIndexPermutation.getCount(queryIndex) + 1);
         // decide if we have reached max observations for this query index:
         if (timesSeen >= maxQueryIndexOccurrence) {
             // if yes, remove the index from the map, it will not be asked again.
@@ -206,13 +215,23 @@ public class QueryIndexPermutation implements QueryIndexPermutationInterface {
             pushToPreStorage(queryIndex, smallIndex);
         } else {
             // if not, keep it in the map until requested that many times.
-            timesRequested.put(queryIndex, timesSeen);
+            queryIndexPermutation.put(queryIndex, smallIndex, timesSeen);
         }
-        queryIndicesAlreadySeen.set(queryIndex);
         return smallIndex;
 
     }
 
+    /**
+     * Return the number of times a query index was requested, or one if the query index is not kept in memory.
+     */
+    private int timesRequested(final int queryIndex) {
+        if (!queryIndicesAlreadySeen.get(queryIndex)) {
+            return 1;
+        }
+        final byte count = queryIndexPermutation.getCount(queryIndex);
+        return count == 0 ? 1 : count;
+    }
+
     private void pushToPreStorage(int queryIndex, int smallIndex) {
         //      System.out.printf("pushing to pre-storage queryIndex=%d smallIndex=%d %n",queryIndex, smallIndex);
 
@@ -224,9 +243,11 @@ public class QueryIndexPermutation implements QueryIndexPermutationInterface {
     }
 
     private int smallIndexCounter = 0;
-    private final Int2IntMap queryIndexPermutation = new Int2IntOpenHashMap();
+    /**
+     * Small index and number of times requested, for the query indices that must be remembered.
+     */
+    private final SpillableIndexMap queryIndexPermutation;
     private final BitSet queryIndicesAlreadySeen = new BitSet();
-    private final Int2ByteMap timesRequested = new Int2ByteOpenHashMap();
 
     private int getSmallIndex(final int queryIndex, final int maxObservations) {
         if (!queryIndicesAlreadySeen.get(queryIndex)) {
@@ -240,8 +261,7 @@ public class QueryIndexPermutation implements QueryIndexPermutationInterface {
             queryIndicesAlreadySeen.set(queryIndex, true);
             if (maxObservations > 1) {
 
-                queryIndexPermutation.put(queryIndex, smallIndex);
-                timesRequested.put(queryIndex, (byte) 1);
+                queryIndexPermutation.put(queryIndex, smallIndex, (byte) 1);
             } else {
                 // if maxObs<=1 we don't need to remember the queryIndex in memory
                 pushToPreStorage(queryIndex, smallIndex);
@@ -280,12 +300,14 @@ public class QueryIndexPermutation implements QueryIndexPermutationInterface {
     public void close() {
         if (!closed) {
             // move everything left to pre-offline state:
-            for (final int queryIndex : queryIndexPermutation.keySet()) {
-
-                moveIndexToPreOffline(queryIndex, queryIndexPermutation.get(queryIndex));
-            }
-
-            queryIndexPermutation.clear();
+            queryIndexPermutation.forEach(new SpillableIndexMap.EntryVisitor() {
+                @Override
+                public void visit(final long queryIndex, final int smallIndex, final byte count) {
+                    pushToPreStorage((int) queryIndex, smallIndex);
+                }
+            });
+
+            queryIndexPermutation.close();
             // now save it:
             save();
             permutationWriter.close();
@@ -18,16 +18,21 @@
 
 package org.campagnelab.goby.alignments.perms;
 
-import org.campagnelab.goby.alignments.AlignmentReaderImpl;
-import it.unimi.dsi.fastutil.objects.*;
-import it.unimi.dsi.lang.MutableString;
+import it.unimi.dsi.fastutil.HashCommon;
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.campagnelab.goby.alignments.AlignmentReaderImpl;
+import org.campagnelab.goby.util.dynoptions.DynamicOptionClient;
+import org.campagnelab.goby.util.dynoptions.RegisterThis;
+
+import java.io.File;
 
 /**
  * A class to convert read names to query indices. Provides logic to keep a read name to index association
  * for as long as needed, but no longer (to reduce memory consumption). Used when converting SAM/BAM to Goby
- * alignments.
+ * alignments. Read names are stored as 64 bit fingerprints in a {@link SpillableIndexMap}, so that read names
+ * whose mates are distant in a sorted input are spilled to disk when the memory budget is exceeded.
  *
  * @author Fabien Campagne
  *         Date: 3/5/12
@@ -39,56 +44,71 @@ public class ReadNameToIndex {
      */
     private static final Log LOG = LogFactory.getLog(ReadNameToIndex.class);
 
+    @RegisterThis
+    public static DynamicOptionClient doc = new DynamicOptionClient(ReadNameToIndex.class,
+            "memory-budget-mb:integer, memory used to remember the query index of read names until all their " +
+                    "alignments have been seen, in megabytes. Read names that were not seen recently are spilled " +
+                    "to disk when this budget is exceeded.:256",
+            "spill-directory:string, directory where read names are spilled. Defaults to the temporary directory.:"
+    );
+
+    public static DynamicOptionClient doc() {
+        return doc;
+    }
+
     private final String basename;
     private int globalQueryMaxOccurences = 2;
-
+    private int smallIndexCounter;
+    /**
+     * Query index and number of times requested, for read name fingerprints.
+     */
+    private final SpillableIndexMap namesToIndex;
 
     public ReadNameToIndex(String filename) {
         this.basename = AlignmentReaderImpl.getBasename(filename);
+        final String spillDirectory = doc().getString("spill-directory");
+        namesToIndex = new SpillableIndexMap(doc().getInteger("memory-budget-mb") * 1024L * 1024L,
+                StringUtils.isBlank(spillDirectory) ? null : new File(spillDirectory));
         reset();
 
     }
 
     private void reset() {
         namesToIndex.clear();
-        namesToIndex.defaultReturnValue(-1);
-        timesRequested.clear();
-        timesRequested.defaultReturnValue((byte)0);
     }
 
-    private void pushToPreStorage(MutableString readName, int queryIndex) {
-        //TODO write to some file.
- //       System.out.printf("%d\t%s%n",  queryIndex,readName);
+    /**
+     * Return a 64 bit fingerprint of a read name.
+     */
+    static long fingerprint(final CharSequence readName) {
+        long hash = 0xcbf29ce484222325L;
+        final int length = readName.length();
+        for (int i = 0; i < length; i++) {
+            hash ^= readName.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return HashCommon.murmurHash3(hash ^ length);
     }
 
-    private int smallIndexCounter;
-    private final Object2ByteMap<MutableString> timesRequested = new Object2ByteAVLTreeMap<MutableString>();
-    private final Object2IntMap<MutableString> namesToIndex = new Object2IntAVLTreeMap<MutableString>();
-
     public int getQueryIndex(final String readName, final int maxObservations) {
-        final MutableString readNameMutable = new MutableString(readName).compact();
-        final int timesRequestedInt = timesRequested.getByte(readNameMutable);
+        final long fingerprint = fingerprint(readName);
+        final int timesRequestedInt = namesToIndex.getCount(fingerprint);
         final int queryIndex;
         if (timesRequestedInt == 0) {
             queryIndex = smallIndexCounter++;
-            if (maxObservations > 1) {
-                namesToIndex.put(readNameMutable, queryIndex);
-            }
         } else {
-            queryIndex = namesToIndex.getInt(readNameMutable);
+            queryIndex = namesToIndex.getValue(fingerprint);
         }
         final int timesSeen = timesRequestedInt + 1;
         // decide if we have reached max observations for this query index:
         if (timesSeen >= maxObservations) {
             // if yes, remove the index from the map, it will not be asked again.
-            namesToIndex.remove(readNameMutable);
-            timesRequested.remove(readNameMutable);
-            pushToPreStorage(readNameMutable, queryIndex);
+            if (timesRequestedInt != 0) {
+                namesToIndex.remove(fingerprint);
+            }
         } else {
             // if not, keep it in the map until requested that many times.
-            if (maxObservations > 1) {
-                timesRequested.put(readNameMutable, (byte)timesSeen);
-            }
+            namesToIndex.put(fingerprint, queryIndex, (byte) timesSeen);
         }
         return queryIndex;
 
@@ -101,6 +121,9 @@ public class ReadNameToIndex {
 
 
     public void close() {
-        // TODO close output writer.
+        if (namesToIndex.getNumSpilled() > 0) {
+            LOG.info(String.format("%d read names were spilled to disk.", namesToIndex.getNumSpilled()));
+        }
+        namesToIndex.close();
     }
 }
@@ -0,0 +1,627 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.alignments.perms;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntComparator;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Associates long keys with an int value and a small count, for as long as an index must be remembered (e.g., until
+ * all the alignments of a read have been seen). Entries are kept in an open addressing hash table made of primitive
+ * arrays. When the table reaches its memory budget, the half of the entries that were accessed least recently are
+ * spilled to a run on disk, sorted by key. Lookups that miss in memory search the runs (each run keeps the first key
+ * of every block of records and a small bit filter in memory, so most misses do not read the disk), and move the
+ * entries they find back to memory. Runs are merged when there are too many of them.
+ *
+ * @see ReadNameToIndex
+ * @see QueryIndexPermutation
+ */
+public class SpillableIndexMap implements Closeable {
+    /**
+     * Used to log informational and debug messages.
+     */
+    private static final Log LOG = LogFactory.getLog(SpillableIndexMap.class);
+    /**
+     * Memory used by each slot of the hash table: key, value, count, access stamp and used flag.
+     */
+    public static final int BYTES_PER_SLOT = 8 + 4 + 1 + 8 + 1;
+    /**
+     * Size of a record in a run: key, value, count and a flag set when the record was moved back to memory.
+     */
+    private static final int RECORD_SIZE = 8 + 4 + 1 + 1;
+    private static final byte DELETED = 1;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_RUNS = 8;
+    /**
+     * Number of records in a block of a run. The first key of each block is kept in memory.
+     */
+    private static final int BLOCK_SIZE = 128;
+    /**
+     * Number of bits of the filter of a run, per record.
+     */
+    private static final int FILTER_BITS_PER_RECORD = 8;
+
+    private final File directory;
+    private final int maxCapacity;
+    private long[] keys;
+    private int[] values;
+    private byte[] counts;
+    private long[] stamps;
+    private boolean[] used;
+    private int mask;
+    private int size;
+    private int maxFill;
+    private long clock;
+    private final ObjectArrayList<Run> runs = new ObjectArrayList<Run>();
+    private final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE * RECORD_SIZE);
+    private final ByteBuffer tombstone = ByteBuffer.allocate(1);
+    /**
+     * Value and count of the last record found in a run.
+     */
+    private int foundValue;
+    private byte foundCount;
+    private long numSpilled;
+
+    /**
+     * Receives the entries of the map.
+     */
+    public interface EntryVisitor {
+        void visit(long key, int value, byte count);
+    }
+
+    /**
+     * Create a map.
+     *
+     * @param memoryBudget maximum number of bytes used by the hash table. Runs use about one byte per spilled entry
+     *                     in addition to this budget.
+     * @param directory    directory where runs are written, or null to use the temporary directory.
+     */
+    public SpillableIndexMap(final long memoryBudget, final File directory) {
+        this.directory = directory;
+        maxCapacity = (int) Long.highestOneBit(Math.min(1 << 30,
+                Math.max(INITIAL_CAPACITY, memoryBudget / BYTES_PER_SLOT)));
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(final int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        counts = new byte[capacity];
+        stamps = new long[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+        maxFill = capacity / 4 * 3;
+    }
+
+    /**
+     * Return the value associated with key, or -1 if the map does not contain key.
+     */
+    public int getValue(final long key) {
+        final int slot = find(key);
+        return slot < 0 ? -1 : values[slot];
+    }
+
+    /**
+     * Return the count associated with key, or zero if the map does not contain key.
+     */
+    public byte getCount(final long key) {
+        final int slot = find(key);
+        return slot < 0 ? 0 : counts[slot];
+    }
+
+    public boolean containsKey(final long key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * Associate a value and a count with key.
+     */
+    public void put(final long key, final int value, final byte count) {
+        int slot = find(key);
+        if (slot < 0) {
+            slot = insert(key);
+        }
+        values[slot] = value;
+        counts[slot] = count;
+    }
+
+    /**
+     * Remove key from the map.
+     *
+     * @return true if the map contained key.
+     */
+    public boolean remove(final long key) {
+        final int slot = find(key);
+        if (slot < 0) {
+            return false;
+        }
+        removeAt(slot);
+        return true;
+    }
+
+    /**
+     * Return the number of entries in the map, in memory or spilled to disk.
+     */
+    public long size() {
+        long result = size;
+        for (final Run run : runs) {
+            result += run.live;
+        }
+        return result;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Return the number of entries that were spilled to disk since this map was created.
+     */
+    public long getNumSpilled() {
+        return numSpilled;
+    }
+
+    /**
+     * Visit every entry of the map, in no particular order. The map must not be modified by the visitor.
+     */
+    public void forEach(final EntryVisitor visitor) {
+        for (int slot = 0; slot < used.length; slot++) {
+            if (used[slot]) {
+                visitor.visit(keys[slot], values[slot], counts[slot]);
+            }
+        }
+        for (final Run run : runs) {
+            final RunCursor cursor = new RunCursor(run);
+            try {
+                while (cursor.next()) {
+                    visitor.visit(cursor.key, cursor.value, cursor.count);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to read spilled indices from " + run.file, e);
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Remove all entries and delete the runs.
+     */
+    public void clear() {
+        for (final Run run : runs) {
+            run.delete();
+        }
+        runs.clear();
+        allocate(INITIAL_CAPACITY);
+        size = 0;
+    }
+
+    @Override
+    public void close() {
+        clear();
+    }
+
+    /**
+     * Return the slot of key, moving key back to memory when it was spilled, or -1 if the map does not contain key.
+     */
+    private int find(final long key) {
+        final int slot = slotOf(key);
+        if (slot >= 0) {
+            stamps[slot] = clock++;
+            return slot;
+        }
+        for (int i = runs.size() - 1; i >= 0; i--) {
+            final Run run = runs.get(i);
+            try {
+                final long offset = run.find(key);
+                if (offset >= 0) {
+                    run.markDeleted(offset);
+                    if (run.live == 0) {
+                        run.delete();
+                        runs.remove(i);
+                    }
+                    final int value = foundValue;
+                    final byte count = foundCount;
+                    final int newSlot = insert(key);
+                    values[newSlot] = value;
+                    counts[newSlot] = count;
+                    return newSlot;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to read spilled indices from " + run.file, e);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the slot that holds key, or -(slot + 1) where slot is the free slot where key should be inserted.
+     */
+    private int slotOf(final long key) {
+        int pos = (int) HashCommon.mix(key) & mask;
+        while (used[pos]) {
+            if (keys[pos] == key) {
+                return pos;
+            }
+            pos = (pos + 1) & mask;
+        }
+        return -(pos + 1);
+    }
+
+    /**
+     * Insert key, which must not be in the map, and return its slot.
+     */
+    private int insert(final long key) {
+        if (size >= maxFill) {
+            if (keys.length < maxCapacity) {
+                rehash(keys.length * 2);
+            } else {
+                spill();
+            }
+        }
+        final int slot = -slotOf(key) - 1;
+        used[slot] = true;
+        keys[slot] = key;
+        stamps[slot] = clock++;
+        size++;
+        return slot;
+    }
+
+    /**
+     * Remove the entry at slot, shifting the entries that follow in its collision chain.
+     */
+    private void removeAt(int pos) {
+        size--;
+        int last;
+        while (true) {
+            pos = ((last = pos) + 1) & mask;
+            while (true) {
+                if (!used[pos]) {
+                    used[last] = false;
+                    return;
+                }
+                final int slot = (int) HashCommon.mix(keys[pos]) & mask;
+                if (last <= pos ? last >= slot || slot > pos : last >= slot && slot > pos) {
+                    break;
+                }
+                pos = (pos + 1) & mask;
+            }
+            keys[last] = keys[pos];
+            values[last] = values[pos];
+            counts[last] = counts[pos];
+            stamps[last] = stamps[pos];
+        }
+    }
+
+    private void rehash(final int capacity) {
+        final long[] previousKeys = keys;
+        final int[] previousValues = values;
+        final byte[] previousCounts = counts;
+        final long[] previousStamps = stamps;
+        final boolean[] previousUsed = used;
+        allocate(capacity);
+        for (int i = 0; i < previousUsed.length; i++) {
+            if (previousUsed[i]) {
+                final int slot = -slotOf(previousKeys[i]) - 1;
+                used[slot] = true;
+                keys[slot] = previousKeys[i];
+                values[slot] = previousValues[i];
+                counts[slot] = previousCounts[i];
+                stamps[slot] = previousStamps[i];
+            }
+        }
+    }
+
+    /**
+     * Write the half of the entries accessed least recently to a new run and remove them from memory.
+     */
+    private void spill() {
+        final long[] sortedStamps = new long[size];
+        int n = 0;
+        for (int i = 0; i < used.length; i++) {
+            if (used[i]) {
+                sortedStamps[n++] = stamps[i];
+            }
+        }
+        LongArrays.radixSort(sortedStamps);
+        final long threshold = sortedStamps[size / 2];
+        final int[] spilledSlots = new int[size / 2];
+        n = 0;
+        for (int i = 0; i < used.length; i++) {
+            if (used[i] && stamps[i] < threshold) {
+                spilledSlots[n++] = i;
+            }
+        }
+        IntArrays.quickSort(spilledSlots, 0, n, new IntComparator() {
+            @Override
+            public int compare(final int a, final int b) {
+                return Long.compare(keys[a], keys[b]);
+            }
+
+            @Override
+            public int compare(final Integer a, final Integer b) {
+                return compare(a.intValue(), b.intValue());
+            }
+        });
+        try {
+            final RunBuilder builder = new RunBuilder(n);
+            for (int i = 0; i < n; i++) {
+                final int slot = spilledSlots[i];
+                builder.append(keys[slot], values[slot], counts[slot]);
+                used[slot] = false;
+            }
+            runs.add(builder.build());
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to spill indices to disk.", e);
+        }
+        numSpilled += n;
+        size -= n;
+        rehash(keys.length);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("Spilled %d indices to disk, %d runs.", n, runs.size()));
+        }
+        if (runs.size() > MAX_RUNS) {
+            mergeRuns();
+        }
+    }
+
+    /**
+     * Merge all the runs into a single one, dropping the records that were moved back to memory.
+     */
+    private void mergeRuns() {
+        long live = 0;
+        for (final Run run : runs) {
+            live += run.live;
+        }
+        final RunCursor[] cursors = new RunCursor[runs.size()];
+        try {
+            final RunBuilder builder = new RunBuilder(live);
+            for (int i = 0; i < cursors.length; i++) {
+                cursors[i] = new RunCursor(runs.get(i));
+                if (!cursors[i].next()) {
+                    cursors[i] = null;
+                }
+            }
+            while (true) {
+                int smallest = -1;
+                for (int i = 0; i < cursors.length; i++) {
+                    if (cursors[i] != null && (smallest == -1 || cursors[i].key < cursors[smallest].key)) {
+                        smallest = i;
+                    }
+                }
+                if (smallest == -1) {
+                    break;
+                }
+                final RunCursor cursor = cursors[smallest];
+                builder.append(cursor.key, cursor.value, cursor.count);
+                if (!cursor.next()) {
+                    cursor.close();
+                    cursors[smallest] = null;
+                }
+            }
+            final Run merged = builder.build();
+            for (final Run run : runs) {
+                run.delete();
+            }
+            runs.clear();
+            if (merged.live > 0) {
+                runs.add(merged);
+            } else {
+                merged.delete();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to merge spilled indices.", e);
+        } finally {
+            for (final RunCursor cursor : cursors) {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+    }
+
+    private static int filterBit(final long hash, final int shift, final long[] filter) {
+        return (int) ((hash >>> shift) & ((long) filter.length * 64 - 1));
+    }
+
+    private static long filterHash(final long key) {
+        return HashCommon.murmurHash3(key ^ 0x9E3779B97F4A7C15L);
+    }
+
+    /**
+     * Writes records sorted by key to a new run.
+     */
+    private final class RunBuilder {
+        private final File file;
+        private final DataOutputStream output;
+        private final long[] blockKeys;
+        private final long[] filter;
+        private int numRecords;
+
+        RunBuilder(final long expectedRecords) throws IOException {
+            file = File.createTempFile("spilled-indices-", ".run", directory);
+            file.deleteOnExit();
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            blockKeys = new long[(int) ((expectedRecords + BLOCK_SIZE - 1) / BLOCK_SIZE)];
+            final long filterBits = Math.max(64, expectedRecords * FILTER_BITS_PER_RECORD);
+            filter = new long[(int) Math.min(1 << 25, Long.highestOneBit(filterBits * 2 - 1) / 64)];
+        }
+
+        void append(final long key, final int value, final byte count) throws IOException {
+            if (numRecords % BLOCK_SIZE == 0) {
+                blockKeys[numRecords / BLOCK_SIZE] = key;
+            }
+            output.writeLong(key);
+            output.writeInt(value);
+            output.writeByte(count);
+            output.writeByte(0);
+            final long hash = filterHash(key);
+            int bit = filterBit(hash, 0, filter);
+            filter[bit >>> 6] |= 1L << bit;
+            bit = filterBit(hash, 32, filter);
+            filter[bit >>> 6] |= 1L << bit;
+            numRecords++;
+        }
+
+        Run build() throws IOException {
+            output.close();
+            return new Run(file, numRecords, blockKeys, filter);
+        }
+    }
+
+    /**
+     * A file of records sorted by key.
+     */
+    private final class Run {
+        private final File file;
+        private final RandomAccessFile randomAccessFile;
+        private final FileChannel channel;
+        private final int numRecords;
+        private final long[] blockKeys;
+        private final long[] filter;
+        private int live;
+
+        Run(final File file, final int numRecords, final long[] blockKeys, final long[] filter) throws IOException {
+            this.file = file;
+            this.numRecords = numRecords;
+            this.blockKeys = blockKeys;
+            this.filter = filter;
+            live = numRecords;
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            channel = randomAccessFile.getChannel();
+        }
+
+        /**
+         * Return the offset of the live record for key, or -1 if there is none. The value and count of the record
+         * are stored in foundValue and foundCount.
+         */
+        long find(final long key) throws IOException {
+            final long hash = filterHash(key);
+            int bit = filterBit(hash, 0, filter);
+            if ((filter[bit >>> 6] & (1L << bit)) == 0) {
+                return -1;
+            }
+            bit = filterBit(hash, 32, filter);
+            if ((filter[bit >>> 6] & (1L << bit)) == 0) {
+                return -1;
+            }
+            int blockIndex = Arrays.binarySearch(blockKeys, key);
+            if (blockIndex < 0) {
+                blockIndex = -blockIndex - 2;
+                if (blockIndex < 0) {
+                    return -1;
+                }
+            }
+            final int firstRecord = blockIndex * BLOCK_SIZE;
+            final int blockRecords = Math.min(BLOCK_SIZE, numRecords - firstRecord);
+            block.clear();
+            block.limit(blockRecords * RECORD_SIZE);
+            long position = (long) firstRecord * RECORD_SIZE;
+            while (block.hasRemaining()) {
+                final int read = channel.read(block, position);
+                if (read < 0) {
+                    throw new EOFException("Run is truncated: " + file);
+                }
+                position += read;
+            }
+            int low = 0;
+            int high = blockRecords - 1;
+            while (low <= high) {
+                final int middle = (low + high) >>> 1;
+                final long middleKey = block.getLong(middle * RECORD_SIZE);
+                if (middleKey < key) {
+                    low = middle + 1;
+                } else if (middleKey > key) {
+                    high = middle - 1;
+                } else {
+                    if (block.get(middle * RECORD_SIZE + 13) == DELETED) {
+                        return -1;
+                    }
+                    foundValue = block.getInt(middle * RECORD_SIZE + 8);
+                    foundCount = block.get(middle * RECORD_SIZE + 12);
+                    return (long) (firstRecord + middle) * RECORD_SIZE;
+                }
+            }
+            return -1;
+        }
+
+        void markDeleted(final long offset) throws IOException {
+            tombstone.clear();
+            tombstone.put(0, DELETED);
+            channel.write(tombstone, offset + 13);
+            live--;
+        }
+
+        void delete() {
+            IOUtils.closeQuietly(randomAccessFile);
+            if (!file.delete()) {
+                LOG.warn("Unable to delete " + file);
+            }
+        }
+    }
+
+    /**
+     * Reads the live records of a run in order.
+     */
+    private static final class RunCursor implements Closeable {
+        private final DataInputStream input;
+        private int remaining;
+        long key;
+        int value;
+        byte count;
+
+        RunCursor(final Run run) {
+            try {
+                input = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file), 1 << 16));
+            } catch (FileNotFoundException e) {
+                throw new RuntimeException("Unable to read spilled indices from " + run.file, e);
+            }
+            remaining = run.numRecords;
+        }
+
+        boolean next() throws IOException {
+            while (remaining > 0) {
+                remaining--;
+                key = input.readLong();
+                value = input.readInt();
+                count = input.readByte();
+                if (input.readByte() != DELETED) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void close() {
+            IOUtils.closeQuietly(input);
+        }
+    }
+}
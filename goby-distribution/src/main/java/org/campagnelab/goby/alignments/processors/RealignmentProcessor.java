@@ -22,6 +22,7 @@ import com.google.protobuf.ByteString;
 import org.campagnelab.goby.alignments.Alignments;
 import org.campagnelab.goby.alignments.ConcatSortedAlignmentReader;
 import org.campagnelab.goby.reads.RandomAccessSequenceInterface;
+import org.campagnelab.goby.reads.ReferenceSequenceWindow;
 import org.campagnelab.goby.util.WarningCounter;
 import it.unimi.dsi.fastutil.ints.IntAVLTreeSet;
 import it.unimi.dsi.fastutil.ints.IntArraySet;
@@ -78,6 +79,7 @@ public class RealignmentProcessor implements AlignmentProcessorInterface {
 
     final SkipToIterator iterator;
     private RandomAccessSequenceInterface genome;
+    private ReferenceSequenceWindow referenceWindow;
 
     public RealignmentProcessor(final ConcatSortedAlignmentReader sortedReaders) {
         iterator = new SkipToSortedReader(sortedReaders);
@@ -296,6 +298,7 @@ public class RealignmentProcessor implements AlignmentProcessorInterface {
             genomeNull.warn(LOG, "Genome must not be null outside of Junit tests.");
             return entry;
         }
+        final ReferenceSequenceWindow window = windowOver(genome);
         /*
          *Reference positions for which the alignment does not agree with the reference, 0-based:
          */
@@ -315,7 +318,7 @@ public class RealignmentProcessor implements AlignmentProcessorInterface {
                 if (index < 0 || index > genome.getLength(targetIndex)) {
                     score += -10;
                 } else {
-                    final boolean compatible = genome.get(targetIndex, newGenomicPosition + j) == toBase;
+                    final boolean compatible = window.get(targetIndex, newGenomicPosition + j) == toBase;
                     if (!compatible) {
                         // we keep only sequence variatiations that continue to be incompatible with the reference after inserting the indel:
 
@@ -345,8 +348,8 @@ public class RealignmentProcessor implements AlignmentProcessorInterface {
                 // count -1 for every new mismatch introduced by the indel:
                 if (realignedPos >= 0) {
 
-                    final char fromBase = genome.get(targetIndex, realignedPos);
-                    final char toBase = genome.get(targetIndex, pos);
+                    final char fromBase = window.get(targetIndex, realignedPos);
+                    final char toBase = window.get(targetIndex, pos);
                     final boolean compatible = fromBase == toBase;
 
                     if (!compatible) {
@@ -431,6 +434,7 @@ public class RealignmentProcessor implements AlignmentProcessorInterface {
             return Integer.MIN_VALUE;
         }
         final int targetLength = genome.getLength(targetIndex);
+        final ReferenceSequenceWindow window = windowOver(genome);
         /*
          *Reference positions for which the alignment does not agree with the reference, 0-based:
          */
@@ -450,7 +454,7 @@ public class RealignmentProcessor implements AlignmentProcessorInterface {
                 if (index < 0 || index > genome.getLength(targetIndex)) {
                     score += -10;
                 } else {
-                    final boolean compatible = genome.get(targetIndex, newGenomicPosition + j) == toBase;
+                    final boolean compatible = window.get(targetIndex, newGenomicPosition + j) == toBase;
 
                     score += compatible ? 1 : 0;
                     // store which reference positions are different from the reference:
@@ -485,8 +489,8 @@ public class RealignmentProcessor implements AlignmentProcessorInterface {
                 if (realignedPos < 0 || realignedPos >= targetLength) {
                     score += -10;
                 } else {
-                    final char refBase = genome.get(targetIndex, pos);
-                    final char newRefBase = genome.get(targetIndex, realignedPos);
+                    final char refBase = window.get(targetIndex, pos);
+                    final char newRefBase = window.get(targetIndex, realignedPos);
 
                     score += (refBase == newRefBase) ? 0 : -1;
                 }
@@ -498,6 +502,16 @@ public class RealignmentProcessor implements AlignmentProcessorInterface {
         return score;
     }
 
+    /**
+     * Return a window over the genome, to look up the reference bases near the alignments being realigned.
+     */
+    private ReferenceSequenceWindow windowOver(final RandomAccessSequenceInterface genome) {
+        if (referenceWindow == null || referenceWindow.getGenome() != genome) {
+            referenceWindow = new ReferenceSequenceWindow(genome);
+        }
+        return referenceWindow;
+    }
+
     private String getGenomeSegment(RandomAccessSequenceInterface genome, int targetIndex, int startAlignment, int endAlignment) {
         MutableString sequence = new MutableString();
         for (int pos = startAlignment; pos < endAlignment; pos++) {
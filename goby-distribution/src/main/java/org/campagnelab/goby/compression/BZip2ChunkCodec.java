@@ -19,10 +19,12 @@
 package org.campagnelab.goby.compression;
 
 import com.google.protobuf.Message;
+import it.unimi.dsi.io.ByteBufferInputStream;
 import org.apache.tools.bzip2.CBZip2InputStream;
 import org.apache.tools.bzip2.CBZip2OutputStream;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * A BZIP2 Chunk coder. Simply bzip2 the protocol buffer collection.
@@ -103,6 +105,26 @@ public class BZip2ChunkCodec implements ChunkCodec {
 
     }
 
+    @Override
+    public Message decode(final ByteBuffer buffer) throws IOException {
+        final int start = buffer.position();
+        if (buffer.remaining() < magicSignature.length ||
+                buffer.get(start) != magicSignature[0] ||
+                buffer.get(start + 1) != magicSignature[1] ||
+                buffer.get(start + 2) != magicSignature[2]) {
+            return null;
+        }
+        // remove the magic numbers:
+        final ByteBuffer compressed = buffer.duplicate();
+        compressed.position(start + magicSignature.length);
+        final CBZip2InputStream uncompressStream = new CBZip2InputStream(new ByteBufferInputStream(compressed.slice()));
+        try {
+            return parser.parse(uncompressStream);
+        } finally {
+            uncompressStream.close();
+        }
+    }
+
     @Override
     public int getSuggestedChunkSize() {
         return 20000;
@@ -23,6 +23,7 @@ import com.google.protobuf.Message;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Encode/decode whole chunks of protocol buffer data to a stream of bytes.
@@ -62,6 +63,23 @@ public interface ChunkCodec {
      */
     Message decode(byte[] bytes) throws IOException;
 
+    /**
+     * Decode the bytes remaining in buffer to a collection. Codecs that can read from the buffer directly
+     * override this method to avoid copying a chunk mapped in memory. The position of buffer is not changed.
+     * @param buffer buffer over the codec compressed stream.
+     * @return Decoded PB collection, or null if the chunk does not validate.
+     * @throws IOException
+     */
+    default Message decode(final ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray() && buffer.arrayOffset() + buffer.position() == 0 &&
+                buffer.remaining() == buffer.array().length) {
+            return decode(buffer.array());
+        }
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return decode(bytes);
+    }
+
     /**
      * Return a suggestion for chunk size, to be used as default.
      * @return
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.compression;
+
+import com.google.protobuf.Message;
+import it.unimi.dsi.fastutil.bytes.Byte2ObjectMap;
+import it.unimi.dsi.fastutil.bytes.Byte2ObjectOpenHashMap;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.campagnelab.goby.exception.GobyRuntimeException;
+import org.campagnelab.goby.util.dynoptions.DynamicOptionClient;
+import org.campagnelab.goby.util.dynoptions.RegisterThis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes the chunks of a {@link MessageChunksReader} ahead of the consumer. Compressed bytes are read sequentially
+ * on the calling thread, and up to chunksAhead chunks are submitted to a process-wide pool of decoder threads.
+ * Collections are returned by {@link #nextCollection()} in the order they appear in the input, so the consumer
+ * observes exactly the same sequence of entries as with synchronous decoding.
+ * <p/>
+ * Codecs and collection handlers keep per-chunk state, and are therefore never shared between tasks running
+ * concurrently. Each pipeline keeps a small pool of idle decoders that tasks borrow and return. Sub-classes
+ * provide the handler appropriate for the type of collection stored in the input, and may decode chunks to another
+ * representation than protocol buffer collections, see {@link #decode} and {@link #nextDecoded()}.
+ */
+public abstract class ChunkDecodingPipeline {
+    private static final Log LOG = LogFactory.getLog(ChunkDecodingPipeline.class);
+
+    @RegisterThis
+    public static final DynamicOptionClient doc = new DynamicOptionClient(ChunkDecodingPipeline.class,
+            "decode-threads:integer, number of threads shared by readers to decode chunks ahead of the consumer. Zero decodes chunks on the calling thread.:0",
+            "chunks-ahead:integer, number of chunks each reader decodes ahead of the consumer when decode-threads is larger than zero.:4"
+    );
+
+    public static DynamicOptionClient doc() {
+        return doc;
+    }
+
+    private static ExecutorService decoderThreads;
+
+    private final MessageChunksReader reader;
+    private final int chunksAhead;
+    private final ArrayDeque<PendingChunk> pending = new ArrayDeque<PendingChunk>();
+    private final ConcurrentLinkedQueue<Decoder> idleDecoders = new ConcurrentLinkedQueue<Decoder>();
+    private boolean inputExhausted;
+    private DecodedChunkCache cache;
+    private String cacheSource;
+
+    /**
+     * Create a pipeline over reader.
+     *
+     * @param reader      reader that provides the compressed bytes of each chunk.
+     * @param chunksAhead maximum number of chunks decoded ahead of the consumer.
+     */
+    public ChunkDecodingPipeline(final MessageChunksReader reader, final int chunksAhead) {
+        this.reader = reader;
+        this.chunksAhead = Math.max(1, chunksAhead);
+    }
+
+    /**
+     * Look up chunks in cache before decoding them, and cache the collections decoded by this pipeline.
+     *
+     * @param cache  the cache, or null to decode every chunk.
+     * @param source identifier of the input in the cache, see {@link DecodedChunkCache#sourceOf}.
+     */
+    public void setCache(final DecodedChunkCache cache, final String source) {
+        this.cache = source == null ? null : cache;
+        this.cacheSource = source;
+    }
+
+    /**
+     * Returns true when the dynamic options request decoding chunks with a pool of threads.
+     *
+     * @return True when decode-threads is larger than zero.
+     */
+    public static boolean isEnabledByDefault() {
+        final Integer numThreads = doc().getInteger("decode-threads");
+        return numThreads != null && numThreads > 0;
+    }
+
+    /**
+     * Create a handler able to parse the collections stored in the input.
+     *
+     * @return a new handler, which will be confined to one decoding task at a time.
+     */
+    protected abstract ProtobuffCollectionHandler newHandler();
+
+    /**
+     * Decode a chunk on a decoder thread. The default implementation returns the collection decoded by codec.
+     * Sub-classes may decode chunks to another representation, returned by {@link #nextDecoded()}.
+     *
+     * @param handler         the handler installed in codec, confined to this task.
+     * @param codec           the codec the chunk was compressed with.
+     * @param compressedBytes the compressed bytes of the chunk.
+     * @return the decoded chunk, or null if the chunk did not decode.
+     * @throws IOException If an error occured decoding the chunk.
+     */
+    protected Object decode(final ProtobuffCollectionHandler handler, final ChunkCodec codec,
+                            final ByteBuffer compressedBytes) throws IOException {
+        return codec.decode(compressedBytes);
+    }
+
+    /**
+     * Estimate the heap memory used by a chunk decoded by this pipeline, to weigh it in the cache. The default
+     * implementation inspects every field of collections with reflection. Sub-classes that know the type of the
+     * collections, or that decode chunks to another representation, should override this method.
+     *
+     * @param decoded a chunk returned by {@link #decode}.
+     * @return estimated size in bytes.
+     */
+    protected long estimateHeapSize(final Object decoded) {
+        return DecodedChunkCache.estimateHeapSize((Message) decoded);
+    }
+
+    /**
+     * Return the next decoded collection, in input order.
+     *
+     * @return The next collection, or null when the input has no more chunks, or when a chunk did not decode.
+     * @throws IOException If an error occured reading or decoding the input.
+     */
+    public Message nextCollection() throws IOException {
+        return (Message) nextDecoded();
+    }
+
+    /**
+     * Return the next decoded chunk, in input order, in the representation returned by {@link #decode}.
+     *
+     * @return The next decoded chunk, or null when the input has no more chunks, or when a chunk did not decode.
+     * @throws IOException If an error occured reading or decoding the input.
+     */
+    public Object nextDecoded() throws IOException {
+        scheduleAhead();
+        final PendingChunk head = pending.poll();
+        if (head == null) {
+            return null;
+        }
+        try {
+            return head.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GobyRuntimeException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new GobyRuntimeException(cause);
+        } finally {
+            // keep decoder threads busy while the consumer iterates through this collection:
+            scheduleAhead();
+        }
+    }
+
+    /**
+     * Return the byte offset of the first chunk that has not yet been returned by nextCollection. This is the
+     * position of the underlying reader when no chunk is pending.
+     *
+     * @return offset in the input, in bytes.
+     * @throws IOException If the position of the reader cannot be determined.
+     */
+    public long position() throws IOException {
+        final PendingChunk head = pending.peek();
+        return head != null ? head.startOffset : reader.position();
+    }
+
+    /**
+     * Discard pending chunks that start before byteOffset. This method returns true when a pending chunk starts
+     * exactly at byteOffset, in which case the caller does not need to reposition the underlying reader. When false
+     * is returned, all pending chunks have been discarded and the caller must reposition the reader.
+     *
+     * @param byteOffset offset of a chunk start in the input.
+     * @return True when the pipeline is already positioned at byteOffset.
+     */
+    public boolean skipTo(final long byteOffset) {
+        for (final PendingChunk chunk : pending) {
+            if (chunk.startOffset == byteOffset) {
+                while (pending.peek() != chunk) {
+                    pending.poll().result.cancel(false);
+                }
+                return true;
+            }
+        }
+        reset();
+        return false;
+    }
+
+    /**
+     * Discard all pending chunks. Must be called when the underlying reader is repositioned.
+     */
+    public void reset() {
+        for (final PendingChunk chunk : pending) {
+            chunk.result.cancel(false);
+        }
+        pending.clear();
+        inputExhausted = false;
+    }
+
+    private void scheduleAhead() throws IOException {
+        while (!inputExhausted && pending.size() < chunksAhead) {
+            final long startOffset = reader.position();
+            if (!reader.hasNext(null, 0)) {
+                inputExhausted = true;
+                break;
+            }
+            final ByteBuffer compressedBytes = reader.getCompressedBuffer();
+            if (compressedBytes == null) {
+                inputExhausted = true;
+                break;
+            }
+            if (cache != null) {
+                final Object cached = cache.get(cacheSource, startOffset);
+                if (cached != null) {
+                    pending.add(new PendingChunk(startOffset, CompletableFuture.completedFuture(cached)));
+                    continue;
+                }
+            }
+            final byte registrationCode = reader.getChunkCodec().registrationCode();
+            final Future<Object> result = getDecoderThreads().submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    Decoder decoder = idleDecoders.poll();
+                    if (decoder == null) {
+                        decoder = new Decoder(newHandler());
+                    }
+                    try {
+                        final Object collection =
+                                decode(decoder.handler, decoder.codec(registrationCode), compressedBytes);
+                        if (cache != null && collection != null) {
+                            cache.put(cacheSource, startOffset, collection, estimateHeapSize(collection));
+                        }
+                        return collection;
+                    } finally {
+                        idleDecoders.add(decoder);
+                    }
+                }
+            });
+            pending.add(new PendingChunk(startOffset, result));
+        }
+    }
+
+    private static synchronized ExecutorService getDecoderThreads() {
+        if (decoderThreads == null) {
+            final Integer option = doc().getInteger("decode-threads");
+            final int numThreads = option != null && option > 0 ? option : Runtime.getRuntime().availableProcessors();
+            LOG.debug(String.format("Decoding chunks with %d threads", numThreads));
+            final AtomicInteger threadIndex = new AtomicInteger();
+            decoderThreads = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "chunk-decoder-" + threadIndex.incrementAndGet());
+                    // decoder threads must not prevent the JVM from exiting:
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return decoderThreads;
+    }
+
+    private static final class PendingChunk {
+        private final long startOffset;
+        private final Future<Object> result;
+
+        private PendingChunk(final long startOffset, final Future<Object> result) {
+            this.startOffset = startOffset;
+            this.result = result;
+        }
+    }
+
+    /**
+     * A handler and the codecs installed with it. Used by one task at a time.
+     */
+    private static final class Decoder {
+        private final ProtobuffCollectionHandler handler;
+        private final Byte2ObjectMap<ChunkCodec> codecs = new Byte2ObjectOpenHashMap<ChunkCodec>();
+
+        private Decoder(final ProtobuffCollectionHandler handler) {
+            this.handler = handler;
+        }
+
+        private ChunkCodec codec(final byte registrationCode) {
+            ChunkCodec codec = codecs.get(registrationCode);
+            if (codec == null) {
+                codec = ChunkCodecHelper.withRegistrationCode(registrationCode);
+                codec.setHandler(handler);
+                codecs.put(registrationCode, codec);
+            }
+            return codec;
+        }
+    }
+}
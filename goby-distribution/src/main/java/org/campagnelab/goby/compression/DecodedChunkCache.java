@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.compression;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import org.campagnelab.goby.util.dynoptions.DynamicOptionClient;
+import org.campagnelab.goby.util.dynoptions.RegisterThis;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A process-wide cache of decoded collections, shared by all readers. Collections are keyed by the file they were
+ * read from and the byte offset of their chunk in this file. The cache is bounded by the total weight of the
+ * collections it holds, where the weight of a collection is an estimate of the heap memory used by its decoded
+ * object graph, in bytes. This is several times the serialized size of the collection, since each message, string
+ * and list is a separate object on the heap. The least recently used collections are evicted first when the bound
+ * is exceeded.
+ * <p/>
+ * Protocol buffer messages are immutable, so cached collections can be returned to several readers and threads.
+ * Chunks may also be cached in other decoded representations, such as alignment columns, under a source distinct
+ * from the source of the collections. Such values must not be modified once cached. The cache is disabled when
+ * DecodedChunkCache:capacity-mb is zero.
+ */
+public class DecodedChunkCache {
+    @RegisterThis
+    public static final DynamicOptionClient doc = new DynamicOptionClient(DecodedChunkCache.class,
+            "capacity-mb:integer, maximum heap memory used by the decoded chunks cached by readers, in megabytes. The memory used by each chunk is estimated. Zero disables the cache.:0"
+    );
+
+    /**
+     * Estimated heap size of an object header, for a 64-bit JVM with compressed references.
+     */
+    public static final int OBJECT_BYTES = 16;
+    /**
+     * Estimated heap size of a field, or of an element of a list. Large enough for a long or a reference.
+     */
+    public static final int FIELD_BYTES = 8;
+    /**
+     * Estimated heap size of a String or ByteString, excluding its characters: the object, its array and their
+     * fields.
+     */
+    public static final int STRING_BYTES = 56;
+    /**
+     * Estimated heap size of an empty list, excluding its elements.
+     */
+    public static final int LIST_BYTES = 40;
+
+    public static DynamicOptionClient doc() {
+        return doc;
+    }
+
+    private static DecodedChunkCache sharedCache;
+
+    private final LinkedHashMap<ChunkKey, CachedChunk> chunks =
+            new LinkedHashMap<ChunkKey, CachedChunk>(1024, 0.75f, true);
+    private long maxWeight;
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Create a cache.
+     *
+     * @param maxWeight maximum total weight of the cached collections, in estimated heap bytes.
+     */
+    public DecodedChunkCache(final long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Return the cache shared by all readers in this process.
+     *
+     * @return the shared cache, or null when the cache is disabled.
+     */
+    public static synchronized DecodedChunkCache getSharedCache() {
+        final Integer capacity = doc().getInteger("capacity-mb");
+        if (capacity == null || capacity <= 0) {
+            return null;
+        }
+        final long maxWeight = capacity * 1024L * 1024L;
+        if (sharedCache == null) {
+            sharedCache = new DecodedChunkCache(maxWeight);
+        } else {
+            sharedCache.setMaxWeight(maxWeight);
+        }
+        return sharedCache;
+    }
+
+    /**
+     * Return a key that identifies the current version of a local file. Collections cached for a file are not
+     * returned after the file is overwritten, because the key includes the length and modification time of the file.
+     *
+     * @param file file the chunks are read from.
+     * @return the identifier of the file, or null when the file does not exist locally.
+     * @throws IOException If the canonical path of the file cannot be determined.
+     */
+    public static String sourceOf(final File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        return file.getCanonicalPath() + ":" + file.length() + ":" + file.lastModified();
+    }
+
+    /**
+     * Return the collection decoded from the chunk that starts at byteOffset in source.
+     *
+     * @param source     identifier of the file the chunk was read from.
+     * @param byteOffset offset of the chunk start in the file.
+     * @return the cached collection, or null when the chunk is not in the cache.
+     */
+    public synchronized Object get(final String source, final long byteOffset) {
+        final CachedChunk chunk = chunks.get(new ChunkKey(source, byteOffset));
+        if (chunk == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return chunk.collection;
+    }
+
+    /**
+     * Cache the collection decoded from the chunk that starts at byteOffset in source. The heap size of the
+     * collection is estimated with {@link #estimateHeapSize(Message)}, which inspects every field with reflection.
+     * Callers that know the type of the collection should estimate its size faster and call
+     * {@link #put(String, long, Message, long)}.
+     *
+     * @param source     identifier of the file the chunk was read from.
+     * @param byteOffset offset of the chunk start in the file.
+     * @param collection the decoded collection.
+     */
+    public void put(final String source, final long byteOffset, final Message collection) {
+        if (collection == null) {
+            return;
+        }
+        // measure outside of the lock:
+        put(source, byteOffset, collection, estimateHeapSize(collection));
+    }
+
+    /**
+     * Cache the collection decoded from the chunk that starts at byteOffset in source. Least recently used
+     * collections are evicted until the weight of the cache is within bounds. Collections heavier than the cache
+     * capacity are not cached.
+     *
+     * @param source           identifier of the file the chunk was read from.
+     * @param byteOffset       offset of the chunk start in the file.
+     * @param collection       the decoded collection, or another representation of the decoded chunk.
+     * @param collectionWeight estimated heap size of the collection, in bytes.
+     */
+    public void put(final String source, final long byteOffset, final Object collection,
+                    final long collectionWeight) {
+        if (collection == null) {
+            return;
+        }
+        synchronized (this) {
+            if (collectionWeight > maxWeight) {
+                return;
+            }
+            final CachedChunk previous = chunks.put(new ChunkKey(source, byteOffset),
+                    new CachedChunk(collection, collectionWeight));
+            if (previous != null) {
+                weight -= previous.weight;
+            }
+            weight += collectionWeight;
+            evictAsNeeded();
+        }
+    }
+
+    private void evictAsNeeded() {
+        final Iterator<CachedChunk> eldestFirst = chunks.values().iterator();
+        while (weight > maxWeight && eldestFirst.hasNext()) {
+            weight -= eldestFirst.next().weight;
+            eldestFirst.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Change the capacity of this cache. Collections are evicted if the cache is heavier than maxWeight.
+     *
+     * @param maxWeight maximum total weight of the cached collections, in bytes.
+     */
+    public synchronized void setMaxWeight(final long maxWeight) {
+        this.maxWeight = maxWeight;
+        evictAsNeeded();
+    }
+
+    /**
+     * Remove all collections from the cache and reset the counters.
+     */
+    public synchronized void clear() {
+        chunks.clear();
+        weight = 0;
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    /**
+     * Return the number of lookups that found a cached collection.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Return the number of lookups that did not find a cached collection.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Return the number of collections evicted to keep the cache within its capacity.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Return the total weight of the cached collections, in bytes.
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    /**
+     * Return the number of cached collections.
+     */
+    public synchronized int size() {
+        return chunks.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("DecodedChunkCache chunks=%d weight=%d/%d hits=%d misses=%d evictions=%d",
+                chunks.size(), weight, maxWeight, hits, misses, evictions);
+    }
+
+    /**
+     * Estimate the heap memory used by a message and the messages, strings and lists it references. Fields are
+     * inspected with reflection, so this method is slow for large collections.
+     *
+     * @param message the message to measure.
+     * @return estimated size in bytes.
+     */
+    public static long estimateHeapSize(final Message message) {
+        final List<Descriptors.FieldDescriptor> fields = message.getDescriptorForType().getFields();
+        long size = OBJECT_BYTES + FIELD_BYTES * fields.size();
+        for (final Descriptors.FieldDescriptor field : fields) {
+            if (field.isRepeated()) {
+                final int count = message.getRepeatedFieldCount(field);
+                if (count > 0) {
+                    size += LIST_BYTES + FIELD_BYTES * count;
+                    for (int i = 0; i < count; i++) {
+                        size += estimateHeapSize(field, message.getRepeatedField(field, i));
+                    }
+                }
+            } else if (message.hasField(field)) {
+                size += estimateHeapSize(field, message.getField(field));
+            }
+        }
+        return size;
+    }
+
+    private static long estimateHeapSize(final Descriptors.FieldDescriptor field, final Object value) {
+        switch (field.getJavaType()) {
+            case MESSAGE:
+                return estimateHeapSize((Message) value);
+            case STRING:
+                return STRING_BYTES + ((String) value).length();
+            case BYTE_STRING:
+                return STRING_BYTES + ((ByteString) value).size();
+            default:
+                // primitive values are stored in the field itself:
+                return 0;
+        }
+    }
+
+    private static final class CachedChunk {
+        private final Object collection;
+        private final long weight;
+
+        private CachedChunk(final Object collection, final long weight) {
+            this.collection = collection;
+            this.weight = weight;
+        }
+    }
+
+    private static final class ChunkKey {
+        private final String source;
+        private final long byteOffset;
+
+        private ChunkKey(final String source, final long byteOffset) {
+            this.source = source;
+            this.byteOffset = byteOffset;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof ChunkKey)) {
+                return false;
+            }
+            final ChunkKey other = (ChunkKey) o;
+            return byteOffset == other.byteOffset && source.equals(other.source);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * source.hashCode() + (int) (byteOffset ^ (byteOffset >>> 32));
+        }
+    }
+}
@@ -38,7 +38,7 @@ import java.io.IOException;
  *         Date: Apr 30, 2009
  *         Time: 5:06:55 PM
  */
-public class FastBufferedMessageChunksReader extends MessageChunksReader {
+public class FastBufferedMessageChunksReader extends SeekableMessageChunksReader {
     private static final Log LOG = LogFactory.getLog(FastBufferedMessageChunksReader.class);
 
     private final FastBufferedInputStream input;
@@ -20,8 +20,10 @@ package org.campagnelab.goby.compression;
 
 import com.google.protobuf.Message;
 import it.unimi.dsi.fastutil.io.FastByteArrayInputStream;
+import it.unimi.dsi.io.ByteBufferInputStream;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 
@@ -94,6 +96,16 @@ public class GZipChunkCodec implements ChunkCodec {
 
     }
 
+    @Override
+    public Message decode(final ByteBuffer buffer) throws IOException {
+        final GZIPInputStream uncompressStream = new GZIPInputStream(new ByteBufferInputStream(buffer.slice()));
+        try {
+            return parser.parse(uncompressStream);
+        } finally {
+            uncompressStream.close();
+        }
+    }
+
     @Override
     public int getSuggestedChunkSize() {
         return 10000;
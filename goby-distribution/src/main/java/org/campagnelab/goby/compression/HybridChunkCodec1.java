@@ -19,11 +19,11 @@
 package org.campagnelab.goby.compression;
 
 import com.google.protobuf.Message;
-import it.unimi.dsi.fastutil.io.FastByteArrayInputStream;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.zip.CRC32;
 
 /**
@@ -104,26 +104,28 @@ public class HybridChunkCodec1 implements ChunkCodec {
 
     @Override
     public Message decode(final byte[] bytes) throws IOException {
-        final DataInputStream completeChunkData = new DataInputStream(new FastByteArrayInputStream(bytes));
-        final int compressedSize = completeChunkData.readInt();
-        final int storedChecksum = completeChunkData.readInt();
+        return decode(ByteBuffer.wrap(bytes));
+    }
 
-        final byte[] compressedBytes = new byte[compressedSize];
-        final int read = completeChunkData.read(compressedBytes, 0, compressedSize);
-        assert read == compressedSize : "read size must match recorded size.";
+    @Override
+    public Message decode(final ByteBuffer buffer) throws IOException {
+        final ByteBuffer completeChunkData = buffer.duplicate();
+        final int compressedSize = completeChunkData.getInt();
+        final int storedChecksum = completeChunkData.getInt();
+
+        // the hybrid bytes are checked and decoded in place:
+        final ByteBuffer compressedBytes = completeChunkData.slice();
+        compressedBytes.limit(compressedSize);
         crc32.reset();
 
-        crc32.update(compressedBytes);
+        crc32.update(compressedBytes.duplicate());
         final int computedChecksum = (int) crc32.getValue();
         if (computedChecksum != storedChecksum) {
             throw new InvalidChecksumException();
         }
-        final int bytesLeft = bytes.length - 4 - compressedSize - 4;
-        final byte[] leftOver = new byte[bytesLeft];
-        // 8 is the number of bytes to encode the length of the compressed chunk, plus
-        // the number of bytes to encode the checksum.
-        System.arraycopy(bytes, 8 + compressedSize, leftOver, 0, bytesLeft);
-        final Message reducedProtoBuff = gzipCodec.decode(leftOver);
+        // the gzip stream follows the hybrid bytes:
+        completeChunkData.position(completeChunkData.position() + compressedSize);
+        final Message reducedProtoBuff = gzipCodec.decode(completeChunkData.slice());
         if (reducedProtoBuff == null) {
             return null;
         }
@@ -23,6 +23,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.zip.CRC32;
 
 /**
@@ -44,7 +45,24 @@ public class HybridChunkCodec2 implements ChunkCodec {
 
     public static final byte REGISTRATION_CODE = -5;
     private ProtobuffCollectionHandler handler;
-    private final BZip2ChunkCodec bzip2Codec = new BZip2ChunkCodec();
+    /**
+     * Codec for the left-over protobuf messages.
+     */
+    private final ChunkCodec residualCodec;
+
+    public HybridChunkCodec2() {
+        this(new BZip2ChunkCodec());
+    }
+
+    /**
+     * Create a hybrid codec that compresses left-over protobuf messages with another codec. Subclasses must
+     * override name() and registrationCode().
+     *
+     * @param residualCodec codec for the left-over protobuf messages.
+     */
+    protected HybridChunkCodec2(final ChunkCodec residualCodec) {
+        this.residualCodec = residualCodec;
+    }
 
     @Override
     public byte registrationCode() {
@@ -79,7 +97,7 @@ public class HybridChunkCodec2 implements ChunkCodec {
         completeChunkData.writeInt(crcChecksum);
         completeChunkData.write(bytes);
 
-        final ByteArrayOutputStream out = bzip2Codec.encode(reducedProtoBuff);
+        final ByteArrayOutputStream out = residualCodec.encode(reducedProtoBuff);
 
         final byte[] gzipBytes = out.toByteArray();
         final int gzipBytesSize = gzipBytes.length;
@@ -88,7 +106,7 @@ public class HybridChunkCodec2 implements ChunkCodec {
         if (debug && chunkIndex % 100 == 0) {
 
             //TODO remove compression of original collection. Only useful for stat collection
-            final int originalBZip2Size = bzip2Codec.encode(readCollection).toByteArray().length;
+            final int originalBZip2Size = residualCodec.encode(readCollection).toByteArray().length;
 
             final int gain = originalBZip2Size - (gzipBytesSize + hybridStreamSize);
             LOG.info(String.format("compressed size=%d gzip size=%d (original gzip=%d) percent compressed/(compressed+gzip) %g gain=%d, %g%% ",
@@ -103,26 +121,28 @@ public class HybridChunkCodec2 implements ChunkCodec {
 
     @Override
     public Message decode(final byte[] bytes) throws IOException {
-        final DataInputStream completeChunkData = new DataInputStream(new ByteArrayInputStream(bytes));
-        final int compressedSize = completeChunkData.readInt();
-        final int storedChecksum = completeChunkData.readInt();
+        return decode(ByteBuffer.wrap(bytes));
+    }
 
-        final byte[] compressedBytes = new byte[compressedSize];
-        final int read = completeChunkData.read(compressedBytes, 0, compressedSize);
-        assert read == compressedSize : "read size must match recorded size.";
+    @Override
+    public Message decode(final ByteBuffer buffer) throws IOException {
+        final ByteBuffer completeChunkData = buffer.duplicate();
+        final int compressedSize = completeChunkData.getInt();
+        final int storedChecksum = completeChunkData.getInt();
+
+        // the hybrid bytes are checked and decoded in place:
+        final ByteBuffer compressedBytes = completeChunkData.slice();
+        compressedBytes.limit(compressedSize);
         crc32.reset();
 
-        crc32.update(compressedBytes);
+        crc32.update(compressedBytes.duplicate());
         final int computedChecksum = (int) crc32.getValue();
         if (computedChecksum != storedChecksum) {
             throw new InvalidChecksumException();
         }
-        final int bytesLeft = bytes.length - 4 - compressedSize - 4;
-        final byte[] leftOver = new byte[bytesLeft];
-        // 8 is the number of bytes to encode the length of the compressed chunk, plus
-        // the number of bytes to encode the checksum.
-        System.arraycopy(bytes, 8 + compressedSize, leftOver, 0, bytesLeft);
-        final Message reducedProtoBuff = bzip2Codec.decode(leftOver);
+        // the residual stream follows the hybrid bytes:
+        completeChunkData.position(completeChunkData.position() + compressedSize);
+        final Message reducedProtoBuff = residualCodec.decode(completeChunkData.slice());
         if (reducedProtoBuff==null) {
             return null;
         }
@@ -137,7 +157,7 @@ public class HybridChunkCodec2 implements ChunkCodec {
     @Override
     public void setHandler(final ProtobuffCollectionHandler handler) {
         this.handler = handler;
-        bzip2Codec.setHandler(handler);
+        residualCodec.setHandler(handler);
     }
 
     @Override
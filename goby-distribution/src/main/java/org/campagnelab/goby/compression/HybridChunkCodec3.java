@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.compression;
+
+/**
+ * A codec that writes highly compressed data in one pool, and keeps left-over uncompressed protobuf messages
+ * in a separate pool compressed with Zstd. Chunks are slightly larger than with hybrid-2, but decode several times
+ * faster, since bzip2 decompression of the left-over messages dominates the decoding time of hybrid-2.
+ */
+public class HybridChunkCodec3 extends HybridChunkCodec2 {
+
+    public static final byte REGISTRATION_CODE = -9;
+
+    public HybridChunkCodec3() {
+        super(new ZstdChunkCodec());
+    }
+
+    @Override
+    public String name() {
+        return "hybrid-3";
+    }
+
+    @Override
+    public byte registrationCode() {
+        return REGISTRATION_CODE;
+    }
+}
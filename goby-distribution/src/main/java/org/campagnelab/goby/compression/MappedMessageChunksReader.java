@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.compression;
+
+import com.google.protobuf.GeneratedMessage;
+import it.unimi.dsi.fastutil.bytes.ByteSet;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.campagnelab.goby.exception.GobyRuntimeException;
+import org.campagnelab.goby.util.dynoptions.DynamicOptionClient;
+import org.campagnelab.goby.util.dynoptions.RegisterThis;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a file produced with {@link MessageChunksWriter} through read-only memory mappings of the file. Seeking to
+ * a chunk start only changes the position of the reader, and the compressed bytes of each chunk are exposed by
+ * {@link #getCompressedBuffer()} as a slice of the mapping, without being copied.
+ * <p/>
+ * A single mapping cannot exceed 2GB, so the file is mapped with consecutive windows of WINDOW_SIZE bytes that do
+ * not overlap. The few chunks that straddle the boundary between two windows are mapped on their own when they are
+ * read.
+ */
+public class MappedMessageChunksReader extends SeekableMessageChunksReader {
+    private static final Log LOG = LogFactory.getLog(MappedMessageChunksReader.class);
+
+    @RegisterThis
+    public static final DynamicOptionClient doc = new DynamicOptionClient(MappedMessageChunksReader.class,
+            "enabled:boolean, when true alignment readers map local entries files in memory instead of reading them through a buffered stream.:false"
+    );
+
+    public static DynamicOptionClient doc() {
+        return doc;
+    }
+
+    /**
+     * Size of the windows the file is mapped with, in bytes.
+     */
+    static final long WINDOW_SIZE = 1L << 30;
+    /**
+     * Length of the codec registration code, delimiter and chunk size that precede the bytes of each chunk.
+     */
+    private static final int CHUNK_HEADER_LENGTH = 1 + MessageChunksWriter.DELIMITER_LENGTH + 4;
+
+    private final ByteBuffer[] windows;
+    private final long windowSize;
+    private final RandomAccessFile input;
+    private final long length;
+    /**
+     * Start offset of the slice in the file, in bytes.
+     */
+    private final long startOffset;
+    /**
+     * End offset of the slice in the file, in bytes.
+     */
+    private final long endOffset;
+    private final ByteSet supportedCodecRegistrationCodes;
+    private long position;
+    private boolean withinSlice = true;
+    private ByteBuffer compressedBuffer;
+
+    /**
+     * Returns true when the dynamic options request mapping local files in memory.
+     *
+     * @return True when MappedMessageChunksReader:enabled is true.
+     */
+    public static boolean isEnabledByDefault() {
+        final Boolean enabled = doc().getBoolean("enabled");
+        return enabled != null && enabled;
+    }
+
+    /**
+     * Map file in memory and position the reader on the first chunk that starts between start and end.
+     * Chunks will be returned until the position of the reader is past end.
+     *
+     * @param start The start offset of the slice, in bytes.
+     * @param end   The end offset of the slice, in bytes.
+     * @param file  The file to read from.
+     * @throws IOException If the file cannot be mapped.
+     */
+    public MappedMessageChunksReader(final long start, final long end, final File file) throws IOException {
+        this(start, end, file, WINDOW_SIZE);
+    }
+
+    /**
+     * Map file in memory with windows of the given size.
+     */
+    MappedMessageChunksReader(final long start, long end, final File file, final long windowSize) throws IOException {
+        super();
+        if (start < 0L) {
+            throw new IllegalArgumentException("Start position ("
+                    + start + ") must not be less than zero");
+        }
+        if (end != Long.MAX_VALUE && end < 0L) {
+            throw new IllegalArgumentException("End position ("
+                    + end + ") must not be less than zero");
+        }
+        if (start > end) {
+            throw new IllegalArgumentException("Start position ("
+                    + start + ") must not be greater than the end position (" + end + ")");
+        }
+        if (end != Long.MAX_VALUE && start != end) {
+            end += MessageChunksWriter.DELIMITER_LENGTH + 4;
+        }
+        startOffset = start;
+        endOffset = end;
+        supportedCodecRegistrationCodes = ChunkCodecHelper.registrationCodes();
+
+        this.windowSize = windowSize;
+        // the channel stays open to map the chunks that straddle two windows:
+        input = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = input.getChannel();
+            length = channel.size();
+            windows = new ByteBuffer[(int) ((length + windowSize - 1) / windowSize)];
+            for (int i = 0; i < windows.length; i++) {
+                final long windowStart = i * windowSize;
+                windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                        Math.min(windowSize, length - windowStart));
+            }
+        } catch (IOException e) {
+            input.close();
+            throw e;
+        }
+        reposition(start, end);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        super.close();
+        // mappings remain valid after the channel is closed:
+        IOUtils.closeQuietly(input);
+    }
+
+    /**
+     * Position the reader on the first valid chunk that starts at or after start, and before end.
+     */
+    private void reposition(final long start, final long end) {
+        withinSlice = true;
+        for (long offset = start; offset < end && offset + CHUNK_HEADER_LENGTH <= length; offset++) {
+            if (isChunkStart(offset)) {
+                position = offset;
+                return;
+            }
+        }
+        withinSlice = false;
+        position = Math.min(end, length);
+    }
+
+    private boolean isChunkStart(final long offset) {
+        final byte registrationCode = byteAt(offset);
+        if (!supportedCodecRegistrationCodes.contains(registrationCode)) {
+            return false;
+        }
+        for (int i = 1; i <= MessageChunksWriter.DELIMITER_LENGTH; i++) {
+            if (byteAt(offset + i) != MessageChunksWriter.DELIMITER_CONTENT) {
+                return false;
+            }
+        }
+        // the codec validates the chunk from the second byte of its size, as in FastBufferedMessageChunksReader:
+        final long firstSizeByte = offset + 1 + MessageChunksWriter.DELIMITER_LENGTH;
+        final ChunkCodec codec = ChunkCodecHelper.withRegistrationCode(registrationCode);
+        if (!codec.validate(byteAt(firstSizeByte), new DataInputStream(new WindowInputStream(firstSizeByte + 1)))) {
+            LOG.warn(String.format("Found spurious boundary around position %d ", offset));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Seek to the given position in the compact file. Seeking to the start of a chunk only changes the position of
+     * the reader.
+     *
+     * @param position Position where to seek to.
+     * @throws IOException If an error occurs reading this file.
+     */
+    @Override
+    public void seek(final long position) throws IOException {
+        reposition(position, Long.MAX_VALUE);
+        // invalidate any bytes already read:
+        compressedBuffer = null;
+        compressedBytes = null;
+    }
+
+    /**
+     * Bytes are read from the mapping on demand, so there is no buffer to flush.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Returns true if the input has more entries.
+     *
+     * @param collection     The current collection, or null if no collection has been read yet.
+     * @param collectionSize The size of the current collection (can be zero).
+     * @return True if the input has more entries, False otherwise.
+     */
+    @Override
+    public boolean hasNext(final GeneratedMessage collection, final int collectionSize) {
+        compressedBuffer = null;
+        compressedBytes = null;
+        if (collection == null || entryIndex >= collectionSize) {
+            // do not read a new collection if we are before the start or past the end of the file split allocated to us
+            if (!withinSlice || position < startOffset || position >= endOffset) {
+                withinSlice = false;
+                return false;
+            }
+            if (position + CHUNK_HEADER_LENGTH > length) {
+                return false;
+            }
+            final byte registrationCode = byteAt(position);
+            for (int i = 1; i <= MessageChunksWriter.DELIMITER_LENGTH; i++) {
+                if (byteAt(position + i) != MessageChunksWriter.DELIMITER_CONTENT) {
+                    return false;
+                }
+            }
+            if (chunkCodec == null || registrationCode != chunkCodec.registrationCode()) {
+                if (!installCodec(registrationCode)) {
+                    return false;
+                }
+            }
+            final int numBytes = intAt(position + 1 + MessageChunksWriter.DELIMITER_LENGTH);
+            if (numBytes < 0) {
+                LOG.error(String.format("Negative number of bytes at position %d was size=%X %n", position, numBytes));
+                return false;
+            }
+            if (numBytes == 0) {
+                return false;
+            }
+            final long chunkStart = position + CHUNK_HEADER_LENGTH;
+            if (chunkStart + numBytes > length) {
+                LOG.warn("Expected " + numBytes + " but got " + (length - chunkStart));
+                return false;
+            }
+            compressedBuffer = slice(chunkStart, numBytes);
+            position = chunkStart + numBytes;
+            entryIndex = 0;
+            return true;
+        }
+        return entryIndex < collectionSize;
+    }
+
+    /**
+     * Return the compressed bytes of the current chunk as a slice of the mapping.
+     *
+     * @return a buffer over the compressed bytes, or null when no chunk has been read.
+     */
+    @Override
+    public ByteBuffer getCompressedBuffer() {
+        return compressedBuffer == null ? null : compressedBuffer.duplicate();
+    }
+
+    /**
+     * Return a copy of the compressed bytes of the current chunk. Prefer {@link #getCompressedBuffer()}, which
+     * does not copy.
+     */
+    @Override
+    public byte[] getCompressedBytes() {
+        if (compressedBytes == null && compressedBuffer != null) {
+            compressedBytes = new byte[compressedBuffer.remaining()];
+            compressedBuffer.duplicate().get(compressedBytes);
+        }
+        return compressedBytes;
+    }
+
+    @Override
+    public long position() throws IOException {
+        return position;
+    }
+
+    private byte byteAt(final long offset) {
+        final int window = (int) (offset / windowSize);
+        return windows[window].get((int) (offset - window * windowSize));
+    }
+
+    private int intAt(final long offset) {
+        final int window = (int) (offset / windowSize);
+        final int start = (int) (offset - window * windowSize);
+        if (start + 4 <= windows[window].capacity()) {
+            return windows[window].getInt(start);
+        }
+        // the int straddles two windows:
+        return byteAt(offset) << 24 | (byteAt(offset + 1) & 0xFF) << 16 | (byteAt(offset + 2) & 0xFF) << 8 |
+                (byteAt(offset + 3) & 0xFF);
+    }
+
+    private ByteBuffer slice(final long offset, final int numBytes) {
+        final int window = (int) (offset / windowSize);
+        final int start = (int) (offset - window * windowSize);
+        final ByteBuffer buffer = windows[window].duplicate();
+        if ((long) start + numBytes <= buffer.capacity()) {
+            buffer.position(start);
+            buffer.limit(start + numBytes);
+            return buffer.slice();
+        }
+        // the chunk straddles two windows, map it on its own:
+        try {
+            return input.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, numBytes);
+        } catch (IOException e) {
+            throw new GobyRuntimeException(e);
+        }
+    }
+
+    /**
+     * An input stream over the mapped windows, used to validate chunk boundaries.
+     */
+    private final class WindowInputStream extends InputStream {
+        private long offset;
+
+        private WindowInputStream(final long offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public int read() {
+            return offset < length ? byteAt(offset++) & 0xFF : -1;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int off, final int len) {
+            if (offset >= length) {
+                return -1;
+            }
+            final int numRead = (int) Math.min(len, length - offset);
+            for (int i = 0; i < numRead; i++) {
+                bytes[off + i] = byteAt(offset++);
+            }
+            return numRead;
+        }
+    }
+}
@@ -30,9 +30,11 @@ import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
- * Read from a stream produced with {@link MessageChunksWriter}.
+ * Read from a stream produced with {@link MessageChunksWriter}. See {@link SeekableMessageChunksReader} for readers
+ * that can seek in their input.
  *
  * @author Fabien Campagne
  *         Date: Apr 30, 2009
@@ -52,6 +54,17 @@ public class MessageChunksReader implements Closeable {
         return compressedBytes;
     }
 
+    /**
+     * Return the compressed bytes of the current chunk as a buffer. Readers that do not load chunks in arrays
+     * override this method to avoid copying the bytes.
+     *
+     * @return a buffer over the compressed bytes, or null when no chunk has been read.
+     */
+    public ByteBuffer getCompressedBuffer() {
+        final byte[] bytes = getCompressedBytes();
+        return bytes == null ? null : ByteBuffer.wrap(bytes);
+    }
+
     protected byte[] compressedBytes;
     private ProtobuffCollectionHandler handler;
 
@@ -159,7 +172,7 @@ public class MessageChunksReader implements Closeable {
         return true;
     }
 
-    private boolean installCodec(final byte registrationCode) {
+    protected boolean installCodec(final byte registrationCode) {
         chunkCodec = ChunkCodecHelper.withRegistrationCodeSilent(registrationCode);
         if (chunkCodec != null) {
             chunkCodec.setHandler(handler);
@@ -20,7 +20,10 @@
 
 package org.campagnelab.goby.compression;
 
+import com.google.protobuf.Message;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import org.campagnelab.goby.alignments.AlignmentCollectionHandler;
+import org.campagnelab.goby.exception.GobyRuntimeException;
 import org.campagnelab.goby.util.WarningCounter;
 import org.campagnelab.goby.util.dynoptions.DynamicOptionClient;
 import org.campagnelab.goby.util.dynoptions.DynamicOptionRegistry;
@@ -29,12 +32,18 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.*;
+import java.util.concurrent.*;
 
 /**
  * Helper class to write many messages concatenated to a large output file. This helper
  * compresses each message before it is written to the output stream, and interleaves
  * messages with boundaries and size information. Boundaries make
  * it possible to split the file efficiently (e.g., see Hadoop FileSplit mechanism).
+ * <p/>
+ * When encode-threads is larger than zero, chunks are encoded asynchronously by a bounded pool of threads, and a
+ * single committer thread writes the encoded chunks to the output in the order they were flushed. In this mode,
+ * the byte offset of a chunk is only known once the chunk has been committed. Clients that need offsets should
+ * record {@link #getCurrentChunkIndex()} and call {@link #getChunkStartOffset(int)} when the offset is needed.
  *
  * @author Fabien Campagne
  *         Date: Apr 24, 2009
@@ -74,7 +83,8 @@ public class MessageChunksWriter {
             "compressing-codec:boolean, when true compress protocol buffers with new chunk codec.:false",
             "template-compression:boolean, when true use template compression.:true",
             "codec:string, name of the chunk codec to use.:gzip",
-            String.format("chunk-size:integer, the number of entries per chunk.:%d", OPTION_NOT_SET));
+            String.format("chunk-size:integer, the number of entries per chunk.:%d", OPTION_NOT_SET),
+            "encode-threads:integer, number of threads used to encode chunks. Zero encodes chunks on the calling thread.:0");
 
     public static DynamicOptionClient doc() {
         DynamicOptionRegistry.register(AlignmentCollectionHandler.doc());
@@ -83,6 +93,33 @@ public class MessageChunksWriter {
     }
 
     private boolean useTemplateCompression;
+    private ProtobuffCollectionHandler handler;
+    /**
+     * Offset of the start of each chunk written so far, in the order chunks were flushed.
+     */
+    private final LongArrayList chunkStartOffsets = new LongArrayList();
+    /**
+     * Index of the last chunk flushed.
+     */
+    private int currentChunkIndex;
+    private int numChunksFlushed;
+    private int numEncodingThreads;
+    private ExecutorService encoderThreads;
+    private BlockingQueue<Future<ByteArrayOutputStream>> encodedChunks;
+    private final BlockingQueue<ChunkCodec> idleCodecs = new LinkedBlockingQueue<ChunkCodec>();
+    private Thread committer;
+    private volatile Throwable commitError;
+    private boolean committerDone;
+    /**
+     * Marks the end of the chunks submitted to the committer.
+     */
+    private static final Future<ByteArrayOutputStream> END_OF_CHUNKS = new FutureTask<ByteArrayOutputStream>(
+            new Callable<ByteArrayOutputStream>() {
+                @Override
+                public ByteArrayOutputStream call() {
+                    return null;
+                }
+            });
 
 
     /**
@@ -112,6 +149,21 @@ public class MessageChunksWriter {
             numEntriesPerChunk = chunkCodec.getSuggestedChunkSize();
         }
         chunkSizeWarning.warn(LOG, "Using chunk-size=" + numEntriesPerChunk);
+        final Integer encodeThreads = doc.getInteger("encode-threads");
+        numEncodingThreads = encodeThreads == null ? 0 : encodeThreads;
+    }
+
+    /**
+     * Set the number of threads used to encode chunks. Zero (the default) encodes chunks on the thread that calls
+     * {@link #flush}. This method must be called before the first chunk is flushed.
+     *
+     * @param numThreads number of threads that will encode chunks in parallel.
+     */
+    public void setNumEncodingThreads(final int numThreads) {
+        if (numChunksFlushed > 0) {
+            throw new IllegalStateException("The number of encoding threads must be set before chunks are flushed.");
+        }
+        numEncodingThreads = Math.max(0, numThreads);
     }
 
     private static WarningCounter chunkSizeWarning = new WarningCounter(1);
@@ -124,7 +176,7 @@ public class MessageChunksWriter {
      * @param collectionBuilder The builder prepared with the growing collection of entries.
      * @throws IOException if there was an error writing the entries
      */
-    public void writeAsNeeded(final com.google.protobuf.GeneratedMessage.Builder collectionBuilder)
+    public void writeAsNeeded(final com.google.protobuf.GeneratedMessage.Builder<?> collectionBuilder)
             throws IOException {
 
         writeAsNeeded(collectionBuilder, 1);
@@ -138,24 +190,65 @@ public class MessageChunksWriter {
      * @param collectionBuilder The builder prepared with the growing collection of entries.
      * @param multiplicity      Indicates how many logical entries are included in the message that
      *                          was just appended.
+     * @return True when the collection was flushed as a new chunk. The index of this chunk is returned by
+     * {@link #getCurrentChunkIndex()}, and its offset by {@link #getChunkStartOffset(int)}, which waits until the
+     * chunk has been written when chunks are encoded asynchronously.
      * @throws IOException if there was an error writing the entries
      */
-    public long writeAsNeeded(final com.google.protobuf.GeneratedMessage.Builder collectionBuilder,
-                              final int multiplicity) throws IOException {
+    public boolean writeAsNeeded(final com.google.protobuf.GeneratedMessage.Builder<?> collectionBuilder,
+                                 final int multiplicity) throws IOException {
         totalEntriesWritten += Math.max(1, multiplicity);
         if (++numAppended >= numEntriesPerChunk) {
             flush(collectionBuilder);
+            return true;
         }
-        return currentChunkStartOffset;
+        return false;
     }
 
     /**
-     * Return the offset of the beginning of the current chunk (in byte, from position zero in the file).
+     * Return the offset of the beginning of the current chunk (in byte, from position zero in the file). When chunks
+     * are encoded asynchronously, this method waits until the current chunk has been written.
      *
      * @return offset of the beginning of the current chunk
      */
     public long getCurrentChunkStartOffset() {
-        return currentChunkStartOffset;
+        if (encoderThreads == null) {
+            return currentChunkStartOffset;
+        }
+        return getChunkStartOffset(currentChunkIndex);
+    }
+
+    /**
+     * Return the index of the last chunk flushed. Chunks are numbered from zero in the order they are flushed.
+     *
+     * @return index of the current chunk.
+     */
+    public int getCurrentChunkIndex() {
+        return currentChunkIndex;
+    }
+
+    /**
+     * Return the offset of the beginning of a chunk (in byte, from position zero in the file). When chunks are
+     * encoded asynchronously, this method waits until the chunk has been written.
+     *
+     * @param chunkIndex index of a chunk that was flushed.
+     * @return offset of the beginning of the chunk.
+     */
+    public long getChunkStartOffset(final int chunkIndex) {
+        synchronized (chunkStartOffsets) {
+            while (chunkStartOffsets.size() <= chunkIndex) {
+                if (commitError != null || committer == null || committerDone) {
+                    throw new GobyRuntimeException("Chunk " + chunkIndex + " was not written.", commitError);
+                }
+                try {
+                    chunkStartOffsets.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new GobyRuntimeException(e);
+                }
+            }
+            return chunkStartOffsets.getLong(chunkIndex);
+        }
     }
 
     /**
@@ -164,15 +257,21 @@ public class MessageChunksWriter {
      * @param collectionBuilder The builder prepared with the growing collection of entries.
      * @throws IOException if there was an error writing the entries
      */
-    public void flush(final com.google.protobuf.GeneratedMessage.Builder collectionBuilder)
+    public void flush(final com.google.protobuf.GeneratedMessage.Builder<?> collectionBuilder)
             throws IOException {
         // Write the separation between two chunks: eight bytes with value 0xFF.
 
         // If we are flushing a completely empty file, that's OK, the flush() should occur.
         // Otherwise, only flush if we've appended entries.
         if (totalEntriesWritten == 0 || numAppended > 0) {
+            if (numEncodingThreads > 0) {
+                flushAsynchronously(collectionBuilder);
+                return;
+            }
             // the position just before this chunk is written is recorded:
             currentChunkStartOffset = writtenBytes;
+            chunkStartOffsets.add(currentChunkStartOffset);
+            currentChunkIndex = numChunksFlushed++;
 
             assert out.size() == Integer.MAX_VALUE || out.size() == writtenBytes;
 
@@ -215,15 +314,160 @@ public class MessageChunksWriter {
         }
     }
 
+    private void flushAsynchronously(final com.google.protobuf.GeneratedMessage.Builder<?> collectionBuilder)
+            throws IOException {
+        checkCommitError();
+        if (encoderThreads == null) {
+            startEncoding();
+        }
+        // the collection must be built on the calling thread, since the client keeps appending to the builder:
+        final Message protobuffCollection = collectionBuilder.clone().build();
+        final Future<ByteArrayOutputStream> encoded = encoderThreads.submit(new Callable<ByteArrayOutputStream>() {
+            @Override
+            public ByteArrayOutputStream call() throws Exception {
+                ChunkCodec codec = idleCodecs.poll();
+                if (codec == null) {
+                    codec = newCodec();
+                }
+                try {
+                    return codec.encode(protobuffCollection);
+                } finally {
+                    idleCodecs.add(codec);
+                }
+            }
+        });
+        try {
+            // blocks when numEncodingThreads chunks are already waiting to be committed:
+            encodedChunks.put(encoded);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GobyRuntimeException(e);
+        }
+        currentChunkIndex = numChunksFlushed++;
+        numAppended = 0;
+        collectionBuilder.clear();
+    }
+
+    private void startEncoding() {
+        encoderThreads = Executors.newFixedThreadPool(numEncodingThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "chunk-encoder");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        encodedChunks = new ArrayBlockingQueue<Future<ByteArrayOutputStream>>(numEncodingThreads * 2);
+        committer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Future<ByteArrayOutputStream> next;
+                    while ((next = encodedChunks.take()) != END_OF_CHUNKS) {
+                        commit(next.get());
+                    }
+                } catch (InterruptedException e) {
+                    commitError = e;
+                } catch (ExecutionException e) {
+                    commitError = e.getCause();
+                } catch (IOException e) {
+                    commitError = e;
+                } finally {
+                    synchronized (chunkStartOffsets) {
+                        committerDone = true;
+                        chunkStartOffsets.notifyAll();
+                    }
+                    if (commitError != null) {
+                        // unblock the producer, chunks left will not be written:
+                        encodedChunks.clear();
+                    }
+                }
+            }
+        }, "chunk-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Create a codec and handler for an encoding thread. Handlers keep per-chunk state and cannot be shared
+     * between threads, so a new instance of the handler class installed with setParser is created.
+     */
+    private ChunkCodec newCodec() throws ReflectiveOperationException {
+        final ChunkCodec codec = ChunkCodecHelper.withRegistrationCode(chunkCodec.registrationCode());
+        if (handler != null) {
+            final ProtobuffCollectionHandler threadHandler = handler.getClass().getDeclaredConstructor().newInstance();
+            threadHandler.setUseTemplateCompression(useTemplateCompression);
+            codec.setHandler(threadHandler);
+        }
+        return codec;
+    }
+
+    /**
+     * Write an encoded chunk to the output. Called by the committer thread, in the order chunks were flushed.
+     */
+    private void commit(final ByteArrayOutputStream compressedBytes) throws IOException {
+        final long chunkStartOffset = writtenBytes;
+        out.writeByte(chunkCodec.registrationCode());
+        writtenBytes += 1;
+        for (int i = 0; i < DELIMITER_LENGTH; i++) {
+            out.writeByte(DELIMITER_CONTENT);
+            writtenBytes += 1;
+        }
+        final int serializedSize = compressedBytes.size();
+        out.writeInt(serializedSize);
+        writtenBytes += 4;
+        compressedBytes.writeTo(out);
+        writtenBytes += serializedSize;
+        totalBytesWritten += serializedSize + 4 + DELIMITER_LENGTH;
+        synchronized (chunkStartOffsets) {
+            chunkStartOffsets.add(chunkStartOffset);
+            chunkStartOffsets.notifyAll();
+        }
+    }
+
+    /**
+     * Wait until all the chunks flushed so far have been written, and stop the encoding threads.
+     */
+    private void finishEncoding() throws IOException {
+        if (encoderThreads == null) {
+            return;
+        }
+        try {
+            if (commitError == null) {
+                encodedChunks.put(END_OF_CHUNKS);
+            }
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GobyRuntimeException(e);
+        } finally {
+            encoderThreads.shutdownNow();
+        }
+        checkCommitError();
+        currentChunkStartOffset = chunkStartOffsets.getLong(currentChunkIndex);
+        out.flush();
+    }
+
+    private void checkCommitError() throws IOException {
+        final Throwable error = commitError;
+        if (error != null) {
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            }
+            throw new GobyRuntimeException(error);
+        }
+    }
+
     /**
      * Flush and release resources.
      *
      * @param collectionBuilder The builder prepared with the growing collection of entries.
      * @throws IOException if there is a problem closing the stream unerlying stream
      */
-    public void close(final com.google.protobuf.GeneratedMessage.Builder collectionBuilder)
+    public void close(final com.google.protobuf.GeneratedMessage.Builder<?> collectionBuilder)
             throws IOException {
         flush(collectionBuilder);
+        finishEncoding();
         out.writeByte(0xFF);  // termination codec is always GZIP
         writtenBytes += 1;
         for (int i = 0; i < DELIMITER_LENGTH; i++) {
@@ -296,6 +540,7 @@ public class MessageChunksWriter {
         }
         protobuffCollectionHandler.setUseTemplateCompression(useTemplateCompression);
         chunkCodec.setHandler(protobuffCollectionHandler);
+        handler = protobuffCollectionHandler;
 
         //     chunkCodec = new GZipChunkCodec();
 
@@ -19,11 +19,14 @@
 package org.campagnelab.goby.compression;
 
 import com.google.protobuf.Message;
+import it.unimi.dsi.io.ByteBufferInputStream;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  *  A Chunk coder that does not compress. Useful only as a baseline to determine processing times
@@ -80,6 +83,16 @@ public class NotCompressedChunkCodec implements ChunkCodec {
 
     }
 
+    @Override
+    public Message decode(final ByteBuffer buffer) throws IOException {
+        final InputStream uncompressStream = new ByteBufferInputStream(buffer.slice());
+        try {
+            return parser.parse(uncompressStream);
+        } finally {
+            uncompressStream.close();
+        }
+    }
+
     @Override
     public int getSuggestedChunkSize() {
         return 10000;
@@ -24,6 +24,7 @@ import com.google.protobuf.Message;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  * A mechanism to obtain a protobuff collection from a stream of data. Parsers must know the type of protobuff messages
@@ -64,5 +65,21 @@ public interface ProtobuffCollectionHandler {
      */
     Message decompressCollection(Message reducedProtoBuff, byte[] compressedBytes) throws IOException;
 
+    /**
+     * Take a left-over collection and the compressed bits remaining in a buffer, and reconstitute the original
+     * collection. Handlers that can read from the buffer directly override this method to avoid copying the bits.
+     * The position of the buffer is not changed.
+     * @param reducedProtoBuff
+     * @param compressedBytes
+     * @return
+     * @throws IOException
+     */
+    default Message decompressCollection(final Message reducedProtoBuff, final ByteBuffer compressedBytes)
+            throws IOException {
+        final byte[] bytes = new byte[compressedBytes.remaining()];
+        compressedBytes.duplicate().get(bytes);
+        return decompressCollection(reducedProtoBuff, bytes);
+    }
+
     void setUseTemplateCompression(boolean useTemplateCompression);
 }
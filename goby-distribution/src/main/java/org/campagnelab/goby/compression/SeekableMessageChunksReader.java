@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2009-2010 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.compression;
+
+import java.io.IOException;
+
+/**
+ * A reader of chunks that can seek to any position of its input, such as a file.
+ */
+public abstract class SeekableMessageChunksReader extends MessageChunksReader {
+
+    /**
+     * Seek to the given position in the input.
+     *
+     * @param position Position where to seek to.
+     * @throws IOException If an error occurs reading the input.
+     */
+    public abstract void seek(final long position) throws IOException;
+
+    /**
+     * Flush buffers so that content will be read from the input again.
+     */
+    public abstract void flush();
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.compression;
+
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import com.google.protobuf.Message;
+import it.unimi.dsi.fastutil.io.FastByteArrayInputStream;
+import it.unimi.dsi.io.ByteBufferInputStream;
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.goby.util.dynoptions.DynamicOptionClient;
+import org.campagnelab.goby.util.dynoptions.RegisterThis;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * A Zstandard chunk codec. Compresses the protocol buffer collection with Zstd, which decompresses several times
+ * faster than gzip or bzip2 at a similar compression ratio.
+ * <p/>
+ * Chunks can be compressed with a dictionary, trained with {@link #trainDictionary} or with zstd --train on
+ * serialized collections. Set ZstdChunkCodec:dictionary to the dictionary file when writing, and to the same file
+ * when reading: chunks written with a dictionary cannot be decoded without it.
+ */
+public class ZstdChunkCodec implements ChunkCodec {
+    @RegisterThis
+    public static final DynamicOptionClient doc = new DynamicOptionClient(ZstdChunkCodec.class,
+            "level:integer, Zstd compression level, from 1 (fastest) to 22 (smallest).:3",
+            "dictionary:string, path to a Zstd dictionary used to compress and decompress chunks. Readers must use the dictionary the chunks were written with.:"
+    );
+
+    public static DynamicOptionClient doc() {
+        return doc;
+    }
+
+    public static final byte REGISTRATION_CODE = -7;
+    /**
+     * Magic number that starts a Zstd frame, 0xFD2FB528 in little endian order.
+     */
+    private static final byte[] MAGIC = {(byte) 0x28, (byte) 0xB5, (byte) 0x2F, (byte) 0xFD};
+
+    /**
+     * The dictionary loaded for the current dictionary option. Replaced as a whole when the option changes, so that
+     * codecs read it without locking.
+     */
+    private static volatile Dictionary loadedDictionary = Dictionary.NONE;
+
+    private ProtobuffCollectionHandler parser;
+
+    @Override
+    public void setHandler(final ProtobuffCollectionHandler parser) {
+        this.parser = parser;
+    }
+
+    private final byte[] bytes = new byte[7];
+
+    @Override
+    public boolean validate(final byte c, final DataInputStream input) {
+        try {
+            final int length = 3 + 4;    // remaining 3 bytes of size + magic number 28 B5 2F FD
+            if (input.read(bytes, 0, length) != length) {
+                return false;
+            } else {
+                return bytes[3] == MAGIC[0] && bytes[4] == MAGIC[1] && bytes[5] == MAGIC[2] && bytes[6] == MAGIC[3];
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String name() {
+        return "zstd";
+    }
+
+    @Override
+    public byte registrationCode() {
+        return REGISTRATION_CODE;
+    }
+
+    @Override
+    public ByteArrayOutputStream encode(final Message readCollection) throws IOException {
+        final ByteArrayOutputStream byteBuffer = new ByteArrayOutputStream(10000);
+        final ZstdOutputStream zstdOutputStream = new ZstdOutputStream(byteBuffer, getLevel());
+        final ZstdDictCompress dictionary = getDictionary().compress;
+        if (dictionary != null) {
+            zstdOutputStream.setDict(dictionary);
+        }
+        readCollection.writeTo(zstdOutputStream);
+        zstdOutputStream.close();
+        return byteBuffer;
+    }
+
+    @Override
+    public Message decode(final byte[] bytes) throws IOException {
+        return decode(new FastByteArrayInputStream(bytes));
+    }
+
+    @Override
+    public Message decode(final ByteBuffer buffer) throws IOException {
+        return decode(new ByteBufferInputStream(buffer.slice()));
+    }
+
+    private Message decode(final InputStream compressed) throws IOException {
+        final ZstdInputStream uncompressStream = new ZstdInputStream(compressed);
+        final ZstdDictDecompress dictionary = getDictionary().decompress;
+        if (dictionary != null) {
+            uncompressStream.setDict(dictionary);
+        }
+        try {
+            return parser.parse(uncompressStream);
+        } catch (IOException e) {
+            if (dictionary == null) {
+                throw new IOException("Unable to decompress Zstd chunk. If the chunk was written with a dictionary, "
+                        + "set ZstdChunkCodec:dictionary to this dictionary.", e);
+            }
+            throw e;
+        } finally {
+            uncompressStream.close();
+        }
+    }
+
+    @Override
+    public int getSuggestedChunkSize() {
+        return 10000;
+    }
+
+    /**
+     * Train a dictionary for the Zstd codec.
+     *
+     * @param collections    sample collections, typically decoded from the chunks of an existing file.
+     * @param dictionarySize maximum size of the dictionary, in bytes.
+     * @return the dictionary, to save to the file named by ZstdChunkCodec:dictionary.
+     */
+    public static byte[] trainDictionary(final Iterable<? extends Message> collections, final int dictionarySize) {
+        long sampleSize = 0;
+        for (final Message collection : collections) {
+            sampleSize += collection.getSerializedSize();
+        }
+        final ZstdDictTrainer trainer = new ZstdDictTrainer((int) Math.min(Integer.MAX_VALUE, sampleSize),
+                dictionarySize);
+        for (final Message collection : collections) {
+            trainer.addSample(collection.toByteArray());
+        }
+        return trainer.trainSamples();
+    }
+
+    private static int getLevel() {
+        final Integer level = doc().getInteger("level");
+        return level == null ? 3 : level;
+    }
+
+    /**
+     * Return the dictionary named by the dictionary option, loading it when the option changed. Dictionaries are
+     * shared by all instances of the codec. The lock is only taken to load a dictionary.
+     */
+    private static Dictionary getDictionary() throws IOException {
+        final String path = doc().getString("dictionary");
+        final int level = getLevel();
+        Dictionary dictionary = loadedDictionary;
+        if (!dictionary.matches(path, level)) {
+            synchronized (ZstdChunkCodec.class) {
+                dictionary = loadedDictionary;
+                if (!dictionary.matches(path, level)) {
+                    dictionary = Dictionary.load(path, level);
+                    loadedDictionary = dictionary;
+                }
+            }
+        }
+        return dictionary;
+    }
+
+    /**
+     * A dictionary prepared for compression at a given level and for decompression.
+     */
+    private static final class Dictionary {
+        private static final Dictionary NONE = new Dictionary(null, 0, null, null);
+
+        private final String path;
+        private final int level;
+        private final ZstdDictCompress compress;
+        private final ZstdDictDecompress decompress;
+
+        private Dictionary(final String path, final int level, final ZstdDictCompress compress,
+                           final ZstdDictDecompress decompress) {
+            this.path = path;
+            this.level = level;
+            this.compress = compress;
+            this.decompress = decompress;
+        }
+
+        private static Dictionary load(final String path, final int level) throws IOException {
+            if (path == null || path.length() == 0) {
+                return NONE;
+            }
+            final byte[] dictionary = FileUtils.readFileToByteArray(new File(path));
+            return new Dictionary(path, level, new ZstdDictCompress(dictionary, level),
+                    new ZstdDictDecompress(dictionary));
+        }
+
+        private boolean matches(final String path, final int level) {
+            if (path == null || path.length() == 0) {
+                return this.path == null;
+            }
+            return path.equals(this.path) && level == this.level;
+        }
+    }
+}
@@ -61,6 +61,7 @@ public class AlignmentToPileupMode extends AbstractGobyMode {
      */
     private int numberOfReadIndices[];
     private int startFlapSize;
+    private boolean useCircularWindow;
     private RandomAccessSequenceCache genome;
 
     @Override
@@ -87,6 +88,10 @@ public class AlignmentToPileupMode extends AbstractGobyMode {
         outputFormat = format;
     }
 
+    public void setUseCircularWindow(boolean useCircularWindow) {
+        this.useCircularWindow = useCircularWindow;
+    }
+
     
 
     public enum OutputFormat {
@@ -114,8 +119,10 @@ public class AlignmentToPileupMode extends AbstractGobyMode {
         readerIndexToGroupIndex = new int[inputFilenames.length];
 
         startFlapSize = jsapResult.getInt("start-flap-size");
+        useCircularWindow = jsapResult.getBoolean("circular-window", false);
         sortedPositionIterator = new IterateSortedAlignmentsToPileup();
         sortedPositionIterator.setStartFlapLength(startFlapSize);
+        sortedPositionIterator.setUseCircularWindow(useCircularWindow);
         sortedPositionIterator.parseIncludeReferenceArgument(jsapResult);
 
         String genomeBasename=jsapResult.getString("genome");
@@ -135,6 +142,7 @@ public class AlignmentToPileupMode extends AbstractGobyMode {
     public void initializeIterator(String startPositionDefinition,String endPositionDefinition) {
         sortedPositionIterator = new IterateSortedAlignmentsToPileup();
         sortedPositionIterator.setStartFlapLength(startFlapSize);
+        sortedPositionIterator.setUseCircularWindow(useCircularWindow);
         sortedPositionIterator.setStartPositionArgument(startPositionDefinition);
         sortedPositionIterator.setEndPositionArgument(endPositionDefinition);
 
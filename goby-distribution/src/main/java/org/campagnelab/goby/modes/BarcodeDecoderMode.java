@@ -25,8 +25,7 @@ import org.campagnelab.goby.readers.FastXReader;
 import org.campagnelab.goby.reads.*;
 import org.campagnelab.goby.util.barcode.BarcodeMatcher;
 import org.campagnelab.goby.util.barcode.BarcodeMatcherResult;
-import org.campagnelab.goby.util.barcode.PostBarcodeMatcher;
-import org.campagnelab.goby.util.barcode.PreBarcodeMatcher;
+import org.campagnelab.goby.util.barcode.IndexedBarcodeMatcher;
 import edu.cornell.med.icb.io.TSVReader;
 import it.unimi.dsi.fastutil.bytes.ByteArrayList;
 import it.unimi.dsi.fastutil.bytes.ByteList;
@@ -35,12 +34,23 @@ import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.lang.MutableString;
 import it.unimi.dsi.logging.ProgressLogger;
+import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Fabien Campagne
@@ -93,6 +103,16 @@ public class BarcodeDecoderMode extends AbstractGobyMode {
     private String outputFilename;
     private int minimalMatchLength;
 
+    /**
+     * Number of threads used to decode a single .compact-reads input, -1 for one per available processor.
+     */
+    private int numThreads = 1;
+
+    /**
+     * Number of byte slices of the input decoded by each thread, so that threads finish at about the same time.
+     */
+    private static final int SLICES_PER_THREAD = 4;
+
     @Override
     public String getModeName() {
         return MODE_NAME;
@@ -154,6 +174,7 @@ public class BarcodeDecoderMode extends AbstractGobyMode {
         }
         minimalMatchLength = jsapResult.getInt("minimal-match-length");
         maxMismatches = jsapResult.getInt("max-mismatches");
+        numThreads = jsapResult.getInt("num-threads");
 
         return this;
     }
@@ -163,66 +184,39 @@ public class BarcodeDecoderMode extends AbstractGobyMode {
         progress = new ProgressLogger(LOG);
         loadBarcodeInfo(barcodeInfoFilename);
 
-
-        ReadsWriter singleWriter = null;
-        final ReadsWriterImpl[] writers = new ReadsWriterImpl[barcodeIndexToSampleId.size()];
-        if (outputFilename == null) {
-            for (int i = 0; i < writers.length; i++) {
-                writers[i] = new ReadsWriterImpl(new FileOutputStream(barcodeIndexToSampleId.get(i).trim() + ".compact-reads"));
-            }
+        final IndexedBarcodeMatcher matcher = new IndexedBarcodeMatcher(barcodes, minimalMatchLength, maxMismatches,
+                is3Prime);
+        final int threads = numThreads == -1 ? Runtime.getRuntime().availableProcessors() : numThreads;
+        final DecodeCounts counts;
+        if (threads > 1 && inputFilenames.length == 1 &&
+                inputFilenames[0].toLowerCase().endsWith(".compact-reads")) {
+            counts = decodeInParallel(inputFilenames[0], matcher, threads);
         } else {
-            singleWriter = new ReadsWriterImpl(new FileOutputStream(outputFilename));
+            counts = decode(matcher);
         }
+        System.out.format("barcode found in %g %% of the reads %n",
+                percent(counts.matched, counts.matched + counts.noMatch));
+        System.out.format("Found %g %% ambiguous matches %n", percent(counts.ambiguous, counts.matched));
+    }
 
-        final BarcodeMatcher matcher = is3Prime ? new PostBarcodeMatcher(barcodes, minimalMatchLength, maxMismatches) :
-                new PreBarcodeMatcher(barcodes, minimalMatchLength, maxMismatches);
-
-        final MutableString sequence = new MutableString();
-        final ByteList qualitiesNoBarcode = new ByteArrayList();
+    /**
+     * Decode all the input files on the calling thread.
+     */
+    private DecodeCounts decode(final BarcodeMatcher matcher) throws IOException {
+        final DecodeCounts counts = new DecodeCounts();
+        final SampleWriters writers = new SampleWriters(null);
         try {
-            int countMatched = 0;
-            int countNoMatch = 0;
-            int countAmbiguous = 0;
+            writers.createAll();
+            final MutableString sequence = new MutableString();
+            final ByteList qualitiesNoBarcode = new ByteArrayList();
             final boolean retainReadIndex = inputFilenames.length == 1;
             progress.displayFreeMemory = true;
             for (final String inputReadsFilename : inputFilenames) {
                 if (inputReadsFilename.toLowerCase().endsWith(".compact-reads")) {
                     progress.start("Progressing .compact-reads file " + inputReadsFilename);
                     for (final Reads.ReadEntry readEntry : new ReadsReader(inputReadsFilename)) {
-                        ReadsReader.decodeSequence(readEntry, sequence);
-                        final BarcodeMatcherResult match = matcher.matchSequence(sequence);
-                        if (match != null) {
-                            // remove the barcode from the sequence:
-                            final int barcodeIndex = match.getBarcodeIndex();
-                            if (match.isAmbiguous()) {
-                                ++countAmbiguous;
-                            }
-                            final ReadsWriter writer = outputFilename == null ? writers[barcodeIndex] : singleWriter;
-                            writer.setSequence(match.sequenceOf(sequence));
-                            writer.setBarcodeIndex(barcodeIndex);
-
-                            if (readEntry.hasDescription()) {
-                                writer.setDescription(readEntry.getDescription());
-                            }
-                            if (readEntry.hasReadIdentifier()) {
-                                writer.setIdentifier(readEntry.getReadIdentifier());
-                            }
-                            if (readEntry.hasQualityScores()) {
-                                qualitiesNoBarcode.clear();
-                                qualitiesNoBarcode.addElements(0, readEntry.getQualityScores().toByteArray(),
-                                        match.getSequenceStartPosition(),
-                                        match.getSequenceStartPosition() + match.getSequenceLength());
-                                writer.setQualityScores(qualitiesNoBarcode.toByteArray());
-                            }
-                            if (retainReadIndex) {
-                                writer.appendEntry(readEntry.getReadIndex());
-                            } else {
-                                writer.appendEntry();
-                            }
-                            ++countMatched;
-                        } else {
-                            ++countNoMatch;
-                        }
+                        decodeEntry(readEntry, matcher, writers, retainReadIndex, sequence, qualitiesNoBarcode,
+                                counts);
                         progress.lightUpdate();
                     }
                     progress.stop();
@@ -236,9 +230,9 @@ public class BarcodeDecoderMode extends AbstractGobyMode {
                             // remove the barcode from the sequence:
                             final int barcodeIndex = match.getBarcodeIndex();
                             if (match.isAmbiguous()) {
-                                ++countAmbiguous;
+                                ++counts.ambiguous;
                             }
-                            final ReadsWriter writer = outputFilename == null ? writers[barcodeIndex] : singleWriter;
+                            final ReadsWriter writer = writers.get(barcodeIndex);
                             writer.setSequence(match.sequenceOf(readEntry.getSequence()));
                             writer.setBarcodeIndex(barcodeIndex);
 
@@ -258,33 +252,248 @@ public class BarcodeDecoderMode extends AbstractGobyMode {
                                         false, apiMode));
                             }
                             writer.appendEntry();
-                            ++countMatched;
+                            ++counts.matched;
                         } else {
-                            ++countNoMatch;
+                            ++counts.noMatch;
                         }
                         progress.lightUpdate();
                     }
                     progress.stop();
                 }
             }
-            System.out.format("barcode found in %g %% of the reads %n", percent(countMatched, countMatched + countNoMatch));
-            System.out.format("Found %g %% ambiguous matches %n", percent(countAmbiguous, countMatched));
+        } finally {
+            writers.close();
         }
-        finally {
-            for (int i = 0; i < writers.length; i++) {
-                if (writers[i] != null) {
-                    writers[i].close();
+        return counts;
+    }
+
+    /**
+     * Decode a compact-reads file in parallel. The file is split in byte slices, each slice is decoded by one task
+     * into its own part files, and the part files of each output are concatenated in slice order. Read indices are
+     * retained, so the outputs are identical to those of a sequential decoding.
+     */
+    private DecodeCounts decodeInParallel(final String inputReadsFilename, final IndexedBarcodeMatcher matcher,
+                                          final int threads) throws IOException {
+        final long fileLength = new File(inputReadsFilename).length();
+        final int numSlices = threads * SLICES_PER_THREAD;
+        final SampleWriters[] sliceWriters = new SampleWriters[numSlices];
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final DecodeCounts counts = new DecodeCounts();
+        boolean completed = false;
+        try {
+            final List<Future<DecodeCounts>> futures = new ArrayList<Future<DecodeCounts>>(numSlices);
+            for (int slice = 0; slice < numSlices; slice++) {
+                final long start = fileLength * slice / numSlices;
+                final long end = fileLength * (slice + 1) / numSlices;
+                final SampleWriters writers = new SampleWriters(".part-" + slice);
+                sliceWriters[slice] = writers;
+                futures.add(executor.submit(new Callable<DecodeCounts>() {
+                    @Override
+                    public DecodeCounts call() throws IOException {
+                        final DecodeCounts sliceCounts = new DecodeCounts();
+                        final BarcodeMatcher sliceMatcher = new IndexedBarcodeMatcher(matcher);
+                        final MutableString sequence = new MutableString();
+                        final ByteList qualitiesNoBarcode = new ByteArrayList();
+                        final ReadsReader reader = new ReadsReader(start, end, inputReadsFilename);
+                        try {
+                            for (final Reads.ReadEntry readEntry : reader) {
+                                if (Thread.interrupted()) {
+                                    // another slice failed, stop writing to the part files:
+                                    throw new InterruptedIOException("Decoding of slice interrupted.");
+                                }
+                                decodeEntry(readEntry, sliceMatcher, writers, true, sequence, qualitiesNoBarcode,
+                                        sliceCounts);
+                            }
+                        } finally {
+                            reader.close();
+                            writers.close();
+                        }
+                        return sliceCounts;
+                    }
+                }));
+            }
+            progress.expectedUpdates = numSlices;
+            progress.start(String.format("Progressing .compact-reads file %s in %d slices with %d threads",
+                    inputReadsFilename, numSlices, threads));
+            for (final Future<DecodeCounts> future : futures) {
+                try {
+                    counts.add(future.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause());
+                }
+                progress.update();
+            }
+            progress.stop();
+            for (int output = 0; output < sliceWriters[0].files.length; output++) {
+                final List<File> parts = new ArrayList<File>(numSlices);
+                for (final SampleWriters writers : sliceWriters) {
+                    if (writers.files[output] != null) {
+                        parts.add(writers.files[output]);
+                    }
+                }
+                final File outputFile = new File(sliceWriters[0].getFilename(output));
+                if (parts.isEmpty()) {
+                    new ReadsWriterImpl(new FileOutputStream(outputFile)).close();
+                } else {
+                    ConcatenateCompactReadsMode.quickConcat(parts, outputFile);
                 }
             }
-            if (outputFilename != null) {
-                singleWriter.close();
+            completed = true;
+        } finally {
+            executor.shutdownNow();
+            // slices still running must stop writing before their writers are closed and their files deleted:
+            awaitTermination(executor);
+            for (final SampleWriters writers : sliceWriters) {
+                if (writers != null) {
+                    if (!completed) {
+                        writers.close();
+                    }
+                    writers.deleteFiles();
+                }
             }
+        }
+        return counts;
+    }
 
+    /**
+     * Wait for the tasks of a pool that was shut down to finish, even if the calling thread is interrupted.
+     */
+    private static void awaitTermination(final ExecutorService executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
+    }
+
+    /**
+     * Match one compact-reads entry and write it to the writer of its barcode, without the barcode.
+     */
+    private static void decodeEntry(final Reads.ReadEntry readEntry, final BarcodeMatcher matcher,
+                                    final SampleWriters writers, final boolean retainReadIndex,
+                                    final MutableString sequence, final ByteList qualitiesNoBarcode,
+                                    final DecodeCounts counts) throws IOException {
+        ReadsReader.decodeSequence(readEntry, sequence);
+        final BarcodeMatcherResult match = matcher.matchSequence(sequence);
+        if (match != null) {
+            // remove the barcode from the sequence:
+            final int barcodeIndex = match.getBarcodeIndex();
+            if (match.isAmbiguous()) {
+                ++counts.ambiguous;
+            }
+            final ReadsWriter writer = writers.get(barcodeIndex);
+            writer.setSequence(match.sequenceOf(sequence));
+            writer.setBarcodeIndex(barcodeIndex);
+
+            if (readEntry.hasDescription()) {
+                writer.setDescription(readEntry.getDescription());
+            }
+            if (readEntry.hasReadIdentifier()) {
+                writer.setIdentifier(readEntry.getReadIdentifier());
+            }
+            if (readEntry.hasQualityScores()) {
+                qualitiesNoBarcode.clear();
+                qualitiesNoBarcode.addElements(0, readEntry.getQualityScores().toByteArray(),
+                        match.getSequenceStartPosition(),
+                        match.getSequenceStartPosition() + match.getSequenceLength());
+                writer.setQualityScores(qualitiesNoBarcode.toByteArray());
+            }
+            if (retainReadIndex) {
+                writer.appendEntry(readEntry.getReadIndex());
+            } else {
+                writer.appendEntry();
+            }
+            ++counts.matched;
+        } else {
+            ++counts.noMatch;
+        }
+    }
 
+    /**
+     * Number of reads matched, not matched and ambiguous.
+     */
+    private static final class DecodeCounts {
+        long matched;
+        long noMatch;
+        long ambiguous;
+
+        void add(final DecodeCounts other) {
+            matched += other.matched;
+            noMatch += other.noMatch;
+            ambiguous += other.ambiguous;
+        }
     }
 
-    private double percent(final int countMatched, final int total) {
+    /**
+     * Writers of the outputs: one per sample, or a single one when an output filename was provided. Writers are
+     * created when the first read is written to them.
+     */
+    private final class SampleWriters {
+        private final String suffix;
+        private final ReadsWriter[] writers;
+        private final File[] files;
+
+        /**
+         * @param suffix appended to the output filenames, or null to write the outputs themselves.
+         */
+        SampleWriters(final String suffix) {
+            this.suffix = suffix;
+            final int numOutputs = outputFilename == null ? barcodeIndexToSampleId.size() : 1;
+            writers = new ReadsWriter[numOutputs];
+            files = new File[numOutputs];
+        }
+
+        String getFilename(final int output) {
+            return outputFilename == null ? barcodeIndexToSampleId.get(output).trim() + ".compact-reads" :
+                    outputFilename;
+        }
+
+        ReadsWriter get(final int barcodeIndex) throws IOException {
+            final int output = outputFilename == null ? barcodeIndex : 0;
+            if (writers[output] == null) {
+                final String filename = getFilename(output);
+                files[output] = new File(suffix == null ? filename : filename + suffix);
+                writers[output] = new ReadsWriterImpl(new FileOutputStream(files[output]));
+            }
+            return writers[output];
+        }
+
+        void createAll() throws IOException {
+            for (int output = 0; output < writers.length; output++) {
+                get(output);
+            }
+        }
+
+        void close() throws IOException {
+            for (int output = 0; output < writers.length; output++) {
+                if (writers[output] != null) {
+                    writers[output].close();
+                    writers[output] = null;
+                }
+            }
+        }
+
+        void deleteFiles() {
+            for (final File file : files) {
+                if (file != null) {
+                    FileUtils.deleteQuietly(file);
+                }
+            }
+        }
+    }
+
+    private double percent(final long countMatched, final long total) {
         return (double) countMatched / (double) total * 100d;
     }
 
@@ -310,6 +519,25 @@ public class BarcodeDecoderMode extends AbstractGobyMode {
         }
     }
 
+    /**
+     * Get the number of threads used to decode a single .compact-reads input.
+     *
+     * @return the number of threads, -1 for one per available processor.
+     */
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * Set the number of threads used to decode a single .compact-reads input. Other inputs are always decoded on a
+     * single thread.
+     *
+     * @param numThreads the number of threads, -1 for one per available processor.
+     */
+    public void setNumThreads(final int numThreads) {
+        this.numThreads = numThreads;
+    }
+
     /**
      * Get the quality encoding scale used for the input fastq file.
      *
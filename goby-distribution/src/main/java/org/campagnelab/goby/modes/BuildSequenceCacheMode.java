@@ -59,6 +59,11 @@ public class BuildSequenceCacheMode extends AbstractGobyMode {
 
     private String basename;
 
+    /**
+     * Whether to also write the cache in the format read by earlier versions of Goby.
+     */
+    private boolean legacyFormat;
+
     @Override
     public String getModeName() {
         return MODE_NAME;
@@ -83,6 +88,7 @@ public class BuildSequenceCacheMode extends AbstractGobyMode {
 
         inputFile = jsapResult.getString("input");
         basename = jsapResult.getString("basename");
+        legacyFormat = jsapResult.getBoolean("legacy-format");
         if (basename==null) {
             String filename=inputFile;
             if (filename.endsWith(".gz")) {
@@ -123,7 +129,7 @@ public class BuildSequenceCacheMode extends AbstractGobyMode {
             }
 
             System.out.println("Done loading input. Starting to write random access cacheBuilder.");
-            cacheBuilder.save(basename);
+            cacheBuilder.save(basename, legacyFormat);
             System.out.println("Compressed genome was written to basename "+basename);
         } finally {
             IOUtils.closeQuietly(input);
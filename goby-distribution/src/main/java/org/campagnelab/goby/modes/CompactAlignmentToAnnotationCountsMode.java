@@ -22,6 +22,8 @@ import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
 import org.campagnelab.goby.algorithmic.algorithm.AnnotationCountInterface;
 import org.campagnelab.goby.algorithmic.algorithm.AnnotationCountIterateAlignments;
+import org.campagnelab.goby.algorithmic.algorithm.AnnotationIntervalCounts;
+import org.campagnelab.goby.algorithmic.algorithm.ConstitutiveSegments;
 import org.campagnelab.goby.algorithmic.data.Annotation;
 import org.campagnelab.goby.algorithmic.data.GroupComparison;
 import org.campagnelab.goby.algorithmic.data.Segment;
@@ -39,11 +41,10 @@ import edu.cornell.med.icb.identifier.DoubleIndexedIdentifier;
 import edu.rit.pj.IntegerForLoop;
 import edu.rit.pj.ParallelRegion;
 import edu.rit.pj.ParallelTeam;
-import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
-import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.ints.IntSet;
 import it.unimi.dsi.fastutil.ints.IntSortedSet;
 import it.unimi.dsi.fastutil.objects.*;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
@@ -123,6 +124,7 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
      */
     private String infoOutputFilename;
     private boolean removeSharedSegments;
+    private boolean cacheConstitutiveSegments;
     /**
      * List of comparisons to perform.
      */
@@ -160,6 +162,7 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
         outputFilename = jsapResult.getString("output");
         filterAmbiguousReads = jsapResult.getBoolean("filter-ambiguous-reads");
         removeSharedSegments = jsapResult.getBoolean("remove-shared-segments");
+        cacheConstitutiveSegments = !jsapResult.getBoolean("do-not-cache-constitutive-segments");
 
         if (filterAmbiguousReads) {
             System.out.println("Ambiguous reads will not be considered when estimating count statistics.");
@@ -338,6 +341,11 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
 
     GenomicRange genomicRange = null;
 
+    /**
+     * Gene, exon and intron intervals of each chromosome, shared by all the samples.
+     */
+    private Object2ObjectMap<String, AnnotationIntervalCounts> annotationIntervals;
+
     /**
      * Run the mode.
      *
@@ -352,8 +360,11 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
                 System.exit(1);
             }
         }
-        final Object2ObjectMap<String, ObjectList<Annotation>> allAnnots = filterAnnotations(removeNonConstitutiveSegments(
-                readAnnotations(annotationFile)), genomicRange);
+        final Object2ObjectMap<String, ObjectList<Annotation>> allAnnots = filterAnnotations(loadAnnotations(), genomicRange);
+        annotationIntervals = new Object2ObjectOpenHashMap<String, AnnotationIntervalCounts>();
+        for (final Map.Entry<String, ObjectList<Annotation>> entry : allAnnots.entrySet()) {
+            annotationIntervals.put(entry.getKey(), new AnnotationIntervalCounts(entry.getValue()));
+        }
 
         final Timer timer = new Timer();
         timer.start();
@@ -400,37 +411,41 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
     }
 
     /**
-     * Remove segments of an annotation when they overlap with other annotations. This keep only segments that uniquely
-     * tag a gene/transcript. Single base overlaps are sufficient to trigger the exclusion of an entire segment (secondary id).
+     * Read the annotation file. When shared segments must be removed, remove segments of an annotation when they
+     * overlap with other annotations. This keep only segments that uniquely tag a gene/transcript. Single base overlaps
+     * are sufficient to trigger the exclusion of an entire segment (secondary id). The constitutive annotations are
+     * cached next to the annotation file, in a file named after the checksum of the annotation file, and later runs
+     * read them from the cache.
      *
-     * @param annotations annotations read from disk
-     * @return
+     * @return annotations grouped by chromosome.
      */
-    private Object2ObjectMap<String, ObjectList<Annotation>> removeNonConstitutiveSegments(final Object2ObjectMap<String,
-            ObjectList<Annotation>> annotations) {
+    private Object2ObjectMap<String, ObjectList<Annotation>> loadAnnotations() throws IOException {
         if (!removeSharedSegments) {
-            return annotations;
-        }
-        final Int2ObjectMap<ObjectSet<String>> positionMap = new Int2ObjectOpenHashMap<ObjectSet<String>>();
-        positionMap.defaultReturnValue(new ObjectOpenHashSet<String>());
-
-        for (final String chromosome : annotations.keySet()) {
-            positionMap.clear();
-            for (final Annotation annotation : annotations.get(chromosome)) {
-                for (final Segment element : annotation.getSegments()) {
-                    for (int i = element.getStart(); i < element.getEnd(); i++) {
-                        final ObjectSet<String> setOfGenes = positionMap.get(i);
-                        setOfGenes.add(annotation.getId());
-                        if (setOfGenes.size() > 1) {
-                            annotation.remove(element);
-                            if (annotation.getSegments().isEmpty()) {
-                                // no more segments. Remove the annotation entirely.
-                                annotations.get(chromosome).remove(annotation);
-                            }
-                            break;
-                        }
-                    }
+            return readAnnotations(annotationFile);
+        }
+        File cacheFile = null;
+        if (cacheConstitutiveSegments) {
+            final File file = new File(annotationFile);
+            cacheFile = new File(file.getPath() + String.format(".constitutive-%08x-%d.tsv",
+                    FileUtils.checksumCRC32(file), file.length()));
+            if (cacheFile.exists()) {
+                System.out.println("Reading constitutive segments from " + cacheFile);
+                return readAnnotations(cacheFile.getPath());
+            }
+        }
+        final Object2ObjectMap<String, ObjectList<Annotation>> annotations = readAnnotations(annotationFile);
+        ConstitutiveSegments.removeSharedSegments(annotations);
+        if (cacheFile != null) {
+            final File tmpFile = new File(cacheFile.getPath() + ".tmp");
+            try {
+                writeAnnotations(annotations, new FileWriter(tmpFile));
+                if (!tmpFile.renameTo(cacheFile)) {
+                    // another run may have created the cache already.
+                    FileUtils.deleteQuietly(tmpFile);
                 }
+            } catch (IOException e) {
+                LOG.warn("Unable to cache constitutive segments to " + cacheFile, e);
+                FileUtils.deleteQuietly(tmpFile);
             }
         }
         return annotations;
@@ -662,9 +677,7 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
             }
 
             final ObjectList<Annotation> annots = allAnnots.get(chromosomeName);
-            algs[referenceIndex].sortReads();
-            algs[referenceIndex].accumulate();
-            algs[referenceIndex].baseCount();
+            final AnnotationIntervalCounts.Counts counts = annotationIntervals.get(chromosomeName).count(algs[referenceIndex]);
             if (doComparison) {
                 for (final Annotation annot : annots) {
                     final String geneID = annot.getId();
@@ -676,17 +689,17 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
             // get just the filename (strip the path, not the extension)
             final String basename = FilenameUtils.getName(inputBasename);
             final String sampleId = inputBasename;
-            for (final Annotation annot : annots) {
+            for (int annotationIndex = 0; annotationIndex < annots.size(); annotationIndex++) {
+                final Annotation annot = annots.get(annotationIndex);
                 final String geneID = annot.getId();
 
                 if (includeAnnotationTypes.contains("gene")) {
                     final int geneStart = annot.getStart();
                     final int geneEnd = annot.getEnd();
                     final int geneLength = geneEnd - geneStart + 1;
-                    final float geneDepth = algs[referenceIndex].averageReadsPerPosition(geneStart, geneEnd);
-                    final double geneOverlapReads = algs[referenceIndex].countReadsPartiallyOverlappingWithInterval(geneStart, geneEnd);
-                    final double geneInsideReads = algs[referenceIndex].countReadsStriclyWithinInterval(geneStart, geneEnd);
-                    final double geneExpression = algs[referenceIndex].geneExpressionCount(annot);
+                    final double geneOverlapReads = counts.getGeneOverlapCount(annotationIndex);
+                    final double geneInsideReads = counts.getGeneWithinCount(annotationIndex);
+                    final double geneExpression = counts.getGeneExpression(annotationIndex);
 
                     final int numExons = annot.getSegments().size();
 
@@ -728,9 +741,8 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
                         final String exonStrand = segment.getStrand();
                         final int exonLength = segment.getLength();
                         final String exonID = segment.getId();
-                        final float exonDepth = algs[referenceIndex].averageReadsPerPosition(exonStart, exonEnd);
-                        final double exonOverlapReads = algs[referenceIndex].countReadsPartiallyOverlappingWithInterval(exonStart, exonEnd);
-                        final double exonInsideReads = algs[referenceIndex].countReadsStriclyWithinInterval(exonStart, exonEnd);
+                        final double exonOverlapReads = counts.getExonOverlapCount(annotationIndex, i);
+                        final double exonInsideReads = counts.getExonWithinCount(annotationIndex, i);
                         final double exonRPKM = deCalculator.calculateNormalized(exonOverlapReads, segment.getLength(), deCalculator.getNumAlignedInSample(sampleId));
                         if (includeAnnotationTypes.contains("exon")) {
                             if (writeAnnotationCounts) {
@@ -760,9 +772,8 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
                             final int intronEnd = intronSegment.getStart() - 1;
                             final int intronLength = intronEnd - intronStart + 1;
                             final String intronID = segment.getId() + "-" + intronSegment.getId();
-                            final float intronDepth = algs[referenceIndex].averageReadsPerPosition(intronStart, intronEnd);
-                            final double intronOverlapReads = algs[referenceIndex].countReadsPartiallyOverlappingWithInterval(intronStart, intronEnd);
-                            final double intronInsideReads = algs[referenceIndex].countReadsStriclyWithinInterval(intronStart, intronEnd);
+                            final double intronOverlapReads = counts.getIntronOverlapCount(annotationIndex, i);
+                            final double intronInsideReads = counts.getIntronWithinCount(annotationIndex, i);
                             final double intronRPKM = deCalculator.calculateNormalized(intronOverlapReads, intronSegment.getLength(), deCalculator.getNumAlignedInSample(sampleId));
                             if (intronLength > 0) {
                                 if (includeAnnotationTypes.contains("intron")) {
@@ -898,6 +909,37 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
         return allAnnots;
     }
 
+    /**
+     * Write annotations in the tab delimited format read by {@link #readAnnotations(java.io.Reader)}, one row per
+     * segment.
+     *
+     * @param annotations annotations grouped by chromosome.
+     * @param annotWriter where to write the annotations. Closed by this method.
+     * @throws IOException
+     */
+    public static void writeAnnotations(final Object2ObjectMap<String, ObjectList<Annotation>> annotations,
+                                        final Writer annotWriter) throws IOException {
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(annotWriter);
+            writer.write("Chromosome Name\tStrand\tEnsembl Gene ID\tEnsembl Exon ID\tExon Chr Start (bp)\tExon Chr End (bp)\n");
+            for (final ObjectList<Annotation> list : annotations.values()) {
+                for (final Annotation annotation : list) {
+                    for (final Segment segment : annotation.getSegments()) {
+                        writer.write(String.format("%s\t%s\t%s\t%s\t%d\t%d%n", annotation.getChromosome(),
+                                segment.getStrand(), annotation.getId(), segment.getId(), segment.getStart(),
+                                segment.getEnd()));
+                    }
+                }
+            }
+            // closing flushes the buffered rows, errors must reach the caller:
+            writer.close();
+            writer = null;
+        } finally {
+            IOUtils.closeQuietly(writer);
+        }
+    }
+
     /**
      * Main method.
      *
@@ -212,7 +212,13 @@ public class CompactAlignmentToCountsMode extends AbstractGobyMode {
         final int numberOfReferences = reader.getNumberOfTargets();
 
         final DoubleIndexedIdentifier referenceIds = new DoubleIndexedIdentifier(reader.getTargetIdentifiers());
+        final boolean sorted = reader.isSorted();
         reader.close();
+        if (sorted && accumulatePeakHistogram && !weightParams.useWeights) {
+            // coverage of sorted alignments can be computed with a sweep line, in constant memory:
+            processSortedAlignment(basename, numberOfReferences, referenceIds);
+            return;
+        }
         //System.out.println(String.format("Alignment contains %d reference sequences", numberOfReferences));
         final ComputeCountInterface[] algs = new ComputeCountInterface[numberOfReferences];
         final CountsArchiveWriter countArchive;
@@ -255,12 +261,13 @@ public class CompactAlignmentToCountsMode extends AbstractGobyMode {
             }
         }
 
-        final AlignmentReader referenceReader = new AlignmentReaderImpl(basename);
+        final AlignmentReaderImpl referenceReader = new AlignmentReaderImpl(basename);
         referenceReader.readHeader();
 
-        // read the alignment:
+        // read the alignment, through a cursor to avoid creating an entry object per alignment:
         //   System.out.println("Loading the alignment..");
-        for (final Alignments.AlignmentEntry alignmentEntry : referenceReader) {
+        final AlignmentEntryCursor alignmentEntry = new AlignmentEntryCursor(referenceReader);
+        while (alignmentEntry.next()) {
             final int referenceIndex = alignmentEntry.getTargetIndex();
             if (referencesToProcess.contains(referenceIndex)) {
                 final int startPosition = alignmentEntry.getPosition();
@@ -274,7 +281,7 @@ public class CompactAlignmentToCountsMode extends AbstractGobyMode {
             }
         }
 
-        reader.close();
+        referenceReader.close();
         final Timer timer = new Timer();
         timer.start();
         for (final int referenceIndex : referencesToProcess) {
@@ -297,6 +304,76 @@ public class CompactAlignmentToCountsMode extends AbstractGobyMode {
         System.out.println(timer);
     }
 
+    /**
+     * Compute the coverage of a sorted alignment, writing the counts of each reference sequence as the alignment is
+     * read.
+     */
+    private void processSortedAlignment(final String basename, final int numberOfReferences,
+                                        final DoubleIndexedIdentifier referenceIds) throws IOException {
+        final IntSet referencesToProcess = new IntOpenHashSet();
+        for (int referenceIndex = 0; referenceIndex < numberOfReferences; referenceIndex++) {
+            if (!filterByReferenceNames || includeReferenceNames.contains(referenceIds.getId(referenceIndex).toString())) {
+                referencesToProcess.add(referenceIndex);
+            }
+        }
+        final CountsArchiveWriter countArchive = new CountsArchiveWriter(basename, countArchiveModifier);
+        countArchive.setVerbose(verbose);
+        final Timer timer = new Timer();
+        timer.start();
+        final AlignmentReaderImpl referenceReader = new AlignmentReaderImpl(basename);
+        referenceReader.readHeader();
+        final AlignmentEntryCursor alignmentEntry = new AlignmentEntryCursor(referenceReader);
+        final IntSet referencesWritten = new IntOpenHashSet();
+        int currentReferenceIndex = -1;
+        CountsWriterI countsWriterI = null;
+        StreamingComputeCount algo = null;
+        while (alignmentEntry.next()) {
+            final int referenceIndex = alignmentEntry.getTargetIndex();
+            if (!referencesToProcess.contains(referenceIndex)) {
+                continue;
+            }
+            if (referenceIndex != currentReferenceIndex) {
+                if (referencesWritten.contains(referenceIndex)) {
+                    throw new IllegalStateException("The alignment is not sorted: entries of reference "
+                            + referenceIds.getId(referenceIndex) + " are not contiguous.");
+                }
+                if (algo != null) {
+                    algo.close();
+                    countArchive.returnWriter(countsWriterI);
+                }
+                final String chromosomeName = referenceIds.getId(referenceIndex).toString();
+                if (verbose) {
+                    System.out.println("Writing counts for reference " + chromosomeName);
+                }
+                countsWriterI = countArchive.newCountWriter(referenceIndex, chromosomeName);
+                algo = new StreamingComputeCount(countsWriterI);
+                referencesWritten.add(referenceIndex);
+                currentReferenceIndex = referenceIndex;
+            }
+            final int startPosition = alignmentEntry.getPosition();
+            final int alignmentLength = alignmentEntry.getTargetAlignedLength();
+            for (int i = 0; i < alignmentEntry.getMultiplicity(); ++i) {
+                algo.populate(startPosition, startPosition + alignmentLength);
+            }
+        }
+        referenceReader.close();
+        if (algo != null) {
+            algo.close();
+            countArchive.returnWriter(countsWriterI);
+        }
+        // references without alignments have empty counts:
+        for (final int referenceIndex : referencesToProcess) {
+            if (!referencesWritten.contains(referenceIndex)) {
+                countsWriterI = countArchive.newCountWriter(referenceIndex, referenceIds.getId(referenceIndex).toString());
+                new StreamingComputeCount(countsWriterI).close();
+                countArchive.returnWriter(countsWriterI);
+            }
+        }
+        countArchive.close();
+        timer.stop();
+        System.out.println(timer);
+    }
+
     private void processSortedAlignmentFullGenome(final String basename, AlignmentReader reader, AlignmentReaderFactory factory) throws IOException {
         reader.close();
         System.out.println("Processing in large alignment mode: " + basename);
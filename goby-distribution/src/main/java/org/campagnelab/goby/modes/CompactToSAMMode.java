@@ -28,11 +28,13 @@ import org.campagnelab.goby.util.LogIsConfigured;
 import edu.cornell.med.icb.identifier.DoubleIndexedIdentifier;
 import edu.cornell.med.icb.identifier.IndexedIdentifier;
 import edu.cornell.med.icb.util.VersionUtils;
-import it.unimi.dsi.fastutil.ints.Int2ObjectAVLTreeMap;
-import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectList;
 import it.unimi.dsi.logging.ProgressLogger;
 import htsjdk.samtools.*;
+import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -41,9 +43,15 @@ import java.io.IOException;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Export a Goby alignment to the BAM format.
@@ -59,6 +67,19 @@ public class CompactToSAMMode extends AbstractGobyMode {
 
     private static final DateFormat GOBY_DATE_FORMAT = new SimpleDateFormat("dd:MMM:yyyy");
 
+    private static final Comparator<SAMRecord> GENOMIC_POSITION_COMPARATOR = new SamRecordGenomicPositionComparator();
+
+    /**
+     * Number of slices per thread when exporting in parallel, so that threads finish at about the same time.
+     */
+    private static final int SLICES_PER_THREAD = 4;
+
+    /**
+     * Maximum amount of compressed alignment data in a slice, which bounds the memory used by the records of the
+     * slices that are converted but not written yet.
+     */
+    private static final long MAX_BYTES_PER_SLICE = 1L << 20;
+
     /**
      * The mode name.
      */
@@ -124,7 +145,19 @@ public class CompactToSAMMode extends AbstractGobyMode {
 
     private ExportableAlignmentEntryData exportData;
 
-    private Int2ObjectMap<Int2ObjectMap<ExportableAlignmentEntryData>> queryIndexToFragmentsMap;
+    private ReadOriginInfo readOriginInfo;
+
+    private boolean hasReadGroups;
+
+    /**
+     * Comma separated names of the reference sequences to export, or null to export all of them.
+     */
+    private String includeReferenceNames;
+
+    /**
+     * Number of threads used to export a sorted alignment to BAM, -1 for one per available processor.
+     */
+    private int numThreads = 1;
 
     /**
      * Flag to indicate if log4j was configured.
@@ -192,6 +225,20 @@ public class CompactToSAMMode extends AbstractGobyMode {
         this.endPosition = endPosition;
     }
 
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * Set the number of threads used to export a sorted and indexed alignment to a BAM file. Other exports use a
+     * single thread.
+     *
+     * @param numThreads the number of threads, -1 for one per available processor.
+     */
+    public void setNumThreads(final int numThreads) {
+        this.numThreads = numThreads;
+    }
+
     public long getStartPosition() {
         return startPosition;
     }
@@ -220,6 +267,8 @@ public class CompactToSAMMode extends AbstractGobyMode {
         inputBasename = jsapResult.getString("input-basename");
         inputGenome = jsapResult.getString("genome");
         output = jsapResult.getString("output");
+        numThreads = jsapResult.getInt("num-threads");
+        includeReferenceNames = jsapResult.getString("include-reference-names");
         alignmentIterator = new CompactToSAMIterateAlignments();
         alignmentIterator.parseIncludeReferenceArgument(jsapResult);
         genome = new DualRandomAccessSequenceCache();
@@ -253,11 +302,11 @@ public class CompactToSAMMode extends AbstractGobyMode {
     @Override
     public void execute() throws IOException {
         debug = LogIsConfigured.isConfigured();
-        queryIndexToFragmentsMap = new Int2ObjectAVLTreeMap<Int2ObjectMap<ExportableAlignmentEntryData>>();
 
         final AlignmentReader gobyReader = new AlignmentReaderImpl(inputBasename);
         gobyReader.readHeader();
         final DoubleIndexedIdentifier targetIdentifiers = new DoubleIndexedIdentifier(gobyReader.getTargetIdentifiers());
+        final boolean sortedAndIndexed = gobyReader.isSorted() && gobyReader.isIndexed();
         gobyReader.close();
 
         exportData = new ExportableAlignmentEntryData(genome, qualityEncoding, targetIdentifiers);
@@ -265,6 +314,12 @@ public class CompactToSAMMode extends AbstractGobyMode {
         basenames[0] = inputBasename;
         progress = new ProgressLogger(LOG);
         progress.displayFreeMemory = true;
+        final int threads = numThreads == -1 ? Runtime.getRuntime().availableProcessors() : numThreads;
+        if (threads > 1 && sortedAndIndexed && !hasStartOrEndPosition && includeReferenceNames == null
+                && output.toLowerCase().endsWith(".bam")) {
+            exportInParallel(targetIdentifiers, threads);
+            return;
+        }
         progress.start();
         if (alignmentIterator == null) {
             alignmentIterator = new CompactToSAMIterateAlignments();
@@ -303,42 +358,291 @@ public class CompactToSAMMode extends AbstractGobyMode {
         progress.stop();
     }
 
+    /**
+     * Export a sorted and indexed alignment to a sorted BAM file and its index. The genome is cut into slices that
+     * hold about the same amount of compressed alignment data. Each slice is converted to sorted BAM records on a
+     * thread of a pool, and the slices are written in genome order, with blocks deflated in parallel. A spliced
+     * alignment is exported by the slice of its first fragment. Fragments that follow the end of the slice are read
+     * ahead of the slice.
+     */
+    private void exportInParallel(final DoubleIndexedIdentifier targetIdentifiers, final int threads)
+            throws IOException {
+        final AlignmentReader reader = new AlignmentReaderImpl(inputBasename);
+        final long entriesLength;
+        final int numTargets;
+        try {
+            reader.readHeader();
+            createSamHeader(reader);
+            numTargets = reader.getNumberOfTargets();
+            entriesLength = new File(AlignmentReaderImpl.getBasename(inputBasename) + ".entries").length();
+        } finally {
+            reader.close();
+        }
+        samHeader.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        final int numSlices = (int) Math.max(threads * SLICES_PER_THREAD,
+                Math.min(Integer.MAX_VALUE, entriesLength / MAX_BYTES_PER_SLICE));
+        final ObjectList<SlicedIterateSortedAlignments.Slice> slices =
+                SlicedIterateSortedAlignments.slice(new String[]{inputBasename}, numSlices);
+        final File indexFile = new File(output.substring(0, output.length() - ".bam".length())
+                + BAMIndex.BAMIndexSuffix);
+        final ParallelBAMWriter writer = new ParallelBAMWriter(new File(output), samHeader, threads, indexFile);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        progress.expectedUpdates = slices.size();
+        progress.itemsName = "slices";
+        progress.start(String.format("Exporting %d slices with %d threads", slices.size(), threads));
+        boolean completed = false;
+        try {
+            final ArrayDeque<Future<ParallelBAMWriter.EncodedRecords>> pending =
+                    new ArrayDeque<Future<ParallelBAMWriter.EncodedRecords>>();
+            int next = 0;
+            while (next < slices.size() || !pending.isEmpty()) {
+                // keep a bounded number of converted slices in memory:
+                while (next < slices.size() && pending.size() < threads * SLICES_PER_THREAD) {
+                    final SlicedIterateSortedAlignments.Slice slice = slices.get(next++);
+                    pending.add(executor.submit(new Callable<ParallelBAMWriter.EncodedRecords>() {
+                        @Override
+                        public ParallelBAMWriter.EncodedRecords call() throws IOException {
+                            return exportSlice(slice, numTargets, targetIdentifiers);
+                        }
+                    }));
+                }
+                try {
+                    writer.write(pending.poll().get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                } catch (ExecutionException e) {
+                    throw new IOException("Unable to export slice.", e.getCause());
+                }
+                progress.update();
+            }
+            writer.close();
+            completed = true;
+        } finally {
+            executor.shutdownNow();
+            if (!completed) {
+                // a truncated BAM file with an EOF block and an index would look complete to other tools:
+                writer.abort();
+                FileUtils.deleteQuietly(new File(output));
+                FileUtils.deleteQuietly(indexFile);
+            }
+        }
+        progress.stop();
+        LOG.info(String.format("Wrote %,d records to %s", writer.getNumRecordsWritten(), output));
+    }
+
+    /**
+     * Convert the alignment entries of a slice to sorted BAM records.
+     */
+    private ParallelBAMWriter.EncodedRecords exportSlice(final SlicedIterateSortedAlignments.Slice slice,
+                                                         final int numTargets,
+                                                         final DoubleIndexedIdentifier targetIdentifiers)
+            throws IOException {
+        final ExportableAlignmentEntryData data =
+                new ExportableAlignmentEntryData(genome, qualityEncoding, targetIdentifiers);
+        if (hasReadGroups) {
+            data.setReadGroupInfo(readOriginInfo);
+        }
+        final SAMRecordFactory recordFactory = ParallelBAMWriter.getRecordFactory();
+        final SpliceFragmentAssembler assembler = new SpliceFragmentAssembler();
+        final ObjectArrayList<SAMRecord> records = new ObjectArrayList<SAMRecord>();
+        final AlignmentReader reader = new AlignmentReaderImpl(inputBasename, slice.startReferenceIndex,
+                slice.startPosition, slice.endReferenceIndex, slice.endPosition);
+        try {
+            for (final Alignments.AlignmentEntry alignmentEntry : reader) {
+                if (SpliceFragmentAssembler.isSplicedFragment(alignmentEntry)) {
+                    if (alignmentEntry.hasSplicedBackwardAlignmentLink() &&
+                            isBefore(alignmentEntry.getSplicedBackwardAlignmentLink(), slice)) {
+                        // the spliced alignment starts in a previous slice, which exports it:
+                        continue;
+                    }
+                    data.buildFrom(alignmentEntry);
+                    addSplicedFragment(assembler, data, recordFactory, records);
+                } else {
+                    data.buildFrom(alignmentEntry);
+                    addRecord(createSamRecord(data, recordFactory), records);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        final LongSet missing = new LongOpenHashSet();
+        ReferenceLocation lastMissing = assembler.findMissingFragments(missing);
+        if (lastMissing != null) {
+            final int startReferenceIndex;
+            final int startPosition;
+            if (slice.endPosition == SlicedIterateSortedAlignments.END_OF_REFERENCE) {
+                startReferenceIndex = slice.endReferenceIndex + 1;
+                startPosition = 0;
+            } else {
+                startReferenceIndex = slice.endReferenceIndex;
+                startPosition = slice.endPosition + 1;
+            }
+            if (startReferenceIndex < numTargets) {
+                // read the fragments of spliced alignments that continue after the end of the slice:
+                final AlignmentReader aheadReader = new AlignmentReaderImpl(inputBasename, startReferenceIndex,
+                        startPosition, numTargets - 1, SlicedIterateSortedAlignments.END_OF_REFERENCE);
+                try {
+                    for (final Alignments.AlignmentEntry alignmentEntry : aheadReader) {
+                        if (new ReferenceLocation(alignmentEntry.getTargetIndex(), alignmentEntry.getPosition())
+                                .compareTo(lastMissing) > 0) {
+                            break;
+                        }
+                        if (SpliceFragmentAssembler.isSplicedFragment(alignmentEntry) &&
+                                missing.contains(SpliceFragmentAssembler.fragmentKey(alignmentEntry.getQueryIndex(),
+                                        alignmentEntry.getFragmentIndex()))) {
+                            data.buildFrom(alignmentEntry);
+                            addSplicedFragment(assembler, data, recordFactory, records);
+                            missing.clear();
+                            lastMissing = assembler.findMissingFragments(missing);
+                            if (lastMissing == null) {
+                                break;
+                            }
+                        }
+                    }
+                } finally {
+                    aheadReader.close();
+                }
+            }
+        }
+        // stable sort, spliced alignments are completed after the entries that follow their first fragment:
+        Collections.sort(records, GENOMIC_POSITION_COMPARATOR);
+        return ParallelBAMWriter.encode(samHeader, records);
+    }
+
+    private static boolean isBefore(final Alignments.RelatedAlignmentEntry link,
+                                    final SlicedIterateSortedAlignments.Slice slice) {
+        return link.getTargetIndex() < slice.startReferenceIndex ||
+                link.getTargetIndex() == slice.startReferenceIndex && link.getPosition() < slice.startPosition;
+    }
+
+    private void addSplicedFragment(final SpliceFragmentAssembler assembler, final ExportableAlignmentEntryData data,
+                                    final SAMRecordFactory recordFactory, final List<SAMRecord> records) {
+        final List<ExportableAlignmentEntryData> complete =
+                assembler.add(ExportableAlignmentEntryData.duplicateFrom(data));
+        if (!complete.isEmpty()) {
+            addRecord(createSamRecord(ExportableAlignmentEntryData.mergeSpliceFragments(complete), recordFactory),
+                    records);
+        }
+    }
+
+    private static void addRecord(final SAMRecord record, final List<SAMRecord> records) {
+        if (record != null) {
+            records.add(record);
+        }
+    }
+
+    /**
+     * Create the header of the SAM/BAM output, with the reference sequences and read groups of the alignment.
+     */
+    private void createSamHeader(final AlignmentReader alignmentReader) {
+        // Gather the target identifiers, supply them to the SAM file
+        samHeader = new SAMFileHeader();
+        final SAMSequenceDictionary samTargetDictionary = new SAMSequenceDictionary();
+        final IndexedIdentifier gobyTargetIdentifiers = alignmentReader.getTargetIdentifiers();
+        final DoubleIndexedIdentifier gobyBackTargetIdentifiers =
+                new DoubleIndexedIdentifier(gobyTargetIdentifiers);
+        for (int i = 0; i < gobyTargetIdentifiers.size(); i++) {
+            final String gobyTargetName = gobyBackTargetIdentifiers.getId(i).toString();
+            final int gobyTargetLength = alignmentReader.getTargetLength()[i];
+            final SAMSequenceRecord samSequenceRecord = new SAMSequenceRecord(gobyTargetName, gobyTargetLength);
+            samTargetDictionary.addSequence(samSequenceRecord);
+        }
+        exportReadGroups(alignmentReader);
+        samHeader.setSequenceDictionary(samTargetDictionary);
+        final SAMProgramRecord gobyVersionProgRec = new SAMProgramRecord("Goby");
+        gobyVersionProgRec.setProgramVersion(VersionUtils.getImplementationVersion(GobyDriver.class));
+        samHeader.addProgramRecord(gobyVersionProgRec);
+    }
+
+    private void exportReadGroups(final AlignmentReader alignmentReader) {
+        readOriginInfo = alignmentReader.getReadOriginInfo();
+        if (readOriginInfo.size() > 0) {
+            hasReadGroups = true;
+            // Goby alignment has read origin information, export as BAM read groups:
+            for (final Alignments.ReadOriginInfo roi : readOriginInfo.getPbList()) {
+                final SAMReadGroupRecord readGroup = new SAMReadGroupRecord(roi.getOriginId());
+                if (roi.hasSample()) {
+                    readGroup.setSample(roi.getSample());
+                }
+                if (roi.hasPlatform()) {
+                    readGroup.setPlatform(roi.getPlatform());
+                }
+                if (roi.hasPlatformUnit()) {
+                    readGroup.setPlatformUnit(roi.getPlatformUnit());
+                }
+                if (roi.hasLibrary()) {
+                    readGroup.setLibrary(roi.getLibrary());
+                }
+                if (roi.hasRunDate()) {
+                    final String runDate = roi.getRunDate();
+                    try {
+
+                        readGroup.setRunDate(GOBY_DATE_FORMAT.parse(runDate));
+                    } catch (ParseException e) {
+                        LOG.error("Unable to parse Goby date: " + runDate + " ignoring runDate read origin.");
+                    }
+                }
+                samHeader.addReadGroup(readGroup);
+            }
+            exportData.setReadGroupInfo(readOriginInfo);
+        }
+    }
+
+    /**
+     * Create the SAM record of an alignment entry.
+     *
+     * @param toExport      the alignment entry to export.
+     * @param recordFactory creates the record.
+     * @return the record, or null if the entry cannot be exported.
+     */
+    private SAMRecord createSamRecord(final ExportableAlignmentEntryData toExport,
+                                      final SAMRecordFactory recordFactory) {
+        if (toExport.isInvalid()) {
+            LOG.warn(toExport.toString());
+            return null;
+        }
+        final SAMRecord samRecord = recordFactory.createSAMRecord(samHeader);
+
+        samRecord.setReferenceIndex(toExport.getTargetIndex());
+        samRecord.setFlags(toExport.getPairFlags());
+        samRecord.setReadName(toExport.getReadName());
+        samRecord.setAlignmentStart(toExport.getStartPosition());
+        samRecord.setMappingQuality(toExport.getMappingQuality());
+
+        samRecord.setReadString(toExport.getReadBasesOriginal());
+        samRecord.setBaseQualities(toExport.getReadQualities().toByteArray());
+        samRecord.setCigarString(toExport.getCigarString());
+        samRecord.setAttribute("MD", toExport.getMismatchString());
+        for (String bamAttribute : toExport.getBamAttributesList()) {
+            bamAttribute = bamAttribute.replaceAll("[\n\r]", "");
+            final String[] tokens = bamAttribute.split(":");
+            samRecord.setAttribute(tokens[0], getValue(tokens));
+            if (debug) {
+                LOG.debug(String.format("Writing %s:%s", tokens[0], getValue(tokens)));
+            }
+        }
+        if (toExport.hasMate()) {
+            samRecord.setMateReferenceIndex(toExport.getMateReferenceIndex());
+            samRecord.setMateAlignmentStart(toExport.getMateAlignmentStart());
+            samRecord.setInferredInsertSize(toExport.getInferredInsertSize());
+        }
+        if (hasReadGroups) {
+            samRecord.setAttribute("RG", toExport.getReadGroup());
+        }
+        return samRecord;
+    }
+
     private class CompactToSAMIterateAlignments extends IterateAlignments {
 
         private long numWritten;
-        private ReadOriginInfo readOriginInfo;
-        private boolean hasReadGroups;
-        private final List<ExportableAlignmentEntryData> completeSpliceFragments;
-        final LinkedList<Integer> needFragmentIndexes;
-        final LinkedList<Integer> foundFragmentIndexes;
-
-        private CompactToSAMIterateAlignments() {
-            completeSpliceFragments = new ObjectArrayList<ExportableAlignmentEntryData>();
-            needFragmentIndexes = new LinkedList<Integer>();
-            foundFragmentIndexes = new LinkedList<Integer>();
-        }
+        private final SpliceFragmentAssembler spliceFragmentAssembler = new SpliceFragmentAssembler();
 
         private void initializeSam(final AlignmentReader alignmentReader) {
             // Because splices cannot be written in a sorted manner, we can never consider the output to be sorted.
             final boolean outputIsSorted = alignmentReader.isSorted();
 
-            // Gather the target identifiers, supply them to the SAM file
-            samHeader = new SAMFileHeader();
-            final SAMSequenceDictionary samTargetDictionary = new SAMSequenceDictionary();
-            final IndexedIdentifier gobyTargetIdentifiers = alignmentReader.getTargetIdentifiers();
-            final DoubleIndexedIdentifier gobyBackTargetIdentifiers =
-                    new DoubleIndexedIdentifier(gobyTargetIdentifiers);
-            for (int i = 0; i < gobyTargetIdentifiers.size(); i++) {
-                final String gobyTargetName = gobyBackTargetIdentifiers.getId(i).toString();
-                final int gobyTargetLength = alignmentReader.getTargetLength()[i];
-                final SAMSequenceRecord samSequenceRecord = new SAMSequenceRecord(gobyTargetName, gobyTargetLength);
-                samTargetDictionary.addSequence(samSequenceRecord);
-            }
-            exportReadGroups(alignmentReader);
-            samHeader.setSequenceDictionary(samTargetDictionary);
-            final SAMProgramRecord gobyVersionProgRec = new SAMProgramRecord("Goby");
-            gobyVersionProgRec.setProgramVersion(VersionUtils.getImplementationVersion(GobyDriver.class));
-            samHeader.addProgramRecord(gobyVersionProgRec);
+            createSamHeader(alignmentReader);
             final SAMFileWriter samBamWriter = new SAMFileWriterFactory().
                     makeSAMOrBAMWriter(samHeader, outputIsSorted, new File(output));
             // install a facade in front of the Sam/Bam writer to do a local sort. This is needed for spliced alignments
@@ -347,40 +651,6 @@ public class CompactToSAMMode extends AbstractGobyMode {
             samRecordFactory = new DefaultSAMRecordFactory();
         }
 
-        private void exportReadGroups(final AlignmentReader alignmentReader) {
-            readOriginInfo = alignmentReader.getReadOriginInfo();
-            if (readOriginInfo.size() > 0) {
-                hasReadGroups = true;
-                // Goby alignment has read origin information, export as BAM read groups:
-                for (final Alignments.ReadOriginInfo roi : readOriginInfo.getPbList()) {
-                    final SAMReadGroupRecord readGroup = new SAMReadGroupRecord(roi.getOriginId());
-                    if (roi.hasSample()) {
-                        readGroup.setSample(roi.getSample());
-                    }
-                    if (roi.hasPlatform()) {
-                        readGroup.setPlatform(roi.getPlatform());
-                    }
-                    if (roi.hasPlatformUnit()) {
-                        readGroup.setPlatformUnit(roi.getPlatformUnit());
-                    }
-                    if (roi.hasLibrary()) {
-                        readGroup.setLibrary(roi.getLibrary());
-                    }
-                    if (roi.hasRunDate()) {
-                        final String runDate = roi.getRunDate();
-                        try {
-
-                            readGroup.setRunDate(GOBY_DATE_FORMAT.parse(runDate));
-                        } catch (ParseException e) {
-                            LOG.error("Unable to parse Goby date: " + runDate + " ignoring runDate read origin.");
-                        }
-                    }
-                    samHeader.addReadGroup(readGroup);
-                }
-                exportData.setReadGroupInfo(readOriginInfo);
-            }
-        }
-
         @Override
         public void processAlignmentEntry(final AlignmentReader alignmentReader,
                                           final Alignments.AlignmentEntry alignmentEntry) {
@@ -391,25 +661,9 @@ public class CompactToSAMMode extends AbstractGobyMode {
 
             exportData.buildFrom(alignmentEntry);
 
-            completeSpliceFragments.clear();
-            Int2ObjectMap<ExportableAlignmentEntryData> fragIndexToAlignmentsMap;
-            boolean splicedFragment = false;
-            if (alignmentEntry.hasSplicedForwardAlignmentLink() ||
-                    alignmentEntry.hasSplicedBackwardAlignmentLink()) {
-                splicedFragment = true;
-                final int queryIndex = alignmentEntry.getQueryIndex();
-                fragIndexToAlignmentsMap = queryIndexToFragmentsMap.get(queryIndex);
-                if (fragIndexToAlignmentsMap == null) {
-                    fragIndexToAlignmentsMap = new Int2ObjectAVLTreeMap<ExportableAlignmentEntryData>();
-                    queryIndexToFragmentsMap.put(queryIndex, fragIndexToAlignmentsMap);
-                }
-                fragIndexToAlignmentsMap.put(exportData.getAlignmentEntry().getFragmentIndex(),
-                        ExportableAlignmentEntryData.duplicateFrom(exportData));
-                findCompleteSpliceFragments(fragIndexToAlignmentsMap, queryIndexToFragmentsMap, queryIndex);
-
-            }
-
-            if (splicedFragment) {
+            if (SpliceFragmentAssembler.isSplicedFragment(alignmentEntry)) {
+                final List<ExportableAlignmentEntryData> completeSpliceFragments =
+                        spliceFragmentAssembler.add(ExportableAlignmentEntryData.duplicateFrom(exportData));
                 if (!completeSpliceFragments.isEmpty()) {
                     outputSplicedFragments(completeSpliceFragments);
                 }
@@ -420,100 +674,6 @@ public class CompactToSAMMode extends AbstractGobyMode {
 
         }
 
-        /**
-         * Given a list of all of the fragments for a single query index, return a list of
-         * fragments that represent a complete splice formation. If the alignment is paired end,
-         * this will represent a single end of the pair, not both of the pairs.
-         * If none of the splices are complete, this will return null.
-         * If not null, this will return a NEW LIST, not the same fragIndexToAlignmentsMap list,
-         * additionally, the elements in the returned list will be removed from fragIndexToAlignmentsMap.
-         * NOTE: for performance completeSpliceFragments is used repeatedly.
-         *
-         * @param fragIndexToAlignmentsMap the list of found fragments for a desired query index.
-         * @param queryIndexToFragmentsMap
-         * @param queryIndex
-         */
-        private void findCompleteSpliceFragments(
-                final Int2ObjectMap<ExportableAlignmentEntryData> fragIndexToAlignmentsMap, Int2ObjectMap<Int2ObjectMap<ExportableAlignmentEntryData>> queryIndexToFragmentsMap, int queryIndex) {
-            for (final Map.Entry<Integer, ExportableAlignmentEntryData> entry :
-                    fragIndexToAlignmentsMap.entrySet()) {
-                // For THIS entry, see if all related forward/backward fragments exists in   fragIndexToAlignmentsMap
-                // We need to do this for every entry in our map because this map COULD contain segments
-                // that span multiple alignments (such as if we are aligning ambiguity > 1 or with pairs).
-                needFragmentIndexes.clear();
-                foundFragmentIndexes.clear();
-
-                final Alignments.AlignmentEntry alignmentEntry = entry.getValue().getAlignmentEntry();
-                needFragmentIndexes.add(alignmentEntry.getFragmentIndex());
-                foundFragmentIndexes.add(alignmentEntry.getFragmentIndex());
-                if (alignmentEntry.hasSplicedForwardAlignmentLink()) {
-                    walkFragments(fragIndexToAlignmentsMap,
-                            alignmentEntry.getSplicedForwardAlignmentLink(), true);
-                }
-                if (alignmentEntry.hasSplicedBackwardAlignmentLink()) {
-                    walkFragments(fragIndexToAlignmentsMap,
-                            alignmentEntry.getSplicedBackwardAlignmentLink(), false);
-                }
-                // We've now walked the entire available distance, forward and backward. See if the fragment
-                // indexes that we need could be found.
-                if (foundContainsNeed(foundFragmentIndexes, needFragmentIndexes)) {
-                    // We have a complete set of fragments
-                    for (final int fragIndex : needFragmentIndexes) {
-                        completeSpliceFragments.add(fragIndexToAlignmentsMap.get(fragIndex));
-                        fragIndexToAlignmentsMap.remove(fragIndex);
-                    }
-                    if (needFragmentIndexes.isEmpty()) {
-                        // since we have a complete list, we can now forget the queryIndex and its fragments:
-                        queryIndexToFragmentsMap.remove(queryIndex);
-                        break;
-                    }
-                }
-            }
-        }
-
-        // return true if found  foundFragmentIndexes is a subset of needFragmentIndexes
-        private boolean foundContainsNeed(LinkedList<Integer> foundFragmentIndexes, LinkedList<Integer> needFragmentIndexes) {
-            return foundFragmentIndexes.containsAll(needFragmentIndexes);
-        }
-
-        /**
-         * Used to walk, forward or backward, the splice fragments. Helps with determining if we have
-         * all the fragments for a single spliced alignment entry.
-         *
-         * @param fragIndexToAlignmentsMap the map of fragment index to alignment entry
-         * @param requiredRelated          the related splice fragment we are walking from
-         * @param walkForward              true if we are walking forward
-         */
-        private void walkFragments(final Int2ObjectMap<ExportableAlignmentEntryData> fragIndexToAlignmentsMap,
-                                   final Alignments.RelatedAlignmentEntry requiredRelated, final boolean walkForward) {
-            final int fragmentIndex = requiredRelated.getFragmentIndex();
-            if (walkForward) {
-                // Build needFragmentIndexes, foundFragmentIndexes in the order of the aligned splices
-                needFragmentIndexes.addLast(fragmentIndex);
-            } else {
-                needFragmentIndexes.addFirst(fragmentIndex);
-            }
-
-            final ExportableAlignmentEntryData entry = fragIndexToAlignmentsMap.get(fragmentIndex);
-            if (entry != null) {
-                // The current needed entry was found. Look forward or backward for more required fragments
-                if (walkForward) {
-                    foundFragmentIndexes.addLast(fragmentIndex);
-                } else {
-                    foundFragmentIndexes.addFirst(fragmentIndex);
-                }
-                final Alignments.AlignmentEntry alignmentEntry = entry.getAlignmentEntry();
-                if (walkForward && alignmentEntry.hasSplicedForwardAlignmentLink()) {
-                    walkFragments(fragIndexToAlignmentsMap,
-                            alignmentEntry.getSplicedForwardAlignmentLink(), true);
-                }
-                if (!walkForward && alignmentEntry.hasSplicedBackwardAlignmentLink()) {
-                    walkFragments(fragIndexToAlignmentsMap,
-                            alignmentEntry.getSplicedBackwardAlignmentLink(), false);
-                }
-            }
-        }
-
         private void outputSplicedFragments(final List<ExportableAlignmentEntryData> spliceFragments) {
             final ExportableAlignmentEntryData exportData =
                     ExportableAlignmentEntryData.mergeSpliceFragments(spliceFragments);
@@ -528,41 +688,13 @@ public class CompactToSAMMode extends AbstractGobyMode {
          * @param toExport the alignment entry to output
          */
         private void outputSingle(final ExportableAlignmentEntryData toExport) {
-            if (toExport.isInvalid()) {
-                LOG.warn(toExport.toString());
+            final SAMRecord samRecord = createSamRecord(toExport, samRecordFactory);
+            if (samRecord == null) {
                 return;
             }
             if (debug) {
                 LOG.debug("Wrote qi=" + toExport.getQueryIndex() + " fragment Index=" + toExport.getAlignmentEntry().getFragmentIndex());
             }
-            final SAMRecord samRecord = samRecordFactory.createSAMRecord(samHeader);
-
-            samRecord.setReferenceIndex(toExport.getTargetIndex());
-            samRecord.setFlags(toExport.getPairFlags());
-            samRecord.setReadName(toExport.getReadName());
-            samRecord.setAlignmentStart(toExport.getStartPosition());
-            samRecord.setMappingQuality(toExport.getMappingQuality());
-
-            samRecord.setReadString(toExport.getReadBasesOriginal());
-            samRecord.setBaseQualities(toExport.getReadQualities().toByteArray());
-            samRecord.setCigarString(toExport.getCigarString());
-            samRecord.setAttribute("MD", toExport.getMismatchString());
-            for (String bamAttribute : toExport.getBamAttributesList()) {
-                bamAttribute = bamAttribute.replaceAll("[\n\r]", "");
-                final String[] tokens = bamAttribute.split(":");
-                samRecord.setAttribute(tokens[0], getValue(tokens));
-                if (debug) {
-                    LOG.debug(String.format("Writing %s:%s", tokens[0], getValue(tokens)));
-                }
-            }
-            if (toExport.hasMate()) {
-                samRecord.setMateReferenceIndex(toExport.getMateReferenceIndex());
-                samRecord.setMateAlignmentStart(toExport.getMateAlignmentStart());
-                samRecord.setInferredInsertSize(toExport.getInferredInsertSize());
-            }
-            if (hasReadGroups) {
-                samRecord.setAttribute("RG", toExport.getReadGroup());
-            }
             try {
                 outputSam.addAlignment(samRecord);
             } catch (RuntimeException e) {
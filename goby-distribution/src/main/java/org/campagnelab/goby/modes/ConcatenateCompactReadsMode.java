@@ -217,7 +217,23 @@ public class ConcatenateCompactReadsMode extends AbstractGobyMode {
             return;
         }
         outputFile.createNewFile();
+        for (final File inputFile : inputFiles) {
+            System.out.printf("Reading from %s%n", inputFile);
+        }
+        quickConcat(inputFiles, outputFile);
+        System.out.printf("Concatenated %d files.%n", inputFiles.size());
+    }
 
+    /**
+     * Concatenate compact-reads files without decoding them. Copy all of the input files except the last
+     * MessageChunksWriter.DELIMITER_LENGTH bytes of the first n-1 input files and the entire last input file
+     * to the output file. Read indices are copied as is.
+     *
+     * @param inputFiles the files to concatenate, in order.
+     * @param outputFile the file to write, overwritten if it exists.
+     * @throws IOException
+     */
+    public static void quickConcat(final List<File> inputFiles, final File outputFile) throws IOException {
         FileChannel input = null;
         FileChannel output = null;
         long maxChunkSize = 10*1024*1024; // 10 megabytes at a chunk
@@ -226,7 +242,6 @@ public class ConcatenateCompactReadsMode extends AbstractGobyMode {
             int lastFileNumToCopy = inputFiles.size() - 1;
             int curFileNum = 0;
             for (final File inputFile : inputFiles) {
-                System.out.printf("Reading from %s%n", inputFile);
                 input = new FileInputStream(inputFile).getChannel();
                 long bytesToCopy = input.size();
                 if (curFileNum++ < lastFileNumToCopy) {
@@ -251,7 +266,6 @@ public class ConcatenateCompactReadsMode extends AbstractGobyMode {
                 input.close();
                 input = null;
             }
-            System.out.printf("Concatenated %d files.%n", lastFileNumToCopy + 1);
         } finally {
             if (input != null) {
                 input.close();
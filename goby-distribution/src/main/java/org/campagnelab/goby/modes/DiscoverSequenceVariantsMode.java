@@ -92,6 +92,10 @@ public class DiscoverSequenceVariantsMode extends AbstractGobyMode {
     private boolean groupsAreDefined;
     private ObjectArrayList<GenotypeFilter> genotypeFilters;
     private AlignmentProcessorFactory realignmentFactory = new DefaultAlignmentProcessorFactory();
+    /**
+     * Number of threads used to iterate over the alignments.
+     */
+    private int numThreads = 1;
     /**
      * A genome used for testing.
      */
@@ -190,6 +194,9 @@ public class DiscoverSequenceVariantsMode extends AbstractGobyMode {
 
         boolean parallel = jsapResult.getBoolean("parallel", false);
         deAnalyzer.setRunInParallel(parallel);
+        numThreads = jsapResult.getInt("num-threads", 1);
+        // VCF output to a .gz file is block compressed with as many threads:
+        outputInfo.setNumThreads(numThreads);
         Map<String, String> sampleToGroupMap = deCalculator.getSampleToGroupMap();
         readerIndexToGroupIndex = new int[inputFilenames.length];
 
@@ -368,6 +375,7 @@ public class DiscoverSequenceVariantsMode extends AbstractGobyMode {
         sortedPositionIterator.setCallIndels(callIndels);
         sortedPositionIterator.setGenome(genome);
         sortedPositionIterator.setStartFlapLength(startFlapSize);
+        sortedPositionIterator.setUseCircularWindow(jsapResult.getBoolean("circular-window", false));
         sortedPositionIterator.parseIncludeReferenceArgument(jsapResult);
         sortedPositionIterator.setMinimumVariationSupport(minimumVariationSupport);
         sortedPositionIterator.setThresholdDistinctReadIndices(thresholdDistinctReadIndices);
@@ -785,7 +793,13 @@ public class DiscoverSequenceVariantsMode extends AbstractGobyMode {
         sortedPositionIterator.setOverrideReferenceWithGenome(overrideReferenceWithGenome);
         sortedPositionIterator.setMaxThreshold(maxThresholdPerSite);
         sortedPositionIterator.setCallIndels(callIndels);
-        sortedPositionIterator.iterate(basenames);
+        new SlicedIterateSortedAlignments<DiscoverVariantPositionData>(sortedPositionIterator,
+                new SlicedIterateSortedAlignments.IteratorFactory<DiscoverVariantPositionData>() {
+                    @Override
+                    public IterateSortedAlignments<DiscoverVariantPositionData> create() {
+                        return sortedPositionIterator.newSliceIterator();
+                    }
+                }, numThreads).iterate(basenames);
 
         sortedPositionIterator.finish();
     }
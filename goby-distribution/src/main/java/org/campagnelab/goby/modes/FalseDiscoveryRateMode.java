@@ -21,30 +21,35 @@ package org.campagnelab.goby.modes;
 import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
 import edu.cornell.med.icb.io.TSVReader;
-import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
 import it.unimi.dsi.fastutil.ints.Int2IntMap;
 import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntArraySet;
 import it.unimi.dsi.fastutil.ints.IntSet;
 import it.unimi.dsi.fastutil.objects.*;
-import it.unimi.dsi.lang.MutableString;
 import it.unimi.dsi.logging.ProgressLogger;
 import org.apache.commons.io.IOUtils;
 import org.campagnelab.goby.readers.vcf.*;
-import org.campagnelab.goby.stats.*;
+import org.campagnelab.goby.stats.ExternalBenjaminiHochbergAdjustment;
+import org.campagnelab.goby.stats.VCFWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
 import java.util.zip.GZIPOutputStream;
 
 /**
  * Combines tab delimited or VCF formatted datasets and performs FDR adjustment on a set of P-value columns. Lines will always be ordered
  * in the output in the same order that the lines are read from the input. However, since each line is independent, this
  * mode garantees that sorting the output by a  identifier column (unique for each line) will yield the same output
- * irrespective of the order in which the input files are presented to the mode. The FDR adjustment is done with a subset of
- * P-value kept in memory, and only the P-values. The data files are scanned a second time to read other columns and
+ * irrespective of the order in which the input files are presented to the mode. The FDR adjustment only considers the
+ * P-values of lines with at least one P-value below the threshold. These P-values are kept in memory up to a limit, then
+ * sorted and written to disk, so that the number of lines is not limited by the heap. The q-values are stored in memory
+ * mapped files, in the order of the lines. The data files are scanned a second time to read other columns and
  * produce the combined output.  The fdr mode also has an option to keep the top lines (ranked by p-values), so that it hasResult
  * also possible to examine the top hundred hits, even in cases when the adjusted q-value does not reach the pre-specified
  * threshold.
@@ -81,15 +86,36 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
     private int topHitNum;
     private int numIgnoredObservations;
     /**
-     * Store a map between the element index in the input files, and the index of the element in the set we keep in memory.
+     * The indices of the elements (data lines across input files) that have at least one P-value below the threshold.
+     * Only these elements are added to the adjustment.
      */
-    private Int2IntMap elementPermutation = new Int2IntOpenHashMap();
-
+    private final BitSet keptElements = new BitSet();
+    /**
+     * Names of the P-value statistics, in the order of the P-values of each element.
+     */
+    private final ObjectArrayList<String> pValueStatistics = new ObjectArrayList<String>();
+    /**
+     * Index of each adjusted column in the adjustment, to retrieve its q-values.
+     */
+    private final Object2IntMap<String> adjustedColumnIndices = new Object2IntOpenHashMap<String>();
+    private ExternalBenjaminiHochbergAdjustment fdr;
     /**
-     * The list of element indices to report as top hits.
+     * The elements with the smallest P-values, when top hits are requested.
+     */
+    private PriorityQueue<TopHit> topHits;
+    /**
+     * The indices in the adjustment of the elements to report as top hits.
      */
     private IntArraySet topHitsElementIndices;
     private String[] columnSelectionFilter;
+    /**
+     * Number of threads used to read VCF input.
+     */
+    private int numThreads = 1;
+    /**
+     * Number of elements whose P-values are kept in memory before they are sorted and written to disk.
+     */
+    private int maxElementsInMemory = 10000000;
 
 
     @Override
@@ -122,6 +148,8 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
         selectedPValueColumns = jsapResult.getStringArray("column");
         columnSelectionFilter = jsapResult.getStringArray("column-selection-filter");
         vcf = jsapResult.getBoolean("vcf");
+        numThreads = jsapResult.getInt("num-threads");
+        maxElementsInMemory = jsapResult.getInt("max-elements-in-memory");
         if (outputFilename.endsWith(".vcf")) {
             vcf = true;
         }
@@ -143,9 +171,6 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                     : outputFilename.endsWith(".gz") ?
                     new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(outputFilename))) :
                     new FileWriter(outputFilename);
-            // start with an array of size 1M. This improves loading time for large datasets.
-            DifferentialExpressionResults data = new DifferentialExpressionResults(10000000);
-
             ObjectList<String> columnIdList = vcf ? getVCFColumns(inputFiles) : getTSVColumns(inputFiles);
             // supplement selectedPValueColumns with the columns that match the selection filters:
             ObjectSet<String> selection = new ObjectOpenHashSet<String>();
@@ -164,45 +189,150 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
             if (vcf) appendPValueColumns(inputFiles, selection);
 
             selectedPValueColumns = selection.toArray(new String[selection.size()]);
-            DifferentialExpressionCalculator deCalculator = new DifferentialExpressionCalculator();
-
+            declarePValueStatistics(columnIdList);
+            fdr = new ExternalBenjaminiHochbergAdjustment(pValueStatistics.size(), maxElementsInMemory, numThreads,
+                    null);
+            if (topHitNum != 0) {
+                topHits = new PriorityQueue<TopHit>(topHitNum + 2, Collections.reverseOrder(topHitOrder()));
+            }
             if (vcf) {
-                loadVCF(inputFiles, data, deCalculator, columnIdList);
+                loadVCF(inputFiles);
             } else {
-                loadTSV(inputFiles, data, deCalculator, columnIdList);
+                loadTSV(inputFiles, columnIdList);
             }
-            //    data.write(new PrintWriter(System.out), '\t', deCalculator);
-            BenjaminiHochbergAdjustment fdr = new BenjaminiHochbergAdjustment();
             fdr.setNumberAboveThreshold(numIgnoredObservations);
-            for (String column : selectedPValueColumns) {
-                System.out.println("adjusting column: " + column);
-                fdr.adjust(data, column.toLowerCase());
-            }
-            recordTopHits(data);
-            for (int i = 0; i < data.getNumberOfStatistics(); i++) {
-                MutableString statisticId = data.getStatisticIdForIndex(i);
-                final String statId = statisticId.toString();
-                if (!contains(selectedPValueColumns, statId)) {
-                    adjustedColumnIds.add(statId);
-                }
-            }
+            adjust();
+            recordTopHits();
 
-            Collections.sort(data, new ElementIndexComparator());
             if (vcf) {
-                combineVCF(inputFiles, data, deCalculator, columnIdList, stream);
+                combineVCF(inputFiles, stream);
 
             } else {
-                combineTSV(inputFiles, data, deCalculator, columnIdList, stream);
+                combineTSV(inputFiles, columnIdList, stream);
             }
 
 
         } finally {
+            if (fdr != null) {
+                fdr.close();
+            }
             if (outputFilename != null) {
                 IOUtils.closeQuietly(stream);
             }
         }
     }
 
+    /**
+     * Determine the P-value statistics stored for each element: the selected columns for VCF input, the columns that
+     * match a selected column for TSV input.
+     */
+    private void declarePValueStatistics(final ObjectList<String> columnIdList) {
+        if (vcf) {
+            for (final String selectedFieldName : selectedPValueColumns) {
+                final String statName = selectedFieldName.toLowerCase();
+                if (!pValueStatistics.contains(statName)) {
+                    pValueStatistics.add(statName);
+                }
+            }
+        } else {
+            for (final String column : columnIdList) {
+                for (final String selectedColumn : selectedPValueColumns) {
+                    final String statName = column.toLowerCase();
+                    if (column.equalsIgnoreCase(selectedColumn) && !pValueStatistics.contains(statName)) {
+                        pValueStatistics.add(statName);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Compute the q-values of each selected column. Adjusted columns are named after the P-value statistic, with a
+     * -BH-FDR-q-value suffix.
+     */
+    private void adjust() throws IOException {
+        final IntArrayList statisticIndices = new IntArrayList();
+        final ObjectArrayList<String> adjustedNames = new ObjectArrayList<String>();
+        for (final String column : selectedPValueColumns) {
+            System.out.println("adjusting column: " + column);
+            final String statName = column.toLowerCase();
+            final int statisticIndex = pValueStatistics.indexOf(statName);
+            if (statisticIndex == -1) {
+                if (fdr.size() > 0) {
+                    throw new IllegalArgumentException(String.format("could not find statistic %s to adjust.", statName));
+                }
+            } else {
+                statisticIndices.add(statisticIndex);
+                adjustedNames.add(statName + "-BH-FDR-q-value");
+            }
+            adjustedColumnIds.add(statName + "-BH-FDR-q-value");
+        }
+        final int[] adjustedIndices = fdr.adjust(statisticIndices.toIntArray());
+        for (int i = 0; i < adjustedIndices.length; i++) {
+            adjustedColumnIndices.put(adjustedNames.get(i), adjustedIndices[i]);
+        }
+    }
+
+    private double getQValue(final String adjustedColumn, final int element) {
+        return fdr.getQValue(adjustedColumnIndices.getInt(adjustedColumn), element);
+    }
+
+    /**
+     * Return the order in which top hits are ranked. This is the order of elements after they have been sorted by
+     * the P-values of each selected column in turn, with a stable sort: by the P-values of the last column adjusted,
+     * then of the previous columns, then in the order of the input.
+     */
+    private Comparator<TopHit> topHitOrder() {
+        final IntArrayList order = new IntArrayList();
+        for (int i = selectedPValueColumns.length - 1; i >= 0; i--) {
+            final int statisticIndex = pValueStatistics.indexOf(selectedPValueColumns[i].toLowerCase());
+            if (statisticIndex != -1) {
+                order.add(statisticIndex);
+            }
+        }
+        final int[] statisticIndices = order.toIntArray();
+        return new Comparator<TopHit>() {
+            @Override
+            public int compare(final TopHit hit1, final TopHit hit2) {
+                for (final int statisticIndex : statisticIndices) {
+                    final int result = Double.compare(hit1.pValues[statisticIndex], hit2.pValues[statisticIndex]);
+                    if (result != 0) {
+                        return result;
+                    }
+                }
+                return hit1.element - hit2.element;
+            }
+        };
+    }
+
+    /**
+     * Add an element with at least one P-value below the threshold.
+     */
+    private void addElement(final int elementIndex, final double[] pValues) throws IOException {
+        keptElements.set(elementIndex);
+        final int element = fdr.add(pValues);
+        if (topHits != null) {
+            final TopHit hit = new TopHit(element, pValues.clone());
+            if (topHits.size() < topHitNum + 2) {
+                topHits.add(hit);
+            } else if (topHits.comparator().compare(hit, topHits.peek()) > 0) {
+                // the hit ranks before the last of the top hits:
+                topHits.poll();
+                topHits.add(hit);
+            }
+        }
+    }
+
+    private static final class TopHit {
+        private final int element;
+        private final double[] pValues;
+
+        private TopHit(final int element, final double[] pValues) {
+            this.element = element;
+            this.pValues = pValues;
+        }
+    }
+
     private void appendPValueColumns(String[] inputFiles, ObjectSet<String> selection) {
         String firstFile = inputFiles[0];
         try {
@@ -229,13 +359,11 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
 
     }
 
-    private void recordTopHits(final DifferentialExpressionResults data) {
+    private void recordTopHits() {
         topHitsElementIndices = new IntArraySet();
-        int num = 0;
-        for (final DifferentialExpressionInfo info : data) {
-            topHitsElementIndices.add(Integer.parseInt(info.getElementId().toString()));
-            if (num++ > topHitNum) {
-                break;
+        if (topHits != null) {
+            for (final TopHit hit : topHits) {
+                topHitsElementIndices.add(hit.element);
             }
         }
     }
@@ -246,20 +374,13 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
     }
 
 
-    private boolean contains(String[] selectedPValueColumns, String statId) {
-        for (String s : selectedPValueColumns) {
-            if (s.equalsIgnoreCase(statId)) return true;
-        }
-        return false;
-    }
-
-    private void loadVCF(String[] inputFiles, DifferentialExpressionResults data,
-                         DifferentialExpressionCalculator deCalculator, ObjectList<String> columnIdList) throws IOException {
+    private void loadVCF(String[] inputFiles) throws IOException {
 
         int elementIndex = 0;
         for (String filename : inputFiles) {
             System.out.printf("Loading %s%n", filename);
             VCFParser parser = new VCFParser(filename);
+            parser.setNumThreads(numThreads);
             try {
                 parser.readHeader();
                 GroupAssociations groupAssociations = parser.getGroupAssociations();
@@ -279,10 +400,6 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                                 filename);
                         System.exit(1);
                     }
-                    final String statName = selectedFieldName.toLowerCase();
-                    if (!data.isStatisticDefined(new MutableString(statName))) {
-                        data.declareStatistic(statName);
-                    }
                     selectedInfoFieldGlobalIndices.add(selectedField.globalFieldIndex);
                 }
                 ProgressLogger pg = new ProgressLogger(LOG);
@@ -291,27 +408,21 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                 pg.start();
                 while (parser.hasNextDataLine()) {
 
-                    // prepare elementId and stat info:
                     int index = 0;
-                    final String elementId = Integer.toString(elementIndex);
-                    final DifferentialExpressionInfo info = createInfo(deCalculator,
-                            selectedInfoFieldGlobalIndices.size(),
-                            elementId);
+                    final double[] pValues = new double[pValueStatistics.size()];
                     // keep all lines if we don't adjust any column:
 
                     boolean keepLine = selectedInfoFieldGlobalIndices.isEmpty();
                     for (final int globalFieldIndex : selectedInfoFieldGlobalIndices) {
 
-                        final String stringFieldValue = parser.getStringFieldValue(globalFieldIndex);
-                        double pValue = Double.parseDouble(stringFieldValue);
+                        double pValue = parser.getDoubleFieldValue(globalFieldIndex);
                         if (pValue < qValueThreshold) {
                             keepLine = true;
                         }
-                        info.statistics().set(index++, pValue);
+                        pValues[index++] = pValue;
                     }
                     if (keepLine) {
-                        data.add(info);
-                        elementPermutation.put(elementIndex, data.size() - 1);
+                        addElement(elementIndex, pValues);
                     } else {
                         numIgnoredObservations++;
                     }
@@ -331,21 +442,7 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
 
     }
 
-    private DifferentialExpressionInfo createInfo(DifferentialExpressionCalculator deCalculator, int numPValueColumns, String elementId) {
-        deCalculator.defineElement(elementId);
-
-        // determine capacity to be twice the number of selected columns, since we need one column for the p-value
-        // and one for the q-value.
-        final int capacity = numPValueColumns * 2;
-        final DifferentialExpressionInfo info = new DifferentialExpressionInfo(elementId, capacity);
-        // we set the size to load only the p-values:
-        info.statistics().size(numPValueColumns);
-        // the fdr will create the columns it needs (within capacity) to store corresponding q-values.
-        return info;
-    }
-
-    private void loadTSV(String[] inputFiles, DifferentialExpressionResults data, DifferentialExpressionCalculator deCalculator,
-                         ObjectList<String> columnIdList) throws IOException {
+    private void loadTSV(String[] inputFiles, ObjectList<String> columnIdList) throws IOException {
         int elementIndex = 0;
         for (String filename : inputFiles) {
             System.out.println("Loading P-values from " + filename);
@@ -360,11 +457,6 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                 for (String column : columnIdList) {
                     for (String selectedColumn : selectedPValueColumns) {
                         if (column.equalsIgnoreCase(selectedColumn)) {
-
-                            final String statName = column.toLowerCase();
-                            if (!data.isStatisticDefined(new MutableString(statName))) {
-                                data.declareStatistic(statName);
-                            }
                             doubleColumnIndices.add(columnIndex);
                         }
                     }
@@ -376,10 +468,8 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
 
                     if (!reader.isCommentLine()) {
                         reader.next();
-                        final String elementId = Integer.toString(elementIndex);
                         int index = 0;
-
-                        final DifferentialExpressionInfo info = createInfo(deCalculator, selectedPValueColumns.length, elementId);
+                        final double[] pValues = new double[pValueStatistics.size()];
                         boolean keepLine = doubleColumnIndices.isEmpty();
                         for (int j = 0; j < reader.numTokens(); j++) {
                             if (doubleColumnIndices.contains(j)) {
@@ -387,15 +477,14 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                                 if (pValue < qValueThreshold) {
                                     keepLine = true;
                                 }
-                                info.statistics().set(index++, pValue);
+                                pValues[index++] = pValue;
                             } else {
                                 reader.getString();
                             }
 
                         }
                         if (keepLine) {
-                            data.add(info);
-                            elementPermutation.put(elementIndex, data.size() - 1);
+                            addElement(elementIndex, pValues);
                         } else {
                             ++numIgnoredObservations;
                         }
@@ -414,9 +503,7 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
 
     }
 
-    private void combineVCF(String[] inputFiles, DifferentialExpressionResults data,
-                            DifferentialExpressionCalculator deCalculator,
-                            ObjectList<String> columnIdList, Writer writer) throws IOException {
+    private void combineVCF(String[] inputFiles, Writer writer) throws IOException {
 
         Columns columns = new Columns();
         ObjectArrayList<String> sampleIdList = new ObjectArrayList();
@@ -424,6 +511,7 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
         GroupAssociations groupAssociations = null;
         for (String filename : inputFiles) {
             VCFParser parser = new VCFParser(filename);
+            parser.setNumThreads(numThreads);
             try {
                 try {
                     parser.readHeader();
@@ -472,9 +560,12 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
 
         vcfWriter.writeHeader();
         int elementIndex = 0;
+        // index of the element in the adjustment, for the lines with at least one P-value below the threshold:
+        int element = -1;
         for (String filename : inputFiles) {
             System.out.printf("Combining %s%n", filename);
             VCFParser parser = new VCFParser(filename);
+            parser.setNumThreads(numThreads);
             try {
 
                 try {
@@ -516,26 +607,20 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
 
                 while (parser.hasNextDataLine()) {
 
-                    final String elementId = Integer.toString(elementIndex);
                     boolean keepThisLine = false;
-                    if (elementPermutation.containsKey(elementIndex)) {
-                        final int permutedIndex = elementPermutation.get(elementIndex);
-                        final DifferentialExpressionInfo differentialExpressionInfo = data.get(permutedIndex);
-                        assert Integer.parseInt(differentialExpressionInfo.getElementId().toString()) == elementIndex : " element index must match with data element retrived";
+                    if (keptElements.get(elementIndex)) {
+                        element++;
                         for (final String adjustedColumn : adjustedColumnIds) {
-                            final int adjustedColumnIndex = data.getStatisticIndex(adjustedColumn);
-                            final DoubleArrayList list = differentialExpressionInfo.statistics();
-
-                            final double adjustedPValue = list.get(adjustedColumnIndex);
+                            final double adjustedPValue = getQValue(adjustedColumn, element);
                             keepThisLine = determineKeepThisLine(keepThisLine, adjustedPValue);
                             if (topHitNum != 0 && topHitsElementIndices.isEmpty()) {
                                 // early stop: there are no q-values below the threshold and we have seen enough top hits already.
                                 break;
                             }
-                            if (topHitNum != 0 && topHitsElementIndices.contains(elementIndex)) {
+                            if (topHitNum != 0 && topHitsElementIndices.contains(element)) {
                                 // the q-value is not good enough for the threshold, but we want to include up to top hits in the results:
                                 keepThisLine = true;
-                                topHitsElementIndices.remove(elementIndex);
+                                topHitsElementIndices.remove(element);
                             }
 
                         }
@@ -544,8 +629,6 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                             keepThisLine = true;
                         }
                         if (keepThisLine) {
-                            final DifferentialExpressionInfo info = differentialExpressionInfo;
-                            assert info.getElementId().equals(elementId) : " elementId must match";
                             // transfer previous columsn and fields:
                             infoFieldIndex = 0;
                             sampleIndex = 0;
@@ -608,10 +691,7 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                             statIndex = 0;
                             for (String adjustedColumn : adjustedColumnIds) {
 
-                                int adjustedColumnIndex = data.getStatisticIndex(adjustedColumn);
-                                final DoubleArrayList list = differentialExpressionInfo.statistics();
-
-                                double newColValue = list.get(adjustedColumnIndex);
+                                double newColValue = getQValue(adjustedColumn, element);
                                 vcfWriter.setInfo(statIndexToInfoFieldIndex.get(statIndex), Double.toString(newColValue));
                                 statIndex++;
 
@@ -640,12 +720,12 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
         return keepThisLine;
     }
 
-    private void combineTSV(String[] inputFiles, DifferentialExpressionResults data,
-                            DifferentialExpressionCalculator deCalculator, ObjectList<String> columnIdList,
-                            Writer out) throws IOException {
+    private void combineTSV(String[] inputFiles, ObjectList<String> columnIdList, Writer out) throws IOException {
 
         PrintWriter printer = new PrintWriter(out);
         int elementIndex = 0;
+        // index of the element in the adjustment, for the lines with at least one P-value below the threshold:
+        int element = -1;
         // write the TSV header first:
 
         boolean first = true;
@@ -683,12 +763,6 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                 for (String column : columnIdList) {
                     for (String selectedColumn : selectedPValueColumns) {
                         if (column.equalsIgnoreCase(selectedColumn)) {
-
-                            final String statName = column.toLowerCase();
-
-                            if (!data.isStatisticDefined(new MutableString(statName))) {
-                                data.declareStatistic(statName);
-                            }
                             doubleColumnIndices.add(columnIndex);
                         }
                     }
@@ -699,48 +773,37 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                     first = true;
                     if (!reader.isCommentLine()) {
                         reader.next();
-                        final String elementId = Integer.toString(elementIndex);
                         boolean keepThisLine = doubleColumnIndices.isEmpty();
-                        if (elementPermutation.containsKey(elementIndex)) {
-                            final int permutedIndex = elementPermutation.get(elementIndex);
-                            final DifferentialExpressionInfo differentialExpressionInfo = data.get(permutedIndex);
-                            assert Integer.parseInt(differentialExpressionInfo.getElementId().toString()) == elementIndex : " element index must match with data element retrived";
+                        if (keptElements.get(elementIndex)) {
+                            element++;
                             {
-                                final DoubleArrayList list = differentialExpressionInfo.statistics();
-
                                 for (final String adjustedColumn : adjustedColumnIds) {
-                                    final int adjustedColumnIndex = data.getStatisticIndex(adjustedColumn);
-
-                                    final double adjustedPValue = list.get(adjustedColumnIndex);
+                                    final double adjustedPValue = getQValue(adjustedColumn, element);
                                     keepThisLine = determineKeepThisLine(keepThisLine, adjustedPValue);
                                 }
                                 if (topHitNum != 0 && topHitsElementIndices.isEmpty()) {
                                     // early stop: there are no q-values below the threshold and we have seen enough top hits already.
                                     break;
                                 }
-                                if (topHitNum != 0 && topHitsElementIndices.contains(elementIndex)) {
+                                if (topHitNum != 0 && topHitsElementIndices.contains(element)) {
                                     // the q-value is not good enough for the threshold, but we want to include up to top hits in the results:
                                     keepThisLine = true;
-                                    topHitsElementIndices.remove(elementIndex);
+                                    topHitsElementIndices.remove(element);
                                 }
                             }
                             if (!keepThisLine) {
                                 //     System.out.println("skipping elementId since the adjusted P-values do not make the q-value threshold." + elementId);
                             }
                             if (keepThisLine) {
-                                int index = 0;
-                                final DifferentialExpressionInfo info = differentialExpressionInfo;
-                                assert info.getElementId().equals(elementId) : " elementId must match";
                                 first = true;
                                 for (int j = 0; j < reader.numTokens(); j++) {
                                     if (doubleColumnIndices.contains(j)) {
-                                        reader.getString();
+                                        final double pValue = reader.getDouble();
                                         if (!first) {
                                             printer.write('\t');
                                         }
-                                        printer.print(info.statistics().get(index));
+                                        printer.print(pValue);
                                         first = false;
-                                        index++;
                                     } else {
                                         if (!first) {
                                             printer.write('\t');
@@ -751,12 +814,10 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                                 }
                                 first = false;
                                 for (final String adjustedColumn : adjustedColumnIds) {
-                                    final int adjustedColumnIndex = data.getStatisticIndex(adjustedColumn);
-                                    final DoubleArrayList list = differentialExpressionInfo.statistics();
                                     if (!first) {
                                         printer.write('\t');
                                     }
-                                    printer.print(list.get(adjustedColumnIndex));
+                                    printer.print(getQValue(adjustedColumn, element));
                                     first = false;
                                 }
                                 printer.printf("%n");
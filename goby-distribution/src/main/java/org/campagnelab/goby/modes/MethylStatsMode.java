@@ -258,7 +258,7 @@ public class MethylStatsMode extends AbstractGobyMode {
                             refIndexOfNextCpG = referenceIndex;
                         }
                         // VCF positions are 1-based, but Goby genome positions are 0-based, adjust here:
-                        int sitePosition = Integer.parseInt(vcfParser.getFieldValue(positionGlobalFieldIndex).toString()) - 1;
+                        int sitePosition = vcfParser.getIntFieldValue(positionGlobalFieldIndex) - 1;
                         char strand = vcfParser.getFieldValue(strandGlobalFieldIndex).charAt(0);
                         if (doFragments) {
                             if (isCpG(referenceIndex, sitePosition, strand)) {
@@ -266,7 +266,7 @@ public class MethylStatsMode extends AbstractGobyMode {
                                 final int fragmentLength = calculateFragmentLength(reference, sitePosition, strand);
                                 if (fragmentLength > 0) {
                                     for (i = 0; i < numSamples; i++) {
-                                        final int depthInSample = Integer.parseInt(vcfParser.getFieldValue(sampleDepthGlobalFieldIndex[i]).toString());
+                                        final int depthInSample = vcfParser.getIntFieldValue(sampleDepthGlobalFieldIndex[i]);
                                         if (depthInSample > 10) {
                                             methylStats[i].observedInSample(depthInSample, fragmentLength);
                                         }
@@ -275,7 +275,7 @@ public class MethylStatsMode extends AbstractGobyMode {
                             }
                         }
                         for (i = 0; i < numSamples; i++) {
-                            final int depthInSample = Integer.parseInt(vcfParser.getFieldValue(sampleDepthGlobalFieldIndex[i]).toString());
+                            final int depthInSample = vcfParser.getIntFieldValue(sampleDepthGlobalFieldIndex[i]);
                             methylStats[i].observedDepth(depthInSample);
                         }
                         updateCpXs(reference, referenceIndex, sitePosition, strand, methylStats, vcfParser, numSamples);
@@ -319,12 +319,12 @@ public class MethylStatsMode extends AbstractGobyMode {
 
 
             for (int i = 0; i < numSamples; i++) {
-                final int depthInSample = Integer.parseInt(vcfParser.getFieldValue(sampleDepthGlobalFieldIndex[i]).toString());
+                final int depthInSample = vcfParser.getIntFieldValue(sampleDepthGlobalFieldIndex[i]);
                 final CharSequence baseCalls = vcfParser.getFieldValue(baseCallGlobalFieldIndex[i]);
                 if ("ignore".equals(baseCalls)) continue;
-                final float mr = Integer.parseInt(vcfParser.getFieldValue(methylationRateGlobalFieldIndex[i]).toString());
-                final int numCm = Integer.parseInt(vcfParser.getFieldValue(unconvertedCystosineGlobalFieldIndex[i]).toString());
-                final int numCConverted = Integer.parseInt(vcfParser.getFieldValue(convertedCystosineGlobalFieldIndex[i]).toString());
+                final float mr = vcfParser.getIntFieldValue(methylationRateGlobalFieldIndex[i]);
+                final int numCm = vcfParser.getIntFieldValue(unconvertedCystosineGlobalFieldIndex[i]);
+                final int numCConverted = vcfParser.getIntFieldValue(convertedCystosineGlobalFieldIndex[i]);
 
                 final MethylStats stats = methylStats[i];
                 if (base(secondBase, strand) != 'G') {
@@ -25,6 +25,7 @@ import org.campagnelab.goby.alignments.perms.QueryIndexPermutation;
 import org.campagnelab.goby.alignments.perms.ReadNameToIndex;
 import org.campagnelab.goby.compression.MessageChunksWriter;
 import org.campagnelab.goby.readers.sam.ConversionConfig;
+import org.campagnelab.goby.readers.sam.ParallelBAMReader;
 import org.campagnelab.goby.readers.sam.SAMRecordIterable;
 import org.campagnelab.goby.readers.sam.SamRecordParser;
 import org.campagnelab.goby.reads.DualRandomAccessSequenceCache;
@@ -40,17 +41,17 @@ import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.lang.MutableString;
 import it.unimi.dsi.logging.ProgressLogger;
 import htsjdk.samtools.*;
+import htsjdk.samtools.util.BlockCompressedInputStream;
 import org.campagnelab.goby.readers.sam.ConvertSamBAMReadToGobyAlignment;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.*;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.*;
 
 /**
  * Converts alignments in the SAM or BAM format to the compact alignment format.
@@ -86,6 +87,17 @@ public class SAMToCompactMode extends AbstractGobyMode {
 
     private ConversionConfig config;
 
+    /**
+     * Number of SAM records converted by a task of the conversion thread pool.
+     */
+    private static final int RECORDS_PER_BATCH = 1000;
+    /**
+     * Number of batches of records converted ahead of the writer, per thread.
+     */
+    private static final int PENDING_BATCHES_PER_THREAD = 4;
+
+    private int numThreads = 1;
+
 
     @RegisterThis
     public static DynamicOptionClient doc = new DynamicOptionClient(SAMToCompactMode.class,
@@ -201,6 +213,7 @@ public class SAMToCompactMode extends AbstractGobyMode {
         config.numberOfReadsFromCommandLine = jsapResult.getInt("number-of-reads");
         config.qualityEncoding = QualityEncoding.valueOf(jsapResult.getString("quality-encoding").toUpperCase());
         config.sortedInput = jsapResult.getBoolean("sorted");
+        numThreads = jsapResult.getInt("num-threads");
         config.largestQueryIndex = config.numberOfReadsFromCommandLine;
         config.smallestQueryIndex = 0;
         // don't even dare go through the debugging code if log4j was not configured. The debug code
@@ -237,17 +250,33 @@ public class SAMToCompactMode extends AbstractGobyMode {
             throws IOException {
         int numAligns = 0;
         final IndexedIdentifier targetIds = new IndexedIdentifier();
-        final AlignmentWriter destinationWriter = new AlignmentWriterImpl(outputFile);
+        final AlignmentWriterImpl destinationWriter = new AlignmentWriterImpl(outputFile);
+        final ExecutorService executor = numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : null;
+        if (executor != null) {
+            destinationWriter.setNumEncodingThreads(numThreads);
+        }
         final AlignmentWriter writer = config.sortedInput ? new BufferedSortingAlignmentWriter(destinationWriter, 10000) : destinationWriter;
         final ProgressLogger progress = new ProgressLogger(LOG);
         progress.displayFreeMemory = true;
         // the following is required to set validation to SILENT before loading the header (done in the SAMFileReader constructor)
         SAMFileReader.setDefaultValidationStringency(ValidationStringency.SILENT);
 
-        final InputStream stream = "-".equals(inputFile) ? System.in : new FileInputStream(inputFile);
-        final SAMFileReader parser = new SAMFileReader(stream);
+        final InputStream stream = new BufferedInputStream("-".equals(inputFile) ? System.in : new FileInputStream(inputFile));
+        final ParallelBAMReader bamReader;
+        final SAMFileHeader samHeader;
+        final Iterable<SAMRecord> records;
+        if (executor != null && BlockCompressedInputStream.isValidFile(stream)) {
+            // inflate BAM blocks on the thread pool:
+            bamReader = new ParallelBAMReader(stream, executor, numThreads * PENDING_BATCHES_PER_THREAD);
+            samHeader = bamReader.getFileHeader();
+            records = bamReader;
+        } else {
+            bamReader = null;
+            final SAMFileReader parser = new SAMFileReader(stream);
+            samHeader = parser.getFileHeader();
+            records = new SAMRecordIterable(parser.iterator());
+        }
         // transfer read groups to Goby header:
-        final SAMFileHeader samHeader = parser.getFileHeader();
         final IndexedIdentifier readGroups = new IndexedIdentifier();
 
         importReadGroups(samHeader, readGroups);
@@ -307,64 +336,28 @@ public class SAMToCompactMode extends AbstractGobyMode {
 
         final ObjectArrayList<Alignments.AlignmentEntry.Builder> builders = new ObjectArrayList<Alignments.AlignmentEntry.Builder>();
 
-        final SamRecordParser samRecordParser = new SamRecordParser();
-        samRecordParser.setQualityEncoding(config.qualityEncoding);
-        samRecordParser.setGenome(config.genome);
-        ConvertSamBAMReadToGobyAlignment convertReads = new ConvertSamBAMReadToGobyAlignment(targetIds, readGroups,
-                 queryIndex2NextFragmentIndex, builders, samRecordParser);
-        convertReads.setConfig(config);
-        for (final SAMRecord samRecord : new SAMRecordIterable(parser.iterator())) {
-            config.numberOfReads++;
-            convertReads.setSamRecord(samRecord);
-            convertReads.invoke();
-            if (!convertReads.hasResult())
-                continue;
-            final boolean readIsPaired = samRecord.getReadPairedFlag();
-            for (final Alignments.AlignmentEntry.Builder builder : convertReads.getBuilders()) {
-                int queryIndex = convertReads.getQueryIndex();
-                if (convertReads.getNumTotalHits() <= config.mParameter) {
-                    if (readIsPaired) {
-
-                        if (!samRecord.getMateUnmappedFlag()) {
-                            assert convertReads.getFirstFragmentIndex() >= 0 : " firstFragmentIndex cannot be negative";
-                            // some BAM files indicate pair is in the p
-                            if (convertReads.getMateFragmentIndex() >= 0) {
-                                final Alignments.RelatedAlignmentEntry.Builder relatedBuilder =
-                                        Alignments.RelatedAlignmentEntry.newBuilder();
-
-                                final int mateTargetIndex = getTargetIndex(targetIds, samRecord.getMateReferenceName(), config.thirdPartyInput);
-                                final int mateAlignmentStart = samRecord.getMateAlignmentStart() - 1; // samhelper returns zero-based positions compatible with Goby.
-                                relatedBuilder.setFragmentIndex(convertReads.getMateFragmentIndex());
-                                relatedBuilder.setPosition(mateAlignmentStart);
-                                relatedBuilder.setTargetIndex(mateTargetIndex);
-                                builder.setPairAlignmentLink(relatedBuilder);
-                            }
-                        } else {
-                            // mate is unmapped.
-
-                        }
-                    }
-
-                    writer.appendEntry(builder.build());
-                    numAligns += convertReads.getMultiplicity();
-                    if (config.debug && LOG.isDebugEnabled()) {
-                        LOG.debug(String.format("Added queryIdndex=%d to alignment", queryIndex));
-                    }
-                } else {
-
-                    // TMH writer adds the alignment entry only if hits > thresh
-                    tmhWriter.append(queryIndex, convertReads.getNumTotalHits(), convertReads.getGobySamRecord().getQueryLength());
-                    if (config.debug && LOG.isDebugEnabled()) {
-                        LOG.debug(String.format("Added queryIndex=%d to TMH", queryIndex));
-                    }
-                    // remove the query name from memory since we are not writing these entries anyway
-                    while (queryIndex == convertReads.getQueryIndex(0, samRecord.getReadName())) {
-                        //do nothing
-                    }
+        final ConvertSamBAMReadToGobyAlignment convertReads = newConverter(targetIds, readGroups,
+                queryIndex2NextFragmentIndex, builders);
+        try {
+            if (executor == null) {
+                for (final SAMRecord samRecord : records) {
+                    config.numberOfReads++;
+                    convertReads.setSamRecord(samRecord);
+                    convertReads.invoke();
+                    numAligns += writeEntries(convertReads, samRecord, writer, tmhWriter, targetIds);
+                    progress.lightUpdate();
                 }
+            } else {
+                numAligns = convertInParallel(records, executor, convertReads, writer, tmhWriter, targetIds,
+                        readGroups, progress);
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            if (bamReader != null) {
+                bamReader.close();
             }
-            numAligns = convertReads.getNumAligns();
-            progress.lightUpdate();
         }
 
         if (!targetIds.isEmpty()) {
@@ -373,7 +366,6 @@ public class SAMToCompactMode extends AbstractGobyMode {
         }
         writer.putStatistic("number-of-entries-written", numAligns);
         writer.setNumQueries(Math.max(config.numberOfReads, config.numberOfReadsFromCommandLine));
-        writer.printStats(System.out);
 
         // write information from SAM file header
         final SAMSequenceDictionary samSequenceDictionary = samHeader.getSequenceDictionary();
@@ -382,6 +374,198 @@ public class SAMToCompactMode extends AbstractGobyMode {
         writer.setReadOriginInfo(readOriginInfoBuilderList);
         progress.stop();
         writer.close();
+        // chunks are written as they are encoded, statistics are complete once the writer is closed:
+        writer.printStats(System.out);
+        config.nameToQueryIndices.close();
+        return numAligns;
+    }
+
+    private ConvertSamBAMReadToGobyAlignment newConverter(final IndexedIdentifier targetIds,
+                                                          final IndexedIdentifier readGroups,
+                                                          final Int2ByteMap queryIndex2NextFragmentIndex,
+                                                          final ObjectArrayList<Alignments.AlignmentEntry.Builder> builders) {
+        final SamRecordParser samRecordParser = new SamRecordParser();
+        samRecordParser.setQualityEncoding(config.qualityEncoding);
+        samRecordParser.setGenome(config.genome);
+        final ConvertSamBAMReadToGobyAlignment convertReads = new ConvertSamBAMReadToGobyAlignment(targetIds,
+                readGroups, queryIndex2NextFragmentIndex, builders, samRecordParser);
+        convertReads.setConfig(config);
+        return convertReads;
+    }
+
+    /**
+     * Convert records with a pipeline: a reader thread reads records (BAM blocks are inflated on the thread pool)
+     * and submits batches of records to the thread pool, where they are parsed into alignment entries. Parsed
+     * batches are assigned query indices and written in input order on the calling thread. The output is the
+     * same as when records are converted on a single thread.
+     *
+     * @return number of alignments written.
+     */
+    private int convertInParallel(final Iterable<SAMRecord> records, final ExecutorService executor,
+                                  final ConvertSamBAMReadToGobyAlignment convertReads,
+                                  final AlignmentWriter writer, final AlignmentTooManyHitsWriter tmhWriter,
+                                  final IndexedIdentifier targetIds, final IndexedIdentifier readGroups,
+                                  final ProgressLogger progress) throws IOException {
+        // each thread of the pool parses records with its own converter:
+        final ThreadLocal<ConvertSamBAMReadToGobyAlignment> parsers = new ThreadLocal<ConvertSamBAMReadToGobyAlignment>() {
+            @Override
+            protected ConvertSamBAMReadToGobyAlignment initialValue() {
+                return newConverter(targetIds, readGroups, new Int2ByteOpenHashMap(),
+                        new ObjectArrayList<Alignments.AlignmentEntry.Builder>());
+            }
+        };
+        final BlockingQueue<Future<ConvertSamBAMReadToGobyAlignment.ParsedRecord[]>> batches =
+                new ArrayBlockingQueue<Future<ConvertSamBAMReadToGobyAlignment.ParsedRecord[]>>(
+                        numThreads * PENDING_BATCHES_PER_THREAD);
+        final Future<ConvertSamBAMReadToGobyAlignment.ParsedRecord[]> endOfBatches =
+                new FutureTask<ConvertSamBAMReadToGobyAlignment.ParsedRecord[]>(
+                        new Callable<ConvertSamBAMReadToGobyAlignment.ParsedRecord[]>() {
+                            @Override
+                            public ConvertSamBAMReadToGobyAlignment.ParsedRecord[] call() {
+                                return null;
+                            }
+                        });
+        final Throwable[] readError = new Throwable[1];
+        final Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ObjectArrayList<SAMRecord> batch = new ObjectArrayList<SAMRecord>(RECORDS_PER_BATCH);
+                    for (final SAMRecord samRecord : records) {
+                        batch.add(samRecord);
+                        if (batch.size() == RECORDS_PER_BATCH) {
+                            batches.put(submit(batch));
+                            batch = new ObjectArrayList<SAMRecord>(RECORDS_PER_BATCH);
+                        }
+                    }
+                    if (!batch.isEmpty()) {
+                        batches.put(submit(batch));
+                    }
+                } catch (InterruptedException e) {
+                    // the writer stopped.
+                    return;
+                } catch (Throwable t) {
+                    readError[0] = t;
+                }
+                try {
+                    batches.put(endOfBatches);
+                } catch (InterruptedException e) {
+                    // the writer stopped.
+                }
+            }
+
+            private Future<ConvertSamBAMReadToGobyAlignment.ParsedRecord[]> submit(final ObjectArrayList<SAMRecord> batch) {
+                return executor.submit(new Callable<ConvertSamBAMReadToGobyAlignment.ParsedRecord[]>() {
+                    @Override
+                    public ConvertSamBAMReadToGobyAlignment.ParsedRecord[] call() {
+                        final ConvertSamBAMReadToGobyAlignment parser = parsers.get();
+                        final ConvertSamBAMReadToGobyAlignment.ParsedRecord[] parsed =
+                                new ConvertSamBAMReadToGobyAlignment.ParsedRecord[batch.size()];
+                        for (int i = 0; i < parsed.length; i++) {
+                            parsed[i] = new ConvertSamBAMReadToGobyAlignment.ParsedRecord();
+                            parser.parse(batch.get(i), parsed[i]);
+                        }
+                        return parsed;
+                    }
+                });
+            }
+        }, "sam-to-compact-reader");
+        reader.setDaemon(true);
+        reader.start();
+        int numAligns = 0;
+        try {
+            Future<ConvertSamBAMReadToGobyAlignment.ParsedRecord[]> batch;
+            while ((batch = batches.take()) != endOfBatches) {
+                for (final ConvertSamBAMReadToGobyAlignment.ParsedRecord parsed : batch.get()) {
+                    config.numberOfReads++;
+                    convertReads.assign(parsed);
+                    numAligns += writeEntries(convertReads, parsed.getSamRecord(), writer, tmhWriter, targetIds);
+                    progress.lightUpdate();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while converting records.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IOException("Unable to convert records.", e.getCause());
+        } finally {
+            reader.interrupt();
+        }
+        if (readError[0] != null) {
+            if (readError[0] instanceof RuntimeException) {
+                throw (RuntimeException) readError[0];
+            }
+            if (readError[0] instanceof Error) {
+                throw (Error) readError[0];
+            }
+            throw new IOException("Unable to read records.", readError[0]);
+        }
+        return numAligns;
+    }
+
+    /**
+     * Write the alignment entries of the record last assigned by convertReads, or add the read to the too many
+     * hits file when it matches more locations than the ambiguity threshold.
+     *
+     * @return number of alignments written.
+     */
+    private int writeEntries(final ConvertSamBAMReadToGobyAlignment convertReads, final SAMRecord samRecord,
+                             final AlignmentWriter writer, final AlignmentTooManyHitsWriter tmhWriter,
+                             final IndexedIdentifier targetIds) throws IOException {
+        if (!convertReads.hasResult()) {
+            return 0;
+        }
+        int numAligns = 0;
+        final boolean readIsPaired = samRecord.getReadPairedFlag();
+        for (final Alignments.AlignmentEntry.Builder builder : convertReads.getBuilders()) {
+            int queryIndex = convertReads.getQueryIndex();
+            if (convertReads.getNumTotalHits() <= config.mParameter) {
+                if (readIsPaired) {
+
+                    if (!samRecord.getMateUnmappedFlag()) {
+                        assert convertReads.getFirstFragmentIndex() >= 0 : " firstFragmentIndex cannot be negative";
+                        // some BAM files indicate pair is in the p
+                        if (convertReads.getMateFragmentIndex() >= 0) {
+                            final Alignments.RelatedAlignmentEntry.Builder relatedBuilder =
+                                    Alignments.RelatedAlignmentEntry.newBuilder();
+
+                            final int mateTargetIndex = getTargetIndex(targetIds, samRecord.getMateReferenceName(), config.thirdPartyInput);
+                            final int mateAlignmentStart = samRecord.getMateAlignmentStart() - 1; // samhelper returns zero-based positions compatible with Goby.
+                            relatedBuilder.setFragmentIndex(convertReads.getMateFragmentIndex());
+                            relatedBuilder.setPosition(mateAlignmentStart);
+                            relatedBuilder.setTargetIndex(mateTargetIndex);
+                            builder.setPairAlignmentLink(relatedBuilder);
+                        }
+                    } else {
+                        // mate is unmapped.
+
+                    }
+                }
+
+                writer.appendEntry(builder.build());
+                numAligns += convertReads.getMultiplicity();
+                if (config.debug && LOG.isDebugEnabled()) {
+                    LOG.debug(String.format("Added queryIdndex=%d to alignment", queryIndex));
+                }
+            } else {
+
+                // TMH writer adds the alignment entry only if hits > thresh
+                tmhWriter.append(queryIndex, convertReads.getNumTotalHits(), convertReads.getQueryLength());
+                if (config.debug && LOG.isDebugEnabled()) {
+                    LOG.debug(String.format("Added queryIndex=%d to TMH", queryIndex));
+                }
+                // remove the query name from memory since we are not writing these entries anyway
+                while (queryIndex == convertReads.getQueryIndex(0, samRecord.getReadName())) {
+                    //do nothing
+                }
+            }
+        }
         return numAligns;
     }
 
@@ -480,4 +664,14 @@ public class SAMToCompactMode extends AbstractGobyMode {
         outputFile = outputFilename;
     }
 
+    /**
+     * Set the number of threads used to convert records. When larger than one, BAM blocks are inflated and records
+     * are converted on a thread pool, while query indices are assigned and entries written in input order.
+     *
+     * @param numThreads number of threads.
+     */
+    public void setNumThreads(final int numThreads) {
+        this.numThreads = numThreads;
+    }
+
 }
@@ -21,26 +21,24 @@ package org.campagnelab.goby.modes;
 import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
 import org.campagnelab.goby.alignments.*;
-import org.campagnelab.goby.util.HeaderUtil;
 import edu.cornell.med.icb.util.ICBStringUtils;
-import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.logging.ProgressLogger;
-import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.io.FilenameUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
  * Sort an alignment by reference and reference position for very large alignments.
- * Splits the alignment into chunks, sorting each chunk, then successively merging
- * the chunks until the complete output is sorted.
+ * Splits the alignment into chunks and sorts each chunk into a run of serialized entries
+ * (see {@link ExternalEntrySorter}), then merges all the runs in a single pass that encodes
+ * and indexes the output.
  *
  * @author Kevin Dorff.
  * @author Fabien Campagne.
@@ -59,7 +57,7 @@ public class SortMode extends AbstractGobyMode {
     /**
      * The mode description help text.
      */
-    private static final String MODE_DESCRIPTION = "Sort a large (any size) compact alignment files by reference position. This sort mode works in parallel, splitting the alignment, sorting the splits, then successively merging the sorted pieces. The output alignment is sorted and indexed.";
+    private static final String MODE_DESCRIPTION = "Sort a large (any size) compact alignment files by reference position. This sort mode works in parallel, splitting the alignment, sorting the splits into temporary runs, then merging the runs in a single pass. The output alignment is sorted and indexed.";
 
     /**
      * The output file.
@@ -79,26 +77,16 @@ public class SortMode extends AbstractGobyMode {
     private double memoryPercentageForWork = 0.75;
     private int splitSizeScalingFactor = 100;
 
-    /*
-     * The following data structures are used to assist the parallelization of the sort/merge.
+    /**
+     * When true, runs are compressed with LZ4, otherwise they are written as raw serialized entries.
      */
-    // Splits that are waiting to be sorted/merged
-    private final ConcurrentLinkedQueue<SortMergeSplit> splitsToMerge = new ConcurrentLinkedQueue<SortMergeSplit>();
-    // Number of splits that are waiting to be sorted/merged. Not just using splitsToMerge.size() for efficiency
-    private final AtomicInteger splitsToMergeSize = new AtomicInteger(0);
-    private final AtomicInteger numSplitsCompleted = new AtomicInteger(0);
-    // Splits that have been sorted or sorted/merged, waiting for the next sort/merge
-    private final ConcurrentLinkedQueue<SortMergeSplit> sortedSplits = new ConcurrentLinkedQueue<SortMergeSplit>();
-    // The number of sorts or sorts/merges that are running or queued right now
-    private final AtomicLong numSortMergesRunning = new AtomicLong(0);
-    private final AtomicLong numMergesExecuted = new AtomicLong(0);
+    private boolean compressRuns = true;
+
     private ExecutorService executorService;
 
     private final ConcurrentLinkedQueue<Throwable> exceptions = new ConcurrentLinkedQueue<Throwable>();
-    private final ConcurrentLinkedQueue<File> filesToDelete = new ConcurrentLinkedQueue<File>();
 
     private ProgressLogger progressSplitSort;
-    private ProgressLogger progressMergeSort;
     private boolean dryRun;
 
     @Override
@@ -156,9 +144,9 @@ public class SortMode extends AbstractGobyMode {
 
     /**
      * Get the number of files per merge.
-     * The number of splits / files per merge. The maximum value you can use for this is related to the
-     * number of file descriptors available from your OS. sort-large mode will open approximately
-     * (3 * threads * files-per-merge) during the merge process.
+     * The maximum number of sorted runs open at the same time. When more runs are produced, groups of runs
+     * are first merged into larger runs, without decoding or encoding entries. The maximum value you can use
+     * for this is related to the number of file descriptors available from your OS.
      *
      * @return the number of files per merge.
      */
@@ -168,9 +156,9 @@ public class SortMode extends AbstractGobyMode {
 
     /**
      * Set the number of files per merge.
-     * The number of splits / files per merge. The maximum value you can use for this is related to the
-     * number of file descriptors available from your OS. sort-large mode will open approximately
-     * ((4 * num-threads * files-per-merge) + 4) during the merge process.
+     * The maximum number of sorted runs open at the same time. When more runs are produced, groups of runs
+     * are first merged into larger runs, without decoding or encoding entries. The maximum value you can use
+     * for this is related to the number of file descriptors available from your OS.
      *
      * @param filesPerMerge the number of files per merge.
      */
@@ -178,6 +166,21 @@ public class SortMode extends AbstractGobyMode {
         this.filesPerMerge = filesPerMerge;
     }
 
+    /**
+     * Set the format of the temporary sorted runs.
+     *
+     * @param runFormat "lz4" to compress runs with LZ4, or "raw" to write serialized entries uncompressed.
+     */
+    public void setRunFormat(final String runFormat) {
+        if ("lz4".equalsIgnoreCase(runFormat)) {
+            compressRuns = true;
+        } else if ("raw".equalsIgnoreCase(runFormat)) {
+            compressRuns = false;
+        } else {
+            throw new IllegalArgumentException("run-format must be lz4 or raw: " + runFormat);
+        }
+    }
+
     /**
      * Get the split size in bytes.
      * The size of the split in bytes. The default, -1, attempts to guess the split size based on
@@ -295,6 +298,7 @@ public class SortMode extends AbstractGobyMode {
         setSplitSize(jsapResult.getLong("split-size"));
         tempDir = jsapResult.getString("temp-dir");
         dryRun = jsapResult.getBoolean("dry-run");
+        setRunFormat(jsapResult.getString("run-format"));
 
         setMemoryPercentageForWork(jsapResult.getDouble("memory-percentage-for-work"));
         splitSizeScalingFactor = jsapResult.getInt("thread-memory-scaling-factor");
@@ -330,8 +334,6 @@ public class SortMode extends AbstractGobyMode {
 
         final long fileSize = entriesFile.length();
 
-        // Reduce the number of processors by one, as one thread is used by this running program
-        // and it will be utilized since we've chosen CallerRunsPolicy
         LOG.debug(String.format("sort-large will run with %d threads (0 == no thread pool)", numThreads));
         final AlignmentReader reader = new AlignmentReaderImpl(basename);
         try {
@@ -349,402 +351,179 @@ public class SortMode extends AbstractGobyMode {
                     10, // time to wait before resizing pool
                     TimeUnit.MINUTES,
                     new LinkedBlockingQueue<Runnable>());
-            //new ArrayBlockingQueue<Runnable>(additionalThreads, true));
-            //new ThreadPoolExecutor.CallerRunsPolicy()*/);
         }
 
-        // Setup splits and start first pass sort
+        // Setup splits of the input file, each split is sorted into a run:
         LOG.debug("Splitting file and sorting all splits");
-        long numberOfSplits = 0;
+        final List<long[]> splits = new ArrayList<long[]>();
         long splitStart = 0;
         boolean lastSplit = false;
-        boolean firstSort = true;
-
-        progressSplitSort = new ProgressLogger(LOG, "split-sorts");
-        progressSplitSort.displayFreeMemory = true;
-
-        int count = 0;
-        ObjectArrayList<Runnable> splits = new ObjectArrayList<Runnable>();
         while (!lastSplit) {
             long splitEnd = splitStart + splitSize;
             if (splitEnd >= fileSize - 1) {
                 splitEnd = fileSize - 1;
                 lastSplit = true;
             }
-            final SortMergeSplit split = new SortMergeSplit(splitStart, splitEnd);
-            numberOfSplits++;
-            splits.add(sortSplit(split, firstSort));
-            firstSort = false;
+            splits.add(new long[]{splitStart, splitEnd});
             splitStart = splitEnd;
-
-        }
-        LOG.info(String.format("[%s] Split file into %d pieces", threadId, numberOfSplits));
-
-        progressSplitSort.expectedUpdates = numberOfSplits;
-        progressSplitSort.start();
-        for (Runnable toRun : splits) {
-            if (executorService != null) {
-                executorService.submit(toRun);
-            } else {
-                toRun.run();
-            }
         }
-        while (numSplitsCompleted.get() != numberOfSplits) {
-            // Wait a bit for tasks to finish before finding more to submit
-            if (!exceptions.isEmpty()) {
-                break;
-            }
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+        LOG.info(String.format("[%s] Split file into %d pieces", threadId, splits.size()));
+        if (dryRun) {
+            for (final long[] split : splits) {
+                System.out.printf("dry-run: will sort split [%d,%d] into a run%n", split[0], split[1]);
             }
+            System.out.printf("dry-run: will merge %d runs into %s, with at most %d runs per merge%n",
+                    splits.size(), outputFilename, filesPerMerge);
+            shutdownExecutor(threadId);
+            return;
         }
-        progressSplitSort.done();
-
-        progressMergeSort = new ProgressLogger(LOG, "merges");
-        progressMergeSort.displayFreeMemory = true;
-        progressMergeSort.expectedUpdates = numberOfSplits;
-        progressMergeSort.start();
-        // Subsequent sorts
-        boolean lastMerge = false;
-        boolean done = false;
-        while (!done) {
-
-            if (!exceptions.isEmpty()) {
-                break;
-            }
-
-            // Move any completed sorts back into the splitsToMerge queue
-            while (true) {
-                final SortMergeSplit sortedSplit = sortedSplits.poll();
-                if (sortedSplit != null) {
-                    splitsToMerge.add(sortedSplit);
-                    numSortMergesRunning.decrementAndGet();
-                    splitsToMergeSize.incrementAndGet();
-                } else {
-                    break;
-                }
-            }
-            int splitsToMergeSizeLocal = splitsToMergeSize.get();
-            if (lastMerge && splitsToMergeSizeLocal == 1) {
-                // We're done
-                break;
-            }
 
-            final int numSplitsForMerge;
-            if (splitsToMergeSizeLocal == numberOfSplits && numberOfSplits <= filesPerMerge) {
-                numSplitsForMerge = (int) numberOfSplits;
-                lastMerge = true;
-            } else if (splitsToMergeSizeLocal == 0) {
-                // Nothing to sort this iteration
-                numSplitsForMerge = 0;
-            } else if (splitsToMergeSizeLocal == 1) {
-                // Just one thing to sort, but it's not then complete merge yet. Wait.
-                numSplitsForMerge = 0;
-            } else if (splitsToMergeSizeLocal > filesPerMerge) {
-                numSplitsForMerge = filesPerMerge;
-            } else {
-                // Equal to or less than filesPerMerge. Perhaps the last merge?
-                final List<SortMergeSplitFileRange> ranges = mergeMultiSplitRangeLists(splitsToMerge);
-                if (ranges.size() == 1 && ranges.get(0).isRange(0, fileSize - 1)) {
-                    // Last merge.
-                    lastMerge = true;
-                    numSplitsForMerge = splitsToMergeSizeLocal;
-                } else if (splitsToMergeSizeLocal == filesPerMerge) {
-                    // We have enough to merge, but it's not the last merge
-                    numSplitsForMerge = splitsToMergeSizeLocal;
+        final ExternalEntrySorter sorter = new ExternalEntrySorter(new File(tempDir), compressRuns);
+        try {
+            progressSplitSort = new ProgressLogger(LOG, "split-sorts");
+            progressSplitSort.displayFreeMemory = true;
+            progressSplitSort.expectedUpdates = splits.size();
+            progressSplitSort.start();
+            final List<Future<?>> sorts = new ArrayList<Future<?>>();
+            for (int ordinal = 0; ordinal < splits.size(); ordinal++) {
+                final Runnable toRun = sortSplit(sorter, ordinal, splits.get(ordinal));
+                if (executorService != null) {
+                    sorts.add(executorService.submit(toRun));
                 } else {
-                    // We don't have enough to merge and it's not the last merge
-                    numSplitsForMerge = 0;
+                    toRun.run();
                 }
             }
-
-
-            if (numSplitsForMerge > 0) {
-                final List<SortMergeSplit> toMerge = new ArrayList<SortMergeSplit>(numSplitsForMerge);
-                for (int i = 0; i < numSplitsForMerge; i++) {
-                    splitsToMergeSizeLocal = splitsToMergeSize.decrementAndGet();
-                    toMerge.add(splitsToMerge.poll());
-                }
-                LOG.debug(String.format("[%s] %d items in queue to sort after removing %d for sorting",
-                        threadId, splitsToMergeSizeLocal, numSplitsForMerge));
-                mergeSplits(toMerge, lastMerge);
-
-            } else {
-                // Wait a bit for tasks to finish before finding more to submit
+            for (final Future<?> sort : sorts) {
                 try {
-                    Thread.sleep(1000);
+                    sort.get();
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
+                    exceptions.add(e);
+                } catch (ExecutionException e) {
+                    exceptions.add(e.getCause());
                 }
             }
-        }
-
-        if (executorService != null) {
-            LOG.debug(String.format("[%s] Waiting for threads to finish.", threadId));
-            // accept no new tasks, but wait for all of the executor threads to finish :
-            executorService.shutdown();
-            try {
-                while (!executorService.awaitTermination(60, TimeUnit.SECONDS)) {
-                }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
-        }
-
-        progressMergeSort.stop();
+            progressSplitSort.done();
 
-        if (!filesToDelete.isEmpty()) {
-            // These files weren't deleted after merge for some reason. We'll try again one more time.
-            while (true) {
-                final File cleanupFile = filesToDelete.poll();
-                if (cleanupFile == null) {
-                    break;
-                } else {
-                    deleteFile(cleanupFile, false);
-                }
+            if (exceptions.isEmpty()) {
+                merge(sorter);
             }
+        } catch (Throwable e) {
+            LOG.error(String.format("[%s] Exception merging!! class=%s message=%s", threadId, e.getClass().getName(), e.getMessage()));
+            e.printStackTrace();
+            exceptions.add(e);
+        } finally {
+            sorter.close();
+            shutdownExecutor(threadId);
         }
 
         if (exceptions.isEmpty()) {
-
             System.err.println("Sort completed");
-
-            final SortMergeSplit fullFile = splitsToMerge.poll();
-            LOG.info(String.format("%s made up from %d splits", fullFile, fullFile.numFiles));
-            LOG.info(String.format("Took %d secondary sort/merges", numMergesExecuted.get()));
         } else {
             LOG.error("Potentially multiple exceptions follow");
             for (final Throwable t : exceptions) {
                 LOG.error(t.getMessage());
             }
         }
-
     }
 
     /**
-     * Initial sort of one split
-     *
-     * @param toSort    the split to sort
-     * @param firstSort if this is the first sort (TMH will be written only during the first sort)
+     * Merge all the sorted runs into the output alignment, which is encoded and indexed in this single pass.
      */
-    private Runnable sortSplit(final SortMergeSplit toSort, final boolean firstSort) {
-        numSortMergesRunning.incrementAndGet();
-        final Runnable toRun = new Runnable() {
-            @Override
-            public void run() {
-                if (dryRun) {
-                    System.out.println("dry-run: will sort-split " + toSort);
-                    sortedSplits.add(toSort);
-                    numSplitsCompleted.incrementAndGet();
-                    return;
-                }
-                // Before sort
+    private void merge(final ExternalEntrySorter sorter) throws IOException {
+        final int numRuns = sorter.getNumberOfRuns();
+        final long numEntries = sorter.getNumberOfEntries();
+        LOG.info(String.format("Merging %d runs with %d entries into %s", numRuns, numEntries, outputFilename));
+        final AlignmentReader input = new AlignmentReaderImpl(basename);
+        final AlignmentWriterImpl writer = new AlignmentWriterImpl(outputFilename);
+        try {
+            input.readHeader();
+            // too many hits is prepared as for Merge:
+            Merge.prepareMergedTooManyHits(outputFilename, input.getNumberOfQueries(), 0, basename);
+            copyHeader(input, writer);
+            final long numWritten = sorter.mergeTo(writer, filesPerMerge, executorService);
+            assert numWritten == numEntries : "all entries must be written to the output.";
+        } finally {
+            input.close();
+            writer.close();
+        }
+    }
 
-                // SORT
-                // Simulate sort time
-                final String threadId = String.format("%02d", Thread.currentThread().getId());
-                AlignmentWriterImpl writer = null;
-                try {
-                    System.gc();
-                    LOG.debug(String.format("[%s] Sorting %s", threadId, toSort.toString()));
-
-                    final SortIterateAlignments alignmentIterator = new SortIterateAlignments();
-                    final String subBasename = "sorted-" + toSort.tag;
-                    final String subOutputFilename = tempDir + "/" + subBasename;
-                    LOG.debug(String.format("[%s] Sorting %s to %s",
-                            threadId, toSort.toString(), subOutputFilename));
-                    writer = new AlignmentWriterImpl(subOutputFilename);
-                    alignmentIterator.setOutputFilename(subOutputFilename);
-                    alignmentIterator.setBasename(subBasename);
-
-                    // Iterate through each alignment and entries to output file:
-                    LOG.debug(String.format("[%s] Loading entries...", threadId));
-                    final SortMergeSplitFileRange range = toSort.ranges.get(0);
-                    alignmentIterator.iterate(range.min, range.max, basename);
-                    LOG.debug(String.format("[%s] Sorting...", threadId));
-                    alignmentIterator.sort();
-                    LOG.debug(String.format("[%s] Writing sorted alignment for %s with tag %s...", threadId, toSort.toString(), toSort.tag));
-                    AlignmentReader alignmentReader = null;
-
-                    try {
-
-                        if (firstSort) {
-                            LOG.debug(String.format("[%s] Writing TMH", threadId));
-                            alignmentReader = new AlignmentReaderImpl(0, 0, basename, false);
-                            alignmentReader.readHeader();
-                            Merge.prepareMergedTooManyHits(outputFilename, alignmentReader.getNumberOfQueries(), 0, basename);
-                            writer.setNumQueries(alignmentReader.getNumberOfQueries());
-                        }
-                        alignmentIterator.write(writer);
-
-
-                    } finally {
-                        // Sort finished
-                        if (alignmentReader != null) {
-                            alignmentReader.close();
-                        }
-                        deleteOnExit(threadId, subOutputFilename);
-                        checkBasename(threadId, subOutputFilename);
-                        sortedSplits.add(toSort);
-                    }
+    private void copyHeader(final AlignmentReader input, final AlignmentWriterImpl writer) {
+        if (input.getQueryIdentifiers() != null) {
+            writer.setQueryIdentifiers(input.getQueryIdentifiers());
+        }
+        if (input.getTargetIdentifiers() != null) {
+            writer.setTargetIdentifiers(input.getTargetIdentifiers());
+        }
+        final int[] targetLengths = input.getTargetLength();
+        if (targetLengths != null) {
+            writer.setTargetLengths(targetLengths);
+        }
+        writer.setNumQueries(input.getNumberOfQueries());
+        writer.setNumTargets(input.getNumberOfTargets());
+        writer.setLargestSplitQueryIndex(input.getLargestSplitQueryIndex());
+        writer.setSmallestSplitQueryIndex(input.getSmallestSplitQueryIndex());
+        writer.setSorted(true);
+        writer.setAlignerName(input.getAlignerName());
+        writer.setAlignerVersion(input.getAlignerVersion());
+
+        // Propagate the statistics from the input, but update the basename
+        writer.setStatistics(input.getStatistics());
+        writer.putStatistic("basename", FilenameUtils.getName(outputFilename));
+        writer.putStatistic("basename.full", outputFilename);
+    }
 
-                } catch (Throwable e) {
-                    LOG.error(String.format("[%s] Exception sorting!! class=%s message=%s", threadId, e.getClass().getName(), e.getMessage()));
-                    e.printStackTrace();
-                    exceptions.add(e);
-                } finally {
-                    progressSplitSort.update();
-                    numSplitsCompleted.incrementAndGet();
+    private void shutdownExecutor(final String threadId) {
+        if (executorService != null) {
+            LOG.debug(String.format("[%s] Waiting for threads to finish.", threadId));
+            // accept no new tasks, but wait for all of the executor threads to finish :
+            executorService.shutdown();
+            try {
+                while (!executorService.awaitTermination(60, TimeUnit.SECONDS)) {
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-        };
-        return toRun;
-    }
-
-    private void deleteOnExit(String threadId, String basename) {
-
-        new File(basename + ".entries").deleteOnExit();
-        new File(basename + ".header").deleteOnExit();
-        new File(basename + ".index").deleteOnExit();
-        new File(basename + ".stats").deleteOnExit();
-
+        }
     }
 
     /**
-     * Subsequent merge of multiple splits
+     * Initial sort of one split: entries of the split are read, sorted by position and spilled as a run.
      *
-     * @param toMerge   the splits to sort
-     * @param lastMerge if this is the very last merge
+     * @param sorter  the sorter that keeps the runs
+     * @param ordinal index of the split in the input, so that entries at the same position keep their input order
+     * @param split   start and end offsets of the split in the entries file
      */
-    private void mergeSplits(final List<SortMergeSplit> toMerge, final boolean lastMerge) {
-        numSortMergesRunning.incrementAndGet();
-        final Runnable toRun = new Runnable() {
+    private Runnable sortSplit(final ExternalEntrySorter sorter, final int ordinal, final long[] split) {
+        return new Runnable() {
             @Override
             public void run() {
-
                 final String threadId = String.format("%02d", Thread.currentThread().getId());
-                final List<String> mergeFromBasenames = new LinkedList<String>();
-                ConcatSortedAlignmentReader concatReader = null;
-                AlignmentWriter writer = null;
+                AlignmentReader alignmentReader = null;
                 try {
-                    System.gc();
-                    // Prepare to merge
-                    final SortMergeSplit merged = new SortMergeSplit(toMerge.get(0));
-
-                    final int numSplits = toMerge.size();
-                    for (int i = 1; i < numSplits; i++) {
-                        merged.mergeWith(toMerge.get(i));
-                    }
-                    merged.ranges = mergeRangeList(merged.ranges);
-
-                    LOG.debug(String.format("[%s] Merging %d items %s to %s",
-                            threadId, numSplits,
-                            ArrayUtils.toString(toMerge), ArrayUtils.toString(merged)));
-
-
-                    for (final SortMergeSplit mergeFrom : toMerge) {
-                        final String inputBasename = tempDir + "/sorted-" + mergeFrom.tag;
-                        mergeFromBasenames.add(inputBasename);
-                    }
-                    // note that we don't adjust query indices because they are already not overlapping (all come from the
-                    // same input file)
-                    final String[] mergeFromBasenamesArray =
-                            mergeFromBasenames.toArray(new String[mergeFromBasenames.size()]);
-                    for (final String mergeBasename : mergeFromBasenamesArray) {
-                        checkBasename(threadId, mergeBasename);
-                    }
-                    if (!dryRun) {
-                        concatReader = new ConcatSortedAlignmentReader(         false, mergeFromBasenamesArray);
-                        concatReader.readHeader();
+                    LOG.debug(String.format("[%s] Sorting [%d,%d]", threadId, split[0], split[1]));
+                    final ExternalEntrySorter.RunBuilder run = sorter.newRun(ordinal);
+                    alignmentReader = new AlignmentReaderImpl(split[0], split[1], basename);
+                    alignmentReader.readHeader();
+                    while (alignmentReader.hasNext()) {
+                        run.add(alignmentReader.next());
                     }
-                    // We've used merged's tag as input. Let's get a new tag for it's output
-                    merged.makeNewTag();
-
-                    final String subOutputFilename;
-                    if (lastMerge) {
-                        subOutputFilename = outputFilename;
-                    } else {
-                        final String subBasename = "sorted-" + merged.tag;
-                        subOutputFilename = tempDir + "/" + subBasename;
-                    }
-                    if (!dryRun) {
-                        writer = new AlignmentWriterImpl(subOutputFilename);
-                        HeaderUtil.copyHeader(concatReader,writer);
-                        writer.setSorted(true);
-
-                        for (final Alignments.AlignmentEntry entry : concatReader) {
-                            writer.appendEntry(entry);
-                        }
-                    }
-                    if (dryRun) {
-                        System.out.printf("dry-run: will sort-merge %d splits into %s %n", toMerge.size(), merged.toString());
-                    }
-                    // Sort/merge finished
-                    numMergesExecuted.incrementAndGet();
-                    sortedSplits.add(merged);
+                    LOG.debug(String.format("[%s] Spilling %d sorted entries for [%d,%d]", threadId, run.size(),
+                            split[0], split[1]));
+                    run.spill();
                 } catch (Throwable e) {
                     LOG.error(String.format("[%s] Exception sorting!! class=%s message=%s", threadId, e.getClass().getName(), e.getMessage()));
                     e.printStackTrace();
                     exceptions.add(e);
                 } finally {
-                    try {
-                        if (concatReader != null) {
-                            concatReader.close();
-                        }
-                    } catch (IOException e) {
-                        // Close quietly.
-                        LOG.info("Exception closing concatReader", e);
-                    }
-                    try {
-                        if (writer != null) {
-                            writer.close();
-                        }
-                    } catch (IOException e) {
-                        // Close quietly.
-                        LOG.info("Exception closing writer", e);
-                    }
-
-                    // Delete the merged FROM files
-                    for (final String mergeFromBasename : mergeFromBasenames) {
-                        deleteFile(new File(mergeFromBasename + ".entries"), true);
-                        deleteFile(new File(mergeFromBasename + ".header"), true);
-                        deleteFile(new File(mergeFromBasename + ".index"), true);
-                        deleteFile(new File(mergeFromBasename + ".stats"), true);
+                    if (alignmentReader != null) {
+                        alignmentReader.close();
                     }
-
-                    progressMergeSort.update(toMerge.size() - 1);
+                    progressSplitSort.update();
                 }
             }
         };
-        if (executorService != null) {
-            executorService.submit(toRun);
-        } else {
-            toRun.run();
-        }
-    }
-
-    private boolean checkBasename(final String threadId, final String basename) {
-        boolean exists = true;
-        exists &= checkFile(threadId, basename + ".entries");
-        exists &= checkFile(threadId, basename + ".header");
-        exists &= checkFile(threadId, basename + ".index");
-        exists &= checkFile(threadId, basename + ".stats");
-        return exists;
-    }
-
-    private boolean checkFile(final String threadId, final String filename) {
-        final File file = new File(filename);
-        final boolean exists = file.exists();
-        //   LOG.debug(String.format("[%s] %s exists? %s", threadId, filename, exists ? "Yes" : "No"));
-        return exists;
-    }
-
-    private void deleteFile(final File file, final boolean queueIfFailed) {
-        if (!file.delete() && queueIfFailed) {
-            filesToDelete.add(file);
-        }
     }
 
     /**
@@ -759,130 +538,4 @@ public class SortMode extends AbstractGobyMode {
     public static void main(final String[] args) throws JSAPException, IOException {
         new SortMode().configure(args).execute();
     }
-
-    public static List<SortMergeSplitFileRange> mergeMultiSplitRangeLists(final Collection<SortMergeSplit> splits) {
-        final List<SortMergeSplitFileRange> ranges = new LinkedList<SortMergeSplitFileRange>();
-        for (final SortMergeSplit split : splits) {
-            ranges.addAll(split.ranges);
-        }
-        return mergeRangeList(ranges);
-    }
-
-    public static List<SortMergeSplitFileRange> mergeRangeList(final List<SortMergeSplitFileRange> ranges) {
-        Collections.sort(ranges);
-        final List<SortMergeSplitFileRange> result = new ArrayList<SortMergeSplitFileRange>(ranges.size());
-        SortMergeSplitFileRange current = null;
-        for (final SortMergeSplitFileRange range : ranges) {
-            if (current == null) {
-                current = range;
-                result.add(current);
-                continue;
-            }
-            if (current.max + 1 >= range.min) {
-                current.max = range.max;
-            } else {
-                current = range;
-                result.add(current);
-            }
-        }
-        return result;
-    }
-
-    private class SortMergeSplit {
-        List<SortMergeSplitFileRange> ranges;
-        String tag;
-        String prevTag;
-        int numFiles;
-        IOException exception;
-
-        private SortMergeSplit(final long min, final long max) {
-            final SortMergeSplitFileRange range = new SortMergeSplitFileRange(min, max);
-            ranges = new ArrayList<SortMergeSplitFileRange>();
-            ranges.add(range);
-            numFiles = 1;
-            tag = ICBStringUtils.generateRandomString(10);
-        }
-
-        public SortMergeSplit(SortMergeSplit source) {
-            ranges = new ArrayList<SortMergeSplitFileRange>();
-            ranges.addAll(source.ranges);
-            numFiles = 1;
-            tag = ICBStringUtils.generateRandomString(10);
-        }
-
-        private long min() {
-            long min = Integer.MAX_VALUE;
-            for (SortMergeSplitFileRange range : ranges) {
-                min = Math.min(min, range.min);
-            }
-            return min;
-        }
-
-        private long max() {
-            long max = Integer.MIN_VALUE;
-            for (SortMergeSplitFileRange range : ranges) {
-                max = Math.max(max, range.max);
-            }
-            return max;
-        }
-
-        /**
-         * Add a split to this split (for merging)
-         *
-         * @param split the split we are merging this one with
-         */
-        private void addRangesFromSplit(final SortMergeSplit split) {
-            ranges.addAll(split.ranges);
-        }
-
-        /**
-         * Save the previous tag, make a new one.
-         */
-        private void makeNewTag() {
-            prevTag = tag;
-            tag = ICBStringUtils.generateRandomString(10);
-        }
-
-        public String toString() {
-            return ArrayUtils.toString(ranges);
-        }
-
-        /**
-         * Add the content of source to this range.
-         *
-         * @param sortMergeSplit
-         */
-        public void mergeWith(SortMergeSplit sortMergeSplit) {
-            addRangesFromSplit(sortMergeSplit);
-            numFiles += sortMergeSplit.numFiles;
-        }
-    }
-
-    private class SortMergeSplitFileRange implements Comparable<SortMergeSplitFileRange> {
-        long min;
-        long max;
-
-        private SortMergeSplitFileRange(final long min, final long max) {
-            this.min = min;
-            this.max = max;
-        }
-
-        public boolean isRange(final long isMin, final long isMax) {
-            return min == isMin && max == isMax;
-        }
-
-        public int compareTo(final SortMergeSplitFileRange other) {
-            if (this.min < other.min) {
-                return -1;
-            } else if (this.min == other.min) {
-                return 0;
-            } else {
-                return 1;
-            }
-        }
-
-        public String toString() {
-            return "[" + min + "," + max + "]";
-        }
-    }
 }
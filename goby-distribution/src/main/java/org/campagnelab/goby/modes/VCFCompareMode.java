@@ -86,6 +86,10 @@ public class VCFCompareMode extends AbstractGobyMode {
     private Object2IntMap<VCFPosition>[] indices;
     private int[] refFieldIndex;
     private int[] altFieldIndex;
+    /**
+     * Number of threads used to read VCF input.
+     */
+    private int numThreads = 1;
 
 
     @Override
@@ -113,6 +117,7 @@ public class VCFCompareMode extends AbstractGobyMode {
         setInputFilenames(jsapResult.getStringArray("input"));
         outputFilename = jsapResult.getString("output");
         this.genotypeColumnSet = jsapResult.getStringArray("column");
+        numThreads = jsapResult.getInt("num-threads");
 
         return this;
     }
@@ -266,8 +271,7 @@ public class VCFCompareMode extends AbstractGobyMode {
                     String ref = parsers[parserIndex].getStringFieldValue(refFieldIndex[parserIndex]);
                     String alts = parsers[parserIndex].getStringFieldValue(altFieldIndex[parserIndex]);
                     line.pos.chromosome = identifiers.registerIdentifier(new MutableString(chr));
-                    line.pos.position = Integer.parseInt(parsers[parserIndex].
-                            getFieldValue(positionFieldIndex[parserIndex]).toString());
+                    line.pos.position = parsers[parserIndex].getIntFieldValue(positionFieldIndex[parserIndex]);
                     line.ref = ref;
                     // keep this line since there is a variant somewhere on it.
                     int sampleIndex = 0;
@@ -309,6 +313,7 @@ public class VCFCompareMode extends AbstractGobyMode {
             final GrepReader filter = new GrepReader(inputFile.getPath(), "^##ALT=");
 
             parsers[parserIndex] = new VCFParser(filter);
+            parsers[parserIndex].setNumThreads(numThreads);
             try {
                 parsers[parserIndex].readHeader();
             } catch (VCFParser.SyntaxException e) {
@@ -27,17 +27,19 @@ import org.campagnelab.goby.readers.vcf.Columns;
 import org.campagnelab.goby.readers.vcf.VCFParser;
 import org.campagnelab.goby.cli.DoInParallel;
 import org.campagnelab.goby.util.GrepReader;
+import org.campagnelab.goby.util.ParallelBlockCompressedOutputStream;
 import it.unimi.dsi.fastutil.ints.*;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectArraySet;
 import it.unimi.dsi.logging.ProgressLogger;
-import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.tribble.util.TabixUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Collections;
 
@@ -81,6 +83,10 @@ public class VCFSubsetMode extends AbstractGobyMode {
     private boolean optimizeForContantFormat;
     private boolean excludeRef;
     private String[] requiredInfoFlags;
+    /**
+     * Number of threads used to read each VCF input and to compress the output.
+     */
+    private int numThreads = 1;
 
 
     @Override
@@ -120,6 +126,7 @@ public class VCFSubsetMode extends AbstractGobyMode {
             System.err.println("Optimizing for constant format string.");
         }
         excludeRef = jsapResult.getBoolean("exclude-ref");
+        numThreads = jsapResult.getInt("num-threads");
         String requiredInfoFlagsString = jsapResult.getString("required-info-flags");
         if (requiredInfoFlagsString == null) {
             requiredInfoFlags = new String[0];
@@ -173,6 +180,7 @@ public class VCFSubsetMode extends AbstractGobyMode {
         final GrepReader filter = new GrepReader(inputFile.getPath(), "^##ALT=");
 
         final VCFParser parser = new VCFParser(filter);
+        parser.setNumThreads(numThreads);
         final Columns columns = new Columns();
         final ObjectArrayList<String> sampleIdList = new ObjectArrayList<String>();
         boolean[] includeField = null;
@@ -252,7 +260,9 @@ public class VCFSubsetMode extends AbstractGobyMode {
         int previousSampleIndex = -1;
 
         // transfer the reduced schema to the output writer:
-        VCFWriter writer = new VCFWriter(new BlockCompressedOutputStream(inputFilename + outputFilename + ".vcf.gz"));
+        final String vcfFilename = inputFilename + outputFilename + ".vcf.gz";
+        VCFWriter writer = new VCFWriter(new ParallelBlockCompressedOutputStream(new FileOutputStream(vcfFilename),
+                numThreads), vcfFilename + TabixUtils.STANDARD_INDEX_EXTENSION);
 
         writer.defineSchema(columns);
         writer.defineSamples(sampleIdList.toArray(new String[sampleIdList.size()]));
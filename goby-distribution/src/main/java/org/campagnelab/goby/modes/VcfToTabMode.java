@@ -59,6 +59,10 @@ public class VcfToTabMode extends AbstractGobyMode {
 
     private String[] inputFiles;
     private String[] selectedColumns;
+    /**
+     * Number of threads used to read VCF input.
+     */
+    private int numThreads = 1;
 
     private static final Logger LOG = LoggerFactory.getLogger(VcfToTabMode.class);
     private final ObjectArraySet<String> selectedInfoFieldIds = new ObjectArraySet<String>();
@@ -96,6 +100,7 @@ public class VcfToTabMode extends AbstractGobyMode {
         inputFiles = jsapResult.getStringArray("input");
         outputFilename = jsapResult.getString("output");
         selectedColumns = jsapResult.getStringArray("column");
+        numThreads = jsapResult.getInt("num-threads");
 
         return this;
     }
@@ -119,6 +124,7 @@ public class VcfToTabMode extends AbstractGobyMode {
             for (String filename : inputFiles) {
                 System.out.printf("Converting %s%n", filename);
                 VCFParser parser = new VCFParser(filename);
+                parser.setNumThreads(numThreads);
                 try {
                     parser.readHeader();
                     IntSet selectedInfoFieldGlobalIndices = new IntArraySet();
@@ -27,6 +27,7 @@ import org.campagnelab.goby.alignments.processors.ObservedIndel;
 import org.campagnelab.goby.modes.DiscoverSequenceVariantsMode;
 import org.campagnelab.goby.modes.formats.SequenceVariationOutputFormat;
 import org.campagnelab.goby.reads.RandomAccessSequenceInterface;
+import org.campagnelab.goby.reads.ReferenceSequenceWindow;
 import org.campagnelab.goby.util.OutputInfo;
 import org.campagnelab.goby.util.WarningCounter;
 import it.unimi.dsi.fastutil.ints.IntArraySet;
@@ -98,12 +99,31 @@ public class DiscoverVariantIterateSortedAlignments extends IterateSortedAlignme
 
     }
 
+    /**
+     * Create an iterator that observes bases as this one does, to iterate over a slice of the genome for
+     * {@link SlicedIterateSortedAlignments}. Positions observed by the slice iterator are processed by this
+     * iterator.
+     *
+     * @return an iterator configured with the genome and indel calling settings of this iterator.
+     */
+    public DiscoverVariantIterateSortedAlignments newSliceIterator() {
+        final DiscoverVariantIterateSortedAlignments slice = new DiscoverVariantIterateSortedAlignments(format);
+        slice.setGenome(genome);
+        slice.setCallIndels(callIndels);
+        return slice;
+    }
+
     private RandomAccessSequenceInterface genome;
     private EquivalentIndelRegionCalculator equivalentIndelRegionCalculator;
+    /**
+     * Reference bases around the current position, decoded in bulk from the genome.
+     */
+    private ReferenceSequenceWindow referenceWindow;
 
     public void setGenome(RandomAccessSequenceInterface genome) {
         this.genome = genome;
         equivalentIndelRegionCalculator = new EquivalentIndelRegionCalculator(genome);
+        referenceWindow = genome == null ? null : new ReferenceSequenceWindow(genome);
     }
 
     @Override
@@ -146,6 +166,10 @@ public class DiscoverVariantIterateSortedAlignments extends IterateSortedAlignme
     }
 
     private ObjectSet<org.campagnelab.goby.alignments.PositionBaseInfo> filteredList;
+    /**
+     * Distinct read indices observed at the position being processed, reused across positions.
+     */
+    private final IntSet distinctReadIndices = new IntArraySet();
     private SampleCountInfo[] sampleCounts;
 
     private int numberOfSamples;
@@ -187,12 +211,8 @@ public class DiscoverVariantIterateSortedAlignments extends IterateSortedAlignme
                     "first base of context must match genome at key position";
             indelCandidateRegion.sampleIndex = sampleIndex;
 
-            DiscoverVariantPositionData positionBaseInfos = positionToBases.get(keyPos);
+            final DiscoverVariantPositionData positionBaseInfos = getPositionData(positionToBases, keyPos);
             //   System.out.printf("Observing indel at position %d %n", keyPos);
-            if (positionBaseInfos == null) {
-                positionBaseInfos = new DiscoverVariantPositionData(keyPos);
-                positionToBases.put(keyPos, positionBaseInfos);
-            }
 
             positionBaseInfos.observeCandidateIndel(indelCandidateRegion);
             //  printBasesAround(keyPos, positionToBases);
@@ -249,7 +269,8 @@ public class DiscoverVariantIterateSortedAlignments extends IterateSortedAlignme
         }
 
         if (list != null) {
-            final IntSet distinctReadIndices = new IntArraySet();
+            final IntSet distinctReadIndices = this.distinctReadIndices;
+            distinctReadIndices.clear();
 
             boolean hasIndel = false;
             if (list.getIndels() != null) {
@@ -389,7 +410,7 @@ public class DiscoverVariantIterateSortedAlignments extends IterateSortedAlignme
 
 
         if (overrideReferenceWithGenome) {
-            char refBase = genome.get(genomeRefIndex, position);
+            char refBase = referenceWindow.get(genomeRefIndex, position);
             return refBase;
         } else {
             // We will find some referenceBase among the variations that do not match the reference:
@@ -409,7 +430,7 @@ public class DiscoverVariantIterateSortedAlignments extends IterateSortedAlignme
             }
             if (refBase == '\0' && genome != null) {
                 // look up the reference base since we have a genome:
-                refBase = genome.get(genomeRefIndex, position);
+                refBase = referenceWindow.get(genomeRefIndex, position);
 
             }
             return refBase;
@@ -44,19 +44,20 @@ public class DiscoverVariantPositionData extends ObjectArrayList<PositionBaseInf
         return position;
     }
 
+    @SuppressWarnings("unchecked")
     public DiscoverVariantPositionData() {
         super();
         position = -1;
         filtered = new ObjectArraySet[5];
         for (int baseIndex = 0; baseIndex < SampleCountInfo.BASE_MAX_INDEX; baseIndex++) {
-            filtered[baseIndex] = new ObjectArraySet();
+            filtered[baseIndex] = new ObjectArraySet<PositionBaseInfo>();
         }
     }
 
     /**
      * Count of genotypes that were flagged for removal by some filter in this sample.
      */
-    public ObjectArraySet filtered[];
+    public ObjectArraySet<PositionBaseInfo> filtered[];
 
     @Override
     public String toString() {
@@ -68,6 +69,27 @@ public class DiscoverVariantPositionData extends ObjectArrayList<PositionBaseInf
         this.position = position;
     }
 
+    /**
+     * Clear this object so that it can be reused to accumulate information about another position.
+     *
+     * @param position zero-based position that this object will hold information about.
+     */
+    public void reset(final int position) {
+        clear();
+        this.position = position;
+        if (candidateIndels != null) {
+            candidateIndels.clear();
+        }
+        if (failedIndels != null) {
+            failedIndels.clear();
+        }
+        for (final ObjectArraySet<PositionBaseInfo> baseFiltered : filtered) {
+            if (baseFiltered != null) {
+                baseFiltered.clear();
+            }
+        }
+    }
+
     /**
      * This method is called if a candidate indel is observed whose start position overlaps with position.
      *
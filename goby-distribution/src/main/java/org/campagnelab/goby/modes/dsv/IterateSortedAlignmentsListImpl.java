@@ -25,6 +25,7 @@ import org.campagnelab.goby.util.WarningCounter;
 import org.campagnelab.goby.util.dynoptions.DynamicOptionClient;
 import org.campagnelab.goby.util.dynoptions.RegisterThis;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -83,7 +84,7 @@ public abstract class IterateSortedAlignmentsListImpl
                     alignmentEntry.getQueryIndex(), currentRefPosition, currentReadIndex));
         } */
 
-        final PositionBaseInfo info = new PositionBaseInfo();
+        final PositionBaseInfo info = newPositionBaseInfo();
 
         info.readerIndex = alignmentEntry.getSampleIndex();
         //     System.out.printf("observing ref readerIndex=%d%n",info.readerIndex);
@@ -117,7 +118,7 @@ public abstract class IterateSortedAlignmentsListImpl
                     alignmentEntry.getQueryIndex(), currentRefPosition, currentReadIndex, fromChar, toChar));
         }
         */
-        final PositionBaseInfo info = new PositionBaseInfo();
+        final PositionBaseInfo info = newPositionBaseInfo();
         info.readerIndex = alignmentEntry.getSampleIndex();
         //    System.out.printf("observing var readerIndex=%d%n",info.readerIndex);
 
@@ -135,16 +136,45 @@ public abstract class IterateSortedAlignmentsListImpl
     private final WarningCounter moreVariantsThanThreshold = new WarningCounter(10);
     private int SUB_SAMPLE_SIZE = 10000;
 
-    private final void addToFuture(final PositionToBasesMap<DiscoverVariantPositionData> positionToBases,
-                                   final PositionBaseInfo info) {
-        final int position = info.position;
+    /**
+     * Base information objects of processed positions, kept for reuse when the circular window is used.
+     */
+    private final ObjectArrayList<PositionBaseInfo> spareInfos = new ObjectArrayList<PositionBaseInfo>();
+
+    private PositionBaseInfo newPositionBaseInfo() {
+        return spareInfos.isEmpty() ? new PositionBaseInfo() : spareInfos.pop();
+    }
+
+    /**
+     * Return the information accumulated at a position, creating it if needed. When the map keeps the data of
+     * processed positions, the data and its base information objects are reused rather than allocated.
+     *
+     * @param positionToBases Map keyed by reference position.
+     * @param position        zero-based position.
+     * @return information accumulated at position.
+     */
+    protected final DiscoverVariantPositionData getPositionData(final PositionToBasesMap<DiscoverVariantPositionData> positionToBases,
+                                                                final int position) {
         DiscoverVariantPositionData list = positionToBases.get(position);
         if (list == null) {
-            list = new DiscoverVariantPositionData(position);
+            list = positionToBases.getReusable(position);
+            if (list == null) {
+                list = new DiscoverVariantPositionData(position);
+            } else {
+                spareInfos.addAll(list);
+                list.reset(position);
+            }
             positionToBases.put(position, list);
         } else {
             assert list.getZeroBasedPosition() == position : "info position must match list position.";
         }
+        return list;
+    }
+
+    private final void addToFuture(final PositionToBasesMap<DiscoverVariantPositionData> positionToBases,
+                                   final PositionBaseInfo info) {
+        final int position = info.position;
+        final DiscoverVariantPositionData list = getPositionData(positionToBases, position);
         boolean isIgnoredPosition = positionToBases.isIgnoredPosition(position);
         if (isIgnoredPosition || list.size() >= maxThreshold) {
 
@@ -162,7 +192,7 @@ public abstract class IterateSortedAlignmentsListImpl
                 list.subSample(SUB_SAMPLE_SIZE);
             }
             positionToBases.markIgnoredPosition(position);
-
+            spareInfos.add(info);
             return;
         }
 
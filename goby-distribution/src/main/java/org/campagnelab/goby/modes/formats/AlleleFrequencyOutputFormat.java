@@ -87,7 +87,7 @@ public class AlleleFrequencyOutputFormat implements SequenceVariationOutputForma
 
     public void defineColumns(OutputInfo outputInfo, DiscoverSequenceVariantsMode mode) {
         samples = mode.getSamples();
-        statsWriter = new VCFWriter(outputInfo.getPrintWriter());
+        statsWriter = VCFWriter.create(outputInfo);
         statsWriter.setWriteFieldGroupAssociations(writeFieldGroupAssociations);
         biomartFieldIndex = statsWriter.defineField("INFO", "BIOMART_COORDS", 1, ColumnType.String, "Coordinates for use with Biomart.");
         genotypeFormatter.defineInfoFields(statsWriter);
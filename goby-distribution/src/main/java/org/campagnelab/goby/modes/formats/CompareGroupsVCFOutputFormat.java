@@ -158,7 +158,7 @@ public class CompareGroupsVCFOutputFormat extends AbstractOutputFormat implement
         samples = mode.getSamples();
         readerIndexToGroupIndex = mode.getReaderIndexToGroupIndex();
         final ObjectArrayList<ReadIndexStats> readIndexStats = mode.getReadIndexStats();
-        this.statWriter = new VCFWriter(outputInfo.getPrintWriter());
+        this.statWriter = VCFWriter.create(outputInfo);
 
         //activate R only if we need it:
         final Rengine rEngine = GobyRengine.getInstance().getRengine();
@@ -196,7 +196,7 @@ public class SomaticVariationOutputFormat implements SequenceVariationOutputForm
     public void defineColumns(OutputInfo outputInfo, DiscoverSequenceVariantsMode mode) {
         // define columns for genotype format
         samples = mode.getSamples();
-        statsWriter = new VCFWriter(outputInfo.getPrintWriter());
+        statsWriter = VCFWriter.create(outputInfo);
         recordNumAlignedReads(mode.getInputFilenames());
 
         igvFieldIndex = statsWriter.defineField("INFO", "BIOMART_COORDS", 1, ColumnType.String, "Coordinates formatted for use with IGV.");
@@ -50,6 +50,15 @@ public class ConvertSamBAMReadToGobyAlignment {
         return gobySamRecord;
     }
 
+    /**
+     * Return the length of the read of the last record assigned.
+     */
+    public int getQueryLength() {
+        return queryLength;
+    }
+
+    private int queryLength;
+
     private GobySamRecord gobySamRecord;
 
     public int getQueryIndex() {
@@ -86,6 +95,7 @@ public class ConvertSamBAMReadToGobyAlignment {
 
         this.queryIndex2NextFragmentIndex = queryIndex2NextFragmentIndex;
         this.builders = builders;
+        parsed.builders = builders;
         this.samRecordParser = samRecordParser;
     }
 
@@ -118,20 +128,166 @@ public class ConvertSamBAMReadToGobyAlignment {
     }
 
     public ConvertSamBAMReadToGobyAlignment invoke() throws IOException {
-        builders.clear();
+        parse(samRecord, parsed);
+        return assign(parsed);
+    }
 
+    /**
+     * The part of the conversion of a SAM record that does not depend on the records before it. Different instances
+     * can parse records on different threads, as long as each instance has its own SamRecordParser, while one
+     * instance assigns the parsed records in input order.
+     */
+    public static final class ParsedRecord {
+        private SAMRecord samRecord;
+        private ObjectArrayList<Alignments.AlignmentEntry.Builder> builders =
+                new ObjectArrayList<Alignments.AlignmentEntry.Builder>();
+        private boolean hasResult;
+        private int queryLength;
+        private int numSegments;
+        private Object x0;
+        private int inferredInsertSize;
+
+        public SAMRecord getSamRecord() {
+            return samRecord;
+        }
+    }
+
+    /**
+     * Record parsed by invoke(), which holds its entries in the list of builders given to the constructor.
+     */
+    private final ParsedRecord parsed = new ParsedRecord();
+
+    /**
+     * Parse a SAM record and build its alignment entries, without the information that depends on the records
+     * parsed before (query index, target index, fragment indices and links between entries).
+     *
+     * @param samRecord the record to parse.
+     * @param result    where the entries and information needed by {@link #assign(ParsedRecord)} are stored.
+     */
+    public void parse(final SAMRecord samRecord, final ParsedRecord result) {
+        result.samRecord = samRecord;
+        result.builders.clear();
+        result.hasResult = false;
         final GobySamRecord gobySamRecord = samRecordParser.processRead(samRecord);
         if (gobySamRecord == null) {
             if (config.debug && LOG.isDebugEnabled()) {
                 LOG.debug(String.format("NOT keeping unmapped read %s", samRecord.getReadName()));
             }
-            hasResult = false;
-            return this;
+            return;
         }
         if (gobySamRecord.getTargetAlignedLength() + gobySamRecord.getNumInserts() !=
                 gobySamRecord.getQueryAlignedLength() + gobySamRecord.getNumDeletes()) {
             LOG.error(String.format("targetAlignedLength+inserts != queryAlignedLength+deletes for read %s",
                     samRecord.getReadName()));
+            return;
+        }
+        this.gobySamRecord = gobySamRecord;
+        result.queryLength = gobySamRecord.getQueryLength();
+        result.numSegments = gobySamRecord.getNumSegments();
+        result.x0 = samRecord.getAttribute("X0");
+        result.inferredInsertSize = samRecord.getInferredInsertSize();
+
+        int ambiguity = 1;
+        final Object ihString = samRecord.getAttribute("IH");
+        if (ihString != null) {
+            ambiguity = Integer.parseInt((String) ihString);
+        }
+
+        final int multiplicity = 1;
+
+        final int genomeTargetIndex = config.genome == null ? -1 : config.genome.getReferenceIndex(ChromosomeMapper.chromosomeNameMapping(config.genome, samRecord.getReferenceName()));
+        if (config.genome != null && genomeTargetIndex == -1) {
+            System.out.println("genomeTargetIndex==-1, name=" + samRecord.getReferenceName());
+            System.out.println("mapping=" + ChromosomeMapper.chromosomeNameMapping(config.genome, samRecord.getReferenceName()));
+            System.exit(10);
+        }
+        int segmentIndex = 0;
+        for (final GobySamSegment gobySamSegment : gobySamRecord.getSegments()) {
+            // the record represents a mapped read..
+            final Alignments.AlignmentEntry.Builder currentEntry = Alignments.AlignmentEntry.newBuilder();
+
+            if (multiplicity > 1) {
+                currentEntry.setMultiplicity(multiplicity);
+            }
+            currentEntry.setAmbiguity(ambiguity);
+            if (config.preserveReadName) {
+                currentEntry.setReadName(gobySamRecord.getReadName().toString());
+            }
+            currentEntry.setPosition(gobySamSegment.getPosition());     // samhelper returns zero-based positions compatible with Goby.
+            currentEntry.setQueryPosition(gobySamSegment.getQueryPosition());
+
+            currentEntry.setQueryLength(gobySamRecord.getQueryLength());
+            //currentEntry.setScore(samHelper.getScore());  BAM does not have the concept of a score.
+            currentEntry.setMatchingReverseStrand(gobySamRecord.isReverseStrand());
+            currentEntry.setQueryAlignedLength(gobySamSegment.getQueryAlignedLength());
+            currentEntry.setTargetAlignedLength(gobySamSegment.getTargetAlignedLength());
+            currentEntry.setMappingQuality(samRecord.getMappingQuality());
+            if (config.preserveSoftClips) {
+                final int leftTrim = gobySamSegment.getSoftClippedBasesLeft().length();
+                if (leftTrim > 0) {
+                    currentEntry.setSoftClippedBasesLeft(convertBases(
+                            genomeTargetIndex, gobySamSegment.getPosition() - leftTrim, samRecord.getReadBases(), 0, leftTrim));
+                    currentEntry.setSoftClippedQualityLeft(gobySamSegment.getSoftClippedQualityLeft());
+                }
+                final int queryAlignedLength = gobySamSegment.getQueryAlignedLength();
+                final int rightTrim = gobySamSegment.getSoftClippedBasesRight().length();
+                final int queryPosition = gobySamSegment.getQueryPosition();
+                if (rightTrim > 0) {
+                    final int startIndex = queryPosition + queryAlignedLength;
+                    final int endIndex = startIndex + rightTrim;
+                    currentEntry.setSoftClippedBasesRight(convertBases(genomeTargetIndex,
+                            gobySamSegment.getPosition() + gobySamSegment.getTargetAlignedLength(),
+                            samRecord.getReadBases(), startIndex, endIndex));
+                    currentEntry.setSoftClippedQualityRight(gobySamSegment.getSoftClippedQualityRight());
+                }
+            }
+
+            if (config.preserveAllMappedQuals && segmentIndex == 0) {
+                final byte[] sourceQualAsBytes = gobySamRecord.getReadQualitiesAsBytes();
+                // we only store the full quality score on the first entry with a given query index:
+                if (sourceQualAsBytes != null) {
+                    currentEntry.setReadQualityScores(ByteString.copyFrom(sourceQualAsBytes));
+                }
+            }
+            addSamAttributes(samRecord, currentEntry);
+
+            // Always store the sam flags when converting from sam/bam
+            currentEntry.setPairFlags(samRecord.getFlags());
+
+            for (final GobyQuickSeqvar variation : gobySamSegment.getSequenceVariations()) {
+                appendNewSequenceVariation(currentEntry, variation, gobySamRecord.getQueryLength());
+                if (config.debug && LOG.isDebugEnabled()) {
+                    LOG.debug(String.format("Added seqvar=%s for read %s to alignment", variation.toString(), samRecord.getReadName()));
+                }
+            }
+            final String readGroup = samRecord.getStringAttribute("RG");
+            if (readGroup != null && config.storeReadOrigin) {
+                final int readOriginIndex = readGroups.getInt(new MutableString(readGroup).compact());
+                if (readOriginIndex == -1) {
+                    System.err.printf("Read group identifier %s is used in alignment record (read-name=%s), " +
+                            "but was not found in the header. Ignoring this read group.%n", readGroup, samRecord.getReadName());
+                } else {
+                    currentEntry.setReadOriginIndex(readOriginIndex);
+                }
+            }
+            result.builders.add(currentEntry);
+            segmentIndex++;
+        }
+        result.hasResult = true;
+    }
+
+    /**
+     * Complete the entries of a parsed record with query index, target index, fragment indices and links between
+     * entries. Records must be assigned in input order. After this call, the getters of this instance describe the
+     * record.
+     *
+     * @param parsedRecord a record parsed by this instance or by another instance.
+     * @return this instance.
+     */
+    public ConvertSamBAMReadToGobyAlignment assign(final ParsedRecord parsedRecord) {
+        final SAMRecord samRecord = parsedRecord.samRecord;
+        builders = parsedRecord.builders;
+        if (!parsedRecord.hasResult) {
             hasResult = false;
             return this;
         }
@@ -175,7 +331,7 @@ public class ConvertSamBAMReadToGobyAlignment {
             // is available at the time of alignment, but discarded afterwards.
         }
 
-        final Object xoString = samRecord.getAttribute("X0");
+        final Object xoString = parsedRecord.x0;
 
         // in the following, we consider paired end alignment to always map a single time. This may
         // not be true, but there is no way to tell from the SAM format (the X0 field indicates how
@@ -188,7 +344,7 @@ public class ConvertSamBAMReadToGobyAlignment {
         // Q: samHelper hasn't been set to anything since .reset(). This will always be 1. ??
         // Q: Also, readMaxOccurence is *2 for paired and *2 for splice, but splices can be N pieces, not just 2.
         //    so readMaxOccurence isn't always correct it seems.
-        final int numEntries = gobySamRecord.getNumSegments();
+        final int numEntries = parsedRecord.numSegments;
         final boolean readIsSpliced = numEntries > 1;
         if (hasPaired) {
             // file has paired end reads, check if this read is paired to use 1 occurrence:
@@ -212,101 +368,19 @@ public class ConvertSamBAMReadToGobyAlignment {
         final int queryIndex = getQueryIndex(readMaxOccurence, readName);
         assert queryIndex >= 0 : " Query index must never be negative.";
 
-        int ambiguity = 1;
-        final Object ihString = samRecord.getAttribute("IH");
-        if (ihString != null) {
-            ambiguity = Integer.parseInt((String) ihString);
-        }
-
         final int multiplicity = 1;
 
         config.largestQueryIndex = Math.max(queryIndex, config.largestQueryIndex);
         config.smallestQueryIndex = Math.min(queryIndex, config.smallestQueryIndex);
-        final int genomeTargetIndex = config.genome == null ? -1 : config.genome.getReferenceIndex(ChromosomeMapper.chromosomeNameMapping(config.genome, samRecord.getReferenceName()));
-        if (config.genome != null && genomeTargetIndex == -1) {
-            System.out.println("genomeTargetIndex==-1, name=" + samRecord.getReferenceName());
-            System.out.println("mapping=" + ChromosomeMapper.chromosomeNameMapping(config.genome, samRecord.getReferenceName()));
-            System.exit(10);
-        }
-        int segmentIndex = 0;
-        for (final GobySamSegment gobySamSegment : gobySamRecord.getSegments()) {
-            // the record represents a mapped read..
-            final Alignments.AlignmentEntry.Builder currentEntry = Alignments.AlignmentEntry.newBuilder();
-
-            if (multiplicity > 1) {
-                currentEntry.setMultiplicity(multiplicity);
-            }
-            currentEntry.setAmbiguity(ambiguity);
-            if (config.preserveReadName) {
-                currentEntry.setReadName(gobySamRecord.getReadName().toString());
-            }
+        for (final Alignments.AlignmentEntry.Builder currentEntry : builders) {
             currentEntry.setQueryIndex(queryIndex);
             currentEntry.setTargetIndex(targetIndex);
-            currentEntry.setPosition(gobySamSegment.getPosition());     // samhelper returns zero-based positions compatible with Goby.
-            currentEntry.setQueryPosition(gobySamSegment.getQueryPosition());
-
-            currentEntry.setQueryLength(gobySamRecord.getQueryLength());
-            //currentEntry.setScore(samHelper.getScore());  BAM does not have the concept of a score.
-            currentEntry.setMatchingReverseStrand(gobySamRecord.isReverseStrand());
-            currentEntry.setQueryAlignedLength(gobySamSegment.getQueryAlignedLength());
-            currentEntry.setTargetAlignedLength(gobySamSegment.getTargetAlignedLength());
-            currentEntry.setMappingQuality(samRecord.getMappingQuality());
-            if (config.preserveSoftClips) {
-                final int leftTrim = gobySamSegment.getSoftClippedBasesLeft().length();
-                if (leftTrim > 0) {
-                    currentEntry.setSoftClippedBasesLeft(convertBases(
-                            genomeTargetIndex, gobySamSegment.getPosition() - leftTrim, samRecord.getReadBases(), 0, leftTrim));
-                    currentEntry.setSoftClippedQualityLeft(gobySamSegment.getSoftClippedQualityLeft());
-                }
-                final int queryAlignedLength = gobySamSegment.getQueryAlignedLength();
-                final int rightTrim = gobySamSegment.getSoftClippedBasesRight().length();
-                final int queryPosition = gobySamSegment.getQueryPosition();
-                if (rightTrim > 0) {
-                    final int startIndex = queryPosition + queryAlignedLength;
-                    final int endIndex = startIndex + rightTrim;
-                    currentEntry.setSoftClippedBasesRight(convertBases(genomeTargetIndex,
-                            gobySamSegment.getPosition() + gobySamSegment.getTargetAlignedLength(),
-                            samRecord.getReadBases(), startIndex, endIndex));
-                    currentEntry.setSoftClippedQualityRight(gobySamSegment.getSoftClippedQualityRight());
-                }
-            }
-
-            if (config.preserveAllMappedQuals && segmentIndex == 0) {
-                final byte[] sourceQualAsBytes = gobySamRecord.getReadQualitiesAsBytes();
-                // we only store the full quality score on the first entry with a given query index:
-                if (sourceQualAsBytes != null) {
-                    currentEntry.setReadQualityScores(ByteString.copyFrom(sourceQualAsBytes));
-                }
-            }
-            addSamAttributes(samRecord, currentEntry);
-
-            // Always store the sam flags when converting from sam/bam
-            currentEntry.setPairFlags(samRecord.getFlags());
             if (hasPaired) {
-                final int inferredInsertSize = samRecord.getInferredInsertSize();
+                final int inferredInsertSize = parsedRecord.inferredInsertSize;
                 if (inferredInsertSize != 0) {   // SAM specification indicates that zero means no insert size.
                     currentEntry.setInsertSize(inferredInsertSize);
                 }
             }
-
-            for (final GobyQuickSeqvar variation : gobySamSegment.getSequenceVariations()) {
-                appendNewSequenceVariation(currentEntry, variation, gobySamRecord.getQueryLength());
-                if (config.debug && LOG.isDebugEnabled()) {
-                    LOG.debug(String.format("Added seqvar=%s for queryIndex=%d to alignment", variation.toString(), queryIndex));
-                }
-            }
-            final String readGroup = samRecord.getStringAttribute("RG");
-            if (readGroup != null && config.storeReadOrigin) {
-                final int readOriginIndex = readGroups.getInt(new MutableString(readGroup).compact());
-                if (readOriginIndex == -1) {
-                    System.err.printf("Read group identifier %s is used in alignment record (read-name=%s), " +
-                            "but was not found in the header. Ignoring this read group.%n", readGroup, samRecord.getReadName());
-                } else {
-                    currentEntry.setReadOriginIndex(readOriginIndex);
-                }
-            }
-            builders.add(currentEntry);
-            segmentIndex++;
         }
         final int numFragments = builders.size();
         for (final Alignments.AlignmentEntry.Builder builder : builders) {
@@ -348,7 +422,7 @@ public class ConvertSamBAMReadToGobyAlignment {
         hasResult = true;
         this.multiplicity = multiplicity;
         this.queryIndex = queryIndex;
-        this.gobySamRecord = gobySamRecord;
+        this.queryLength = parsedRecord.queryLength;
         return this;
     }
 
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.readers.sam;
+
+import htsjdk.samtools.*;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.StringLineReader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Reads the records of a BAM stream, with the BGZF blocks inflated in parallel by a
+ * {@link ParallelBGZFInputStream}. Records are decoded by htsjdk, which parses the variable length fields of a
+ * record (read name, cigar, bases, qualities and tags) the first time they are accessed. Threads that convert
+ * different records therefore also share the decoding work.
+ */
+public class ParallelBAMReader implements Closeable, Iterable<SAMRecord> {
+    private static final byte[] BAM_MAGIC = {'B', 'A', 'M', 1};
+
+    private final ParallelBGZFInputStream input;
+    private final SAMFileHeader header;
+    private final BAMRecordCodec codec;
+
+    /**
+     * Open a BAM stream and read its header.
+     *
+     * @param bgzfInput         the BAM stream, compressed.
+     * @param executor          executor that inflates BGZF blocks.
+     * @param maxPendingBatches number of batches of BGZF blocks inflated ahead of the reader.
+     * @throws IOException if the stream is not a BAM stream or cannot be read.
+     */
+    public ParallelBAMReader(final InputStream bgzfInput, final ExecutorService executor,
+                             final int maxPendingBatches) throws IOException {
+        input = new ParallelBGZFInputStream(bgzfInput, executor, maxPendingBatches);
+        header = readHeader(new BinaryCodec(input));
+        codec = new BAMRecordCodec(header);
+        codec.setInputStream(input);
+    }
+
+    public SAMFileHeader getFileHeader() {
+        return header;
+    }
+
+    /**
+     * Return the next record of the stream.
+     *
+     * @return the next record, or null at the end of the stream.
+     */
+    public SAMRecord next() {
+        return codec.decode();
+    }
+
+    /**
+     * Return an iterator over the records left in the stream. The stream can only be iterated over once.
+     */
+    @Override
+    public Iterator<SAMRecord> iterator() {
+        return new Iterator<SAMRecord>() {
+            private SAMRecord next = ParallelBAMReader.this.next();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public SAMRecord next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                final SAMRecord result = next;
+                next = ParallelBAMReader.this.next();
+                return result;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+
+    /**
+     * Read the header at the start of a decompressed BAM stream. The sequence dictionary of the header text is
+     * replaced by the binary reference list when the text does not describe the references.
+     */
+    private static SAMFileHeader readHeader(final BinaryCodec binaryCodec) throws IOException {
+        final byte[] magic = new byte[BAM_MAGIC.length];
+        binaryCodec.readBytes(magic);
+        for (int i = 0; i < magic.length; i++) {
+            if (magic[i] != BAM_MAGIC[i]) {
+                throw new IOException("Invalid BAM file header.");
+            }
+        }
+        final int textLength = binaryCodec.readInt();
+        final String text = binaryCodec.readString(textLength);
+        final SAMFileHeader samHeader = new SAMTextHeaderCodec().decode(new StringLineReader(text), null);
+        final int numReferences = binaryCodec.readInt();
+        final List<SAMSequenceRecord> references = new ArrayList<SAMSequenceRecord>(numReferences);
+        for (int i = 0; i < numReferences; i++) {
+            final int nameLength = binaryCodec.readInt();
+            // the name is terminated by a null character:
+            final String name = binaryCodec.readString(nameLength - 1);
+            binaryCodec.readBytes(new byte[1]);
+            references.add(new SAMSequenceRecord(name, binaryCodec.readInt()));
+        }
+        if (samHeader.getSequenceDictionary().isEmpty() && !references.isEmpty()) {
+            samHeader.setSequenceDictionary(new SAMSequenceDictionary(references));
+        }
+        return samHeader;
+    }
+}
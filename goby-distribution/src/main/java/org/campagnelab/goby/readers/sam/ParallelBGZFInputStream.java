@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.readers.sam;
+
+import htsjdk.samtools.FileTruncatedException;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses a BGZF stream (the compression format of BAM files) with several threads. BGZF streams are
+ * a series of independent gzip blocks of at most 64KB. This stream reads the compressed blocks in order on the
+ * calling thread, groups them in batches, and inflates the batches on an executor, several batches ahead of the
+ * reader. Decompressed bytes are returned in order. A stream that ends in the middle of a block is reported with
+ * a FileTruncatedException, as BlockCompressedInputStream does.
+ */
+public class ParallelBGZFInputStream extends InputStream {
+    /**
+     * Length of the fixed part of the gzip header of a block, up to and including XLEN.
+     */
+    private static final int GZIP_HEADER_LENGTH = 12;
+    /**
+     * Length of the CRC32 and ISIZE fields at the end of a block.
+     */
+    private static final int GZIP_TRAILER_LENGTH = 8;
+    private static final int BLOCKS_PER_BATCH = 64;
+
+    private final InputStream input;
+    private final ExecutorService executor;
+    private final int maxPendingBatches;
+    private final ArrayDeque<Future<byte[]>> pendingBatches = new ArrayDeque<Future<byte[]>>();
+    private final byte[] header = new byte[GZIP_HEADER_LENGTH];
+    private boolean endOfInput;
+    private byte[] current = new byte[0];
+    private int position;
+
+    /**
+     * Create a stream.
+     *
+     * @param input             the compressed BGZF stream.
+     * @param executor          executor that inflates batches of blocks.
+     * @param maxPendingBatches number of batches of blocks inflated ahead of the reader.
+     */
+    public ParallelBGZFInputStream(final InputStream input, final ExecutorService executor,
+                                   final int maxPendingBatches) {
+        this.input = input;
+        this.executor = executor;
+        this.maxPendingBatches = Math.max(1, maxPendingBatches);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return current[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        final int n = Math.min(length, current.length - position);
+        System.arraycopy(current, position, bytes, offset, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return current.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (final Future<byte[]> batch : pendingBatches) {
+            batch.cancel(true);
+        }
+        pendingBatches.clear();
+        endOfInput = true;
+        input.close();
+    }
+
+    /**
+     * Make sure the current batch has bytes left to read.
+     *
+     * @return false at the end of the stream.
+     */
+    private boolean fill() throws IOException {
+        while (position >= current.length) {
+            submitBatches();
+            final Future<byte[]> batch = pendingBatches.poll();
+            if (batch == null) {
+                return false;
+            }
+            try {
+                current = batch.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while inflating BGZF blocks.");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Unable to inflate BGZF blocks.", e.getCause());
+            }
+            position = 0;
+        }
+        return true;
+    }
+
+    private void submitBatches() throws IOException {
+        while (!endOfInput && pendingBatches.size() < maxPendingBatches) {
+            final ObjectArrayList<byte[]> blocks = new ObjectArrayList<byte[]>(BLOCKS_PER_BATCH);
+            byte[] block;
+            while (blocks.size() < BLOCKS_PER_BATCH && (block = readBlock()) != null) {
+                blocks.add(block);
+            }
+            if (blocks.size() < BLOCKS_PER_BATCH) {
+                endOfInput = true;
+            }
+            if (!blocks.isEmpty()) {
+                pendingBatches.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        return inflate(blocks);
+                    }
+                }));
+            }
+        }
+    }
+
+    /**
+     * Read the next compressed block, without its gzip header.
+     *
+     * @return the compressed data of the block followed by its trailer, or null at the end of the stream.
+     */
+    private byte[] readBlock() throws IOException {
+        final int first = input.read();
+        if (first == -1) {
+            return null;
+        }
+        header[0] = (byte) first;
+        readFully(header, 1, GZIP_HEADER_LENGTH - 1);
+        if ((header[0] & 0xFF) != 31 || (header[1] & 0xFF) != 139 || header[2] != 8 || (header[3] & 4) == 0) {
+            throw new ZipException("Invalid BGZF block header.");
+        }
+        final int extraLength = readUnsignedShort(header, 10);
+        final byte[] extra = new byte[extraLength];
+        readFully(extra, 0, extraLength);
+        int blockSize = -1;
+        for (int i = 0; i + 4 <= extraLength; i += 4 + readUnsignedShort(extra, i + 2)) {
+            if (extra[i] == 66 && extra[i + 1] == 67 && readUnsignedShort(extra, i + 2) == 2) {
+                blockSize = readUnsignedShort(extra, i + 4) + 1;
+                break;
+            }
+        }
+        if (blockSize == -1) {
+            throw new ZipException("Gzip block does not record its BGZF block size.");
+        }
+        final byte[] block = new byte[blockSize - GZIP_HEADER_LENGTH - extraLength];
+        readFully(block, 0, block.length);
+        return block;
+    }
+
+    private void readFully(final byte[] bytes, final int offset, final int length) throws IOException {
+        int done = 0;
+        while (done < length) {
+            final int n = input.read(bytes, offset + done, length - done);
+            if (n == -1) {
+                throw new FileTruncatedException("Premature end of BGZF stream.");
+            }
+            done += n;
+        }
+    }
+
+    private static int readUnsignedShort(final byte[] bytes, final int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8;
+    }
+
+    private static int readInt(final byte[] bytes, final int offset) {
+        return readUnsignedShort(bytes, offset) | readUnsignedShort(bytes, offset + 2) << 16;
+    }
+
+    /**
+     * Inflate a batch of blocks and check their CRC.
+     *
+     * @return the concatenated decompressed content of the blocks.
+     */
+    static byte[] inflate(final ObjectArrayList<byte[]> blocks) throws IOException {
+        int totalSize = 0;
+        for (final byte[] block : blocks) {
+            totalSize += readInt(block, block.length - 4);
+        }
+        final byte[] inflated = new byte[totalSize];
+        final Inflater inflater = new Inflater(true);
+        final CRC32 crc = new CRC32();
+        try {
+            int offset = 0;
+            for (final byte[] block : blocks) {
+                final int size = readInt(block, block.length - 4);
+                inflater.reset();
+                inflater.setInput(block, 0, block.length - GZIP_TRAILER_LENGTH);
+                int done = 0;
+                while (done < size) {
+                    final int n = inflater.inflate(inflated, offset + done, size - done);
+                    if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                        throw new ZipException("BGZF block is shorter than its recorded size.");
+                    }
+                    done += n;
+                }
+                crc.reset();
+                crc.update(inflated, offset, size);
+                if ((int) crc.getValue() != readInt(block, block.length - GZIP_TRAILER_LENGTH)) {
+                    throw new ZipException("CRC mismatch in BGZF block.");
+                }
+                offset += size;
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Invalid compressed data in BGZF block: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return inflated;
+    }
+}
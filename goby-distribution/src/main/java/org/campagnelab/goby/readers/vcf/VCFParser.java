@@ -25,17 +25,26 @@ import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
-import it.unimi.dsi.io.FastBufferedReader;
-import it.unimi.dsi.io.LineIterator;
 import it.unimi.dsi.lang.MutableString;
 import htsjdk.samtools.util.BlockCompressedInputStream;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.ReaderInputStream;
+import org.campagnelab.goby.readers.sam.ParallelBGZFInputStream;
 
 import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Parser for files in the <a href="http://vcftools.sourceforge.net/specs.html">Variant Call Format</a>, or in plain TSV format.
@@ -46,13 +55,24 @@ import java.util.Map;
  * <pre>##INFO=&lt;ID=AF1,Number=1,Type=Float,Description="Max-likelihood ..."&gt;</pre>
  * This parser can additionally read a Group attribute, such as in:
  * <pre>##INFO=&lt;ID=AF1,Number=1,Type=Float,Group=LIKELIHOODS,Description="Max-likelihood ..."&gt;</pre>
+ * Data lines are read in batches of bytes and tokenized without decoding characters. Column and field values are
+ * only decoded when requested, and numeric fields can be parsed directly from the bytes with
+ * {@link #getIntFieldValue(int)} and {@link #getDoubleFieldValue(int)}. See {@link #setNumThreads(int)} to tokenize
+ * batches in parallel.
  *
  * @author Fabien Campagne
  *         Date: Mar 26, 2011
  *         Time: 3:01:47 PM
  */
 public class VCFParser implements Closeable {
+    /**
+     * Number of bytes read in a batch of lines (larger when a line does not fit).
+     */
+    private static final int BATCH_SIZE = 256 * 1024;
+    private static final int MAX_LINES_PER_BATCH = 4096;
+    private static final Charset CHARSET = Charset.defaultCharset();
     private Reader input;
+    private InputStream inputStream;
     private Columns columns = new Columns();
     private boolean hasNextDataLine;
     private int numberOfColumns;
@@ -132,6 +152,30 @@ public class VCFParser implements Closeable {
      */
     private boolean cacheFieldPermutation;
     private String associationString;
+    private int numThreads = 1;
+    private ExecutorService executor;
+    private final ArrayDeque<Future<LineBatch>> pendingBatches = new ArrayDeque<Future<LineBatch>>();
+    private final ObjectArrayList<LineBatch> freeBatches = new ObjectArrayList<LineBatch>();
+    /**
+     * Bytes of an incomplete line, at the end of the last batch read.
+     */
+    private byte[] carry = new byte[0];
+    private int carryLength;
+    private boolean endOfInput;
+    private LineBatch currentBatch;
+    /**
+     * Index in currentBatch of the next line to return.
+     */
+    private int nextLineIndex;
+    /**
+     * Bytes of the current line, from lineStart (inclusive) to lineStart+lineLength (exclusive).
+     */
+    private byte[] lineBytes;
+    private int lineStart;
+    /**
+     * True when the current line contains only ASCII characters.
+     */
+    private boolean lineAscii;
 
     /**
      * Constructs a VCF parser.
@@ -153,9 +197,7 @@ public class VCFParser implements Closeable {
      */
     public VCFParser(final String filename) throws IOException {
         inputFile = new File(filename);
-        input = filename.endsWith(".gz") ?
-                new InputStreamReader(new BlockCompressedInputStream(new FileInputStream(filename))) :
-                new FileReader(filename);
+        inputStream = new FileInputStream(filename);
     }
 
     /**
@@ -284,23 +326,24 @@ public class VCFParser implements Closeable {
 
     }
 
-    private LineIterator lineIterator;
+    /**
+     * Set the number of threads used to parse data lines. When larger than one, data lines are split in batches
+     * that a pool of threads tokenizes ahead of the caller, and the blocks of bgzip compressed input are inflated
+     * in parallel. Must be called before readHeader().
+     *
+     * @param numThreads number of threads.
+     */
+    public void setNumThreads(final int numThreads) {
+        this.numThreads = numThreads;
+    }
 
     public boolean hasNextDataLine() {
         if (hasNextDataLine) {
             return true;
         }
-
-        hasNextDataLine = lineIterator.hasNext();
+        hasNextDataLine = nextLineAvailable();
         if (hasNextDataLine) {
-            line = lineIterator.next();
-            if (!TSV) {
-                parseCurrentLine();
-
-            } else {
-                parseTSVLine();
-            }
-
+            loadLine(currentBatch, nextLineIndex++);
         }
         return hasNextDataLine;
     }
@@ -324,7 +367,7 @@ public class VCFParser implements Closeable {
     public CharSequence getColumnValue(final int columnIndex) {
         if (hasNextDataLine) {
 
-            return line.subSequence(columnStarts[columnIndex], columnEnds[columnIndex]);
+            return decode(columnStarts[columnIndex], columnEnds[columnIndex]);
 
         } else return null;
     }
@@ -364,7 +407,7 @@ public class VCFParser implements Closeable {
 
             assert (start >= 0 && end <= lineLength) :
                     String.format("position indices must be within line boundaries start: %d end: %d length: %d", start, end, lineLength);
-            return line.subSequence(start, end);
+            return decode(start, end);
 
 
         } else return null;
@@ -383,6 +426,43 @@ public class VCFParser implements Closeable {
         return value == null ? null : value.toString();
     }
 
+    /**
+     * Returns the value of a field as an int, parsed from the bytes of the line without creating a String.
+     *
+     * @param globalFieldIndex a global index that runs from zero to countAllFields()
+     * @return Value of this field.
+     * @throws NumberFormatException when the value is not an integer.
+     */
+    public int getIntFieldValue(final int globalFieldIndex) {
+        final int lineFieldIndex = lineFieldIndex(globalFieldIndex);
+        if (lineFieldIndex == -1) {
+            return Integer.parseInt("");
+        }
+        return parseInt(lineBytes, lineStart + fieldStarts[lineFieldIndex], lineStart + fieldEnds[lineFieldIndex]);
+    }
+
+    /**
+     * Returns the value of a field as a double, parsed from the bytes of the line without creating a String.
+     *
+     * @param globalFieldIndex a global index that runs from zero to countAllFields()
+     * @return Value of this field.
+     * @throws NumberFormatException when the value is not a number.
+     */
+    public double getDoubleFieldValue(final int globalFieldIndex) {
+        final int lineFieldIndex = lineFieldIndex(globalFieldIndex);
+        if (lineFieldIndex == -1) {
+            return Double.parseDouble("");
+        }
+        return parseDouble(lineBytes, lineStart + fieldStarts[lineFieldIndex], lineStart + fieldEnds[lineFieldIndex]);
+    }
+
+    private int lineFieldIndex(final int globalFieldIndex) {
+        if (!hasNextDataLine) {
+            throw new IllegalArgumentException("Field values can be obtained only after hasNext has returned true.");
+        }
+        return fieldPermutation[globalFieldIndex];
+    }
+
     /**
      * Returns a column value as a String.
      *
@@ -407,8 +487,6 @@ public class VCFParser implements Closeable {
         return fieldIndexToName.get(globalFieldIndex);
     }
 
-    private FastBufferedReader bufferedReader;
-
     /**
      * Read the header of this file. Headers in the VCF format are supported, as well as TSV single header lines (with or
      * without first character #.
@@ -422,97 +500,321 @@ public class VCFParser implements Closeable {
         headerParsed = true;
         globalFieldIndex = 0;
         fieldIndexToName = new Int2ObjectOpenHashMap<String>();
-        bufferedReader = new FastBufferedReader(input);
-        lineIterator = new LineIterator(bufferedReader);
         int lineNumber = 1;
         try {
-            while (lineIterator.hasNext()) {
-                line = lineIterator.next();
-                if (hasVcfMetaLine()) {
-                    TSV = false;
-                }
-                if (!line.startsWith("#")) {
-                    if (TSV && lineNumber == 1 && headerLineNotParsed) {
+            openInput();
+            final LineBatch batch = new LineBatch();
+            readBatch(batch);
+            while (batch.numLines > 0) {
+                for (int lineIndex = 0; lineIndex < batch.numLines; lineIndex++) {
+                    line = new MutableString(new String(batch.bytes, batch.lineStarts[lineIndex],
+                            batch.lineEnds[lineIndex] - batch.lineStarts[lineIndex], CHARSET));
+                    if (hasVcfMetaLine()) {
+                        TSV = false;
+                    }
+                    if (!line.startsWith("#")) {
+                        if (TSV && lineNumber == 1 && headerLineNotParsed) {
 
-                        // assume the file is TSV and starts directly with the header line. Parse lineIterator here.
-                        parseHeaderLine(new MutableString("#" + line));
+                            // assume the file is TSV and starts directly with the header line. Parse it here.
+                            parseHeaderLine(new MutableString("#" + line));
+                            startDataLines(batch, lineIndex + 1);
 
-                    } else {
-                        // We are seeing an actual line of data. Prepare for parsing:
-                        if (!TSV) {
-                            parseCurrentLine();
                         } else {
-                            parseTSVLine();
+                            // We are seeing an actual line of data. Prepare for parsing:
+                            startDataLines(batch, lineIndex);
+                            loadLine(currentBatch, nextLineIndex++);
+                            hasNextDataLine = true;
                         }
-                        hasNextDataLine = true;
+                        return;
                     }
-                    break;
-                }
-                if (hasVcfMetaLine()){
-                    TSV = false;
-                    processMetaInfoLine(line);
-                } else if (line.startsWith("#")) {
-                    parseHeaderLine(line);
+                    if (hasVcfMetaLine()) {
+                        TSV = false;
+                        processMetaInfoLine(line);
+                    } else if (line.startsWith("#")) {
+                        parseHeaderLine(line);
+                    }
+                    lineNumber++;
                 }
-                lineNumber++;
+                readBatch(batch);
             }
         } catch (htsjdk.samtools.FileTruncatedException e) {
             line = null;
             hasNextDataLine = false;
-            // install a dummy line iteratory that always returns false when hasNext is called.
-            lineIterator = new LineIterator(bufferedReader) {
+            // no data line will be returned:
+            currentBatch = null;
+            endOfInput = true;
+            carryLength = 0;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private boolean hasVcfMetaLine() {
+        return line.startsWith("##") && line.indexOf('=')!=-1;
+    }
+
+    private void openInput() throws IOException {
+        if (numThreads > 1) {
+            executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
                 @Override
-                public boolean hasNext() {
-                    return false;
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "vcf-parser");
+                    thread.setDaemon(true);
+                    return thread;
                 }
+            });
+        }
+        if (inputStream == null) {
+            inputStream = new ReaderInputStream(input, CHARSET);
+        } else if (inputFile.getName().endsWith(".gz")) {
+            final BufferedInputStream buffered = new BufferedInputStream(inputStream);
+            inputStream = executor != null && BlockCompressedInputStream.isValidFile(buffered) ?
+                    new ParallelBGZFInputStream(buffered, executor, numThreads * 2) :
+                    new BlockCompressedInputStream(buffered);
+        }
+    }
 
-                @Override
-                public MutableString next() {
+    /**
+     * Read the next lines of input into a batch. The batch receives complete lines only, the bytes of an incomplete
+     * last line are carried over to the next batch.
+     */
+    private void readBatch(final LineBatch batch) throws IOException {
+        batch.numLines = 0;
+        byte[] bytes = batch.bytes;
+        if (bytes.length < carryLength) {
+            bytes = new byte[carryLength * 2];
+        }
+        System.arraycopy(carry, 0, bytes, 0, carryLength);
+        int length = carryLength;
+        int lineStart = 0;
+        int scanned = 0;
+        while (true) {
+            while (!endOfInput && length < bytes.length) {
+                final int n = inputStream.read(bytes, length, bytes.length - length);
+                if (n == -1) {
+                    endOfInput = true;
+                } else {
+                    length += n;
+                }
+            }
+            // lines end with LF, CR or CR/LF:
+            while (scanned < length && batch.numLines < MAX_LINES_PER_BATCH) {
+                final byte b = bytes[scanned];
+                if (b == '\r' && scanned + 1 == length && !endOfInput) {
+                    // the next byte decides if this is a CR/LF terminator:
+                    break;
+                }
+                if (b == '\n' || b == '\r') {
+                    batch.addLine(lineStart, scanned);
+                    if (b == '\r' && scanned + 1 < length && bytes[scanned + 1] == '\n') {
+                        scanned++;
+                    }
+                    lineStart = scanned + 1;
+                }
+                scanned++;
+            }
+            if (batch.numLines > 0 || endOfInput) {
+                break;
+            }
+            // a single line is longer than the batch:
+            bytes = Arrays.copyOf(bytes, bytes.length * 2);
+        }
+        if (endOfInput && scanned == length && lineStart < length) {
+            // last line, without end of line:
+            batch.addLine(lineStart, length);
+            lineStart = length;
+        }
+        batch.bytes = bytes;
+        carryLength = length - lineStart;
+        if (carry.length < carryLength) {
+            carry = new byte[carryLength];
+        }
+        System.arraycopy(bytes, lineStart, carry, 0, carryLength);
+    }
+
+    /**
+     * Data lines start at lineIndex in batch. Tokenize them and prepare to return them.
+     */
+    private void startDataLines(final LineBatch batch, final int lineIndex) {
+        tokenize(batch, lineIndex);
+        currentBatch = batch;
+        nextLineIndex = lineIndex;
+    }
+
+    /**
+     * Move to the next batch when all the lines of the current batch have been returned.
+     *
+     * @return true when a line is available at nextLineIndex in currentBatch.
+     */
+    private boolean nextLineAvailable() {
+        while (currentBatch == null || nextLineIndex >= currentBatch.numLines) {
+            if (currentBatch == null && endOfInput && carryLength == 0) {
+                return false;
+            }
+            final LineBatch batch = nextBatch();
+            if (batch == null) {
+                currentBatch = null;
+                return false;
+            }
+            currentBatch = batch;
+            nextLineIndex = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Return the next batch of tokenized lines, or null when all lines have been read.
+     */
+    private LineBatch nextBatch() {
+        try {
+            if (executor == null) {
+                final LineBatch batch = currentBatch != null ? currentBatch : new LineBatch();
+                readBatch(batch);
+                if (batch.numLines == 0) {
                     return null;
                 }
-            };
+                tokenize(batch, 0);
+                return batch;
+            }
+            submitBatches();
+            final Future<LineBatch> pending = pendingBatches.poll();
+            if (pending == null) {
+                return null;
+            }
+            final LineBatch batch = pending.get();
+            if (currentBatch != null) {
+                // all the lines of the current batch have been returned, it can be reused:
+                freeBatches.add(currentBatch);
+            }
+            return batch;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Read batches of lines and submit them for tokenization, until enough batches are pending.
+     */
+    private void submitBatches() throws IOException {
+        while (pendingBatches.size() < numThreads * 2) {
+            final LineBatch batch = freeBatches.isEmpty() ? new LineBatch() : freeBatches.pop();
+            readBatch(batch);
+            if (batch.numLines == 0) {
+                freeBatches.add(batch);
+                return;
+            }
+            pendingBatches.add(executor.submit(new Callable<LineBatch>() {
+                @Override
+                public LineBatch call() {
+                    tokenize(batch, 0);
+                    return batch;
+                }
+            }));
+        }
+    }
 
+    /**
+     * Determine the offsets of the columns and fields of the lines of a batch. This method does not modify the state
+     * of the parser and can be called for different batches in parallel.
+     */
+    private void tokenize(final LineBatch batch, final int fromLine) {
+        final IntArrayList previousColumnFieldIndices = new IntArrayList();
+        for (int lineIndex = fromLine; lineIndex < batch.numLines; lineIndex++) {
+            final ParsedLine parsed = batch.parsedLine(lineIndex, numberOfColumns, numberOfFields);
+            parsed.error = null;
+            try {
+                if (!TSV) {
+                    tokenizeLine(batch.bytes, batch.lineStarts[lineIndex], batch.lineEnds[lineIndex], parsed,
+                            previousColumnFieldIndices);
+                } else {
+                    tokenizeTSVLine(batch.bytes, batch.lineStarts[lineIndex], batch.lineEnds[lineIndex], parsed);
+                }
+            } catch (RuntimeException e) {
+                // reported when the line is reached:
+                parsed.error = e;
+            }
         }
     }
 
-    private boolean hasVcfMetaLine() {
-        return line.startsWith("##") && line.indexOf('=')!=-1;
+    /**
+     * Make a tokenized line the current line.
+     */
+    private void loadLine(final LineBatch batch, final int lineIndex) {
+        final ParsedLine parsed = batch.parsed[lineIndex];
+        if (parsed.error != null) {
+            throw parsed.error;
+        }
+        lineBytes = batch.bytes;
+        lineStart = batch.lineStarts[lineIndex];
+        lineLength = batch.lineEnds[lineIndex] - lineStart;
+        lineAscii = parsed.ascii;
+        columnStarts = parsed.columnStarts;
+        columnEnds = parsed.columnEnds;
+        fieldStarts = parsed.fieldStarts;
+        fieldEnds = parsed.fieldEnds;
+        for (int columnIndex = 0; columnIndex < parsed.numberOfTabs; columnIndex++) {
+            fieldPermutation[columnIndex] = columnIndex;
+        }
+        if (TSV) {
+            fieldPermutation[columnEnds.length - 1] = columnEnds.length - 1;
+        } else {
+            if (cacheFieldPermutation && computedFieldPermutation) return;
+            computeFieldPermutation(parsed.lineFieldIndexToColumnIndex, parsed.numberOfFieldsOnLine);
+        }
     }
 
-    private void parseTSVLine() {
+    private String decode(final int start, final int end) {
+        return new String(lineBytes, lineStart + start, end - start, lineAscii ? StandardCharsets.ISO_8859_1 : CHARSET);
+    }
+
+    private void tokenizeTSVLine(final byte[] bytes, final int start, final int end, final ParsedLine parsed) {
+        final int[] columnStarts = parsed.columnStarts;
+        final int[] columnEnds = parsed.columnEnds;
         Arrays.fill(columnStarts, 0);
         Arrays.fill(columnEnds, 0);
-        Arrays.fill(fieldStarts, 0);
-        Arrays.fill(fieldEnds, 0);
+        Arrays.fill(parsed.fieldStarts, 0);
+        Arrays.fill(parsed.fieldEnds, 0);
         int columnIndex = 0;
-        lineLength = line.length();
+        int ascii = 0;
+        final int lineLength = end - start;
         for (int i = 0; i < lineLength; i++) {
 
-            final char c = line.charAt(i);
+            final byte c = bytes[start + i];
+            ascii |= c;
             if (c == '\t') {
-                final String columnName = columnList.get(columnIndex).columnName;
 
                 columnEnds[columnIndex] = i;
                 if (columnIndex + 1 < columnStarts.length) {
 
                     columnStarts[columnIndex + 1] = i + 1;
                 }
-                fieldPermutation[columnIndex] = columnIndex;
                 ++columnIndex;
             }
         }
-
-        fieldPermutation[columnEnds.length - 1] = columnEnds.length - 1;
+        parsed.numberOfTabs = columnIndex;
+        parsed.ascii = ascii >= 0;
         columnEnds[columnEnds.length - 1] = lineLength;
         columnStarts[columnEnds.length - 1] = columnEnds[columnEnds.length - 2] + 1;
-        System.arraycopy(columnEnds, 0, fieldEnds, 0, columnEnds.length);
-        System.arraycopy(columnStarts, 0, fieldStarts, 0, columnStarts.length);
+        System.arraycopy(columnEnds, 0, parsed.fieldEnds, 0, columnEnds.length);
+        System.arraycopy(columnStarts, 0, parsed.fieldStarts, 0, columnStarts.length);
 
     }
 
-    final IntArrayList previousColumnFieldIndices = new IntArrayList();
-
-    private void parseCurrentLine() {
+    private void tokenizeLine(final byte[] bytes, final int start, final int end, final ParsedLine parsed,
+                              final IntArrayList previousColumnFieldIndices) {
+        final int[] columnStarts = parsed.columnStarts;
+        final int[] columnEnds = parsed.columnEnds;
+        final int[] fieldStarts = parsed.fieldStarts;
+        final int[] fieldEnds = parsed.fieldEnds;
+        final int[] lineFieldIndexToColumnIndex = parsed.lineFieldIndexToColumnIndex;
         Arrays.fill(columnStarts, 0);
         Arrays.fill(columnEnds, 0);
         Arrays.fill(fieldStarts, 0);
@@ -520,75 +822,67 @@ public class VCFParser implements Closeable {
         columnStarts[0] = 0;
         int columnIndex = 0;
         int fieldIndex = 0;
-        lineLength = line.length();
-        final int[] lineFieldIndexToColumnIndex = new int[numberOfFields];
+        int ascii = 0;
+        final int lineLength = end - start;
         Arrays.fill(lineFieldIndexToColumnIndex, -1);
         previousColumnFieldIndices.clear();
         // determine the position of column and field delimiters:
-        final char[] chrs = line.toCharArray();
         for (int i = 0; i < lineLength; i++) {
-            final char c = chrs[i];
+            final byte c = bytes[start + i];
+            ascii |= c;
             if (c == columnSeparatorCharacter) {
 
-                fieldPermutation[columnIndex] = columnIndex;
                 columnEnds[columnIndex] = i;
 
                 if (columnIndex + 1 < numberOfColumns) {
                     columnStarts[columnIndex + 1] = i + 1;
                 }
-                //lineFieldIndexToColumnIndex[columnIndex] = columnIndex;
             }
             if (c == columnSeparatorCharacter ||
                     c == fieldSeparatorCharacter ||
                     (columnIndex >= formatColumnIndex &&
                             c == formatFieldSeparatorCharacter)) {
 
-                if (TSV) {
-
-                    // there are no fields, only columns, the field separators do not apply
-
-                    fieldEnds[columnIndex] = columnEnds[columnIndex];
-                    fieldStarts[columnIndex] = columnStarts[columnIndex];
-                    fieldIndex = columnIndex;
-                    lineFieldIndexToColumnIndex[fieldIndex] = columnIndex;
-                } else {
-
-                    fieldEnds[fieldIndex] = i;
-
-                    if (fieldIndex + 1 < numberOfFields) {
-                        fieldStarts[fieldIndex + 1] = i + 1;
-                    }
+                fieldEnds[fieldIndex] = i;
 
-                    previousColumnFieldIndices.add(fieldIndex);
-                    fieldIndex++;
-                    fieldIndex = Math.min(fieldEnds.length - 1, fieldIndex);
-                    fieldIndex = Math.min(fieldStarts.length - 1, fieldIndex);
+                if (fieldIndex + 1 < numberOfFields) {
+                    fieldStarts[fieldIndex + 1] = i + 1;
                 }
+
+                previousColumnFieldIndices.add(fieldIndex);
+                fieldIndex++;
+                fieldIndex = Math.min(fieldEnds.length - 1, fieldIndex);
+                fieldIndex = Math.min(fieldStarts.length - 1, fieldIndex);
             }
             if (c == columnSeparatorCharacter) {
-                if (TSV) {
-                    lineFieldIndexToColumnIndex[fieldIndex] = columnIndex;
-                }
                 push(columnIndex, lineFieldIndexToColumnIndex, previousColumnFieldIndices);
                 columnIndex++;
             }
 
         }
-        int numberOfFieldsOnLine = Math.min(fieldIndex, fieldEnds.length - 1);
-        int numberOfColumnsOnLine = Math.min(columnIndex, columnEnds.length - 1);
+        final int numberOfFieldsOnLine = Math.min(fieldIndex, fieldEnds.length - 1);
+        final int numberOfColumnsOnLine = Math.min(columnIndex, columnEnds.length - 1);
         columnStarts[0] = 0;
-        columnEnds[numberOfColumnsOnLine - (TSV ? 1 : 0)] = line.length();
+        columnEnds[numberOfColumnsOnLine] = lineLength;
         fieldStarts[0] = 0;
-        fieldEnds[numberOfFieldsOnLine - (TSV ? 1 : 0)] = line.length();
+        fieldEnds[numberOfFieldsOnLine] = lineLength;
         previousColumnFieldIndices.add(fieldIndex);
         push(columnIndex, lineFieldIndexToColumnIndex, previousColumnFieldIndices);
+        parsed.numberOfTabs = columnIndex;
+        parsed.numberOfFieldsOnLine = numberOfFieldsOnLine;
+        parsed.ascii = ascii >= 0;
+    }
 
-        if (cacheFieldPermutation && computedFieldPermutation) return;
+    /**
+     * Determine the permutation from global field index to the fields of the current line, for a line tokenized
+     * with tokenizeLine.
+     */
+    private void computeFieldPermutation(final int[] lineFieldIndexToColumnIndex, final int numberOfFieldsOnLine) {
         Arrays.fill(fieldPermutation, -1);
         for (ColumnInfo c : columns) {
             c.formatIndex = 0;
         }
-
+        String[] formatTokens = null;
 
         // determine the fieldPermutation for each possible field:
         for (int lineFieldIndex = 0; lineFieldIndex <= numberOfFieldsOnLine; lineFieldIndex++) {
@@ -615,12 +909,11 @@ public class VCFParser implements Closeable {
 
             }
 
-            final int formatColumnIndex = TSV ? -1 : formatColumn.columnIndex;
-            final int startFormatColumn = TSV ? 0 : columnStarts[formatColumnIndex];
-            final int endFormatColumn = TSV ? 0 : columnEnds[formatColumnIndex];
-
-
-            final String[] formatTokens = split(line, formatFieldSeparatorCharacter, startFormatColumn, endFormatColumn);
+            if (formatTokens == null) {
+                final int formatColumnIndex = formatColumn.columnIndex;
+                formatTokens = split(formatFieldSeparatorCharacter, columnStarts[formatColumnIndex],
+                        columnEnds[formatColumnIndex]);
+            }
 
             for (int fi = 0; fi < fields.size(); ++fi) {
 
@@ -645,7 +938,7 @@ public class VCFParser implements Closeable {
                             break;
                         }
 
-                        final char linechar = line.charAt(j);
+                        final char linechar = lineCharAt(j);
 
                         if (id.charAt(i) != linechar) {
                             // found mimatch with field id, not this field.
@@ -656,16 +949,12 @@ public class VCFParser implements Closeable {
                         j++;
                     }
 
-                    if (matchLength == id.length() && line.charAt(j) == '=' ||
+                    if (matchLength == id.length() && lineCharAt(j) == '=' ||
                             (j == end && f.type == ColumnType.Flag)) {
                         // found the correct field.
-                        /*  System.out.printf("Assigning global %s %d -> %d for field %s%n",
-                                f.id, globalFieldIndex, lineFieldIndex, line.subSequence(start, end));
-                        */
                         fieldPermutation[f.globalFieldIndex] = lineFieldIndex;
                         if (f.type != ColumnType.Flag) {
                             fieldStarts[lineFieldIndex] += f.id.length() + 1; // remove id= from value;
-                            //fieldStarts[lineFieldIndex]=Math.min(fieldStarts[lineFieldIndex],fieldEnds[lineFieldIndex]);
                         }
                         break;
                     } else {
@@ -673,9 +962,6 @@ public class VCFParser implements Closeable {
                         if (column.useFormat && column.formatIndex < formatTokens.length) {
 
                             if (f.id.equals(formatTokens[column.formatIndex])) {
-                                /*    System.out.printf("Assigning FORMAT global %s %d -> %d for field %s%n",
-                                          f.id, f.globalFieldIndex, lineFieldIndex, line.subSequence(start, end));
-                                */
                                 fieldPermutation[f.globalFieldIndex] = lineFieldIndex;
                                 column.formatIndex++;
                                 break;
@@ -688,34 +974,37 @@ public class VCFParser implements Closeable {
         computedFieldPermutation = true;
     }
 
+    private char lineCharAt(final int index) {
+        if (index >= lineLength) {
+            throw new StringIndexOutOfBoundsException(index);
+        }
+        return (char) (lineBytes[lineStart + index] & 0xFF);
+    }
+
     String[] formatSplit = null;
 
-    private String[] split(final MutableString line, final char formatFieldSeparatorCharacter,
+    private String[] split(final char formatFieldSeparatorCharacter,
                            final int startFormatColumn, final int endFormatColumn) {
         if (cacheFieldPermutation && formatSplit != null) {
             return formatSplit;
         } else {
-            final MutableString formatSpan = line.substring(startFormatColumn, endFormatColumn);
-
-            int fieldCount = 0;
-
-            formatSpan.append(formatFieldSeparatorCharacter);
-            final int length = formatSpan.length();
-            for (int i = 0; i < length; i++) {
-                if (formatSpan.charAt(i) == formatFieldSeparatorCharacter) {
+            // the span of the format column, followed by a separator:
+            final int length = endFormatColumn - startFormatColumn + 1;
+            int fieldCount = 1;
+            for (int i = startFormatColumn; i < endFormatColumn; i++) {
+                if (lineCharAt(i) == formatFieldSeparatorCharacter) {
                     ++fieldCount;
                 }
             }
             final String[] result = new String[fieldCount];
-            final MutableString value = new MutableString();
             int last = 0;
             int j = 0;
             for (int i = 0; i < length; i++) {
-                if (formatSpan.charAt(i) == formatFieldSeparatorCharacter && i > last) {
-                    value.append(formatSpan.substring(last, i));
+                final boolean separator = i == length - 1 ||
+                        lineCharAt(startFormatColumn + i) == formatFieldSeparatorCharacter;
+                if (separator && i > last) {
+                    result[j] = decode(startFormatColumn + last, startFormatColumn + i);
                     last = i + 1;
-                    result[j] = value.toString();
-                    value.setLength(0);
                     ++j;
                 }
             }
@@ -724,23 +1013,162 @@ public class VCFParser implements Closeable {
         }
     }
 
-    //     System.out.println("ned");
-
-
     private void push(final int columnIndex, final int[] lineFieldIndexToColumnIndex, final IntArrayList previousColumnFieldIndices) {
-        //    System.out.println("---");
         final int size = previousColumnFieldIndices.size();
         for (int i = 0; i < size; ++i) {
             final int fIndex = previousColumnFieldIndices.getInt(i);
-            /*        System.out.printf("field %s gfi:%d belongs to column %d %s%n ",
-           line.substring(fieldStarts[fIndex], fieldEnds[fIndex]),
-           fIndex,
-           columnIndex, columnList.get(columnIndex).columnName);*/
             lineFieldIndexToColumnIndex[fIndex] = columnIndex;
         }
         previousColumnFieldIndices.clear();
     }
 
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    /**
+     * Parse an int from the bytes of a line. Values with a leading '-' and up to nine digits are parsed directly,
+     * other values are delegated to Integer.parseInt.
+     */
+    static int parseInt(final byte[] bytes, final int start, final int end) {
+        final boolean negative = end > start && bytes[start] == '-';
+        final int firstDigit = negative ? start + 1 : start;
+        if (end > firstDigit && end - firstDigit <= 9) {
+            int value = 0;
+            int i = firstDigit;
+            for (; i < end; i++) {
+                final int digit = bytes[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                value = value * 10 + digit;
+            }
+            if (i == end) {
+                return negative ? -value : value;
+            }
+        }
+        return Integer.parseInt(new String(bytes, start, end - start, StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Parse a double from the bytes of a line. Decimal values with at most 15 significant digits (and an optional
+     * exponent) are exactly representable as a long mantissa scaled by a power of ten no larger than 10^22, and are
+     * computed with a single correctly rounded operation. Other values are delegated to Double.parseDouble.
+     */
+    static double parseDouble(final byte[] bytes, final int start, final int end) {
+        int i = start;
+        final boolean negative = i < end && bytes[i] == '-';
+        if (negative || i < end && bytes[i] == '+') {
+            i++;
+        }
+        long mantissa = 0;
+        int numDigits = 0;
+        int scale = 0;
+        boolean fast = true;
+        boolean seenPoint = false;
+        for (; i < end; i++) {
+            final byte c = bytes[i];
+            if (c >= '0' && c <= '9') {
+                if (mantissa != 0 || c != '0') {
+                    numDigits++;
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (seenPoint) {
+                    scale--;
+                }
+            } else if (c == '.' && !seenPoint) {
+                seenPoint = true;
+            } else {
+                break;
+            }
+        }
+        final boolean hasDigits = i > start + (negative || start < end && bytes[start] == '+' ? 1 : 0) + (seenPoint ? 1 : 0);
+        if (i < end && (bytes[i] == 'e' || bytes[i] == 'E') && hasDigits) {
+            i++;
+            final boolean negativeExponent = i < end && bytes[i] == '-';
+            if (negativeExponent || i < end && bytes[i] == '+') {
+                i++;
+            }
+            int exponent = 0;
+            final int firstExponentDigit = i;
+            for (; i < end && bytes[i] >= '0' && bytes[i] <= '9' && exponent < 1000; i++) {
+                exponent = exponent * 10 + bytes[i] - '0';
+            }
+            fast = i > firstExponentDigit;
+            scale += negativeExponent ? -exponent : exponent;
+        }
+        fast &= i == end && hasDigits && numDigits <= 15 && scale >= -22 && scale <= 22;
+        if (!fast) {
+            return Double.parseDouble(new String(bytes, start, end - start, StandardCharsets.ISO_8859_1));
+        }
+        final double value = scale >= 0 ? mantissa * POWERS_OF_TEN[scale] : mantissa / POWERS_OF_TEN[-scale];
+        return negative ? -value : value;
+    }
+
+    /**
+     * Lines of input read together, with the offsets of their columns and fields once tokenized.
+     */
+    private static final class LineBatch {
+        private byte[] bytes = new byte[BATCH_SIZE];
+        private int numLines;
+        private int[] lineStarts = new int[1024];
+        private int[] lineEnds = new int[1024];
+        private ParsedLine[] parsed = new ParsedLine[0];
+
+        private void addLine(final int start, final int end) {
+            if (numLines == lineStarts.length) {
+                lineStarts = Arrays.copyOf(lineStarts, numLines * 2);
+                lineEnds = Arrays.copyOf(lineEnds, numLines * 2);
+            }
+            lineStarts[numLines] = start;
+            lineEnds[numLines] = end;
+            numLines++;
+        }
+
+        private ParsedLine parsedLine(final int lineIndex, final int numberOfColumns, final int numberOfFields) {
+            if (lineIndex >= parsed.length) {
+                parsed = Arrays.copyOf(parsed, Math.max(lineIndex + 1, parsed.length * 2));
+            }
+            if (parsed[lineIndex] == null) {
+                parsed[lineIndex] = new ParsedLine(numberOfColumns, numberOfFields);
+            }
+            return parsed[lineIndex];
+        }
+    }
+
+    /**
+     * Offsets of the columns and fields of a line, relative to the start of the line.
+     */
+    private static final class ParsedLine {
+        private final int[] columnStarts;
+        private final int[] columnEnds;
+        private final int[] fieldStarts;
+        private final int[] fieldEnds;
+        private final int[] lineFieldIndexToColumnIndex;
+        private int numberOfTabs;
+        private int numberOfFieldsOnLine;
+        /**
+         * True when the line contains only ASCII characters.
+         */
+        private boolean ascii;
+        /**
+         * Exception thrown when the line was tokenized.
+         */
+        private RuntimeException error;
+
+        private ParsedLine(final int numberOfColumns, final int numberOfFields) {
+            columnStarts = new int[numberOfColumns];
+            columnEnds = new int[numberOfColumns];
+            fieldStarts = new int[numberOfFields];
+            fieldEnds = new int[numberOfFields];
+            lineFieldIndexToColumnIndex = new int[numberOfFields];
+        }
+    }
 
     private void parseHeaderLine(MutableString line) {
         if (TSV) {
@@ -1010,10 +1438,10 @@ public class VCFParser implements Closeable {
      */
     @Override
     public void close() throws IOException {
-        if (bufferedReader != null) {
-            IOUtils.closeQuietly(bufferedReader);
-
+        if (executor != null) {
+            executor.shutdownNow();
         }
+        IOUtils.closeQuietly(inputStream);
         IOUtils.closeQuietly(input);
 
     }
@@ -69,6 +69,11 @@ public class DualRandomAccessSequenceCache implements RandomAccessSequenceInterf
         delegate.getRange(referenceIndex, position, length, bases);
     }
 
+    @Override
+    public void getBases(int referenceIndex, int position, byte[] bases, int offset, int length) {
+        delegate.getBases(referenceIndex, position, bases, offset, length);
+    }
+
     @Override
     public int getReferenceIndex(String referenceId) {
         return delegate.getReferenceIndex(referenceId);
@@ -80,7 +80,7 @@ public class PicardFastaIndexedSequence implements RandomAccessSequenceInterface
     }
 
     @Override
-    public char get(final int referenceIndex, final int position) {
+    public synchronized char get(final int referenceIndex, final int position) {
         if (position >= cachedStart && position < cachedStop && referenceIndex == cachedReferenceIndex) {
             return baseBuffer.charAt(position - cachedStart);
         } else {
@@ -100,7 +100,7 @@ public class PicardFastaIndexedSequence implements RandomAccessSequenceInterface
     int cachedStop = -1;
 
     @Override
-    public void getRange(final int referenceIndex, final int position, final int length, final MutableString bases) {
+    public synchronized void getRange(final int referenceIndex, final int position, final int length, final MutableString bases) {
         bases.setLength(0);
         final int stop = Math.max(position + length, lengths[referenceIndex] - position);
         final int oneBasedPosition = position + 1;
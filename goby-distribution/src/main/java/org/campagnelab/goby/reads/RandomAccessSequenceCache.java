@@ -22,7 +22,6 @@ package org.campagnelab.goby.reads;
 
 import com.google.protobuf.ByteString;
 import org.campagnelab.goby.parsers.ReaderFastaParser;
-import it.unimi.dsi.bits.BitVector;
 import it.unimi.dsi.bits.LongArrayBitVector;
 import it.unimi.dsi.fastutil.ints.Int2ObjectArrayMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
@@ -38,22 +37,44 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.zip.GZIPInputStream;
 
 /**
  * Load a genome into memory and provide random access to individual bases. Supports DNA (ACTG) and
  * other bases (encoded as N).
+ * <p/>
+ * Bases are packed two bits per base. Stretches of bases other than ACTG are stored as runs of N. The cache is saved
+ * to a single basename.genome file, which load maps in memory read-only: loading takes milliseconds whatever the
+ * size of the genome, bases are read straight from the mapping, and processes that load the same genome on a node
+ * share it through the page cache. Caches saved by earlier versions of Goby (basename.bases, .sizes, .ignore and
+ * .names files) can still be loaded, but are read on the heap. Earlier versions of Goby cannot read .genome files:
+ * use {@link #save(String, boolean)} to also write the former files when a cache must be shared with them.
  *
  * @author Fabien Campagne
  *         Date: May 19, 2009
  *         Time: 3:08:21 PM
  */
 public class RandomAccessSequenceCache implements RandomAccessSequenceInterface {
-    private ObjectArrayList<LongArrayBitVector> referenceIgnoreLists;
+    /**
+     * Runs of N in each sequence, as consecutive (start, end) pairs of positions sorted by start. End positions are
+     * exclusive.
+     */
+    private ObjectArrayList<int[]> referenceNRuns;
+    /**
+     * Number of positions covered by the ignore list of each sequence, as saved in the former format. Equal to the
+     * length of the sequence, unless an earlier version of Goby saved a shorter ignore list.
+     */
+    private IntList ignoreLengths;
     private Object2IntMap<String> referenceNameMap;
     private Int2ObjectMap<String> indexToNameMap;
-    private ObjectArrayList<byte[]> compressedData;
+    /**
+     * Packed bases of each sequence, either on heap, or mapped from a .genome file.
+     */
+    private ObjectArrayList<ByteBuffer> compressedData;
     private IntList sizes;
     private static final Logger LOG = LoggerFactory.getLogger(RandomAccessSequenceCache.class);
     private String basename;
@@ -65,12 +86,13 @@ public class RandomAccessSequenceCache implements RandomAccessSequenceInterface
 
     public RandomAccessSequenceCache() {
         super();
-        compressedData = new ObjectArrayList<byte[]>();
-        referenceIgnoreLists = new ObjectArrayList<LongArrayBitVector>();
+        compressedData = new ObjectArrayList<ByteBuffer>();
+        referenceNRuns = new ObjectArrayList<int[]>();
         referenceNameMap = new Object2IntOpenHashMap<String>();
         referenceNameMap.defaultReturnValue(-1);
         indexToNameMap = new Int2ObjectArrayMap<String>();
         sizes = new IntArrayList();
+        ignoreLengths = new IntArrayList();
     }
 
     /**
@@ -93,19 +115,18 @@ public class RandomAccessSequenceCache implements RandomAccessSequenceInterface
             final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(initialCapacity);
             final OutputBitStream compressed = new OutputBitStream(byteArrayOutputStream);
 
-            final LongArrayBitVector referenceIgnoreList = LongArrayBitVector.ofLength(0);
+            final IntArrayList nRuns = new IntArrayList();
 
-            //  referenceIgnoreList.defaultReturnValue(false);
             final Reader baseReader = parser.getBaseReader();
             int c;
             while ((c = baseReader.read()) != -1) {
-                encode(c, compressed, referenceIgnoreList);
+                encode(c, compressed, nRuns, position);
                 position++;
             }
             baseReader.close();
             compressed.flush();
             compressed.close();
-            referenceIgnoreLists.add(referenceIgnoreList);
+            referenceNRuns.add(nRuns.toIntArray());
             referenceNameMap.put(referenceName, refIndex);
             indexToNameMap.put(refIndex, referenceName);
             updateSliceIndices(refIndex);
@@ -115,8 +136,9 @@ public class RandomAccessSequenceCache implements RandomAccessSequenceInterface
             final byte[] bytes = byteArrayOutputStream.toByteArray();
             LOG.debug("size of last sequence " + description + ", in bytes: " + bytes.length);
 
-            compressedData.add(bytes);
+            compressedData.add(ByteBuffer.wrap(bytes));
             sizes.add(position);
+            ignoreLengths.add(position);
         }
 
     }
@@ -149,18 +171,18 @@ public class RandomAccessSequenceCache implements RandomAccessSequenceInterface
             final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(initialCapacity);
             final OutputBitStream compressed = new OutputBitStream(byteArrayOutputStream);
 
-            final LongArrayBitVector referenceIgnoreList = LongArrayBitVector.ofLength(0);
+            final IntArrayList nRuns = new IntArrayList();
             final ByteString seq = entry.getSequence();
             for (int position = 0; position < seq.size(); ++position) {
                 final char c = (char) seq.byteAt(position);
-                encode(c, compressed, referenceIgnoreList);
+                encode(c, compressed, nRuns, position);
 
             }
 
 
             compressed.flush();
             compressed.close();
-            referenceIgnoreLists.add(referenceIgnoreList);
+            referenceNRuns.add(nRuns.toIntArray());
             referenceNameMap.put(referenceName, refIndex);
             indexToNameMap.put(refIndex, referenceName);
             updateSliceIndices(refIndex);
@@ -170,30 +192,241 @@ public class RandomAccessSequenceCache implements RandomAccessSequenceInterface
             final byte[] bytes = byteArrayOutputStream.toByteArray();
             LOG.debug("size of last sequence " + description + ", in bytes: " + bytes.length);
 
-            compressedData.add(bytes);
+            compressedData.add(ByteBuffer.wrap(bytes));
             sizes.add(seq.size());
+            ignoreLengths.add(seq.size());
         }
     }
 
+    /**
+     * Magic number that starts a .genome file, "GOBYGNM1" in ASCII.
+     */
+    private static final long GENOME_FILE_MAGIC = 0x474F4259474E4D31L;
+    private static final int GENOME_FILE_VERSION = 1;
+    private static final String GENOME_FILE_EXTENSION = ".genome";
+    /**
+     * Largest region of a .genome file mapped at once.
+     */
+    private static final long MAX_MAPPING_SIZE = Integer.MAX_VALUE;
+
+    /**
+     * Save this cache to basename.genome. The file starts with a header (magic number, version, number of
+     * sequences, size of the name table), followed by the name table, which lists the name, length, size of the
+     * packed bases, the runs of N and the length of the ignore list of each sequence. The packed bases of each
+     * sequence follow, in the order of the name table. All numbers are big endian.
+     *
+     * @param basename basename of the cache.
+     * @throws IOException If an error occurs writing the file.
+     */
     public void save(final String basename) throws IOException {
+        save(basename, false);
+    }
+
+    /**
+     * Save this cache to basename.genome, and optionally to the basename.bases, .sizes, .ignore and .names files
+     * that earlier versions of Goby read.
+     *
+     * @param basename     basename of the cache.
+     * @param legacyFormat when true, also write the files of the former format.
+     * @throws IOException If an error occurs writing the files.
+     */
+    public void save(final String basename, final boolean legacyFormat) throws IOException {
+        if (legacyFormat) {
+            saveLegacyFormat(basename);
+        }
+        final ByteArrayOutputStream tableBytes = new ByteArrayOutputStream();
+        final DataOutputStream table = new DataOutputStream(tableBytes);
+        final int numSequences = sizes.size();
+        for (int referenceIndex = 0; referenceIndex < numSequences; referenceIndex++) {
+            table.writeUTF(getReferenceName(referenceIndex));
+            table.writeInt(sizes.getInt(referenceIndex));
+            table.writeLong(compressedData.get(referenceIndex).remaining());
+            final int[] nRuns = referenceNRuns.get(referenceIndex);
+            table.writeInt(nRuns.length / 2);
+            for (final int position : nRuns) {
+                table.writeInt(position);
+            }
+            table.writeInt(ignoreLengths.getInt(referenceIndex));
+        }
+        table.close();
+        final FileOutputStream output = new FileOutputStream(basename + GENOME_FILE_EXTENSION);
+        try {
+            final DataOutputStream header = new DataOutputStream(output);
+            header.writeLong(GENOME_FILE_MAGIC);
+            header.writeInt(GENOME_FILE_VERSION);
+            header.writeInt(numSequences);
+            header.writeInt(tableBytes.size());
+            tableBytes.writeTo(header);
+            header.flush();
+            final FileChannel channel = output.getChannel();
+            for (final ByteBuffer bases : compressedData) {
+                final ByteBuffer remaining = bases.duplicate();
+                while (remaining.hasRemaining()) {
+                    channel.write(remaining);
+                }
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    private void saveLegacyFormat(final String basename) throws IOException {
+        final int numSequences = sizes.size();
+        final ObjectArrayList<byte[]> bases = new ObjectArrayList<byte[]>(numSequences);
+        final ObjectArrayList<LongArrayBitVector> ignoreLists = new ObjectArrayList<LongArrayBitVector>(numSequences);
+        for (int referenceIndex = 0; referenceIndex < numSequences; referenceIndex++) {
+            final ByteBuffer packed = compressedData.get(referenceIndex).duplicate();
+            final byte[] bytes = new byte[packed.remaining()];
+            packed.get(bytes);
+            bases.add(bytes);
+            final LongArrayBitVector ignoreList = LongArrayBitVector.ofLength(ignoreLengths.getInt(referenceIndex));
+            final int[] nRuns = referenceNRuns.get(referenceIndex);
+            for (int i = 0; i < nRuns.length; i += 2) {
+                ignoreList.fill(nRuns[i], nRuns[i + 1], true);
+            }
+            ignoreLists.add(ignoreList);
+        }
         BinIO.storeObject(sizes, basename + ".sizes");
-        BinIO.storeObject(compressedData, basename + ".bases");
-        BinIO.storeObject(referenceIgnoreLists, basename + ".ignore");
+        BinIO.storeObject(bases, basename + ".bases");
+        BinIO.storeObject(ignoreLists, basename + ".ignore");
         BinIO.storeObject(referenceNameMap, basename + ".names");
     }
 
+    /**
+     * Load a cache saved with {@link #save(String)}. The bases of a basename.genome file are mapped in memory,
+     * caches saved in the former format are read on the heap.
+     *
+     * @param basename basename of the cache.
+     * @throws IOException If an error occurs reading the cache.
+     * @throws ClassNotFoundException If the cache was saved in the former format and cannot be deserialized.
+     */
     @SuppressWarnings("unchecked")
     public void load(final String basename) throws IOException, ClassNotFoundException {
+        final File genomeFile = new File(basename + GENOME_FILE_EXTENSION);
+        if (genomeFile.exists()) {
+            map(genomeFile);
+            return;
+        }
         sizes = (IntList) BinIO.loadObject(basename + ".sizes");
-        compressedData = (ObjectArrayList<byte[]>) BinIO.loadObject(basename + ".bases");
-        referenceIgnoreLists = (ObjectArrayList<LongArrayBitVector>) BinIO.loadObject(basename + ".ignore");
+        final ObjectArrayList<byte[]> bases = (ObjectArrayList<byte[]>) BinIO.loadObject(basename + ".bases");
+        final ObjectArrayList<LongArrayBitVector> ignoreLists =
+                (ObjectArrayList<LongArrayBitVector>) BinIO.loadObject(basename + ".ignore");
         referenceNameMap = (Object2IntMap<String>) BinIO.loadObject(basename + ".names");
+        compressedData = new ObjectArrayList<ByteBuffer>(bases.size());
+        referenceNRuns = new ObjectArrayList<int[]>(ignoreLists.size());
+        ignoreLengths = new IntArrayList(ignoreLists.size());
+        for (int referenceIndex = 0; referenceIndex < bases.size(); referenceIndex++) {
+            compressedData.add(ByteBuffer.wrap(bases.get(referenceIndex)));
+            referenceNRuns.add(toRuns(ignoreLists.get(referenceIndex)));
+            ignoreLengths.add((int) ignoreLists.get(referenceIndex).length());
+        }
         for (final String name : referenceNameMap.keySet()) {
             indexToNameMap.put(referenceNameMap.get(name), name);
             updateSliceIndices(referenceNameMap.get(name));
         }
     }
 
+    private void map(final File genomeFile) throws IOException {
+        final FileInputStream input = new FileInputStream(genomeFile);
+        try {
+            final DataInputStream header = new DataInputStream(new BufferedInputStream(input));
+            if (header.readLong() != GENOME_FILE_MAGIC) {
+                throw new IOException("Not a Goby genome file: " + genomeFile);
+            }
+            final int version = header.readInt();
+            if (version != GENOME_FILE_VERSION) {
+                throw new IOException(String.format("Genome file %s has version %d, this version of Goby reads version %d.",
+                        genomeFile, version, GENOME_FILE_VERSION));
+            }
+            final int numSequences = header.readInt();
+            final int tableSize = header.readInt();
+            final long[] byteLengths = new long[numSequences];
+            sizes = new IntArrayList(numSequences);
+            referenceNameMap.clear();
+            indexToNameMap.clear();
+            referenceNRuns = new ObjectArrayList<int[]>(numSequences);
+            ignoreLengths = new IntArrayList(numSequences);
+            for (int referenceIndex = 0; referenceIndex < numSequences; referenceIndex++) {
+                final String name = header.readUTF();
+                sizes.add(header.readInt());
+                byteLengths[referenceIndex] = header.readLong();
+                final int[] nRuns = new int[header.readInt() * 2];
+                for (int i = 0; i < nRuns.length; i++) {
+                    nRuns[i] = header.readInt();
+                }
+                referenceNRuns.add(nRuns);
+                ignoreLengths.add(header.readInt());
+                referenceNameMap.put(name, referenceIndex);
+                indexToNameMap.put(referenceIndex, name);
+                updateSliceIndices(referenceIndex);
+            }
+            // map consecutive sequences together, so that large genomes made of many contigs need few mappings:
+            final FileChannel channel = input.getChannel();
+            compressedData = new ObjectArrayList<ByteBuffer>(numSequences);
+            long offset = 8 + 4 + 4 + 4 + tableSize;
+            int first = 0;
+            while (first < numSequences) {
+                long mappingSize = 0;
+                int last = first;
+                while (last < numSequences && mappingSize + byteLengths[last] <= MAX_MAPPING_SIZE) {
+                    mappingSize += byteLengths[last++];
+                }
+                if (last == first) {
+                    throw new IOException("Sequence is too long to be mapped: " + getReferenceName(first));
+                }
+                final ByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, offset, mappingSize);
+                int start = 0;
+                for (int referenceIndex = first; referenceIndex < last; referenceIndex++) {
+                    mapping.limit(start + (int) byteLengths[referenceIndex]);
+                    mapping.position(start);
+                    compressedData.add(mapping.slice());
+                    start += (int) byteLengths[referenceIndex];
+                }
+                offset += mappingSize;
+                first = last;
+            }
+        } finally {
+            // mappings remain valid after the channel is closed:
+            input.close();
+        }
+    }
+
+    /**
+     * Convert the ignore list of a cache saved in the former format to runs of N.
+     */
+    private static int[] toRuns(final LongArrayBitVector ignoreList) {
+        final IntArrayList runs = new IntArrayList();
+        long start = ignoreList.nextOne(0);
+        while (start != -1) {
+            long end = ignoreList.nextZero(start);
+            if (end == -1 || end > ignoreList.length()) {
+                end = ignoreList.length();
+            }
+            runs.add((int) start);
+            runs.add((int) end);
+            start = end < ignoreList.length() ? ignoreList.nextOne(end) : -1;
+        }
+        return runs.toIntArray();
+    }
+
+    /**
+     * Determine if a position falls within a run of N.
+     */
+    private static boolean isN(final int[] nRuns, final int position) {
+        // binary search for the last run that starts at or before position:
+        int low = 0;
+        int high = nRuns.length / 2 - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (nRuns[2 * mid] <= position) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high >= 0 && position < nRuns[2 * high + 1];
+    }
+
     /**
      * Load a slice of this genome, contained between minReferenceId position 0 and max referenceId position 0.
      * The special values "min" and "max" can be used for  minRefId and maxRefId respectively to retrieve the entire
@@ -217,17 +450,20 @@ public class RandomAccessSequenceCache implements RandomAccessSequenceInterface
          // element to null to allow garbage collection..
          for (int i = 0; i < minRefIndex; i++) {
          compressedData.set(i, null);
-         referenceIgnoreLists.set(i, null);
+         referenceNRuns.set(i, null);
          }
          for (int i = maxRefIndex + 1; i < referenceNameMap.size(); i++) {
          compressedData.set(i, null);
-         referenceIgnoreLists.set(i, null);
+         referenceNRuns.set(i, null);
          }
          */
 
     }
 
     public boolean canLoad(final String basename) {
+        if (new File(basename + GENOME_FILE_EXTENSION).exists()) {
+            return true;
+        }
         final String[] extensions = {
                 ".sizes", ".bases", ".ignore", ".names"
         };
@@ -254,11 +490,91 @@ public class RandomAccessSequenceCache implements RandomAccessSequenceInterface
     @Override
     public void getRange(final int referenceIndex, final int position, final int length, final MutableString bases) {
         bases.setLength(0);
-        for (int i = position; i < position + length; i++) {
-            bases.append(get(referenceIndex, i));
+        final byte[] window = new byte[length];
+        getBases(referenceIndex, position, window, 0, length);
+        for (final byte base : window) {
+            bases.append((char) base);
+        }
+    }
+
+    /**
+     * ASCII base for each two-bit code.
+     */
+    private static final byte[] BASES_BY_CODE = {'G', 'C', 'T', 'A'};
+
+    /**
+     * Decode a window of bases. Bases are unpacked 32 at a time from 64-bit words of the packed sequence, then
+     * the runs of N that overlap the window are written over the decoded bases.
+     */
+    @Override
+    public void getBases(final int referenceIndex, final int position, final byte[] bases, final int offset,
+                         final int length) {
+        assert referenceIndex >= minRefIndex && referenceIndex <= maxRefIndex :
+                String.format("referenceindex %d out of genome slice [%d-%d].", referenceIndex,
+                        minRefIndex, maxRefIndex);
+        assert position >= 0 : "position must not be negative";
+
+        final int maxSize = sizes.getInt(referenceIndex);
+        final int available = Math.max(0, Math.min(length, maxSize - position));
+        // positions past the end of the sequence:
+        Arrays.fill(bases, offset + available, offset + length, (byte) 'N');
+        if (available == 0) {
+            return;
+        }
+        final ByteBuffer packed = compressedData.get(referenceIndex);
+        final int end = position + available;
+        int pos = position;
+        int index = offset;
+        // decode single bases up to the first byte boundary:
+        while (pos < end && (pos & 3) != 0) {
+            bases[index++] = decodeBase(packed, pos++);
+        }
+        // then 32 bases per long:
+        while (end - pos >= 32 && (pos >> 2) + 8 <= packed.limit()) {
+            long word = packed.getLong(pos >> 2);
+            for (int i = 0; i < 32; i++) {
+                bases[index++] = BASES_BY_CODE[(int) (word >>> 62)];
+                word <<= 2;
+            }
+            pos += 32;
+        }
+        while (pos < end) {
+            bases[index++] = decodeBase(packed, pos++);
+        }
+
+        final int[] nRuns = referenceNRuns.get(referenceIndex);
+        for (int run = firstRunEndingAfter(nRuns, position); run < nRuns.length / 2 && nRuns[2 * run] < end; run++) {
+            final int from = Math.max(nRuns[2 * run], position);
+            final int to = Math.min(nRuns[2 * run + 1], end);
+            Arrays.fill(bases, offset + from - position, offset + to - position, (byte) 'N');
         }
     }
 
+    private static byte decodeBase(final ByteBuffer bytes, final int position) {
+        final int index = position >> 2;
+        if (index >= bytes.limit()) {
+            return 'N';
+        }
+        return BASES_BY_CODE[bytes.get(index) >> (6 - 2 * (position & 3)) & 0x3];
+    }
+
+    /**
+     * Return the index of the first run of N that ends after position, or the number of runs if there is none.
+     */
+    private static int firstRunEndingAfter(final int[] nRuns, final int position) {
+        int low = 0;
+        int high = nRuns.length / 2 - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (nRuns[2 * mid + 1] <= position) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
     final LongArrayBitVector bits = LongArrayBitVector.getInstance();
 
     public int getRange(final int referenceIndex, final int position, final int length) {
@@ -271,13 +587,13 @@ public class RandomAccessSequenceCache implements RandomAccessSequenceInterface
 
         assert length < 15 : "length must be less than 15";
         bits.clear();
-        final byte[] bytes = compressedData.get(referenceIndex);
-        final LongArrayBitVector ignoreList = referenceIgnoreLists.get(referenceIndex);
+        final ByteBuffer bytes = compressedData.get(referenceIndex);
+        final int[] nRuns = referenceNRuns.get(referenceIndex);
 
         for (int i = 0; i < length; i++) {
             final int offset = (position + i) * 2;
-            final byte b = bytes[offset / 8];
-            if (ignoreList.get(position)) {
+            final byte b = bytes.get(offset / 8);
+            if (isN(nRuns, position + i)) {
                 // a range that contain 'N' at any position is represented by -1.
                 return -1;
             }
@@ -342,15 +658,13 @@ public class RandomAccessSequenceCache implements RandomAccessSequenceInterface
                         minRefIndex, maxRefIndex);
 
         final int maxSize = sizes.getInt(referenceIndex);
-        final LongArrayBitVector ignoreList = referenceIgnoreLists.get(referenceIndex);
         if (position >= maxSize) {
             return 'N';
         }
         assert position < maxSize : "position must be less than size of the reference sequence (" + maxSize + ") chr="
                 + getReferenceName(referenceIndex);
-        // assert position < ignoreList.length() : " position must be smaller than ignore list size.";
 
-        if (position >= ignoreList.size() || !ignoreList.get(position)) {
+        if (!isN(referenceNRuns.get(referenceIndex), position)) {
             return decode(compressedData.get(referenceIndex), position,
                     maxSize);
         } else {
@@ -363,13 +677,13 @@ public class RandomAccessSequenceCache implements RandomAccessSequenceInterface
         return sizes.getInt(targetIndex);
     }
 
-    private char decode(final byte[] bytes, final int position, final int maxSize) {
+    private char decode(final ByteBuffer bytes, final int position, final int maxSize) {
         assert position < maxSize : "position must be less than size of the reference sequence (" + maxSize + ")";
 
         final int offset = position * 2;
         final int index = offset / 8;
-        if (index >= bytes.length) return 'N';
-        final byte b = bytes[index];
+        if (index >= bytes.limit()) return 'N';
+        final byte b = bytes.get(index);
         final int c = b >> (6 - (offset % 8)) & 0x3; // two right-most bits are left, which encode
 
         switch (c) {
@@ -415,9 +729,7 @@ public class RandomAccessSequenceCache implements RandomAccessSequenceInterface
     }
 
     private int size(final int referenceIndex) {
-
-        final LongArrayBitVector ignoreList = referenceIgnoreLists.get(referenceIndex);
-        return Math.min(ignoreList.size(), sizes.get(referenceIndex));
+        return Math.min(ignoreLengths.getInt(referenceIndex), sizes.getInt(referenceIndex));
     }
 
     public int numberOfSequences() {
@@ -426,32 +738,36 @@ public class RandomAccessSequenceCache implements RandomAccessSequenceInterface
 
     private void encode(final int base,
                         final OutputBitStream compressed,
-                        final BitVector ignoreList) throws IOException {
+                        final IntArrayList nRuns,
+                        final int position) throws IOException {
         switch (Character.toUpperCase(base)) {
             case 'A':
                 compressed.writeBit(1);
                 compressed.writeBit(1);
-                ignoreList.add(false);
                 break;
             case 'C':
                 compressed.writeBit(0);
                 compressed.writeBit(1);
-                ignoreList.add(false);
                 break;
             case 'T':
                 compressed.writeBit(1);
                 compressed.writeBit(0);
-                ignoreList.add(false);
                 break;
             case 'G':
                 compressed.writeBit(0);
                 compressed.writeBit(0);
-                ignoreList.add(false);
                 break;
             default:
                 compressed.writeBit(0);
                 compressed.writeBit(0);
-                ignoreList.add(true);
+                final int numRuns = nRuns.size();
+                if (numRuns > 0 && nRuns.getInt(numRuns - 1) == position) {
+                    // extend the current run:
+                    nRuns.set(numRuns - 1, position + 1);
+                } else {
+                    nRuns.add(position);
+                    nRuns.add(position + 1);
+                }
                 break;
         }
     }
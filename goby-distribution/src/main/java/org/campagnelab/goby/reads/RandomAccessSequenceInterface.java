@@ -55,6 +55,24 @@ public interface RandomAccessSequenceInterface {
      */
     void getRange(final int referenceIndex, final int position, final int length, MutableString bases);
 
+    /**
+     * Copy the bases of a window of a reference sequence to a caller-provided array, one ASCII base per byte.
+     * Positions at or past the end of the sequence are returned as 'N'. Implementations that store packed bases
+     * should override this method to decode the window in bulk, rather than base per base as done here.
+     *
+     * @param referenceIndex index of the reference sequence.
+     * @param position       zero-based position in the reference where the window starts.
+     * @param bases          where the bases will be written.
+     * @param offset         index in bases where the first base of the window is written.
+     * @param length         number of bases in the window.
+     */
+    default void getBases(final int referenceIndex, final int position, final byte[] bases, final int offset,
+                          final int length) {
+        for (int i = 0; i < length; i++) {
+            bases[offset + i] = (byte) get(referenceIndex, position + i);
+        }
+    }
+
     int getReferenceIndex(String referenceId);
    /**
      * Return the reference name corresponding to this index.
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.reads;
+
+/**
+ * Serves reference bases from a window of the genome decoded in bulk with
+ * {@link RandomAccessSequenceInterface#getBases}. Use when bases are looked up at nearby positions, as done when
+ * iterating over sorted alignments: the window is refilled only when a position falls outside of it. The window
+ * starts a little before the position that triggers a refill, so that positions slightly before it are also served
+ * from the window.
+ * <p/>
+ * Instances are not thread-safe.
+ */
+public class ReferenceSequenceWindow {
+    private static final int DEFAULT_CAPACITY = 4096;
+    private static final int DEFAULT_LOOK_BEHIND = 256;
+
+    private final RandomAccessSequenceInterface genome;
+    private final byte[] bases;
+    private final int lookBehind;
+    private int referenceIndex = -1;
+    private int start;
+    private int end;
+
+    public ReferenceSequenceWindow(final RandomAccessSequenceInterface genome) {
+        this(genome, DEFAULT_CAPACITY, DEFAULT_LOOK_BEHIND);
+    }
+
+    /**
+     * Create a window.
+     *
+     * @param genome     genome to read bases from.
+     * @param capacity   number of bases decoded each time the window is refilled.
+     * @param lookBehind number of bases decoded before the position that triggers a refill.
+     */
+    public ReferenceSequenceWindow(final RandomAccessSequenceInterface genome, final int capacity,
+                                   final int lookBehind) {
+        assert lookBehind < capacity : "lookBehind must be less than capacity";
+        this.genome = genome;
+        this.bases = new byte[capacity];
+        this.lookBehind = lookBehind;
+    }
+
+    /**
+     * Return the base in the specified reference at the given position. Equivalent to
+     * {@link RandomAccessSequenceInterface#get(int, int)} on the genome.
+     *
+     * @param referenceIndex index of the reference sequence.
+     * @param position       zero-based position in the reference for which the base is sought.
+     * @return base at position in reference sequence.
+     */
+    public char get(final int referenceIndex, final int position) {
+        if (referenceIndex != this.referenceIndex || position < start || position >= end) {
+            if (referenceIndex < 0 || position < 0 || position >= genome.getLength(referenceIndex)) {
+                // let the genome decide what to return:
+                return genome.get(referenceIndex, position);
+            }
+            fill(referenceIndex, position);
+        }
+        return (char) bases[position - start];
+    }
+
+    private void fill(final int referenceIndex, final int position) {
+        this.referenceIndex = referenceIndex;
+        start = Math.max(0, position - lookBehind);
+        end = Math.min(start + bases.length, genome.getLength(referenceIndex));
+        genome.getBases(referenceIndex, start, bases, 0, end - start);
+    }
+
+    /**
+     * Return the genome this window reads bases from.
+     */
+    public RandomAccessSequenceInterface getGenome() {
+        return genome;
+    }
+}
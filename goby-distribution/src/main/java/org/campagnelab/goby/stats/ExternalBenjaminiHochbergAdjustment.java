@@ -0,0 +1,474 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.stats;
+
+import it.unimi.dsi.fastutil.Arrays;
+import it.unimi.dsi.fastutil.Swapper;
+import it.unimi.dsi.fastutil.ints.IntComparator;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Computes Benjamini Hochberg adjusted q-values for more P-values than fit in memory. Elements are added with one
+ * P-value per statistic, and identified by the order in which they were added. P-values are accumulated in primitive
+ * arrays. When the arrays are full, each statistic is sorted by decreasing P-value on a pool of threads and written
+ * to a run on disk. Adjusting a statistic merges its runs, and computes the q-values in a single pass over the
+ * P-values in decreasing order (the order in which the cumulative minimum of {@link BenjaminiHochbergAdjustment} is
+ * computed). Q-values are stored in memory mapped files, indexed by element, so that they can be retrieved in
+ * the order of the input.
+ */
+public class ExternalBenjaminiHochbergAdjustment implements Closeable {
+    /**
+     * Used to log informational and debug messages.
+     */
+    private static final Log LOG = LogFactory.getLog(ExternalBenjaminiHochbergAdjustment.class);
+    /**
+     * Number of q-values in a segment of a memory mapped q-value file.
+     */
+    private static final int SEGMENT_SIZE = 1 << 26;
+    private static final int IO_BUFFER_SIZE = 1 << 16;
+
+    private final int numStatistics;
+    private final int maxElementsInMemory;
+    private final File directory;
+    private final int numThreads;
+    private final ExecutorService executor;
+    /**
+     * P-values of the elements not yet written to runs, one array per statistic.
+     */
+    private double[][] pValues;
+    private int numBuffered;
+    private final ObjectArrayList<ObjectArrayList<File>> runs;
+    private final ArrayDeque<Future<double[]>> pendingRuns = new ArrayDeque<Future<double[]>>();
+    private final ObjectArrayList<double[]> freeBuffers = new ObjectArrayList<double[]>();
+    private final ObjectArrayList<QValues> adjustedStatistics = new ObjectArrayList<QValues>();
+    private int numElements;
+    private int ignoredElementsAboveThreshold;
+
+    /**
+     * Create an adjustment.
+     *
+     * @param numStatistics       number of P-values of each element.
+     * @param maxElementsInMemory number of elements whose P-values are kept in memory before they are written to
+     *                            sorted runs. Up to numThreads additional sets of elements can be in memory while
+     *                            they are being sorted.
+     * @param numThreads          number of threads that sort runs and adjust statistics.
+     * @param directory           directory where runs and q-values are written, or null to use the temporary
+     *                            directory.
+     */
+    public ExternalBenjaminiHochbergAdjustment(final int numStatistics, final int maxElementsInMemory,
+                                               final int numThreads, final File directory) {
+        this.numStatistics = numStatistics;
+        this.maxElementsInMemory = Math.max(1, maxElementsInMemory);
+        this.numThreads = Math.max(1, numThreads);
+        this.directory = directory;
+        executor = Executors.newFixedThreadPool(this.numThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "fdr-adjustment");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        runs = new ObjectArrayList<ObjectArrayList<File>>(numStatistics);
+        pValues = new double[numStatistics][];
+        for (int statisticIndex = 0; statisticIndex < numStatistics; statisticIndex++) {
+            runs.add(new ObjectArrayList<File>());
+            pValues[statisticIndex] = new double[Math.min(this.maxElementsInMemory, 1024)];
+        }
+    }
+
+    /**
+     * Set the number of elements that were not added, because their P-values were already above threshold. They
+     * count as tests when P-values are adjusted.
+     *
+     * @param ignoredElementsAboveThreshold the number of elements not added.
+     */
+    public void setNumberAboveThreshold(final int ignoredElementsAboveThreshold) {
+        this.ignoredElementsAboveThreshold = ignoredElementsAboveThreshold;
+    }
+
+    /**
+     * Add an element.
+     *
+     * @param elementPValues the P-value of the element for each statistic. Not retained.
+     * @return the index of the element, starting at zero.
+     * @throws IOException if a run cannot be written.
+     */
+    public int add(final double[] elementPValues) throws IOException {
+        if (numStatistics > 0 && numBuffered == pValues[0].length && numBuffered < maxElementsInMemory) {
+            for (int statisticIndex = 0; statisticIndex < numStatistics; statisticIndex++) {
+                pValues[statisticIndex] = java.util.Arrays.copyOf(pValues[statisticIndex],
+                        (int) Math.min(maxElementsInMemory, numBuffered * 2L));
+            }
+        }
+        for (int statisticIndex = 0; statisticIndex < numStatistics; statisticIndex++) {
+            pValues[statisticIndex][numBuffered] = elementPValues[statisticIndex];
+        }
+        numBuffered++;
+        if (numBuffered == maxElementsInMemory) {
+            spill();
+        }
+        return numElements++;
+    }
+
+    /**
+     * Return the number of elements added.
+     */
+    public int size() {
+        return numElements;
+    }
+
+    /**
+     * Compute the q-values of several statistics, in parallel. No element can be added after this method has been
+     * called.
+     *
+     * @param statisticIndices index of the statistics to adjust, in the P-values of elements.
+     * @return the index of the adjusted statistic of each statistic, to obtain its q-values with
+     *         {@link #getQValue(int, int)}.
+     * @throws IOException if runs cannot be read, or q-values written.
+     */
+    public int[] adjust(final int... statisticIndices) throws IOException {
+        finishRuns();
+        final ObjectArrayList<Future<QValues>> adjusting = new ObjectArrayList<Future<QValues>>();
+        for (final int statisticIndex : statisticIndices) {
+            if (statisticIndex < 0 || statisticIndex >= numStatistics) {
+                throw new IllegalArgumentException(String.format("could not find statistic %d to adjust.", statisticIndex));
+            }
+            adjusting.add(executor.submit(new Callable<QValues>() {
+                @Override
+                public QValues call() throws IOException {
+                    return adjustStatistic(statisticIndex);
+                }
+            }));
+        }
+        final int[] adjustedIndices = new int[statisticIndices.length];
+        for (int i = 0; i < adjusting.size(); i++) {
+            adjustedIndices[i] = adjustedStatistics.size();
+            adjustedStatistics.add(get(adjusting.get(i)));
+        }
+        return adjustedIndices;
+    }
+
+    /**
+     * Return the q-value of an element.
+     *
+     * @param adjustedIndex index of the adjusted statistic, as returned by {@link #adjust(int...)}.
+     * @param elementIndex  index of the element, as returned by {@link #add(double[])}.
+     * @return the Benjamini Hochberg adjusted P-value.
+     */
+    public double getQValue(final int adjustedIndex, final int elementIndex) {
+        return adjustedStatistics.get(adjustedIndex).get(elementIndex);
+    }
+
+    /**
+     * Release the threads, and delete the runs and q-values.
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        for (final ObjectArrayList<File> statisticRuns : runs) {
+            for (final File run : statisticRuns) {
+                run.delete();
+            }
+            statisticRuns.clear();
+        }
+        for (final QValues qValues : adjustedStatistics) {
+            qValues.file.delete();
+        }
+        adjustedStatistics.clear();
+    }
+
+    /**
+     * Sort the buffered P-values of each statistic and write them to runs, on the pool of threads.
+     */
+    private void spill() throws IOException {
+        final int firstElement = numElements + 1 - numBuffered;
+        final int length = numBuffered;
+        for (int statisticIndex = 0; statisticIndex < numStatistics; statisticIndex++) {
+            final double[] buffer = pValues[statisticIndex];
+            final File run = File.createTempFile("pvalues-", ".run", directory);
+            run.deleteOnExit();
+            runs.get(statisticIndex).add(run);
+            pendingRuns.add(executor.submit(new Callable<double[]>() {
+                @Override
+                public double[] call() throws IOException {
+                    final int[] elements = new int[length];
+                    for (int i = 0; i < length; i++) {
+                        elements[i] = firstElement + i;
+                    }
+                    sortByDecreasingPValue(buffer, elements, length);
+                    writeRun(run, buffer, elements, length);
+                    return buffer;
+                }
+            }));
+            while (pendingRuns.size() > numThreads * numStatistics) {
+                freeBuffers.add(get(pendingRuns.poll()));
+            }
+            pValues[statisticIndex] = freeBuffers.isEmpty() ? new double[maxElementsInMemory] : freeBuffers.pop();
+        }
+        numBuffered = 0;
+    }
+
+    /**
+     * Wait for the runs being written. The elements still buffered are sorted in memory.
+     */
+    private void finishRuns() throws IOException {
+        while (!pendingRuns.isEmpty()) {
+            get(pendingRuns.poll());
+        }
+        freeBuffers.clear();
+    }
+
+    private QValues adjustStatistic(final int statisticIndex) throws IOException {
+        final ObjectArrayList<RunReader> readers = new ObjectArrayList<RunReader>();
+        final QValues qValues = new QValues(numElements);
+        try {
+            for (final File run : runs.get(statisticIndex)) {
+                readers.add(new FileRunReader(run));
+            }
+            if (numBuffered > 0) {
+                final double[] buffer = java.util.Arrays.copyOf(pValues[statisticIndex], numBuffered);
+                final int[] elements = new int[numBuffered];
+                for (int i = 0; i < numBuffered; i++) {
+                    elements[i] = numElements - numBuffered + i;
+                }
+                sortByDecreasingPValue(buffer, elements, numBuffered);
+                readers.add(new MemoryRunReader(buffer, elements));
+            }
+            final PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(Math.max(1, readers.size()),
+                    new Comparator<RunReader>() {
+                        @Override
+                        public int compare(final RunReader r1, final RunReader r2) {
+                            return Double.compare(r2.pValue, r1.pValue);
+                        }
+                    });
+            for (final RunReader reader : readers) {
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+            // traverse P-values from the largest to the smallest, as BenjaminiHochbergAdjustment does:
+            final int completeSize = numElements + ignoredElementsAboveThreshold;
+            int rank = numElements;
+            double cummin = 1;
+            while (!queue.isEmpty()) {
+                final RunReader reader = queue.poll();
+                final double pValue = reader.pValue;
+                double adjustedPValue = 1;
+                if (pValue == pValue) {
+                    // pValue is a number.
+                    final double adjustment = completeSize / (double) rank;
+                    adjustedPValue = pValue * adjustment;
+                    if (adjustedPValue < cummin) {
+                        cummin = adjustedPValue;
+                    } else {
+                        adjustedPValue = cummin;
+                    }
+                } else {
+                    // we just encountered a NaN p-value, reset cummin..
+                    cummin = 1;
+                }
+                if (adjustedPValue > 1) {
+                    adjustedPValue = 1;
+                }
+                qValues.set(reader.element, adjustedPValue);
+                --rank;
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+            LOG.debug(String.format("Adjusted statistic %d from %d runs.", statisticIndex, readers.size()));
+            return qValues;
+        } finally {
+            for (final RunReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    private static void sortByDecreasingPValue(final double[] pValues, final int[] elements, final int length) {
+        Arrays.quickSort(0, length, new IntComparator() {
+            @Override
+            public int compare(final int i, final int j) {
+                return Double.compare(pValues[j], pValues[i]);
+            }
+
+            @Override
+            public int compare(final Integer i, final Integer j) {
+                return compare(i.intValue(), j.intValue());
+            }
+        }, new Swapper() {
+            @Override
+            public void swap(final int i, final int j) {
+                final double pValue = pValues[i];
+                pValues[i] = pValues[j];
+                pValues[j] = pValue;
+                final int element = elements[i];
+                elements[i] = elements[j];
+                elements[j] = element;
+            }
+        });
+    }
+
+    private static void writeRun(final File run, final double[] pValues, final int[] elements,
+                                 final int length) throws IOException {
+        final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run),
+                IO_BUFFER_SIZE));
+        try {
+            for (int i = 0; i < length; i++) {
+                output.writeDouble(pValues[i]);
+                output.writeInt(elements[i]);
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    private static <T> T get(final Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while adjusting P-values.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Reads the (P-value, element) pairs of a run, by decreasing P-value.
+     */
+    private abstract static class RunReader implements Closeable {
+        double pValue;
+        int element;
+
+        /**
+         * Move to the next pair.
+         *
+         * @return false when the run has no more pairs.
+         */
+        abstract boolean next() throws IOException;
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    private static final class FileRunReader extends RunReader {
+        private final DataInputStream input;
+        private long remaining;
+
+        private FileRunReader(final File run) throws IOException {
+            remaining = run.length() / (8 + 4);
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(run), IO_BUFFER_SIZE));
+        }
+
+        @Override
+        boolean next() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            pValue = input.readDouble();
+            element = input.readInt();
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    private static final class MemoryRunReader extends RunReader {
+        private final double[] pValues;
+        private final int[] elements;
+        private int index = -1;
+
+        private MemoryRunReader(final double[] pValues, final int[] elements) {
+            this.pValues = pValues;
+            this.elements = elements;
+        }
+
+        @Override
+        boolean next() {
+            if (++index == pValues.length) {
+                return false;
+            }
+            pValue = pValues[index];
+            element = elements[index];
+            return true;
+        }
+    }
+
+    /**
+     * The q-values of a statistic, in a memory mapped file, outside of the Java heap.
+     */
+    private final class QValues {
+        private final File file;
+        private final DoubleBuffer[] segments;
+
+        private QValues(final int size) throws IOException {
+            file = File.createTempFile("qvalues-", ".bin", directory);
+            file.deleteOnExit();
+            segments = new DoubleBuffer[(size + SEGMENT_SIZE - 1) / SEGMENT_SIZE];
+            final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                final FileChannel channel = randomAccessFile.getChannel();
+                for (int segmentIndex = 0; segmentIndex < segments.length; segmentIndex++) {
+                    final long start = (long) segmentIndex * SEGMENT_SIZE;
+                    final long length = Math.min(SEGMENT_SIZE, size - start);
+                    segments[segmentIndex] = channel.map(FileChannel.MapMode.READ_WRITE, start * 8, length * 8)
+                            .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+                }
+            } finally {
+                // the mappings remain valid after the file is closed:
+                randomAccessFile.close();
+            }
+        }
+
+        private void set(final int elementIndex, final double qValue) {
+            segments[elementIndex / SEGMENT_SIZE].put(elementIndex % SEGMENT_SIZE, qValue);
+        }
+
+        private double get(final int elementIndex) {
+            return segments[elementIndex / SEGMENT_SIZE].get(elementIndex % SEGMENT_SIZE);
+        }
+    }
+}
@@ -29,11 +29,25 @@ import it.unimi.dsi.fastutil.objects.Object2IntMap;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.lang.MutableString;
 import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.tribble.Feature;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndex;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+import htsjdk.tribble.util.TabixUtils;
 import org.campagnelab.goby.readers.vcf.*;
-
+import org.campagnelab.goby.util.OutputInfo;
+import org.campagnelab.goby.util.ParallelBlockCompressedOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Collections;
 
@@ -45,6 +59,7 @@ import java.util.Collections;
  *         Time: 1:26:56 PM
  */
 public class VCFWriter {
+    private static final Logger LOG = LoggerFactory.getLogger(VCFWriter.class);
     PrintWriter outWriter;
     private Int2ObjectMap<ColumnType> indexTypes;
     private boolean VCFmode;
@@ -88,6 +103,21 @@ public class VCFWriter {
 
     private boolean writeFieldGroupAssociations;
 
+    /**
+     * Block compressed output, set when the records are indexed.
+     */
+    private ParallelBlockCompressedOutputStream compressedStream;
+    private String indexFilename;
+    /**
+     * Builds the tabix index, or null when the records are not indexed.
+     */
+    private TabixIndexCreator indexCreator;
+    /**
+     * Records written whose virtual file pointer is not known yet, because their block is still being compressed.
+     */
+    private final ArrayDeque<IndexedRecord> pendingRecords = new ArrayDeque<IndexedRecord>();
+    private String indexedChromosome = "";
+
 
     protected CharSequence getChromosome() {
         return this.chrom;
@@ -101,6 +131,38 @@ public class VCFWriter {
         this(new PrintWriter(new OutputStreamWriter(stream)));
     }
 
+    /**
+     * Contruct a VCFWriter that writes block compressed output and builds a tabix index of the records as they
+     * are written. Records must be written in sorted order (chromosomes grouped, positions increasing) for the index
+     * to be written. The index is written when the writer is closed.
+     *
+     * @param stream        block compressed stream where the output will be written.
+     * @param indexFilename where the tabix index will be written.
+     */
+    public VCFWriter(final ParallelBlockCompressedOutputStream stream, final String indexFilename) {
+        this(new PrintWriter(new StreamEncodingWriter(stream)));
+        this.compressedStream = stream;
+        this.indexFilename = indexFilename;
+        this.indexCreator = new TabixIndexCreator(TabixFormat.VCF);
+    }
+
+    /**
+     * Create a VCFWriter for an output. When the output filename ends in .gz, the output is block compressed with
+     * the number of threads of the output info, and indexed with tabix (index written to filename.tbi).
+     *
+     * @param outputInfo where the output will be written.
+     * @return a VCFWriter.
+     */
+    public static VCFWriter create(final OutputInfo outputInfo) {
+        if (outputInfo.isBlockCompressed()) {
+            final ParallelBlockCompressedOutputStream stream = outputInfo.getBlockCompressedOutputStream();
+            if (stream != null) {
+                return new VCFWriter(stream, outputInfo.getFilename() + TabixUtils.STANDARD_INDEX_EXTENSION);
+            }
+        }
+        return new VCFWriter(outputInfo.getPrintWriter());
+    }
+
     /**
      * Indicate whether the genotypes should be recorded as phased (true) or unphased (false).
      * Default value at construction of the writer is unphased.
@@ -323,6 +385,9 @@ public class VCFWriter {
      */
 
     public void writeRecord() {
+        if (indexCreator != null) {
+            addPendingRecord();
+        }
         outWriter.append(chrom);
         outWriter.append('\t');
         outWriter.append(position == -1 ? "" : Integer.toString(position));
@@ -400,6 +465,56 @@ public class VCFWriter {
         }
         outWriter.println();
         clear();
+        if (indexCreator != null) {
+            indexPendingRecords();
+        }
+    }
+
+    /**
+     * Record the position of the record about to be written, for the index.
+     */
+    private void addPendingRecord() {
+        if (position == -1) {
+            disableIndex("a record has no position");
+            return;
+        }
+        if (!indexedChromosome.contentEquals(chrom)) {
+            indexedChromosome = chrom.toString();
+        }
+        int refLength = 1;
+        for (final String allele : refAlleles) {
+            refLength = Math.max(refLength, allele.length());
+        }
+        // characters are encoded to the stream as they are printed, so its position is the record start:
+        pendingRecords.add(new IndexedRecord(indexedChromosome, position, position + refLength - 1,
+                compressedStream.getPosition()));
+    }
+
+    /**
+     * Add to the index the records whose block has been written.
+     */
+    private void indexPendingRecords() {
+        while (!pendingRecords.isEmpty()) {
+            final IndexedRecord record = pendingRecords.peek();
+            final long filePointer = compressedStream.getFilePointer(record.streamPosition);
+            if (filePointer == -1) {
+                return;
+            }
+            try {
+                indexCreator.addFeature(record, filePointer);
+            } catch (IllegalArgumentException e) {
+                disableIndex(e.getMessage());
+                return;
+            }
+            pendingRecords.poll();
+        }
+    }
+
+    private void disableIndex(final String reason) {
+        LOG.warn(String.format("Records are not sorted (%s), the tabix index %s will not be written.",
+                reason, indexFilename));
+        indexCreator = null;
+        pendingRecords.clear();
     }
 
     /**
@@ -560,7 +675,128 @@ public class VCFWriter {
      * Close the writer.
      */
     public void close() {
+        if (indexCreator == null) {
+            outWriter.close();
+            return;
+        }
+        outWriter.flush();
+        final long end = compressedStream.getPosition();
         outWriter.close();
+        // all blocks have been written, every record can now be indexed:
+        indexPendingRecords();
+        if (indexCreator != null) {
+            final TabixIndex index = (TabixIndex) indexCreator.finalizeIndex(compressedStream.getFilePointer(end));
+            index.write(new File(indexFilename));
+        }
+    }
+
+    /**
+     * Writer that encodes characters (UTF-8) to the block compressed stream as they are written, without buffering
+     * them, so that the position of the stream is the position of the next record without flushing the output.
+     */
+    private static final class StreamEncodingWriter extends Writer {
+        private final OutputStream stream;
+        private byte[] bytes = new byte[1024];
+
+        private StreamEncodingWriter(final OutputStream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(final int c) throws IOException {
+            if (c < 0x80) {
+                stream.write(c);
+            } else {
+                write(new char[]{(char) c}, 0, 1);
+            }
+        }
+
+        @Override
+        public void write(final char[] chars, final int offset, final int length) throws IOException {
+            if (bytes.length < length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            for (int i = 0; i < length; i++) {
+                final char c = chars[offset + i];
+                if (c >= 0x80) {
+                    final byte[] encoded = new String(chars, offset, length).getBytes(StandardCharsets.UTF_8);
+                    stream.write(encoded, 0, encoded.length);
+                    return;
+                }
+                bytes[i] = (byte) c;
+            }
+            stream.write(bytes, 0, length);
+        }
+
+        @Override
+        public void write(final String string, final int offset, final int length) throws IOException {
+            if (bytes.length < length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            for (int i = 0; i < length; i++) {
+                final char c = string.charAt(offset + i);
+                if (c >= 0x80) {
+                    final byte[] encoded = string.substring(offset, offset + length).getBytes(StandardCharsets.UTF_8);
+                    stream.write(encoded, 0, encoded.length);
+                    return;
+                }
+                bytes[i] = (byte) c;
+            }
+            stream.write(bytes, 0, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            stream.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+    }
+
+    /**
+     * Location of a record, for the tabix index.
+     */
+    private static final class IndexedRecord implements Feature {
+        private final String chromosome;
+        private final int start;
+        private final int end;
+        /**
+         * Position of the record in the compressed stream, as returned by getPosition().
+         */
+        private final long streamPosition;
+
+        private IndexedRecord(final String chromosome, final int start, final int end, final long streamPosition) {
+            this.chromosome = chromosome;
+            this.start = start;
+            this.end = end;
+            this.streamPosition = streamPosition;
+        }
+
+        @Override
+        public String getContig() {
+            return chromosome;
+        }
+
+        /**
+         * Required by the Feature interface of the htsjdk version in use, where it is abstract.
+         */
+        @Override
+        public String getChr() {
+            return getContig();
+        }
+
+        @Override
+        public int getStart() {
+            return start;
+        }
+
+        @Override
+        public int getEnd() {
+            return end;
+        }
     }
 
     CharSequence[] infoValues;
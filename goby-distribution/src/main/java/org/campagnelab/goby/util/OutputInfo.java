@@ -29,6 +29,7 @@ public class OutputInfo {
     private PrintWriter outWriter;
     private OutputStream outStream;
     private String outputFilename;
+    private int numThreads = 1;
 
 
     public OutputInfo(String outputFilename) throws FileNotFoundException {
@@ -67,4 +68,41 @@ public class OutputInfo {
     public String getFilename() {
         return outputFilename;
     }
+
+    /**
+     * Set the number of threads used to compress block compressed output.
+     *
+     * @param numThreads number of threads.
+     */
+    public void setNumThreads(final int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * Determine if the output should be block compressed (bgzip), which is the case when the output is a file whose
+     * name ends in .gz.
+     *
+     * @return True when the output should be block compressed.
+     */
+    public boolean isBlockCompressed() {
+        return outputFilename != null && !isToConsole(outputFilename) && outputFilename.endsWith(".gz");
+    }
+
+    /**
+     * Open the output file as a block compressed stream, compressed with the number of threads of this output info.
+     *
+     * @return the stream, or null if the file cannot be opened.
+     */
+    public ParallelBlockCompressedOutputStream getBlockCompressedOutputStream() {
+        try {
+            return new ParallelBlockCompressedOutputStream(new FileOutputStream(outputFilename), numThreads);
+        } catch (FileNotFoundException e) {
+            System.err.println("Cannot open output file for writing: " + outputFilename);
+            return null;
+        }
+    }
 }
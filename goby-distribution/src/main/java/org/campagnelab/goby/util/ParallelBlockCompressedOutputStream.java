@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.util;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a BGZF stream (the block compressed format of BAM files and of tabix indexed text files), with the blocks
+ * deflated by a pool of threads. Bytes are accumulated in blocks of at most 64KB on the calling thread. Full blocks
+ * are deflated on the pool, and written to the output in order, as soon as they are ready. The stream ends with the
+ * standard empty BGZF block.
+ * <p/>
+ * Virtual file pointers (the compressed offset of a block in the high 48 bits, the offset in the uncompressed block
+ * in the low 16 bits) are only known once the blocks before them have been compressed. {@link #getPosition()} returns
+ * a position that identifies a block by its index rather than by its address, which {@link #getFilePointer(long)}
+ * converts to a virtual file pointer once the block has been written.
+ */
+public class ParallelBlockCompressedOutputStream extends OutputStream {
+    /**
+     * Uncompressed size of a block. Smaller than 64KB so that blocks stored without compression still fit in a BGZF
+     * block.
+     */
+    static final int BLOCK_SIZE = 0xff00;
+    private static final int MAX_BLOCK_SIZE = BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE;
+    private static final int HEADER_LENGTH = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+    private static final int TRAILER_LENGTH = BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+
+    private final OutputStream output;
+    private final ExecutorService deflaters;
+    private final int maxPendingBlocks;
+    private final int compressionLevel;
+    private final ArrayDeque<Future<byte[]>> pendingBlocks = new ArrayDeque<Future<byte[]>>();
+    /**
+     * Compressed addresses of the blocks written so far.
+     */
+    private final LongArrayList blockAddresses = new LongArrayList();
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength;
+    private long numBlocks;
+    private long numBytesWritten;
+    private boolean closed;
+
+    /**
+     * Create a stream that deflates blocks with numThreads threads, at the default compression level of htsjdk.
+     *
+     * @param output     where the compressed blocks are written. Closed by {@link #close()}.
+     * @param numThreads number of threads that deflate blocks.
+     */
+    public ParallelBlockCompressedOutputStream(final OutputStream output, final int numThreads) {
+        this(output, numThreads, BlockCompressedStreamConstants.DEFAULT_COMPRESSION_LEVEL);
+    }
+
+    /**
+     * Create a stream.
+     *
+     * @param output           where the compressed blocks are written. Closed by {@link #close()}.
+     * @param numThreads       number of threads that deflate blocks.
+     * @param compressionLevel deflate compression level, between 0 and 9.
+     */
+    public ParallelBlockCompressedOutputStream(final OutputStream output, final int numThreads,
+                                               final int compressionLevel) {
+        this.output = output;
+        this.compressionLevel = compressionLevel;
+        final int threads = Math.max(1, numThreads);
+        this.maxPendingBlocks = threads * 4;
+        this.deflaters = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "bgzf-deflater");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        block[blockLength++] = (byte) b;
+        if (blockLength == BLOCK_SIZE) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+        int done = 0;
+        while (done < length) {
+            final int n = Math.min(length - done, BLOCK_SIZE - blockLength);
+            System.arraycopy(bytes, offset + done, block, blockLength, n);
+            blockLength += n;
+            done += n;
+            if (blockLength == BLOCK_SIZE) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Write the blocks that have been deflated so far. The block being filled is not cut short, so that flushing
+     * often (for instance to determine the position of each record of a text file) does not degrade compression.
+     */
+    @Override
+    public void flush() throws IOException {
+        writeDeflatedBlocks(false);
+        output.flush();
+    }
+
+    /**
+     * Return the current position in the uncompressed stream, as the index of the block being filled (high 48 bits)
+     * and the offset in this block (low 16 bits).
+     */
+    public long getPosition() {
+        return numBlocks << 16 | blockLength;
+    }
+
+    /**
+     * Convert a position obtained with {@link #getPosition()} to a BGZF virtual file pointer.
+     *
+     * @param position a position returned by getPosition.
+     * @return the virtual file pointer, or -1 when the blocks before the position have not been written yet.
+     */
+    public long getFilePointer(final long position) {
+        final long blockIndex = position >>> 16;
+        final long address;
+        if (blockIndex < blockAddresses.size()) {
+            address = blockAddresses.getLong((int) blockIndex);
+        } else if (blockIndex == blockAddresses.size() && pendingBlocks.isEmpty()) {
+            // the first block not written yet starts where the last block written ends:
+            address = numBytesWritten;
+        } else {
+            return -1;
+        }
+        return address << 16 | (position & 0xFFFF);
+    }
+
+    /**
+     * Compress the last block, write all blocks and the BGZF terminator block, then close the output.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (blockLength > 0) {
+                submitBlock();
+            }
+            writeDeflatedBlocks(true);
+            output.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+            output.close();
+        } finally {
+            deflaters.shutdownNow();
+        }
+    }
+
+    /**
+     * Stop writing after a failure. Blocks not written yet are discarded, and the output is closed without the BGZF
+     * terminator block, so that the truncated stream cannot be mistaken for a complete one.
+     */
+    public void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (final Future<byte[]> pending : pendingBlocks) {
+            pending.cancel(true);
+        }
+        pendingBlocks.clear();
+        deflaters.shutdownNow();
+        try {
+            output.close();
+        } catch (IOException e) {
+            // the output is abandoned.
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        final byte[] uncompressed = blockLength == BLOCK_SIZE ? block : Arrays.copyOf(block, blockLength);
+        pendingBlocks.add(deflaters.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return deflate(uncompressed, uncompressed.length, compressionLevel);
+            }
+        }));
+        numBlocks++;
+        block = new byte[BLOCK_SIZE];
+        blockLength = 0;
+        writeDeflatedBlocks(false);
+        while (pendingBlocks.size() >= maxPendingBlocks) {
+            writeBlock(pendingBlocks.poll());
+        }
+    }
+
+    /**
+     * Write the blocks at the head of the queue of pending blocks.
+     *
+     * @param all When true, wait for all pending blocks. Otherwise, write the blocks already deflated.
+     */
+    private void writeDeflatedBlocks(final boolean all) throws IOException {
+        while (!pendingBlocks.isEmpty() && (all || pendingBlocks.peek().isDone())) {
+            writeBlock(pendingBlocks.poll());
+        }
+    }
+
+    private void writeBlock(final Future<byte[]> pending) throws IOException {
+        final byte[] compressed;
+        try {
+            compressed = pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while deflating BGZF blocks.");
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to deflate BGZF block.", e.getCause());
+        }
+        blockAddresses.add(numBytesWritten);
+        output.write(compressed);
+        numBytesWritten += compressed.length;
+    }
+
+    /**
+     * Deflate bytes to a complete BGZF block, with gzip header and trailer. Blocks that do not compress are
+     * stored without compression.
+     */
+    static byte[] deflate(final byte[] bytes, final int length, final int compressionLevel) {
+        final byte[] buffer = new byte[MAX_BLOCK_SIZE];
+        final Deflater deflater = new Deflater(compressionLevel, true);
+        int compressedLength;
+        try {
+            deflater.setInput(bytes, 0, length);
+            deflater.finish();
+            compressedLength = deflater.deflate(buffer, HEADER_LENGTH, MAX_BLOCK_SIZE - HEADER_LENGTH - TRAILER_LENGTH);
+            if (!deflater.finished()) {
+                deflater.reset();
+                deflater.setLevel(Deflater.NO_COMPRESSION);
+                deflater.setInput(bytes, 0, length);
+                deflater.finish();
+                compressedLength = deflater.deflate(buffer, HEADER_LENGTH,
+                        MAX_BLOCK_SIZE - HEADER_LENGTH - TRAILER_LENGTH);
+                assert deflater.finished() : "stored block must fit in a BGZF block.";
+            }
+        } finally {
+            deflater.end();
+        }
+        final int blockSize = HEADER_LENGTH + compressedLength + TRAILER_LENGTH;
+        System.arraycopy(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK, 0, buffer, 0, HEADER_LENGTH);
+        // BSIZE, the total block size minus one:
+        writeShort(buffer, 16, blockSize - 1);
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        writeInt(buffer, blockSize - TRAILER_LENGTH, (int) crc.getValue());
+        writeInt(buffer, blockSize - 4, length);
+        return Arrays.copyOf(buffer, blockSize);
+    }
+
+    private static void writeShort(final byte[] buffer, final int offset, final int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >>> 8);
+    }
+
+    private static void writeInt(final byte[] buffer, final int offset, final int value) {
+        writeShort(buffer, offset, value);
+        writeShort(buffer, offset + 2, value >>> 16);
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.util.barcode;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.lang.MutableString;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.nio.CharBuffer;
+
+/**
+ * Matches barcodes with a hash index of the k-mismatch neighbourhood of every barcode, and returns the same
+ * results as {@link PreBarcodeMatcher} (5' barcodes) or {@link PostBarcodeMatcher} (3' barcodes).
+ * <p/>
+ * For each match length m between the minimal match length and the longest barcode, the index maps every string
+ * within allowedMismatches of the first m bases of a barcode to the barcodes it matches, with the number of
+ * mismatches. Strings are packed two bits per base in a long key; windows longer than 32 bases are hashed and
+ * verified. A read is matched by looking up its prefix (5') or suffix (3') of each length, instead of comparing it
+ * to every barcode. Keys shared by the neighbourhoods of several barcodes, which can make matches ambiguous, are
+ * found when the index is built.
+ * <p/>
+ * Reads with bases other than A, C, G or T in the barcode region, and barcodes that cannot be indexed, are matched
+ * by comparing against every barcode. The index is immutable and can be shared by matchers used from different
+ * threads, see {@link #IndexedBarcodeMatcher(IndexedBarcodeMatcher)}. A matcher instance is not thread safe.
+ */
+public class IndexedBarcodeMatcher extends BarcodeMatcher {
+    /**
+     * Logging.
+     */
+    private static final Log LOG = LogFactory.getLog(IndexedBarcodeMatcher.class);
+
+    /**
+     * The index is not built when the neighbourhoods of the barcodes contain more entries than this.
+     */
+    private static final long MAX_INDEX_ENTRIES = 1 << 24;
+
+    private final BarcodeMatcher scanner;
+    private final boolean is3Prime;
+    private final Index index;
+    private final int[] bestDiffs;
+    private final int[] bestLengths;
+    private final IntArrayList touched = new IntArrayList();
+
+    /**
+     * Create an IndexedBarcodeMatcher.
+     *
+     * @param barcodesStrArray  the barcodes strings (including trailing adapter).
+     * @param barcodeLength     the length of the barcode (not including the adapter), used as minimal match length.
+     * @param allowedMismatches the number of allowed mismatches when matching to be acceptable
+     * @param is3Prime          true when barcodes are at the end of reads, false when they are at the start.
+     */
+    public IndexedBarcodeMatcher(final String[] barcodesStrArray, final int barcodeLength,
+                                 final int allowedMismatches, final boolean is3Prime) {
+        init(barcodesStrArray, barcodeLength, allowedMismatches);
+        this.is3Prime = is3Prime;
+        scanner = is3Prime ? new PostBarcodeMatcher(barcodesStrArray, barcodeLength, allowedMismatches) :
+                new PreBarcodeMatcher(barcodesStrArray, barcodeLength, allowedMismatches);
+        index = Index.build(barcodes, barcodeLength, allowedMismatches);
+        bestDiffs = new int[barcodes.length];
+        bestLengths = new int[barcodes.length];
+    }
+
+    /**
+     * Create a matcher that shares the barcodes and index of another matcher, with its own hit counts.
+     *
+     * @param other the matcher to share the index of.
+     */
+    public IndexedBarcodeMatcher(final IndexedBarcodeMatcher other) {
+        barcodes = other.barcodes;
+        for (int i = 0; i < barcodes.length; i++) {
+            barcodeIndexToHitsMap.put(i, 0);
+        }
+        barcodeLength = other.barcodeLength;
+        allowedMismatches = other.allowedMismatches;
+        is3Prime = other.is3Prime;
+        scanner = other.scanner;
+        index = other.index;
+        bestDiffs = new int[barcodes.length];
+        bestLengths = new int[barcodes.length];
+    }
+
+    /**
+     * Returns true when reads are matched with the index, false when they are compared to every barcode.
+     *
+     * @return true when the barcodes could be indexed.
+     */
+    public boolean isIndexed() {
+        return index != null;
+    }
+
+    /**
+     * Returns the number of keys that are within allowedMismatches of more than one barcode.
+     *
+     * @return number of ambiguous keys, or zero when the barcodes are not indexed.
+     */
+    public int getNumberOfAmbiguousKeys() {
+        return index == null ? 0 : index.numAmbiguousKeys;
+    }
+
+    @Override
+    BarcodeMatcherResult bestMatch(final MutableString sequence, final MutableString toFind, final int barcodeIndex,
+                                   final int minMatchLength) {
+        return scanner.bestMatch(sequence, toFind, barcodeIndex, minMatchLength);
+    }
+
+    @Override
+    public BarcodeMatcherResult matchSequence(final MutableString sequence) {
+        final int sequenceLength = sequence.length();
+        final int maxLength = index == null ? 0 : Math.min(sequenceLength, index.maxLength);
+        final int regionStart = is3Prime ? sequenceLength - maxLength : 0;
+        if (index == null || !isACGT(sequence, regionStart, maxLength)) {
+            return super.matchSequence(sequence);
+        }
+        // collect the best number of differences of each barcode, with the match length that the scanning matchers
+        // would report: the longest perfect match, or else the shortest match with the fewest differences.
+        for (int length = maxLength; length >= barcodeLength; length--) {
+            final int windowStart = is3Prime ? sequenceLength - length : 0;
+            final int group = index.find(length, sequence, windowStart);
+            if (group == -1) {
+                continue;
+            }
+            for (int e = index.groupStarts[group]; e < index.groupStarts[group + 1]; e++) {
+                final int barcodeIndex = index.barcodeIndices[e];
+                final int diffs = length > Index.MAX_PACKED_LENGTH ?
+                        numDifferences(sequence, barcodes[barcodeIndex], windowStart, 0, length) :
+                        index.diffs[e];
+                if (diffs > allowedMismatches) {
+                    // hash collision of a long window.
+                    continue;
+                }
+                if (bestLengths[barcodeIndex] == 0) {
+                    touched.add(barcodeIndex);
+                    bestDiffs[barcodeIndex] = diffs;
+                    bestLengths[barcodeIndex] = length;
+                } else if (bestDiffs[barcodeIndex] != 0 && diffs <= bestDiffs[barcodeIndex]) {
+                    bestDiffs[barcodeIndex] = diffs;
+                    bestLengths[barcodeIndex] = length;
+                }
+            }
+        }
+        // the first barcode with the fewest differences wins, like in the scanning matchers:
+        int best = -1;
+        int numAtBest = 0;
+        for (final int barcodeIndex : touched) {
+            final int diffs = bestDiffs[barcodeIndex];
+            if (best == -1 || diffs < bestDiffs[best]) {
+                best = barcodeIndex;
+                numAtBest = 1;
+            } else if (diffs == bestDiffs[best]) {
+                best = Math.min(best, barcodeIndex);
+                numAtBest++;
+            }
+        }
+        BarcodeMatcherResult result = null;
+        if (best != -1) {
+            final int diffs = bestDiffs[best];
+            final int length = bestLengths[best];
+            if (is3Prime) {
+                result = new BarcodeMatcherResult(best, diffs, 0, sequenceLength - length,
+                        sequenceLength - length, length);
+            } else {
+                result = new BarcodeMatcherResult(best, diffs, length, sequenceLength - length, 0, length);
+            }
+            // the scanning matchers stop at the first perfect match, which is never ambiguous:
+            result.setAmbiguous(diffs != 0 && numAtBest > 1);
+            barcodeIndexToHitsMap.put(best, barcodeIndexToHitsMap.get(best) + 1);
+        }
+        for (final int barcodeIndex : touched) {
+            bestLengths[barcodeIndex] = 0;
+        }
+        touched.clear();
+        return result;
+    }
+
+    private static boolean isACGT(final CharSequence sequence, final int start, final int length) {
+        for (int i = start; i < start + length; i++) {
+            if (Index.code(sequence.charAt(i)) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Neighbourhood index of the barcodes. Entries of a group are the barcodes, with their number of differences,
+     * whose neighbourhood contains the key of the group.
+     */
+    private static final class Index {
+        static final int MAX_PACKED_LENGTH = 32;
+
+        final int minLength;
+        final int maxLength;
+        /**
+         * One map for each match length, from window key to group.
+         */
+        final Long2IntOpenHashMap[] keyToGroup;
+        final int[] groupStarts;
+        final int[] barcodeIndices;
+        final byte[] diffs;
+        final int numAmbiguousKeys;
+
+        private Index(final int minLength, final int maxLength, final Long2IntOpenHashMap[] keyToGroup,
+                      final int[] groupStarts, final int[] barcodeIndices, final byte[] diffs,
+                      final int numAmbiguousKeys) {
+            this.minLength = minLength;
+            this.maxLength = maxLength;
+            this.keyToGroup = keyToGroup;
+            this.groupStarts = groupStarts;
+            this.barcodeIndices = barcodeIndices;
+            this.diffs = diffs;
+            this.numAmbiguousKeys = numAmbiguousKeys;
+        }
+
+        static int code(final char base) {
+            switch (base) {
+                case 'A':
+                    return 0;
+                case 'C':
+                    return 1;
+                case 'G':
+                    return 2;
+                case 'T':
+                    return 3;
+                default:
+                    return -1;
+            }
+        }
+
+        /**
+         * Key of the window sequence[start, start+length), which must only contain A, C, G or T.
+         */
+        static long key(final CharSequence sequence, final int start, final int length) {
+            long packed = 0;
+            long key = 0;
+            for (int i = 0; i < length; i++) {
+                packed = (packed << 2) | code(sequence.charAt(start + i));
+                if ((i + 1) % MAX_PACKED_LENGTH == 0 && i + 1 < length) {
+                    key = (key ^ packed) * 0x9E3779B97F4A7C15L;
+                    packed = 0;
+                }
+            }
+            return length > MAX_PACKED_LENGTH ? (key ^ packed) * 0x9E3779B97F4A7C15L : packed;
+        }
+
+        /**
+         * Returns the group of the window sequence[start, start+length), or -1 if no barcode is near the window.
+         */
+        int find(final int length, final CharSequence sequence, final int start) {
+            if (length < minLength || length > maxLength) {
+                return -1;
+            }
+            return keyToGroup[length - minLength].get(key(sequence, start, length));
+        }
+
+        /**
+         * Build the index, or return null when the barcodes cannot be indexed.
+         */
+        static Index build(final MutableString[] barcodes, final int minLength, final int allowedMismatches) {
+            if (barcodes == null || barcodes.length == 0 || minLength < 1 || allowedMismatches > Byte.MAX_VALUE) {
+                return null;
+            }
+            int maxLength = 0;
+            for (final MutableString barcode : barcodes) {
+                if (!isACGT(barcode, 0, barcode.length())) {
+                    LOG.info("Barcodes with bases other than A, C, G or T are matched without an index.");
+                    return null;
+                }
+                maxLength = Math.max(maxLength, barcode.length());
+            }
+            if (maxLength < minLength) {
+                return null;
+            }
+            long numEntries = 0;
+            for (int length = minLength; length <= maxLength; length++) {
+                for (final MutableString barcode : barcodes) {
+                    if (barcode.length() >= length) {
+                        numEntries += neighbourhoodSize(length, allowedMismatches);
+                        if (numEntries > MAX_INDEX_ENTRIES) {
+                            LOG.info(String.format("Barcode neighbourhoods exceed %d entries, barcodes will be " +
+                                    "matched without an index.", MAX_INDEX_ENTRIES));
+                            return null;
+                        }
+                    }
+                }
+            }
+            final int numLengths = maxLength - minLength + 1;
+            final Long2IntOpenHashMap[] keyToGroup = new Long2IntOpenHashMap[numLengths];
+            final IntArrayList groupStarts = new IntArrayList();
+            final int[] barcodeIndices = new int[(int) numEntries];
+            final byte[] diffs = new byte[(int) numEntries];
+            int numAmbiguousKeys = 0;
+            int numStored = 0;
+            final LongArrayList keys = new LongArrayList();
+            final IntArrayList values = new IntArrayList();
+            final char[] neighbour = new char[maxLength];
+            final CharSequence neighbourSequence = CharBuffer.wrap(neighbour);
+            for (int length = minLength; length <= maxLength; length++) {
+                keys.clear();
+                values.clear();
+                for (int barcodeIndex = 0; barcodeIndex < barcodes.length; barcodeIndex++) {
+                    final MutableString barcode = barcodes[barcodeIndex];
+                    if (barcode.length() >= length) {
+                        barcode.getChars(0, length, neighbour, 0);
+                        enumerate(neighbour, neighbourSequence, length, 0, allowedMismatches, 0, barcodeIndex,
+                                keys, values);
+                    }
+                }
+                final int n = keys.size();
+                final long[] keyArray = keys.elements();
+                final int[] valueArray = values.elements();
+                final int[] order = new int[n];
+                for (int i = 0; i < n; i++) {
+                    order[i] = i;
+                }
+                LongArrays.radixSortIndirect(order, keyArray, 0, n, true);
+                final Long2IntOpenHashMap map = new Long2IntOpenHashMap(n);
+                map.defaultReturnValue(-1);
+                for (int i = 0; i < n; i++) {
+                    final long key = keyArray[order[i]];
+                    if (i == 0 || key != keyArray[order[i - 1]]) {
+                        map.put(key, groupStarts.size());
+                        groupStarts.add(numStored);
+                    } else if (numStored - 1 == groupStarts.getInt(groupStarts.size() - 1)) {
+                        numAmbiguousKeys++;
+                    }
+                    barcodeIndices[numStored] = valueArray[order[i]] >>> 8;
+                    diffs[numStored] = (byte) (valueArray[order[i]] & 0xFF);
+                    numStored++;
+                }
+                map.trim();
+                keyToGroup[length - minLength] = map;
+            }
+            groupStarts.add(numStored);
+            LOG.info(String.format("Indexed %d barcode neighbourhood entries, %d keys are ambiguous.",
+                    numStored, numAmbiguousKeys));
+            return new Index(minLength, maxLength, keyToGroup, groupStarts.toIntArray(), barcodeIndices, diffs,
+                    numAmbiguousKeys);
+        }
+
+        /**
+         * Number of strings of a given length within maxDiffs substitutions of a string.
+         */
+        private static long neighbourhoodSize(final int length, final int maxDiffs) {
+            long size = 0;
+            long choose = 1;
+            long substitutions = 1;
+            for (int i = 0; i <= Math.min(length, maxDiffs); i++) {
+                size += choose * substitutions;
+                choose = choose * (length - i) / (i + 1);
+                substitutions *= 3;
+            }
+            return size;
+        }
+
+        /**
+         * Enumerate the strings obtained by substituting at most maxDiffs bases of neighbour at or after position
+         * from. Each string is visited exactly once. neighbourSequence is a view of neighbour.
+         */
+        private static void enumerate(final char[] neighbour, final CharSequence neighbourSequence, final int length,
+                                      final int from, final int maxDiffs, final int numDiffs, final int barcodeIndex,
+                                      final LongArrayList keys, final IntArrayList values) {
+            keys.add(key(neighbourSequence, 0, length));
+            values.add(barcodeIndex << 8 | numDiffs);
+            if (numDiffs == maxDiffs) {
+                return;
+            }
+            for (int position = from; position < length; position++) {
+                final char original = neighbour[position];
+                for (final char base : ACGT) {
+                    if (base != original) {
+                        neighbour[position] = base;
+                        enumerate(neighbour, neighbourSequence, length, position + 1, maxDiffs, numDiffs + 1,
+                                barcodeIndex, keys, values);
+                    }
+                }
+                neighbour[position] = original;
+            }
+        }
+
+        private static final char[] ACGT = {'A', 'C', 'G', 'T'};
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.algorithmic.algorithm;
+
+import org.campagnelab.goby.algorithmic.data.Annotation;
+import org.campagnelab.goby.algorithmic.data.Segment;
+import it.unimi.dsi.fastutil.ints.IntAVLTreeSet;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntSortedSet;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectList;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestAnnotationIntervalIndex {
+
+    @Test
+    public void testQueries() {
+        final Random random = new Random(37);
+        final int n = 500;
+        final int[] starts = new int[n];
+        final int[] ends = new int[n];
+        for (int i = 0; i < n; i++) {
+            starts[i] = random.nextInt(10000);
+            ends[i] = starts[i] + random.nextInt(i % 10 == 0 ? 2000 : 50) - 1;
+        }
+        final AnnotationIntervalIndex index = new AnnotationIntervalIndex(starts, ends);
+        assertEquals(n, index.size());
+        for (int q = 0; q < 2000; q++) {
+            final int start = random.nextInt(11000) - 500;
+            final int end = start + random.nextInt(100);
+            final IntSortedSet expectedOverlapping = new IntAVLTreeSet();
+            final IntSortedSet expectedContaining = new IntAVLTreeSet();
+            final IntSortedSet expectedStab = new IntAVLTreeSet();
+            for (int i = 0; i < n; i++) {
+                if (starts[i] <= end && ends[i] >= start) {
+                    expectedOverlapping.add(i);
+                }
+                if (starts[i] <= start && ends[i] >= end) {
+                    expectedContaining.add(i);
+                }
+                if (starts[i] <= start && ends[i] >= start) {
+                    expectedStab.add(i);
+                }
+            }
+            final IntArrayList result = new IntArrayList();
+            assertEquals(expectedOverlapping.size(), index.overlapping(start, end, result));
+            assertEquals(expectedOverlapping, new IntAVLTreeSet(result));
+            result.clear();
+            assertEquals(expectedContaining.size(), index.containing(start, end, result));
+            assertEquals(expectedContaining, new IntAVLTreeSet(result));
+            result.clear();
+            assertEquals(expectedStab.size(), index.stab(start, result));
+            assertEquals(expectedStab, new IntAVLTreeSet(result));
+        }
+    }
+
+    @Test
+    public void testJoin() {
+        final Random random = new Random(11);
+        final int n = 300;
+        final int[] starts = new int[n];
+        final int[] ends = new int[n];
+        for (int i = 0; i < n; i++) {
+            starts[i] = random.nextInt(5000);
+            // include empty intervals, such as introns between adjacent exons:
+            ends[i] = starts[i] + random.nextInt(200) - 1;
+        }
+        final int numReads = 5000;
+        final int[] readStarts = new int[numReads];
+        final int[] readEnds = new int[numReads];
+        final double[] weights = new double[numReads];
+        for (int r = 0; r < numReads; r++) {
+            readStarts[r] = random.nextInt(5200);
+        }
+        IntArrays.quickSort(readStarts);
+        for (int r = 0; r < numReads; r++) {
+            readEnds[r] = readStarts[r] + random.nextInt(r % 50 == 0 ? 400 : 40);
+            weights[r] = random.nextDouble();
+        }
+        final AnnotationIntervalIndex index = new AnnotationIntervalIndex(starts, ends);
+        final double[] overlapCounts = new double[n];
+        final double[] withinCounts = new double[n];
+        final double[] overlapWeights = new double[n];
+        final double[] withinWeights = new double[n];
+        index.join(readStarts, readEnds, null, numReads, overlapCounts, withinCounts);
+        index.join(readStarts, readEnds, weights, numReads, overlapWeights, withinWeights);
+        for (int i = 0; i < n; i++) {
+            int expectedOverlap = 0;
+            int expectedWithin = 0;
+            double expectedOverlapWeight = 0;
+            double expectedWithinWeight = 0;
+            for (int r = 0; r < numReads; r++) {
+                if (readStarts[r] <= ends[i] && readEnds[r] >= starts[i]) {
+                    expectedOverlap++;
+                    expectedOverlapWeight += weights[r];
+                }
+                if (readStarts[r] >= starts[i] && readEnds[r] <= ends[i]) {
+                    expectedWithin++;
+                    expectedWithinWeight += weights[r];
+                }
+            }
+            assertEquals(expectedOverlap, overlapCounts[i], 0);
+            assertEquals(expectedWithin, withinCounts[i], 0);
+            assertEquals(expectedOverlapWeight, overlapWeights[i], 1E-9);
+            assertEquals(expectedWithinWeight, withinWeights[i], 1E-9);
+        }
+    }
+
+    /**
+     * Counts obtained with the join must match the counts of AnnotationCount queries.
+     */
+    @Test
+    public void testAnnotationCounts() {
+        final Random random = new Random(5);
+        final ObjectList<Annotation> annotations = new ObjectArrayList<Annotation>();
+        for (int a = 0; a < 40; a++) {
+            final Annotation annotation = new Annotation("gene-" + a, "chr1", "+");
+            int position = 10 + random.nextInt(3000);
+            final int numExons = 1 + random.nextInt(5);
+            for (int e = 0; e < numExons; e++) {
+                final int end = position + random.nextInt(100);
+                annotation.addSegment(new Segment(position, end, "exon-" + a + "-" + e, "+"));
+                // exons may be adjacent:
+                position = end + 1 + random.nextInt(2) * random.nextInt(300);
+            }
+            annotations.add(annotation);
+        }
+        final AnnotationCount joined = new AnnotationCount();
+        final AnnotationCount queried = new AnnotationCount();
+        joined.startPopulating();
+        queried.startPopulating();
+        final IntSortedSet usedStarts = new IntAVLTreeSet();
+        for (int r = 0; r < 3000; r++) {
+            // AnnotationCount queries for reads strictly within an interval expect distinct read starts:
+            final int start = random.nextInt(4000);
+            if (usedStarts.add(start)) {
+                final int end = start + random.nextInt(60);
+                joined.populate(start, end);
+                queried.populate(start, end);
+            }
+        }
+        final AnnotationIntervalCounts intervals = new AnnotationIntervalCounts(annotations);
+        final AnnotationIntervalCounts.Counts counts = intervals.count(joined);
+        queried.sortReads();
+        queried.accumulate();
+        for (int a = 0; a < annotations.size(); a++) {
+            final Annotation annotation = annotations.get(a);
+            assertEquals(queried.countReadsPartiallyOverlappingWithInterval(annotation.getStart(), annotation.getEnd()),
+                    counts.getGeneOverlapCount(a), 0);
+            assertEquals(queried.countReadsStriclyWithinInterval(annotation.getStart(), annotation.getEnd()),
+                    counts.getGeneWithinCount(a), 0);
+            assertEquals(queried.geneExpressionCount(annotation), counts.getGeneExpression(a), 0);
+            final ObjectList<Segment> segments = annotation.getSegments();
+            for (int i = 0; i < segments.size(); i++) {
+                final Segment exon = segments.get(i);
+                assertEquals(queried.countReadsPartiallyOverlappingWithInterval(exon.getStart(), exon.getEnd()),
+                        counts.getExonOverlapCount(a, i), 0);
+                assertEquals(queried.countReadsStriclyWithinInterval(exon.getStart(), exon.getEnd()),
+                        counts.getExonWithinCount(a, i), 0);
+                if (i < segments.size() - 1) {
+                    final int intronStart = exon.getEnd() + 1;
+                    final int intronEnd = segments.get(i + 1).getStart() - 1;
+                    assertEquals(queried.countReadsPartiallyOverlappingWithInterval(intronStart, intronEnd),
+                            counts.getIntronOverlapCount(a, i), 0);
+                    assertEquals(queried.countReadsStriclyWithinInterval(intronStart, intronEnd),
+                            counts.getIntronWithinCount(a, i), 0);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.algorithmic.algorithm;
+
+import org.campagnelab.goby.algorithmic.data.Annotation;
+import org.campagnelab.goby.algorithmic.data.Segment;
+import org.campagnelab.goby.modes.CompactAlignmentToAnnotationCountsMode;
+import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectList;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestConstitutiveSegments {
+
+    @Test
+    public void testSharedSegments() {
+        final ObjectList<Annotation> annotations = new ObjectArrayList<Annotation>();
+        annotations.add(annotation("gene-1", 10, 20, 30, 40, 100, 110));
+        // shares base 40 with the second exon of gene-1:
+        annotations.add(annotation("gene-2", 40, 45, 200, 210));
+        // nested in the last exon of gene-1:
+        annotations.add(annotation("gene-3", 102, 104));
+        ConstitutiveSegments.removeSharedSegments(annotations);
+        assertEquals(2, annotations.size());
+        assertEquals("gene-1", annotations.get(0).getId());
+        assertEquals(1, annotations.get(0).getSegments().size());
+        assertEquals(10, annotations.get(0).getStart());
+        assertEquals("gene-2", annotations.get(1).getId());
+        assertEquals(1, annotations.get(1).getSegments().size());
+        assertEquals(200, annotations.get(1).getStart());
+    }
+
+    @Test
+    public void testRandomAnnotations() {
+        final Random random = new Random(3);
+        for (int trial = 0; trial < 20; trial++) {
+            final ObjectList<Annotation> annotations = new ObjectArrayList<Annotation>();
+            final int numAnnotations = 1 + random.nextInt(60);
+            for (int a = 0; a < numAnnotations; a++) {
+                final Annotation annotation = new Annotation("gene-" + a, "chr1", "+");
+                int position = random.nextInt(5000);
+                final int numExons = 1 + random.nextInt(4);
+                for (int e = 0; e < numExons; e++) {
+                    final int end = position + random.nextInt(80);
+                    annotation.addSegment(new Segment(position, end, "exon-" + a + "-" + e, "+"));
+                    position = end + 1 + random.nextInt(400);
+                }
+                annotations.add(annotation);
+            }
+            final ObjectList<ObjectList<Segment>> expected = new ObjectArrayList<ObjectList<Segment>>();
+            for (final Annotation annotation : annotations) {
+                final ObjectList<Segment> kept = new ObjectArrayList<Segment>();
+                for (final Segment segment : annotation.getSegments()) {
+                    boolean shared = false;
+                    for (final Annotation other : annotations) {
+                        if (other == annotation) {
+                            continue;
+                        }
+                        for (final Segment otherSegment : other.getSegments()) {
+                            shared |= otherSegment.getStart() <= segment.getEnd() &&
+                                    otherSegment.getEnd() >= segment.getStart();
+                        }
+                    }
+                    if (!shared) {
+                        kept.add(segment);
+                    }
+                }
+                if (!kept.isEmpty()) {
+                    expected.add(kept);
+                }
+            }
+            ConstitutiveSegments.removeSharedSegments(annotations);
+            assertEquals(expected.size(), annotations.size());
+            for (int a = 0; a < expected.size(); a++) {
+                final ObjectList<Segment> segments = annotations.get(a).getSegments();
+                assertEquals(expected.get(a).size(), segments.size());
+                for (int s = 0; s < segments.size(); s++) {
+                    assertTrue(expected.get(a).get(s) == segments.get(s));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testWriteAnnotations() throws IOException {
+        final Object2ObjectMap<String, ObjectList<Annotation>> annotations =
+                new Object2ObjectOpenHashMap<String, ObjectList<Annotation>>();
+        final ObjectList<Annotation> list = new ObjectArrayList<Annotation>();
+        list.add(annotation("gene-1", 10, 20, 30, 40));
+        list.add(annotation("gene-2", 50, 60));
+        annotations.put("chr1", list);
+        final StringWriter writer = new StringWriter();
+        CompactAlignmentToAnnotationCountsMode.writeAnnotations(annotations, writer);
+        final Object2ObjectMap<String, ObjectList<Annotation>> read =
+                CompactAlignmentToAnnotationCountsMode.readAnnotations(new StringReader(writer.toString()));
+        assertEquals(1, read.size());
+        final ObjectList<Annotation> readList = read.get("chr1");
+        assertEquals(2, readList.size());
+        assertEquals("gene-1", readList.get(0).getId());
+        assertEquals(2, readList.get(0).getSegments().size());
+        assertEquals(30, readList.get(0).getSegments().get(1).getStart());
+        assertEquals(40, readList.get(0).getEnd());
+        assertEquals("gene-1-exon-1", readList.get(0).getSegments().get(1).getId());
+        assertEquals(50, readList.get(1).getStart());
+    }
+
+    private Annotation annotation(final String id, final int... boundaries) {
+        final Annotation annotation = new Annotation(id, "chr1", "+");
+        for (int i = 0; i < boundaries.length; i += 2) {
+            annotation.addSegment(new Segment(boundaries[i], boundaries[i + 1], id + "-exon-" + i / 2, "+"));
+        }
+        return annotation;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.algorithmic.algorithm;
+
+import org.campagnelab.goby.counts.CountsWriter;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestStreamingComputeCount {
+
+    @Test
+    public void testSmall() throws IOException {
+        final int[][] reads = {{3, 8}, {3, 7}, {5, 10}, {8, 12}, {9, 10}, {15, 20}};
+        assertSameAsComputeCount(reads);
+    }
+
+    @Test
+    public void testReadsAtStart() throws IOException {
+        assertSameAsComputeCount(new int[][]{{0, 4}, {0, 2}, {1, 3}, {6, 6}});
+    }
+
+    @Test
+    public void testNoReads() throws IOException {
+        assertSameAsComputeCount(new int[0][]);
+    }
+
+    @Test
+    public void testRandom() throws IOException {
+        final Random random = new Random(7);
+        for (int trial = 0; trial < 50; trial++) {
+            final int[][] reads = new int[random.nextInt(2000)][];
+            for (int i = 0; i < reads.length; i++) {
+                final int start = random.nextInt(100000);
+                reads[i] = new int[]{start, start + random.nextInt(random.nextBoolean() ? 10 : 300)};
+            }
+            Arrays.sort(reads, new java.util.Comparator<int[]>() {
+                @Override
+                public int compare(final int[] a, final int[] b) {
+                    return a[0] - b[0];
+                }
+            });
+            assertSameAsComputeCount(reads);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsorted() throws IOException {
+        final StreamingComputeCount algo = new StreamingComputeCount(new CountsWriter(new ByteArrayOutputStream()));
+        algo.populate(10, 20);
+        algo.populate(5, 20);
+    }
+
+    private void assertSameAsComputeCount(final int[][] reads) throws IOException {
+        final ComputeCount computeCount = new ComputeCount();
+        computeCount.startPopulating();
+        final ByteArrayOutputStream streamingBytes = new ByteArrayOutputStream();
+        final StreamingComputeCount streaming = new StreamingComputeCount(new CountsWriter(streamingBytes));
+        for (final int[] read : reads) {
+            computeCount.populate(read[0], read[1]);
+            streaming.populate(read[0], read[1]);
+        }
+        streaming.close();
+        computeCount.accumulate();
+        final ByteArrayOutputStream expectedBytes = new ByteArrayOutputStream();
+        computeCount.baseCount(new CountsWriter(expectedBytes));
+        assertArrayEquals(expectedBytes.toByteArray(), streamingBytes.toByteArray());
+    }
+}
@@ -18,9 +18,16 @@
 
 package org.campagnelab.goby.algorithmic.algorithm.dmr;
 
+import it.unimi.dsi.fastutil.io.BinIO;
+import org.apache.commons.io.FileUtils;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 
 /**
@@ -230,4 +237,73 @@ public class TestDensityEstimator {
         }
 
     }
+
+    @Test
+    public void testStoreAndLoad() throws IOException, ClassNotFoundException {
+        final EstimatedDistribution estimator = randomDistribution(new Random(3), 20000);
+        final String filename = testFilename("stored-density.bin");
+        EstimatedDistribution.store(estimator, filename);
+        final EstimatedDistribution loaded = EstimatedDistribution.load(filename);
+        assertEquals(estimator.getStatAdaptor().statName(), loaded.getStatAdaptor().statName());
+        assertEquals(estimator.getBinningStrategy().getName(), loaded.getBinningStrategy().getName());
+        assertSameCounts(estimator, loaded);
+        // observations can still be added to a loaded distribution:
+        estimator.getDensity(150).incrementCount(42);
+        loaded.getDensity(150).incrementCount(42);
+        assertSameCounts(estimator, loaded);
+    }
+
+    @Test
+    public void testLoadSerialized() throws IOException, ClassNotFoundException {
+        final EstimatedDistribution estimator = randomDistribution(new Random(5), 2000);
+        final String filename = testFilename("serialized-density.bin");
+        BinIO.storeObject(estimator, filename);
+        assertSameCounts(estimator, EstimatedDistribution.load(filename));
+    }
+
+    @Test
+    public void testMerge() throws IOException, ClassNotFoundException {
+        final EstimatedDistribution whole = new EstimatedDistribution(1);
+        final EstimatedDistribution part1 = new EstimatedDistribution(1);
+        final EstimatedDistribution part2 = new EstimatedDistribution(1);
+        final Random random = new Random(7);
+        for (int i = 0; i < 20000; i++) {
+            final int covariate = random.nextInt(100000);
+            final int scaledStatistic = random.nextInt(12000);
+            whole.getDensity(covariate).incrementCount(scaledStatistic);
+            (i % 3 == 0 ? part1 : part2).getDensity(covariate).incrementCount(scaledStatistic);
+        }
+        final String filename = testFilename("part2-density.bin");
+        EstimatedDistribution.store(part2, filename);
+        part1.merge(EstimatedDistribution.load(filename));
+        assertSameCounts(whole, part1);
+    }
+
+    private static EstimatedDistribution randomDistribution(final Random random, final int numObservations) {
+        final EstimatedDistribution estimator = new EstimatedDistribution(1);
+        for (int i = 0; i < numObservations; i++) {
+            // some statistics are larger than the size of the densities:
+            estimator.getDensity(random.nextInt(100000)).incrementCount(random.nextInt(12000));
+        }
+        return estimator;
+    }
+
+    private static String testFilename(final String filename) throws IOException {
+        final File directory = new File("test-results/density-estimator");
+        FileUtils.forceMkdir(directory);
+        return new File(directory, filename).getPath();
+    }
+
+    private static void assertSameCounts(final EstimatedDistribution expected, final EstimatedDistribution actual) {
+        assertEquals(expected.getNumberOfBins(), actual.getNumberOfBins());
+        for (int covariate = 0; covariate < 100000; covariate += 997) {
+            for (int scaledStatistic = -1; scaledStatistic < 12000; scaledStatistic += 7) {
+                assertEquals(expected.getCumulativeCount(scaledStatistic, covariate),
+                        actual.getCumulativeCount(scaledStatistic, covariate));
+                assertEquals(expected.getP(scaledStatistic, covariate), actual.getP(scaledStatistic, covariate));
+            }
+            assertEquals(expected.getP(0.5, covariate), actual.getP(0.5, covariate));
+        }
+        assertFalse(actual.hasBin(actual.getNumberOfBins()));
+    }
 }
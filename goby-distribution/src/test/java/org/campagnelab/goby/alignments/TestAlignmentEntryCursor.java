@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.alignments;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.campagnelab.goby.compression.DecodedChunkCache;
+import org.campagnelab.goby.compression.MessageChunksWriter;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that the columnar view of alignment chunks exposes the same values as protocol buffer entries.
+ */
+public class TestAlignmentEntryCursor {
+    private static final String BASE_TEST_DIR = "test-results/alignment-entry-cursor";
+    private static final String[] CODECS = {"gzip", "hybrid-2"};
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+        for (final String codec : CODECS) {
+            MessageChunksWriter.doc().setValue("codec", codec);
+            try {
+                writeAlignment(FilenameUtils.concat(BASE_TEST_DIR, codec));
+            } finally {
+                MessageChunksWriter.doc().setValue("codec", "gzip");
+            }
+        }
+    }
+
+    private static void writeAlignment(final String basename) throws IOException {
+        final Random random = new Random(37);
+        final AlignmentWriterImpl writer = new AlignmentWriterImpl(basename);
+        writer.setNumAlignmentEntriesPerChunk(50);
+        writer.setTargetLengths(new int[]{1000000, 1000000});
+        writer.setSorted(true);
+        int position = 0;
+        for (int queryIndex = 0; queryIndex < 2000; queryIndex++) {
+            // repeat positions so that the hybrid codec stores some entries as templates with multiplicity:
+            if (random.nextInt(3) == 0) {
+                position += random.nextInt(20);
+            }
+            final Alignments.AlignmentEntry.Builder entry = Alignments.AlignmentEntry.newBuilder()
+                    .setQueryIndex(queryIndex)
+                    .setTargetIndex(queryIndex < 1000 ? 0 : 1)
+                    .setPosition(position)
+                    .setMatchingReverseStrand(random.nextBoolean())
+                    .setQueryLength(50)
+                    .setQueryPosition(0)
+                    .setQueryAlignedLength(50)
+                    .setTargetAlignedLength(50)
+                    .setMappingQuality(random.nextInt(60))
+                    .setScore(50)
+                    .setMultiplicity(1)
+                    .setNumberOfMismatches(0)
+                    .setNumberOfIndels(0);
+            if (random.nextInt(4) == 0) {
+                entry.setNumberOfMismatches(1);
+                entry.addSequenceVariations(Alignments.SequenceVariation.newBuilder()
+                        .setPosition(1 + random.nextInt(40)).setReadIndex(1 + random.nextInt(40))
+                        .setFrom("A").setTo("C"));
+            }
+            if (random.nextInt(10) == 0) {
+                entry.setNumberOfIndels(1);
+                entry.addSequenceVariations(Alignments.SequenceVariation.newBuilder()
+                        .setPosition(45).setReadIndex(45).setFrom("--").setTo("GT"));
+            }
+            if (random.nextBoolean()) {
+                // fragment index zero must remain distinct from a missing fragment index:
+                entry.setFragmentIndex(random.nextInt(2));
+            }
+            if (queryIndex == 1000) {
+                position = 0;
+            }
+            writer.appendEntry(entry.build());
+        }
+        writer.close();
+    }
+
+    @AfterClass
+    public static void cleanupTestDirectory() throws IOException {
+        FileUtils.forceDeleteOnExit(new File(BASE_TEST_DIR));
+    }
+
+    @Test
+    public void testSameAsEntries() throws IOException {
+        for (final String codec : CODECS) {
+            final String basename = FilenameUtils.concat(BASE_TEST_DIR, codec);
+            assertSameAsEntries(codec, basename, new AlignmentReaderImpl(basename));
+        }
+    }
+
+    @Test
+    public void testPipelined() throws IOException {
+        for (final String codec : CODECS) {
+            final String basename = FilenameUtils.concat(BASE_TEST_DIR, codec);
+            final AlignmentReaderImpl reader = new AlignmentReaderImpl(basename);
+            reader.setChunksDecodedAhead(3);
+            assertSameAsEntries(codec, basename, reader);
+        }
+    }
+
+    @Test
+    public void testCached() throws IOException {
+        DecodedChunkCache.doc().setValue("capacity-mb", 16);
+        try {
+            final DecodedChunkCache cache = DecodedChunkCache.getSharedCache();
+            for (final String codec : CODECS) {
+                cache.clear();
+                final String basename = FilenameUtils.concat(BASE_TEST_DIR, codec);
+                assertSameAsEntries(codec, basename, new AlignmentReaderImpl(basename));
+                final long hits = cache.getHits();
+                // columns are cached apart from the collections read by the reference reader:
+                assertEquals(codec, 0, hits);
+
+                assertSameAsEntries(codec, basename, new AlignmentReaderImpl(basename));
+                assertEquals(codec, 2 * 2000 / 50, cache.getHits());
+
+                final AlignmentReaderImpl reader = new AlignmentReaderImpl(basename);
+                reader.setChunksDecodedAhead(3);
+                assertSameAsEntries(codec, basename, reader);
+                assertEquals(codec, 4 * 2000 / 50, cache.getHits());
+            }
+        } finally {
+            DecodedChunkCache.doc().setValue("capacity-mb", 0);
+        }
+    }
+
+    private void assertSameAsEntries(final String codec, final String basename,
+                                     final AlignmentReaderImpl columnsReader) throws IOException {
+        final AlignmentReaderImpl entries = new AlignmentReaderImpl(basename);
+        final AlignmentEntryCursor cursor = new AlignmentEntryCursor(columnsReader);
+        int count = 0;
+        for (final Alignments.AlignmentEntry entry : entries) {
+            assertTrue(codec, cursor.next());
+            assertEquals(codec, entry.getQueryIndex(), cursor.getQueryIndex());
+            assertEquals(codec, entry.getTargetIndex(), cursor.getTargetIndex());
+            assertEquals(codec, entry.getPosition(), cursor.getPosition());
+            assertEquals(codec, entry.getMatchingReverseStrand(), cursor.getMatchingReverseStrand());
+            assertEquals(codec, entry.getQueryLength(), cursor.getQueryLength());
+            assertEquals(codec, entry.getQueryAlignedLength(), cursor.getQueryAlignedLength());
+            assertEquals(codec, entry.getTargetAlignedLength(), cursor.getTargetAlignedLength());
+            assertEquals(codec, entry.getMappingQuality(), cursor.getMappingQuality());
+            assertEquals(codec, entry.getMultiplicity(), cursor.getMultiplicity());
+            assertEquals(codec, entry.getNumberOfMismatches(), cursor.getNumberOfMismatches());
+            assertEquals(codec, entry.getNumberOfIndels(), cursor.getNumberOfIndels());
+            assertEquals(codec, entry.getScore(), cursor.getScore(), 0);
+            assertEquals(codec, entry.hasFragmentIndex(), cursor.has(AlignmentColumns.FRAGMENT_INDEX));
+            assertEquals(codec, entry.getFragmentIndex(), cursor.getFragmentIndex());
+            assertEquals(codec, entry.hasMappingQuality(), cursor.has(AlignmentColumns.MAPPING_QUALITY));
+            assertEquals(codec, entry.hasSampleIndex(), cursor.has(AlignmentColumns.SAMPLE_INDEX));
+            assertEquals(codec, entry.getSequenceVariationsCount(), cursor.getSequenceVariationsCount());
+            for (int v = 0; v < entry.getSequenceVariationsCount(); v++) {
+                final Alignments.SequenceVariation variation = entry.getSequenceVariations(v);
+                assertEquals(codec, variation.getPosition(), cursor.getVariationPosition(v));
+                assertEquals(codec, variation.getReadIndex(), cursor.getVariationReadIndex(v));
+                assertEquals(codec, variation.getFrom(), bases(cursor, v, true));
+                assertEquals(codec, variation.getTo(), bases(cursor, v, false));
+            }
+            count++;
+        }
+        assertFalse(codec, cursor.next());
+        assertEquals(codec, 2000, count);
+        entries.close();
+    }
+
+    @Test
+    public void testWindow() throws IOException {
+        final String basename = FilenameUtils.concat(BASE_TEST_DIR, "hybrid-2");
+        final AlignmentReaderImpl entries = new AlignmentReaderImpl(basename, 0, 500, 1, 300);
+        final AlignmentEntryCursor cursor = new AlignmentEntryCursor(new AlignmentReaderImpl(basename, 0, 500, 1, 300));
+        int count = 0;
+        for (final Alignments.AlignmentEntry entry : entries) {
+            assertTrue(cursor.next());
+            assertEquals(entry.getQueryIndex(), cursor.getQueryIndex());
+            count++;
+        }
+        assertFalse(cursor.next());
+        assertTrue(count > 0);
+        entries.close();
+    }
+
+    private String bases(final AlignmentEntryCursor cursor, final int varIndex, final boolean from) {
+        final StringBuilder bases = new StringBuilder();
+        final int length = from ? cursor.getVariationFromLength(varIndex) : cursor.getVariationToLength(varIndex);
+        for (int i = 0; i < length; i++) {
+            bases.append(from ? cursor.getVariationFrom(varIndex, i) : cursor.getVariationTo(varIndex, i));
+        }
+        return bases.toString();
+    }
+}
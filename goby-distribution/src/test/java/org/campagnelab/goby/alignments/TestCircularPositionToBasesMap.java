@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.alignments;
+
+import edu.cornell.med.icb.identifier.IndexedIdentifier;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.lang.MutableString;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.campagnelab.goby.modes.dsv.DiscoverVariantPositionData;
+import org.campagnelab.goby.modes.dsv.IterateSortedAlignmentsListImpl;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestCircularPositionToBasesMap {
+    private static final String BASE_TEST_DIR = "test-results/circular-position-map";
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+    }
+
+    @AfterClass
+    public static void cleanupTestDirectory() throws IOException {
+        FileUtils.forceDeleteOnExit(new File(BASE_TEST_DIR));
+    }
+
+    @Test
+    public void testSameAsTreeMap() {
+        final Random random = new Random(12);
+        final PositionToBasesMap<String> expected = new PositionToBasesMap<String>();
+        // small capacity to exercise growth:
+        final CircularPositionToBasesMap<String> map = new CircularPositionToBasesMap<String>(false, 4);
+        int start = 0;
+        for (int i = 0; i < 100000; i++) {
+            switch (random.nextInt(4)) {
+                case 0:
+                case 1: {
+                    // positions are mostly added after the start of the window, sometimes just before:
+                    final int position = start - 5 + random.nextInt(random.nextInt(10) == 0 ? 500 : 60);
+                    if (position >= 0) {
+                        expected.put(position, "v" + i);
+                        map.put(position, "v" + i);
+                    }
+                    break;
+                }
+                case 2:
+                    if (!expected.isEmpty()) {
+                        final int first = expected.firstPosition();
+                        assertEquals(first, map.firstPosition());
+                        assertEquals(expected.remove(first), map.remove(first));
+                        start = first + 1;
+                    }
+                    break;
+                case 3: {
+                    final int position = start + random.nextInt(60);
+                    if (expected.containsKey(position) && random.nextBoolean()) {
+                        expected.markIgnoredPosition(position);
+                        map.markIgnoredPosition(position);
+                    }
+                    assertEquals(expected.remove(position + 1), map.remove(position + 1));
+                    break;
+                }
+            }
+            final int position = start + random.nextInt(60);
+            assertEquals(expected.containsKey(position), map.containsKey(position));
+            assertEquals(expected.get(position), map.get(position));
+            assertEquals(expected.isIgnoredPosition(position), map.isIgnoredPosition(position));
+            assertEquals(expected.size(), map.size());
+            if (random.nextInt(1000) == 0) {
+                assertEquals(expected.keySet(), map.keySet());
+                if (random.nextBoolean()) {
+                    expected.clear();
+                    map.clear();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testReuse() {
+        final CircularPositionToBasesMap<String> map = new CircularPositionToBasesMap<String>(true, 8);
+        map.put(3, "three");
+        map.put(5, "five");
+        assertNull(map.getReusable(4));
+        assertNull(map.getReusable(11));
+        assertEquals("three", map.remove(3));
+        // 11 falls in the slot of 3, which was processed:
+        assertEquals("three", map.getReusable(11));
+        // 13 falls in the slot of 5, which is still in the map:
+        assertNull(map.getReusable(13));
+
+        final CircularPositionToBasesMap<String> noRecycling = new CircularPositionToBasesMap<String>(false, 8);
+        noRecycling.put(3, "three");
+        noRecycling.remove(3);
+        assertNull(noRecycling.getReusable(11));
+        assertNull(new PositionToBasesMap<String>().getReusable(3));
+    }
+
+    @Test
+    public void testIterateWithCircularWindow() throws IOException {
+        final String basename = writeAlignment(FilenameUtils.concat(BASE_TEST_DIR, "align-1"));
+        final ObjectArrayList<String> expected = pileup(basename, false);
+        assertTrue(expected.size() > 1000);
+        assertEquals(expected, pileup(basename, true));
+    }
+
+    private ObjectArrayList<String> pileup(final String basename, final boolean useCircularWindow) throws IOException {
+        final ObjectArrayList<String> pileup = new ObjectArrayList<String>();
+        final IterateSortedAlignmentsListImpl iterator = new IterateSortedAlignmentsListImpl() {
+            @Override
+            public void processPositions(final int referenceIndex, final int intermediatePosition,
+                                         final DiscoverVariantPositionData positionBaseInfos) {
+                // the data may be reused after this call, record its content:
+                final MutableString bases = new MutableString();
+                for (final PositionBaseInfo info : positionBaseInfos) {
+                    assertEquals(intermediatePosition, info.position);
+                    bases.append(info.toString()).append(info.readIndex).append(';');
+                }
+                pileup.add(String.format("%d:%d %s", referenceIndex, intermediatePosition, bases));
+            }
+        };
+        iterator.setUseCircularWindow(useCircularWindow);
+        iterator.iterate(basename);
+        return pileup;
+    }
+
+    private static String writeAlignment(final String basename) throws IOException {
+        final Random random = new Random(3);
+        final AlignmentWriterImpl writer = new AlignmentWriterImpl(basename);
+        final IndexedIdentifier targetIds = new IndexedIdentifier();
+        targetIds.registerIdentifier(new MutableString("chr1"));
+        targetIds.registerIdentifier(new MutableString("chr2"));
+        writer.setTargetIdentifiers(targetIds);
+        writer.setTargetLengths(new int[]{10000, 10000});
+        writer.setSorted(true);
+        int queryIndex = 0;
+        for (int targetIndex = 0; targetIndex < 2; targetIndex++) {
+            final IntArrayList positions = new IntArrayList();
+            for (int position = 0; position < 9000; position += random.nextInt(random.nextInt(50) == 0 ? 3000 : 10)) {
+                positions.add(position);
+            }
+            for (final int position : positions) {
+                final Alignments.AlignmentEntry.Builder entry = Alignments.AlignmentEntry.newBuilder()
+                        .setQueryIndex(queryIndex++)
+                        .setTargetIndex(targetIndex)
+                        .setPosition(position)
+                        .setMatchingReverseStrand(random.nextBoolean())
+                        .setQueryLength(40)
+                        .setQueryPosition(0)
+                        .setQueryAlignedLength(40)
+                        .setTargetAlignedLength(40)
+                        .setMappingQuality(random.nextInt(60))
+                        .setScore(40)
+                        .setMultiplicity(1);
+                if (random.nextInt(3) == 0) {
+                    entry.addSequenceVariations(Alignments.SequenceVariation.newBuilder()
+                            .setPosition(1 + random.nextInt(38)).setReadIndex(1)
+                            .setFrom("A").setTo("T").setToQuality(com.google.protobuf.ByteString.copyFrom(new byte[]{20})));
+                }
+                writer.appendEntry(entry.build());
+            }
+        }
+        writer.close();
+        return basename;
+    }
+}
@@ -27,6 +27,7 @@ import org.apache.commons.logging.LogFactory;
 import org.junit.AfterClass;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -235,6 +236,87 @@ public class TestConcatSortedAlignmentReader {
 
     }
 
+    @Test
+    public void testPrefetchSameAsSynchronous() throws IOException {
+        final String[] basenames = new String[7];
+        for (int i = 0; i < basenames.length; i++) {
+            basenames[i] = FilenameUtils.concat(BASE_TEST_DIR, "prefetch-" + i);
+            final AlignmentWriterImpl writer = new AlignmentWriterImpl(basenames[i]);
+            // small chunks, so that the index is used to skip:
+            writer.setNumAlignmentEntriesPerChunk(10);
+            writer.setTargetLengths(new int[]{10000, 10000, 10000});
+            writer.setSorted(true);
+            for (int referenceIndex = 0; referenceIndex < 3; referenceIndex++) {
+                for (int position = i; position < 2000; position += 3 + i) {
+                    append(writer, referenceIndex, position);
+                }
+            }
+            writer.close();
+        }
+        final IntList expected = readAll(basenames, 0, null);
+        assertEquals(expected, readAll(basenames, 20, null));
+        final GenomicRange range = new GenomicRange(0, 1500, 2, 100);
+        final IntList expectedInRange = readAll(basenames, 0, range);
+        assertEquals(expectedInRange, readAll(basenames, 20, range));
+        assertEquals(expectedInRange, readAll(basenames, 1000, range));
+
+        // skipTo must see the same entries with and without prefetching:
+        final IntList skipped = new IntArrayList();
+        final IntList skippedPrefetch = new IntArrayList();
+        for (final int prefetchedEntries : new int[]{0, 20}) {
+            final ConcatSortedAlignmentReader concat = new ConcatSortedAlignmentReader(basenames);
+            concat.setPrefetchedEntries(prefetchedEntries);
+            final IntList result = prefetchedEntries == 0 ? skipped : skippedPrefetch;
+            Alignments.AlignmentEntry entry;
+            int position = 0;
+            while ((entry = concat.skipTo(1, position)) != null) {
+                result.add(entry.getTargetIndex() * 10000 + entry.getPosition());
+                position = entry.getTargetIndex() == 1 ? entry.getPosition() + 97 : 0;
+            }
+            concat.close();
+        }
+        assertEquals(skipped, skippedPrefetch);
+    }
+
+    @Test
+    public void testPrefetchBudgetShared() throws IOException {
+        final int available = ConcatSortedAlignmentReader.availablePrefetchedEntries();
+        final ConcatSortedAlignmentReader concat1 = new ConcatSortedAlignmentReader(basename1, basename2, basename3);
+        final ConcatSortedAlignmentReader concat2 = new ConcatSortedAlignmentReader(basename1, basename2, basename3);
+        concat1.setPrefetchedEntries(600);
+        concat2.setPrefetchedEntries(600);
+        assertTrue(concat1.hasNext());
+        assertTrue(concat2.hasNext());
+        // both concatenations reserve their batches from the same budget:
+        assertEquals(available - 1200, ConcatSortedAlignmentReader.availablePrefetchedEntries());
+        concat1.close();
+        assertEquals(available - 600, ConcatSortedAlignmentReader.availablePrefetchedEntries());
+        concat2.close();
+        assertEquals(available, ConcatSortedAlignmentReader.availablePrefetchedEntries());
+    }
+
+    private IntList readAll(final String[] basenames, final int prefetchedEntries, final GenomicRange range)
+            throws IOException {
+        final ConcatSortedAlignmentReader concat = new ConcatSortedAlignmentReader(basenames);
+        concat.setPrefetchedEntries(prefetchedEntries);
+        concat.setAdjustSampleIndices(true);
+        if (range != null) {
+            concat.setGenomicRange(range);
+        }
+        final IntList result = new IntArrayList();
+        int previous = -1;
+        for (final Alignments.AlignmentEntry entry : concat) {
+            final int location = entry.getTargetIndex() * 10000 + entry.getPosition();
+            assertTrue("entries must be sorted", location >= previous);
+            assertEquals("sample index must identify the reader", concat.getReaderIndex(), entry.getSampleIndex());
+            previous = location;
+            result.add(location);
+            result.add(entry.getSampleIndex());
+        }
+        concat.close();
+        return result;
+    }
+
     static final String basename1 = FilenameUtils.concat(BASE_TEST_DIR, "sort-concat-1");
     static final String basename2 = FilenameUtils.concat(BASE_TEST_DIR, "sort-concat-2");
     static final String basename3 = FilenameUtils.concat(BASE_TEST_DIR, "sort-concat-3");
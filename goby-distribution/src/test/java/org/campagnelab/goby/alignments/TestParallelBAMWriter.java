@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.alignments;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordFactory;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.commons.io.FileUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestParallelBAMWriter {
+    private static final String BASE_TEST_DIR = "test-results/parallel-bam-writer";
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+    }
+
+    /**
+     * Records written in batches must be read back in order, and the index must find the records of a region.
+     */
+    @Test
+    public void testRoundTripWithIndex() throws IOException {
+        final SAMFileHeader header = new SAMFileHeader();
+        final SAMSequenceDictionary dictionary = new SAMSequenceDictionary();
+        dictionary.addSequence(new SAMSequenceRecord("chr1", 1000000));
+        dictionary.addSequence(new SAMSequenceRecord("chr2", 500000));
+        header.setSequenceDictionary(dictionary);
+        header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+
+        final Random random = new Random(23);
+        final SAMRecordFactory factory = ParallelBAMWriter.getRecordFactory();
+        final File output = new File(BASE_TEST_DIR, "round-trip.bam");
+        final File index = new File(BASE_TEST_DIR, "round-trip.bai");
+        final ParallelBAMWriter writer = new ParallelBAMWriter(output, header, 3, index);
+        int expectedInRegion = 0;
+        int numRecords = 0;
+        int position = 1;
+        int referenceIndex = 0;
+        for (int batch = 0; batch < 20; batch++) {
+            final List<SAMRecord> records = new ObjectArrayList<SAMRecord>();
+            for (int i = 0; i < 1000; i++) {
+                position += random.nextInt(40);
+                if (referenceIndex == 0 && position > 200000) {
+                    referenceIndex = 1;
+                    position = 1;
+                }
+                final SAMRecord record = factory.createSAMRecord(header);
+                record.setReadName("read-" + numRecords++);
+                record.setReferenceIndex(referenceIndex);
+                record.setAlignmentStart(position);
+                record.setMappingQuality(60);
+                record.setCigarString("20M");
+                record.setReadString("ACGTACGTACGTACGTACGT");
+                record.setBaseQualityString("IIIIIIIIIIIIIIIIIIII");
+                records.add(record);
+                if (referenceIndex == 1 && position + 19 >= 10000 && position <= 20000) {
+                    expectedInRegion++;
+                }
+            }
+            writer.write(ParallelBAMWriter.encode(header, records));
+        }
+        writer.close();
+        assertEquals(numRecords, writer.getNumRecordsWritten());
+        assertTrue(index.exists());
+
+        final SamReader reader = SamReaderFactory.makeDefault().open(output);
+        assertTrue(reader.hasIndex());
+        final SAMRecordIterator all = reader.iterator();
+        int count = 0;
+        while (all.hasNext()) {
+            assertEquals("read-" + count++, all.next().getReadName());
+        }
+        all.close();
+        assertEquals(numRecords, count);
+
+        assertTrue(expectedInRegion > 0);
+        final SAMRecordIterator region = reader.queryOverlapping("chr2", 10000, 20000);
+        int inRegion = 0;
+        while (region.hasNext()) {
+            assertEquals("chr2", region.next().getReferenceName());
+            inRegion++;
+        }
+        region.close();
+        assertEquals(expectedInRegion, inRegion);
+        reader.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIndexingNeedsRecordFactory() throws IOException {
+        final SAMFileHeader header = new SAMFileHeader();
+        header.addSequence(new SAMSequenceRecord("chr1", 1000));
+        final ParallelBAMWriter writer = new ParallelBAMWriter(new File(BASE_TEST_DIR, "no-factory.bam"), header, 2,
+                new File(BASE_TEST_DIR, "no-factory.bai"));
+        try {
+            final SAMRecord record = new SAMRecord(header);
+            record.setReadName("read");
+            record.setReferenceIndex(0);
+            record.setAlignmentStart(1);
+            record.setCigarString("4M");
+            record.setReadString("ACGT");
+            final List<SAMRecord> records = new ObjectArrayList<SAMRecord>();
+            records.add(record);
+            writer.write(ParallelBAMWriter.encode(header, records));
+        } finally {
+            assertFalse(writer.getNumRecordsWritten() > 1);
+            writer.close();
+        }
+    }
+
+    /**
+     * An aborted file must not end with the EOF block, so that it cannot be mistaken for a complete BAM file.
+     */
+    @Test
+    public void testAbortWritesNoEofBlock() throws IOException {
+        final SAMFileHeader header = new SAMFileHeader();
+        header.addSequence(new SAMSequenceRecord("chr1", 1000));
+        header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        final File output = new File(BASE_TEST_DIR, "aborted.bam");
+        final ParallelBAMWriter writer = new ParallelBAMWriter(output, header, 2,
+                new File(BASE_TEST_DIR, "aborted.bai"));
+        final SAMRecord record = ParallelBAMWriter.getRecordFactory().createSAMRecord(header);
+        record.setReadName("read");
+        record.setReferenceIndex(0);
+        record.setAlignmentStart(1);
+        record.setCigarString("4M");
+        record.setReadString("ACGT");
+        final List<SAMRecord> records = new ObjectArrayList<SAMRecord>();
+        records.add(record);
+        writer.write(ParallelBAMWriter.encode(header, records));
+        writer.abort();
+        assertFalse(BlockCompressedInputStream.checkTermination(output) ==
+                BlockCompressedInputStream.FileTermination.HAS_TERMINATOR_BLOCK);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.alignments;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that decoding chunks ahead of the consumer returns the same entries as sequential decoding.
+ */
+public class TestParallelChunkDecoding {
+    private static final String BASE_TEST_DIR = "test-results/alignments-parallel-decoding";
+    private static final int NUM_ENTRIES = 5000;
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+        final AlignmentWriterImpl writer =
+                new AlignmentWriterImpl(FilenameUtils.concat(BASE_TEST_DIR, "sorted"));
+        writer.setNumAlignmentEntriesPerChunk(100);
+        writer.setTargetLengths(new int[]{100000, 100000});
+        writer.setSorted(true);
+        for (int i = 0; i < NUM_ENTRIES; i++) {
+            writer.setAlignmentEntry(i, i < NUM_ENTRIES / 2 ? 0 : 1, 10 * (i % (NUM_ENTRIES / 2)), 30, false, 40);
+            writer.appendEntry();
+        }
+        writer.close();
+    }
+
+    @AfterClass
+    public static void cleanupTestDirectory() throws IOException {
+        FileUtils.forceDeleteOnExit(new File(BASE_TEST_DIR));
+    }
+
+    @Test
+    public void testSequential() throws IOException {
+        final AlignmentReaderImpl reader = new AlignmentReaderImpl(FilenameUtils.concat(BASE_TEST_DIR, "sorted"));
+        reader.setChunksDecodedAhead(3);
+        int count = 0;
+        for (final Alignments.AlignmentEntry entry : reader) {
+            assertEquals(count, entry.getQueryIndex());
+            count++;
+        }
+        reader.close();
+        assertEquals(NUM_ENTRIES, count);
+    }
+
+    @Test
+    public void testSkipTo() throws IOException {
+        final AlignmentReaderImpl reader = new AlignmentReaderImpl(FilenameUtils.concat(BASE_TEST_DIR, "sorted"));
+        reader.readHeader();
+        reader.setChunksDecodedAhead(4);
+        Alignments.AlignmentEntry entry = reader.skipTo(0, 505);
+        assertEquals(0, entry.getTargetIndex());
+        assertEquals(510, entry.getPosition());
+        entry = reader.skipTo(0, 1200);
+        assertEquals(1200, entry.getPosition());
+        entry = reader.skipTo(1, 20000);
+        assertEquals(1, entry.getTargetIndex());
+        assertEquals(20000, entry.getPosition());
+        assertEquals(NUM_ENTRIES / 2 + 2000, entry.getQueryIndex());
+        reader.reposition(0, 0);
+        assertEquals(0, reader.next().getQueryIndex());
+        reader.close();
+    }
+}
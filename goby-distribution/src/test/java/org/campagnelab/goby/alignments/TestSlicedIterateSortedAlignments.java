@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.alignments;
+
+import edu.cornell.med.icb.identifier.IndexedIdentifier;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectList;
+import it.unimi.dsi.lang.MutableString;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that iterating over slices of the genome in parallel processes the same positions, with the same
+ * coverage, in the same order as iterating with a single thread.
+ */
+public class TestSlicedIterateSortedAlignments {
+    private static final String BASE_TEST_DIR = "test-results/sliced-iterate-sorted";
+    private static String[] basenames;
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+        basenames = new String[]{
+                writeAlignment(FilenameUtils.concat(BASE_TEST_DIR, "sample-1"), 1),
+                writeAlignment(FilenameUtils.concat(BASE_TEST_DIR, "sample-2"), 2)};
+    }
+
+    private static String writeAlignment(final String basename, final int seed) throws IOException {
+        final Random random = new Random(seed);
+        final AlignmentWriterImpl writer = new AlignmentWriterImpl(basename);
+        writer.setNumAlignmentEntriesPerChunk(20);
+        final IndexedIdentifier targetIds = new IndexedIdentifier();
+        targetIds.registerIdentifier(new MutableString("chr1"));
+        targetIds.registerIdentifier(new MutableString("chr2"));
+        targetIds.registerIdentifier(new MutableString("chr3"));
+        writer.setTargetIdentifiers(targetIds);
+        final int[] targetLengths = {20000, 5000, 20000};
+        writer.setTargetLengths(targetLengths);
+        writer.setSorted(true);
+        int queryIndex = 0;
+        for (int targetIndex = 0; targetIndex < 3; targetIndex++) {
+            int position = 0;
+            while (position < targetLengths[targetIndex] - 1000) {
+                position += random.nextInt(targetIndex == 1 ? 100 : 15);
+                final Alignments.AlignmentEntry.Builder entry = Alignments.AlignmentEntry.newBuilder()
+                        .setQueryIndex(queryIndex++)
+                        .setTargetIndex(targetIndex)
+                        .setPosition(position)
+                        .setMatchingReverseStrand(random.nextBoolean())
+                        .setQueryLength(50)
+                        .setQueryPosition(0)
+                        .setQueryAlignedLength(50)
+                        .setTargetAlignedLength(50)
+                        .setMappingQuality(40)
+                        .setScore(50)
+                        .setMultiplicity(1);
+                if (random.nextInt(5) == 0) {
+                    entry.addSequenceVariations(Alignments.SequenceVariation.newBuilder()
+                            .setPosition(1 + random.nextInt(45)).setReadIndex(1).setFrom("A").setTo("C"));
+                }
+                writer.appendEntry(entry.build());
+            }
+        }
+        writer.close();
+        return basename;
+    }
+
+    @AfterClass
+    public static void cleanupTestDirectory() throws IOException {
+        FileUtils.forceDeleteOnExit(new File(BASE_TEST_DIR));
+    }
+
+    @Test
+    public void testSlices() throws IOException {
+        final SlicedIterateSortedAlignments<int[]> engine =
+                new SlicedIterateSortedAlignments<int[]>(new CoverageIterator(), null, 2);
+        final ObjectList<SlicedIterateSortedAlignments.Slice> slices = engine.slice(basenames, 8);
+        assertTrue(slices.size() > 2);
+        SlicedIterateSortedAlignments.Slice previous = null;
+        for (final SlicedIterateSortedAlignments.Slice slice : slices) {
+            if (previous == null) {
+                assertEquals(0, slice.startReferenceIndex);
+                assertEquals(0, slice.startPosition);
+            } else {
+                // slices are contiguous:
+                if (previous.endReferenceIndex == slice.startReferenceIndex) {
+                    assertEquals(previous.toString(), previous.endPosition + 1, slice.startPosition);
+                } else {
+                    assertEquals(previous.endReferenceIndex + 1, slice.startReferenceIndex);
+                    assertEquals(0, slice.startPosition);
+                }
+            }
+            previous = slice;
+        }
+        assertEquals(2, previous.endReferenceIndex);
+        assertEquals(SlicedIterateSortedAlignments.END_OF_REFERENCE, previous.endPosition);
+    }
+
+    @Test
+    public void testSameAsSingleThread() throws IOException {
+        final CoverageIterator single = new CoverageIterator();
+        single.iterate(basenames);
+        assertTrue(single.processed.size() > 40000);
+
+        for (final int numThreads : new int[]{2, 3, 8}) {
+            final CoverageIterator processor = new CoverageIterator();
+            // reads are 50 bases long:
+            processor.setStartFlapLength(50);
+            final SlicedIterateSortedAlignments<int[]> engine = new SlicedIterateSortedAlignments<int[]>(processor,
+                    new SlicedIterateSortedAlignments.IteratorFactory<int[]>() {
+                        @Override
+                        public IterateSortedAlignments<int[]> create() {
+                            return new CoverageIterator();
+                        }
+                    }, numThreads);
+            engine.setSlicesPerThread(3);
+            engine.iterate(basenames);
+            for (int i = 0; i < Math.min(single.processed.size(), processor.processed.size()); i++) {
+                assertEquals("position " + i + " with " + numThreads + " threads",
+                        single.processed.get(i), processor.processed.get(i));
+            }
+            assertEquals(single.processed.size(), processor.processed.size());
+            assertEquals(single.getNumAlignmentEntries(), processor.getNumAlignmentEntries());
+        }
+    }
+
+    /**
+     * Slices must run to completion while the processor has not consumed any position yet, even when they hold
+     * many more positions than are handed over at once.
+     */
+    @Test
+    public void testSlicesRunAheadOfProcessor() throws IOException {
+        final int numThreads = 2;
+        // one slice per thread:
+        final int numSlices = SlicedIterateSortedAlignments.slice(basenames, numThreads).size();
+        assertTrue(numSlices >= numThreads);
+        final CountDownLatch slicesDone = new CountDownLatch(numSlices);
+        final boolean[] allDoneBeforeProcessing = new boolean[1];
+        final CoverageIterator processor = new CoverageIterator() {
+            @Override
+            public void processPositions(final int referenceIndex, final int position, final int[] count) {
+                if (processed.isEmpty()) {
+                    try {
+                        allDoneBeforeProcessing[0] = slicesDone.await(60, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                super.processPositions(referenceIndex, position, count);
+            }
+        };
+        processor.setStartFlapLength(50);
+        final SlicedIterateSortedAlignments<int[]> engine = new SlicedIterateSortedAlignments<int[]>(processor,
+                new SlicedIterateSortedAlignments.IteratorFactory<int[]>() {
+                    @Override
+                    public IterateSortedAlignments<int[]> create() {
+                        return new CoverageIterator() {
+                            @Override
+                            public void iterate(final String... basenames) throws IOException {
+                                super.iterate(basenames);
+                                slicesDone.countDown();
+                            }
+                        };
+                    }
+                }, numThreads);
+        // the first slice holds many more positions than are handed over at once:
+        engine.setSlicesPerThread(1);
+        engine.iterate(basenames);
+        assertTrue("slices must complete before the processor consumes their positions", allDoneBeforeProcessing[0]);
+        assertTrue(processor.processed.size() > 40000);
+    }
+
+    @Test
+    public void testFailureInSlice() throws IOException {
+        final SlicedIterateSortedAlignments<int[]> engine = new SlicedIterateSortedAlignments<int[]>(
+                new CoverageIterator(),
+                new SlicedIterateSortedAlignments.IteratorFactory<int[]>() {
+                    @Override
+                    public IterateSortedAlignments<int[]> create() {
+                        return new CoverageIterator() {
+                            @Override
+                            public void observeVariantBase(final ConcatSortedAlignmentReader sortedReaders,
+                                                           final Alignments.AlignmentEntry alignmentEntry,
+                                                           final PositionToBasesMap<int[]> positionToBases,
+                                                           final Alignments.SequenceVariation var,
+                                                           final char toChar, final char fromChar,
+                                                           final byte toQual, final int currentReferenceIndex,
+                                                           final int currentRefPosition,
+                                                           final int currentReadIndex) {
+                                throw new IllegalStateException("failure in slice");
+                            }
+                        };
+                    }
+                }, 3);
+        try {
+            engine.iterate(basenames);
+            fail("failure in a slice must be reported");
+        } catch (IllegalStateException e) {
+            assertEquals("failure in slice", e.getMessage());
+        }
+    }
+
+    /**
+     * Records the coverage of each position, in the order positions are processed.
+     */
+    private static class CoverageIterator extends IterateSortedAlignments<int[]> {
+        protected final ObjectArrayList<String> processed = new ObjectArrayList<String>();
+
+        @Override
+        public void observeReferenceBase(final ConcatSortedAlignmentReader sortedReaders,
+                                         final Alignments.AlignmentEntry alignmentEntry,
+                                         final PositionToBasesMap<int[]> positionToBases,
+                                         final int currentReferenceIndex, final int currentRefPosition,
+                                         final int currentReadIndex) {
+            observe(positionToBases, currentRefPosition);
+        }
+
+        @Override
+        public void observeVariantBase(final ConcatSortedAlignmentReader sortedReaders,
+                                       final Alignments.AlignmentEntry alignmentEntry,
+                                       final PositionToBasesMap<int[]> positionToBases,
+                                       final Alignments.SequenceVariation var,
+                                       final char toChar, final char fromChar,
+                                       final byte toQual, final int currentReferenceIndex,
+                                       final int currentRefPosition,
+                                       final int currentReadIndex) {
+            observe(positionToBases, currentRefPosition);
+        }
+
+        private void observe(final PositionToBasesMap<int[]> positionToBases, final int position) {
+            int[] count = positionToBases.get(position);
+            if (count == null) {
+                count = new int[1];
+                positionToBases.put(position, count);
+            }
+            count[0]++;
+        }
+
+        @Override
+        public void processPositions(final int referenceIndex, final int position, final int[] count) {
+            processed.add(referenceIndex + ":" + position + ":" + count[0]);
+        }
+    }
+}
@@ -21,8 +21,10 @@ package org.campagnelab.goby.alignments;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
 
 /**
@@ -66,4 +68,56 @@ public class TestTooManyHits {
         assertFalse("query sequence 13 must NOT be found", tmhReader.isQueryAmbiguous(13));
         assertFalse("query sequence 1100239028 must NOT be found", tmhReader.isQueryAmbiguous(1100239028));
     }
+
+    @Test
+    public void testIndexRequestedWithDynamicOption() throws IOException {
+        final String basename = "test-results/alignments/align-103-tmh";
+        assertTrue(AlignmentTooManyHitsWriter.doc().acceptsOption("AlignmentTooManyHitsWriter:write-index=true"));
+        try {
+            final AlignmentTooManyHitsWriter tmhWriter = new AlignmentTooManyHitsWriter(basename, 2);
+            tmhWriter.append(4, 5, 20);
+            tmhWriter.close();
+        } finally {
+            AlignmentTooManyHitsWriter.doc().acceptsOption("AlignmentTooManyHitsWriter:write-index=false");
+        }
+        assertTrue(new File(basename + AlignmentTooManyHitsReader.INDEX_EXTENSION).exists());
+        assertEquals(5, new AlignmentTooManyHitsReader(basename).getNumberOfHits(4));
+    }
+
+    @Test
+    public void testSortedIndex() throws IOException {
+        for (final boolean writeIndex : new boolean[]{false, true}) {
+            final String basename = "test-results/alignments/align-102-tmh-" + writeIndex;
+            final AlignmentTooManyHitsWriter tmhWriter = new AlignmentTooManyHitsWriter(basename, 2);
+            tmhWriter.setWriteIndex(writeIndex);
+            tmhWriter.append(30, 5, 20);
+            tmhWriter.append(7, 3, 25);
+            // below the threshold, not written:
+            tmhWriter.append(9, 1, 25);
+            tmhWriter.getNewAmbiguousLocation().setAtLeastNumberOfHits(8);
+            tmhWriter.getNewAmbiguousLocation().setQueryIndex(100);
+            tmhWriter.append();
+            // the last hit of a query replaces the previous ones:
+            tmhWriter.append(30, 6, 21);
+            tmhWriter.close();
+            assertEquals(writeIndex, new File(basename + AlignmentTooManyHitsReader.INDEX_EXTENSION).exists());
+
+            final AlignmentTooManyHitsReader tmhReader = new AlignmentTooManyHitsReader(basename);
+            assertEquals(2, tmhReader.getAlignerThreshold());
+            assertEquals(new IntArrayList(new int[]{7, 30, 100}), new IntArrayList(tmhReader.getQueryIndices().iterator()));
+            assertTrue(tmhReader.getQueryIndices().contains(100));
+            assertFalse(tmhReader.getQueryIndices().contains(9));
+            assertEquals(3, tmhReader.getNumberOfHits(7));
+            assertEquals(25, tmhReader.getLengthOfMatch(7));
+            assertEquals(6, tmhReader.getNumberOfHits(30));
+            assertEquals(21, tmhReader.getLengthOfMatch(30));
+            assertEquals(8, tmhReader.getNumberOfHits(100));
+            assertEquals(-1, tmhReader.getLengthOfMatch(100));
+            assertEquals(-1, tmhReader.getNumberOfHits(9));
+            assertEquals(-1, tmhReader.getLengthOfMatch(9));
+            assertFalse(tmhReader.isQueryAmbiguous(9));
+            assertTrue(tmhReader.isQueryAmbiguous(30, 6));
+            tmhReader.close();
+        }
+    }
 }
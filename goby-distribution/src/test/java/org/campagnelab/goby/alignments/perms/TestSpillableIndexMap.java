@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.alignments.perms;
+
+import it.unimi.dsi.fastutil.longs.Long2ByteOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import org.apache.commons.io.FileUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestSpillableIndexMap {
+    private static final File SPILL_DIR = new File("test-results/permutations/spill");
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        FileUtils.forceMkdir(SPILL_DIR);
+    }
+
+    @Test
+    public void testSameAsHashMap() {
+        final Random random = new Random(31);
+        // smallest table: spills when more than 768 entries are in memory.
+        final SpillableIndexMap map = new SpillableIndexMap(0, SPILL_DIR);
+        final Long2IntOpenHashMap expectedValues = new Long2IntOpenHashMap();
+        expectedValues.defaultReturnValue(-1);
+        final Long2ByteOpenHashMap expectedCounts = new Long2ByteOpenHashMap();
+        for (int i = 0; i < 200000; i++) {
+            final long key = random.nextInt(20000) * 0x9E3779B97F4A7C15L;
+            switch (random.nextInt(3)) {
+                case 0:
+                    final byte count = (byte) random.nextInt(128);
+                    map.put(key, i, count);
+                    expectedValues.put(key, i);
+                    expectedCounts.put(key, count);
+                    break;
+                case 1:
+                    assertEquals(expectedValues.containsKey(key), map.remove(key));
+                    expectedValues.remove(key);
+                    expectedCounts.remove(key);
+                    break;
+                case 2:
+                    assertEquals(expectedValues.get(key), map.getValue(key));
+                    assertEquals(expectedCounts.get(key), map.getCount(key));
+                    break;
+            }
+            assertEquals(expectedValues.size(), map.size());
+        }
+        assertTrue(map.getNumSpilled() > 0);
+        final Long2IntOpenHashMap visited = new Long2IntOpenHashMap();
+        map.forEach(new SpillableIndexMap.EntryVisitor() {
+            @Override
+            public void visit(final long key, final int value, final byte count) {
+                assertFalse(visited.containsKey(key));
+                assertEquals(expectedCounts.get(key), count);
+                visited.put(key, value);
+            }
+        });
+        assertEquals(expectedValues, visited);
+        map.close();
+        assertEquals(0, map.size());
+        assertEquals(0, SPILL_DIR.list().length);
+    }
+
+    @Test
+    public void testPendingMates() {
+        // entries that are never requested again are spilled, while recent entries stay in memory:
+        final SpillableIndexMap map = new SpillableIndexMap(0, SPILL_DIR);
+        for (int i = 0; i < 100000; i++) {
+            map.put(i, i, (byte) 1);
+            if (i >= 10) {
+                assertEquals(i - 10, map.getValue(i - 10));
+                map.remove(i - 10);
+            }
+        }
+        assertEquals(0, map.getNumSpilled());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(99990 + i, map.getValue(99990 + i));
+        }
+        for (int i = 0; i < 100000; i++) {
+            map.put(1000000 + i, i, (byte) 1);
+        }
+        assertTrue(map.getNumSpilled() > 90000);
+        for (int i = 0; i < 100000; i += 7) {
+            assertEquals(i, map.getValue(1000000 + i));
+            assertEquals(1, map.getCount(1000000 + i));
+        }
+        map.close();
+    }
+}
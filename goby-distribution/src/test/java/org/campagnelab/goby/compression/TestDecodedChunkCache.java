@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.compression;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.campagnelab.goby.alignments.AlignmentReaderImpl;
+import org.campagnelab.goby.alignments.AlignmentWriterImpl;
+import org.campagnelab.goby.alignments.Alignments;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class TestDecodedChunkCache {
+    private static final String BASE_TEST_DIR = "test-results/decoded-chunk-cache";
+    private static final int NUM_ENTRIES = 1000;
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+        final AlignmentWriterImpl writer = new AlignmentWriterImpl(FilenameUtils.concat(BASE_TEST_DIR, "sorted"));
+        writer.setNumAlignmentEntriesPerChunk(100);
+        writer.setTargetLengths(new int[]{100000});
+        writer.setSorted(true);
+        for (int i = 0; i < NUM_ENTRIES; i++) {
+            writer.setAlignmentEntry(i, 0, 10 * i, 30, false, 40);
+            writer.appendEntry();
+        }
+        writer.close();
+    }
+
+    @AfterClass
+    public static void cleanupTestDirectory() throws IOException {
+        FileUtils.forceDeleteOnExit(new File(BASE_TEST_DIR));
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() {
+        final Alignments.AlignmentCollection collection = Alignments.AlignmentCollection.newBuilder()
+                .addAlignmentEntries(Alignments.AlignmentEntry.newBuilder().setQueryIndex(1).setTargetIndex(0)
+                        .setPosition(10).setMatchingReverseStrand(false)).build();
+        final long weight = DecodedChunkCache.estimateHeapSize(collection);
+        final DecodedChunkCache cache = new DecodedChunkCache(2 * weight);
+        cache.put("file", 0, collection);
+        cache.put("file", 100, collection);
+        assertSame(collection, cache.get("file", 0));
+        cache.put("file", 200, collection);
+        // chunk at 100 was the least recently used:
+        assertNull(cache.get("file", 100));
+        assertSame(collection, cache.get("file", 0));
+        assertSame(collection, cache.get("file", 200));
+        assertNull(cache.get("other-file", 0));
+        assertEquals(3, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2 * weight, cache.getWeight());
+    }
+
+    /**
+     * Collections are weighed by the heap memory of their objects, which is larger than their serialized size.
+     */
+    @Test
+    public void testWeighHeapFootprint() {
+        final Alignments.AlignmentCollection.Builder builder = Alignments.AlignmentCollection.newBuilder();
+        for (int i = 0; i < 100; i++) {
+            builder.addAlignmentEntries(Alignments.AlignmentEntry.newBuilder().setQueryIndex(i).setTargetIndex(0)
+                    .setPosition(10 * i).setMatchingReverseStrand(false)
+                    .addSequenceVariations(Alignments.SequenceVariation.newBuilder()
+                            .setPosition(3).setReadIndex(3).setFrom("A").setTo("C")));
+        }
+        final Alignments.AlignmentCollection collection = builder.build();
+        final long weight = DecodedChunkCache.estimateHeapSize(collection);
+        assertTrue(weight > 10 * collection.getSerializedSize());
+        final DecodedChunkCache cache = new DecodedChunkCache(weight - 1);
+        cache.put("file", 0, collection);
+        assertEquals(0, cache.size());
+        cache.setMaxWeight(weight);
+        cache.put("file", 0, collection);
+        assertEquals(weight, cache.getWeight());
+    }
+
+    @Test
+    public void testSharedAcrossReaders() throws IOException {
+        DecodedChunkCache.doc().setValue("capacity-mb", 16);
+        try {
+            final DecodedChunkCache cache = DecodedChunkCache.getSharedCache();
+            cache.clear();
+            final String basename = FilenameUtils.concat(BASE_TEST_DIR, "sorted");
+            assertEquals(NUM_ENTRIES, countEntries(new AlignmentReaderImpl(basename)));
+            assertEquals(0, cache.getHits());
+            assertEquals(NUM_ENTRIES / 100, cache.size());
+
+            assertEquals(NUM_ENTRIES, countEntries(new AlignmentReaderImpl(basename)));
+            assertEquals(NUM_ENTRIES / 100, cache.getHits());
+
+            final AlignmentReaderImpl reader = new AlignmentReaderImpl(basename);
+            reader.setChunksDecodedAhead(2);
+            assertEquals(NUM_ENTRIES, countEntries(reader));
+            assertEquals(2 * NUM_ENTRIES / 100, cache.getHits());
+        } finally {
+            DecodedChunkCache.doc().setValue("capacity-mb", 0);
+        }
+    }
+
+    private int countEntries(final AlignmentReaderImpl reader) throws IOException {
+        int count = 0;
+        for (final Alignments.AlignmentEntry entry : reader) {
+            assertEquals(count, entry.getQueryIndex());
+            count++;
+        }
+        reader.close();
+        return count;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.compression;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.campagnelab.goby.alignments.AlignmentReaderImpl;
+import org.campagnelab.goby.alignments.AlignmentWriterImpl;
+import org.campagnelab.goby.alignments.Alignments;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that alignments read through memory mappings return the same entries as alignments read through streams.
+ */
+public class TestMappedMessageChunksReader {
+    private static final String BASE_TEST_DIR = "test-results/mapped-chunks";
+    private static final int NUM_ENTRIES = 5000;
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+        for (final String codec : new String[]{"gzip", "bzip2", "hybrid-2"}) {
+            MessageChunksWriter.doc().setValue("codec", codec);
+            try {
+                final AlignmentWriterImpl writer =
+                        new AlignmentWriterImpl(FilenameUtils.concat(BASE_TEST_DIR, codec));
+                writer.setNumAlignmentEntriesPerChunk(100);
+                writer.setTargetLengths(new int[]{100000, 100000});
+                writer.setSorted(true);
+                for (int i = 0; i < NUM_ENTRIES; i++) {
+                    writer.setAlignmentEntry(i, i < NUM_ENTRIES / 2 ? 0 : 1, 10 * (i % (NUM_ENTRIES / 2)), 30, false, 40);
+                    writer.appendEntry();
+                }
+                writer.close();
+            } finally {
+                MessageChunksWriter.doc().setValue("codec", "gzip");
+            }
+        }
+    }
+
+    @AfterClass
+    public static void cleanupTestDirectory() throws IOException {
+        FileUtils.forceDeleteOnExit(new File(BASE_TEST_DIR));
+    }
+
+    @Test
+    public void testSequential() throws IOException {
+        for (final String codec : new String[]{"gzip", "bzip2", "hybrid-2"}) {
+            final AlignmentReaderImpl reader = openMapped(FilenameUtils.concat(BASE_TEST_DIR, codec));
+            int count = 0;
+            for (final Alignments.AlignmentEntry entry : reader) {
+                assertEquals(codec, count, entry.getQueryIndex());
+                count++;
+            }
+            reader.close();
+            assertEquals(codec, NUM_ENTRIES, count);
+        }
+    }
+
+    @Test
+    public void testSkipTo() throws IOException {
+        final AlignmentReaderImpl reader = openMapped(FilenameUtils.concat(BASE_TEST_DIR, "hybrid-2"));
+        reader.readHeader();
+        Alignments.AlignmentEntry entry = reader.skipTo(0, 505);
+        assertEquals(0, entry.getTargetIndex());
+        assertEquals(510, entry.getPosition());
+        entry = reader.skipTo(1, 20000);
+        assertEquals(1, entry.getTargetIndex());
+        assertEquals(20000, entry.getPosition());
+        assertEquals(NUM_ENTRIES / 2 + 2000, entry.getQueryIndex());
+        reader.reposition(0, 0);
+        assertEquals(0, reader.next().getQueryIndex());
+        entry = reader.skipTo(0, 1200);
+        assertEquals(1200, entry.getPosition());
+        reader.close();
+    }
+
+    @Test
+    public void testSlices() throws IOException {
+        final String basename = FilenameUtils.concat(BASE_TEST_DIR, "gzip");
+        final long length = new File(basename + ".entries").length();
+        final long middle = length / 2;
+        int count = 0;
+        for (final long[] slice : new long[][]{{0, middle}, {middle, length}}) {
+            MappedMessageChunksReader.doc().setValue("enabled", true);
+            final AlignmentReaderImpl reader;
+            try {
+                reader = new AlignmentReaderImpl(slice[0], slice[1], basename);
+            } finally {
+                MappedMessageChunksReader.doc().setValue("enabled", false);
+            }
+            for (final Alignments.AlignmentEntry entry : reader) {
+                assertEquals(count, entry.getQueryIndex());
+                count++;
+            }
+            reader.close();
+        }
+        assertEquals(NUM_ENTRIES, count);
+    }
+
+    @Test
+    public void testChunksStraddlingWindows() throws IOException {
+        final File file = new File(FilenameUtils.concat(BASE_TEST_DIR, "hybrid-2") + ".entries");
+        final MappedMessageChunksReader oneWindow = new MappedMessageChunksReader(0, Long.MAX_VALUE, file);
+        // windows smaller than chunks, so that most chunks and some chunk headers straddle windows:
+        final MappedMessageChunksReader smallWindows = new MappedMessageChunksReader(0, Long.MAX_VALUE, file, 1001);
+        int numChunks = 0;
+        while (oneWindow.hasNext(null, 0)) {
+            assertTrue(smallWindows.hasNext(null, 0));
+            assertEquals(oneWindow.position(), smallWindows.position());
+            assertEquals(oneWindow.getCompressedBuffer(), smallWindows.getCompressedBuffer());
+            numChunks++;
+        }
+        assertFalse(smallWindows.hasNext(null, 0));
+        assertEquals(NUM_ENTRIES / 100, numChunks);
+        oneWindow.close();
+        smallWindows.close();
+    }
+
+    private AlignmentReaderImpl openMapped(final String basename) throws IOException {
+        MappedMessageChunksReader.doc().setValue("enabled", true);
+        try {
+            return new AlignmentReaderImpl(basename);
+        } finally {
+            MappedMessageChunksReader.doc().setValue("enabled", false);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.compression;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.campagnelab.goby.alignments.AlignmentReaderImpl;
+import org.campagnelab.goby.alignments.AlignmentWriterImpl;
+import org.campagnelab.goby.alignments.Alignments;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that alignments written with parallel chunk encoding are identical to alignments encoded sequentially.
+ */
+public class TestParallelChunkEncoding {
+    private static final String BASE_TEST_DIR = "test-results/parallel-encoding";
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+    }
+
+    @AfterClass
+    public static void cleanupTestDirectory() throws IOException {
+        FileUtils.forceDeleteOnExit(new File(BASE_TEST_DIR));
+    }
+
+    @Test
+    public void testSameBytesAndIndex() throws IOException {
+        final String sequential = FilenameUtils.concat(BASE_TEST_DIR, "sequential");
+        final String parallel = FilenameUtils.concat(BASE_TEST_DIR, "parallel");
+        write(sequential, 0);
+        write(parallel, 3);
+        assertTrue(FileUtils.contentEquals(new File(sequential + ".entries"), new File(parallel + ".entries")));
+        assertTrue(FileUtils.contentEquals(new File(sequential + ".index"), new File(parallel + ".index")));
+
+        final AlignmentReaderImpl reader = new AlignmentReaderImpl(parallel);
+        reader.readHeader();
+        final Alignments.AlignmentEntry entry = reader.skipTo(1, 3000);
+        assertEquals(1, entry.getTargetIndex());
+        assertEquals(3000, entry.getPosition());
+        reader.close();
+    }
+
+    @Test
+    public void testChunkOffsets() throws IOException {
+        final LongArrayList sequentialOffsets = new LongArrayList();
+        final LongArrayList parallelOffsets = new LongArrayList();
+        final byte[] sequential = writeChunks(0, sequentialOffsets);
+        final byte[] parallel = writeChunks(3, parallelOffsets);
+        assertArrayEquals(sequential, parallel);
+        assertEquals(5, sequentialOffsets.size());
+        assertEquals(sequentialOffsets, parallelOffsets);
+        for (final long offset : parallelOffsets) {
+            assertEquals(GZipChunkCodec.REGISTRATION_CODE, parallel[(int) offset]);
+            assertEquals(MessageChunksWriter.DELIMITER_CONTENT, parallel[(int) offset + 1]);
+        }
+    }
+
+    /**
+     * Write 250 entries in chunks of 50, and record the offset of each chunk flushed by writeAsNeeded.
+     */
+    private byte[] writeChunks(final int numThreads, final LongArrayList offsets) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final MessageChunksWriter writer = new MessageChunksWriter(output);
+        writer.setNumEntriesPerChunk(50);
+        writer.setNumEncodingThreads(numThreads);
+        final Alignments.AlignmentCollection.Builder collection = Alignments.AlignmentCollection.newBuilder();
+        for (int i = 0; i < 250; i++) {
+            collection.addAlignmentEntries(Alignments.AlignmentEntry.newBuilder()
+                    .setQueryIndex(i).setTargetIndex(0).setPosition(i).setMatchingReverseStrand(false));
+            if (writer.writeAsNeeded(collection, 1)) {
+                assertEquals(0, collection.getAlignmentEntriesCount());
+                offsets.add(writer.getChunkStartOffset(writer.getCurrentChunkIndex()));
+            }
+        }
+        writer.close(collection);
+        return output.toByteArray();
+    }
+
+    private void write(final String basename, final int numThreads) throws IOException {
+        final AlignmentWriterImpl writer = new AlignmentWriterImpl(basename);
+        writer.setNumAlignmentEntriesPerChunk(50);
+        writer.setNumEncodingThreads(numThreads);
+        writer.setTargetLengths(new int[]{10000, 10000});
+        writer.setSorted(true);
+        for (int i = 0; i < 2000; i++) {
+            final Alignments.AlignmentEntry.Builder entry = Alignments.AlignmentEntry.newBuilder();
+            entry.setQueryIndex(i);
+            entry.setTargetIndex(i < 1000 ? 0 : 1);
+            entry.setPosition(5 * (i % 1000));
+            entry.setMatchingReverseStrand(i % 3 == 0);
+            entry.setQueryLength(40);
+            entry.setScore(30);
+            writer.appendEntry(entry.build());
+        }
+        writer.close();
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.compression;
+
+import com.google.protobuf.Message;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.campagnelab.goby.alignments.AlignmentCollectionHandler;
+import org.campagnelab.goby.alignments.AlignmentReaderImpl;
+import org.campagnelab.goby.alignments.AlignmentWriterImpl;
+import org.campagnelab.goby.alignments.Alignments;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that alignments written with the Zstd and LZ4 codecs can be read back.
+ */
+public class TestZstdAndLZ4ChunkCodecs {
+    private static final String BASE_TEST_DIR = "test-results/zstd-lz4-codecs";
+    private static final String[] CODECS = {"zstd", "lz4", "hybrid-3"};
+    private static final int NUM_ENTRIES = 5000;
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+        for (final String codec : CODECS) {
+            writeAlignment(codec, FilenameUtils.concat(BASE_TEST_DIR, codec));
+        }
+    }
+
+    private static void writeAlignment(final String codec, final String basename) throws IOException {
+        MessageChunksWriter.doc().setValue("codec", codec);
+        try {
+            final AlignmentWriterImpl writer = new AlignmentWriterImpl(basename);
+            writer.setNumAlignmentEntriesPerChunk(100);
+            writer.setTargetLengths(new int[]{100000, 100000});
+            writer.setSorted(true);
+            for (int i = 0; i < NUM_ENTRIES; i++) {
+                writer.setAlignmentEntry(i, i < NUM_ENTRIES / 2 ? 0 : 1, 10 * (i % (NUM_ENTRIES / 2)), 30, false, 40);
+                writer.appendEntry();
+            }
+            writer.close();
+        } finally {
+            MessageChunksWriter.doc().setValue("codec", "gzip");
+        }
+    }
+
+    @AfterClass
+    public static void cleanupTestDirectory() throws IOException {
+        FileUtils.forceDeleteOnExit(new File(BASE_TEST_DIR));
+    }
+
+    @Test
+    public void testRegistered() {
+        assertTrue(ChunkCodecHelper.registrationCodes().contains(ZstdChunkCodec.REGISTRATION_CODE));
+        assertTrue(ChunkCodecHelper.registrationCodes().contains(LZ4ChunkCodec.REGISTRATION_CODE));
+        assertTrue(ChunkCodecHelper.registrationCodes().contains(HybridChunkCodec3.REGISTRATION_CODE));
+        assertEquals("hybrid-3", ChunkCodecHelper.withRegistrationCode(HybridChunkCodec3.REGISTRATION_CODE).name());
+    }
+
+    @Test
+    public void testSequential() throws IOException {
+        for (final String codec : CODECS) {
+            final String basename = FilenameUtils.concat(BASE_TEST_DIR, codec);
+            assertEquals(codec, NUM_ENTRIES, countEntries(codec, new AlignmentReaderImpl(basename)));
+            MappedMessageChunksReader.doc().setValue("enabled", true);
+            try {
+                assertEquals(codec, NUM_ENTRIES, countEntries(codec, new AlignmentReaderImpl(basename)));
+            } finally {
+                MappedMessageChunksReader.doc().setValue("enabled", false);
+            }
+        }
+    }
+
+    @Test
+    public void testSkipTo() throws IOException {
+        for (final String codec : CODECS) {
+            final AlignmentReaderImpl reader = new AlignmentReaderImpl(FilenameUtils.concat(BASE_TEST_DIR, codec));
+            reader.readHeader();
+            Alignments.AlignmentEntry entry = reader.skipTo(0, 505);
+            assertEquals(codec, 510, entry.getPosition());
+            entry = reader.skipTo(1, 20000);
+            assertEquals(codec, 1, entry.getTargetIndex());
+            assertEquals(codec, NUM_ENTRIES / 2 + 2000, entry.getQueryIndex());
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testSlices() throws IOException {
+        // readers must recognize the start of chunks to read a slice of the file:
+        for (final String codec : CODECS) {
+            final String basename = FilenameUtils.concat(BASE_TEST_DIR, codec);
+            final long length = new File(basename + ".entries").length();
+            final long middle = length / 2;
+            int count = 0;
+            for (final long[] slice : new long[][]{{0, middle}, {middle, length}}) {
+                final AlignmentReaderImpl reader = new AlignmentReaderImpl(slice[0], slice[1], basename);
+                for (final Alignments.AlignmentEntry entry : reader) {
+                    assertEquals(codec, count, entry.getQueryIndex());
+                    count++;
+                }
+                reader.close();
+            }
+            assertEquals(codec, NUM_ENTRIES, count);
+        }
+    }
+
+    @Test
+    public void testDictionary() throws IOException {
+        final ObjectArrayList<Message> samples = new ObjectArrayList<Message>();
+        for (int c = 0; c < 500; c++) {
+            final Alignments.AlignmentCollection.Builder collection = Alignments.AlignmentCollection.newBuilder();
+            for (int i = 0; i < 10; i++) {
+                collection.addAlignmentEntries(Alignments.AlignmentEntry.newBuilder().setQueryIndex(c * 10 + i)
+                        .setTargetIndex(c % 3).setPosition(1000 * c + 7 * i).setMatchingReverseStrand(i % 2 == 0)
+                        .setQueryLength(100).setMappingQuality(60).setScore(100 - i % 5));
+            }
+            samples.add(collection.build());
+        }
+        final byte[] dictionary = ZstdChunkCodec.trainDictionary(samples, 4096);
+        assertTrue(dictionary.length > 0);
+        final File dictionaryFile = new File(FilenameUtils.concat(BASE_TEST_DIR, "alignments.dict"));
+        FileUtils.writeByteArrayToFile(dictionaryFile, dictionary);
+
+        final byte[] encoded;
+        ZstdChunkCodec.doc().setValue("dictionary", dictionaryFile.getPath());
+        try {
+            final ZstdChunkCodec codec = newCodec();
+            encoded = codec.encode(samples.get(7)).toByteArray();
+            assertEquals(samples.get(7), newCodec().decode(encoded));
+
+            final String basename = FilenameUtils.concat(BASE_TEST_DIR, "zstd-dictionary");
+            writeAlignment("zstd", basename);
+            assertEquals(NUM_ENTRIES, countEntries("zstd-dictionary", new AlignmentReaderImpl(basename)));
+        } finally {
+            ZstdChunkCodec.doc().setValue("dictionary", "");
+        }
+        try {
+            newCodec().decode(encoded);
+            fail("chunks written with a dictionary must not decode without it.");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private ZstdChunkCodec newCodec() {
+        final ZstdChunkCodec codec = new ZstdChunkCodec();
+        codec.setHandler(new AlignmentCollectionHandler());
+        return codec;
+    }
+
+    private int countEntries(final String codec, final AlignmentReaderImpl reader) throws IOException {
+        int count = 0;
+        for (final Alignments.AlignmentEntry entry : reader) {
+            assertEquals(codec, count, entry.getQueryIndex());
+            count++;
+        }
+        reader.close();
+        return count;
+    }
+}
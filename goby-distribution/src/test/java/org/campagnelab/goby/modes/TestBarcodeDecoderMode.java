@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2009-2011 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.modes;
+
+import com.martiansoftware.jsap.JSAPException;
+import it.unimi.dsi.lang.MutableString;
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.goby.reads.Reads;
+import org.campagnelab.goby.reads.ReadsReader;
+import org.campagnelab.goby.reads.ReadsWriterImpl;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that decoding a .compact-reads file with several threads produces the same outputs as with one thread.
+ */
+public class TestBarcodeDecoderMode {
+    private static final String BASE_TEST_DIR = "test-results/barcode-decoder";
+    private static final String[] BARCODES = {"ACGTACGT", "TTGGCCAA", "GATCGATC", "CCCCAAAA"};
+    private static final String[] SAMPLES = {"sampleA", "sampleB", "sampleC", "sampleD"};
+    private static final String BASES = "ACGT";
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.deleteDirectory(new File(BASE_TEST_DIR));
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+    }
+
+    @Test
+    public void testParallelSameAsSequential() throws IOException, JSAPException {
+        final String input = testFile("reads.compact-reads");
+        writeReads(input, 5000);
+
+        final List<List<String>> sequential = decode(input, 1);
+        final List<List<String>> parallel = decode(input, 4);
+        assertEquals(sequential, parallel);
+
+        // read indices are retained, and sampleD has no read (its output is written empty):
+        assertTrue(sequential.get(0).size() > 1000);
+        assertTrue(sequential.get(0).get(0).startsWith("1|"));
+        assertEquals(0, sequential.get(3).size());
+        for (final String threads : new String[]{"threads-1", "threads-4"}) {
+            for (final File file : new File(BASE_TEST_DIR, threads).listFiles()) {
+                assertFalse("part files must be deleted: " + file, file.getName().contains(".part-"));
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyInput() throws IOException, JSAPException {
+        final String input = testFile("empty.compact-reads");
+        writeReads(input, 0);
+        final List<List<String>> parallel = decode(input, 4);
+        for (final List<String> entries : parallel) {
+            assertEquals(0, entries.size());
+        }
+        assertEquals(decode(input, 1), parallel);
+    }
+
+    private static String testFile(final String filename) {
+        return new File(BASE_TEST_DIR, filename).getPath();
+    }
+
+    /**
+     * Write reads with the barcodes of samples A, B and C at their 3' end, or without a barcode. Read indices are
+     * not consecutive, so that a decoder that does not retain them is detected.
+     */
+    private static void writeReads(final String filename, final int numReads) throws IOException {
+        final Random random = new Random(37);
+        final ReadsWriterImpl writer = new ReadsWriterImpl(new FileOutputStream(filename));
+        // small chunks, so that the file is split in many slices:
+        writer.setNumEntriesPerChunk(50);
+        final StringBuilder sequence = new StringBuilder();
+        for (int i = 0; i < numReads; i++) {
+            sequence.setLength(0);
+            for (int j = 0; j < 30; j++) {
+                sequence.append(BASES.charAt(random.nextInt(4)));
+            }
+            final int sample = i % 4;
+            sequence.append(sample < 3 ? BARCODES[sample] : "AAAAAAAA");
+            final byte[] qualities = new byte[sequence.length()];
+            for (int j = 0; j < qualities.length; j++) {
+                qualities[j] = (byte) random.nextInt(40);
+            }
+            writer.setSequence(sequence);
+            writer.setQualityScores(qualities);
+            writer.setIdentifier("read-" + i);
+            writer.appendEntry(i * 3 + 1);
+        }
+        writer.close();
+    }
+
+    /**
+     * Decode the input with a number of threads.
+     *
+     * @return the entries of each sample output, formatted as strings.
+     */
+    private static List<List<String>> decode(final String input, final int numThreads)
+            throws IOException, JSAPException {
+        final File outputDirectory = new File(BASE_TEST_DIR, "threads-" + numThreads);
+        FileUtils.deleteDirectory(outputDirectory);
+        FileUtils.forceMkdir(outputDirectory);
+        final File barcodeInfo = new File(outputDirectory, "barcode-info.tsv");
+        final PrintWriter info = new PrintWriter(barcodeInfo);
+        for (int i = 0; i < SAMPLES.length; i++) {
+            info.printf("%s\t%d\t%s%n", new File(outputDirectory, SAMPLES[i]).getPath(), i, BARCODES[i]);
+        }
+        info.close();
+
+        final BarcodeDecoderMode mode = new BarcodeDecoderMode();
+        mode.configure(new String[]{"--mode", "barcode-decoder", "-b", barcodeInfo.getPath(), "-l", "8",
+                "-t", Integer.toString(numThreads), input});
+        mode.execute();
+
+        final List<List<String>> result = new ArrayList<List<String>>();
+        final MutableString sequence = new MutableString();
+        for (final String sample : SAMPLES) {
+            final File output = new File(outputDirectory, sample + ".compact-reads");
+            assertTrue("output must exist: " + output, output.exists());
+            final List<String> entries = new ArrayList<String>();
+            final ReadsReader reader = new ReadsReader(output.getPath());
+            for (final Reads.ReadEntry entry : reader) {
+                ReadsReader.decodeSequence(entry, sequence);
+                entries.add(entry.getReadIndex() + "|" + sequence + "|" + entry.getBarcodeIndex() + "|" +
+                        entry.getReadIdentifier() + "|" +
+                        Arrays.toString(entry.getQualityScores().toByteArray()));
+            }
+            reader.close();
+            result.add(entries);
+        }
+        return result;
+    }
+}
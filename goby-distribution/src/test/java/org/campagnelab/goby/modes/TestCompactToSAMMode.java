@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.modes;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectList;
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.goby.alignments.AlignmentWriterImpl;
+import org.campagnelab.goby.alignments.Alignments;
+import org.campagnelab.goby.alignments.SlicedIterateSortedAlignments;
+import org.campagnelab.goby.reads.RandomAccessSequenceTestSupport;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that exporting a sorted and indexed alignment to BAM with several threads produces the same records as
+ * with one thread, including spliced alignments whose fragments are in different slices.
+ */
+public class TestCompactToSAMMode {
+    private static final String BASE_TEST_DIR = "test-results/compact-to-sam";
+    private static final String[] TARGETS = {"chr1", "chr2"};
+    private static final int TARGET_LENGTH = 100000;
+    private static final int FRAGMENT_LENGTH = 15;
+    private static final String BASES = "ACGT";
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.deleteDirectory(new File(BASE_TEST_DIR));
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+    }
+
+    @Test
+    public void testParallelSameAsSequential() throws IOException {
+        final Random random = new Random(17);
+        final String[] sequences = new String[TARGETS.length];
+        for (int i = 0; i < sequences.length; i++) {
+            final StringBuilder sequence = new StringBuilder(TARGET_LENGTH);
+            for (int j = 0; j < TARGET_LENGTH; j++) {
+                sequence.append(BASES.charAt(random.nextInt(4)));
+            }
+            sequences[i] = sequence.toString();
+        }
+        final String basename = FileUtils.getFile(BASE_TEST_DIR, "spliced").getPath();
+        final List<Alignments.AlignmentEntry> splicedStarts = writeAlignment(basename, random);
+
+        // the parallel export uses 4 slices per thread, some spliced alignments must cross a slice boundary:
+        final ObjectList<SlicedIterateSortedAlignments.Slice> slices =
+                SlicedIterateSortedAlignments.slice(new String[]{basename}, 16);
+        assertTrue(slices.size() > 2);
+        int crossing = 0;
+        for (final Alignments.AlignmentEntry first : splicedStarts) {
+            final Alignments.RelatedAlignmentEntry next = first.getSplicedForwardAlignmentLink();
+            if (sliceOf(slices, first.getTargetIndex(), first.getPosition()) !=
+                    sliceOf(slices, next.getTargetIndex(), next.getPosition())) {
+                crossing++;
+            }
+        }
+        assertTrue("spliced alignments must cross slice boundaries", crossing > 10);
+
+        final List<String> sequential = export(basename, sequences, 1);
+        final List<String> parallel = export(basename, sequences, 4);
+        // the two fragments of a spliced read are merged in one record:
+        assertEquals(3000, sequential.size());
+        int spliced = 0;
+        for (final String record : sequential) {
+            if (record.split("\t")[5].contains("N")) {
+                spliced++;
+            }
+        }
+        assertEquals(splicedStarts.size(), spliced);
+        // records at the same position may be written in a different order:
+        Collections.sort(sequential);
+        Collections.sort(parallel);
+        assertEquals(sequential, parallel);
+
+        // the index of the parallel export finds the records of a region:
+        final File bamFile = new File(BASE_TEST_DIR, "spliced-4.bam");
+        assertTrue(new File(BASE_TEST_DIR, "spliced-4.bai").exists());
+        final SamReader reader = SamReaderFactory.makeDefault().open(bamFile);
+        assertTrue(reader.hasIndex());
+        int expectedInRegion = 0;
+        for (final String record : sequential) {
+            final String[] fields = record.split("\t");
+            final int start = Integer.parseInt(fields[3]);
+            if ("chr2".equals(fields[2]) && start <= 30000 && start + referenceLength(fields[5]) - 1 >= 20000) {
+                expectedInRegion++;
+            }
+        }
+        assertTrue(expectedInRegion > 0);
+        final SAMRecordIterator region = reader.queryOverlapping("chr2", 20000, 30000);
+        int inRegion = 0;
+        while (region.hasNext()) {
+            assertEquals("chr2", region.next().getReferenceName());
+            inRegion++;
+        }
+        region.close();
+        reader.close();
+        assertEquals(expectedInRegion, inRegion);
+    }
+
+    /**
+     * Write a sorted and indexed alignment where a third of the reads are spliced in two fragments, separated by
+     * gaps long enough to cross slice boundaries.
+     *
+     * @return the first fragment of each spliced alignment.
+     */
+    private static List<Alignments.AlignmentEntry> writeAlignment(final String basename, final Random random)
+            throws IOException {
+        final List<Alignments.AlignmentEntry> entries = new ArrayList<Alignments.AlignmentEntry>();
+        final List<Alignments.AlignmentEntry> splicedStarts = new ArrayList<Alignments.AlignmentEntry>();
+        for (int queryIndex = 0; queryIndex < 3000; queryIndex++) {
+            final int targetIndex = random.nextInt(TARGETS.length);
+            final int position = random.nextInt(TARGET_LENGTH - 10000);
+            final boolean reverseStrand = random.nextBoolean();
+            if (queryIndex % 3 == 0) {
+                final int nextPosition = position + FRAGMENT_LENGTH + 200 + random.nextInt(2000);
+                final Alignments.AlignmentEntry.Builder first =
+                        entry(queryIndex, targetIndex, position, reverseStrand, 0, 0, 2 * FRAGMENT_LENGTH);
+                first.setSplicedForwardAlignmentLink(Alignments.RelatedAlignmentEntry.newBuilder()
+                        .setTargetIndex(targetIndex).setPosition(nextPosition).setFragmentIndex(1));
+                final Alignments.AlignmentEntry.Builder second = entry(queryIndex, targetIndex, nextPosition,
+                        reverseStrand, 1, FRAGMENT_LENGTH, 2 * FRAGMENT_LENGTH);
+                second.setSplicedBackwardAlignmentLink(Alignments.RelatedAlignmentEntry.newBuilder()
+                        .setTargetIndex(targetIndex).setPosition(position).setFragmentIndex(0));
+                entries.add(first.build());
+                entries.add(second.build());
+                splicedStarts.add(first.build());
+            } else {
+                entries.add(entry(queryIndex, targetIndex, position, reverseStrand, 0, 0, FRAGMENT_LENGTH).build());
+            }
+        }
+        Collections.sort(entries, new Comparator<Alignments.AlignmentEntry>() {
+            @Override
+            public int compare(final Alignments.AlignmentEntry a, final Alignments.AlignmentEntry b) {
+                if (a.getTargetIndex() != b.getTargetIndex()) {
+                    return a.getTargetIndex() - b.getTargetIndex();
+                }
+                return a.getPosition() - b.getPosition();
+            }
+        });
+        final AlignmentWriterImpl writer = new AlignmentWriterImpl(basename);
+        // small chunks, so that the alignment can be cut in many slices:
+        writer.setNumAlignmentEntriesPerChunk(50);
+        writer.setTargetIdentifiersArray(TARGETS);
+        writer.setTargetLengths(new int[]{TARGET_LENGTH, TARGET_LENGTH});
+        writer.setNumQueries(3000);
+        writer.setSorted(true);
+        for (final Alignments.AlignmentEntry entry : entries) {
+            writer.appendEntry(entry);
+        }
+        writer.close();
+        return splicedStarts;
+    }
+
+    private static Alignments.AlignmentEntry.Builder entry(final int queryIndex, final int targetIndex,
+                                                           final int position, final boolean reverseStrand,
+                                                           final int fragmentIndex, final int queryPosition,
+                                                           final int queryLength) {
+        return Alignments.AlignmentEntry.newBuilder()
+                .setQueryIndex(queryIndex)
+                .setTargetIndex(targetIndex)
+                .setPosition(position)
+                .setMatchingReverseStrand(reverseStrand)
+                .setFragmentIndex(fragmentIndex)
+                .setQueryPosition(queryPosition)
+                .setQueryLength(queryLength)
+                .setQueryAlignedLength(FRAGMENT_LENGTH)
+                .setTargetAlignedLength(FRAGMENT_LENGTH)
+                .setNumberOfIndels(0)
+                .setNumberOfMismatches(0)
+                .setScore(FRAGMENT_LENGTH)
+                .setMultiplicity(1)
+                .setMappingQuality(60);
+    }
+
+    private static int sliceOf(final ObjectList<SlicedIterateSortedAlignments.Slice> slices,
+                               final int targetIndex, final int position) {
+        for (int i = slices.size() - 1; i >= 0; i--) {
+            final SlicedIterateSortedAlignments.Slice slice = slices.get(i);
+            if (targetIndex > slice.startReferenceIndex ||
+                    targetIndex == slice.startReferenceIndex && position >= slice.startPosition) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Export the alignment with a number of threads.
+     *
+     * @return the records of the BAM file, in file order, checked to be sorted by coordinate.
+     */
+    private static List<String> export(final String basename, final String[] sequences, final int numThreads)
+            throws IOException {
+        final File output = new File(BASE_TEST_DIR, "spliced-" + numThreads + ".bam");
+        final CompactToSAMMode mode = new CompactToSAMMode();
+        mode.setInputBasename(basename);
+        mode.setOutput(output.getPath());
+        mode.setNumThreads(numThreads);
+        mode.setGenome(new RandomAccessSequenceTestSupport(sequences) {
+            @Override
+            public int getReferenceIndex(final String referenceId) {
+                return "chr1".equals(referenceId) ? 0 : 1;
+            }
+        });
+        mode.execute();
+
+        final List<String> records = new ObjectArrayList<String>();
+        final SamReader reader = SamReaderFactory.makeDefault().open(output);
+        int previousReference = -1;
+        int previousStart = -1;
+        for (final SAMRecord record : reader) {
+            final int reference = record.getReferenceIndex();
+            final int start = record.getAlignmentStart();
+            assertFalse("records must be sorted by coordinate", reference < previousReference ||
+                    reference == previousReference && start < previousStart);
+            previousReference = reference;
+            previousStart = start;
+            records.add(record.getSAMString());
+        }
+        reader.close();
+        return records;
+    }
+
+    /**
+     * Number of reference bases covered by a CIGAR string.
+     */
+    private static int referenceLength(final String cigar) {
+        int length = 0;
+        int number = 0;
+        for (int i = 0; i < cigar.length(); i++) {
+            final char c = cigar.charAt(i);
+            if (Character.isDigit(c)) {
+                number = number * 10 + c - '0';
+            } else {
+                if (c == 'M' || c == 'D' || c == 'N' || c == '=' || c == 'X') {
+                    length += number;
+                }
+                number = 0;
+            }
+        }
+        return length;
+    }
+}
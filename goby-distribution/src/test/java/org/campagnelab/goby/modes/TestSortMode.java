@@ -22,6 +22,8 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.campagnelab.goby.alignments.AlignmentReaderImpl;
+import org.campagnelab.goby.alignments.Alignments;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -30,6 +32,7 @@ import java.io.File;
 import java.io.IOException;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
 
 /**
  * @author Fabien Campagne
@@ -74,4 +77,45 @@ public class TestSortMode {
         assertEquals(1947630632, FileUtils.checksumCRC32(new File(FilenameUtils.concat(BASE_TEST_DIR, "EJOYQAZ-small-sorted.entries")))) ;
         assertEquals(2375098082L, FileUtils.checksumCRC32(new File(FilenameUtils.concat(BASE_TEST_DIR, "EJOYQAZ-small-sorted.header")))) ;
     }
+
+    @Test
+    // check that sorting with many runs, intermediate merges and raw runs yields the same alignment as one run:
+    public void sortManyRuns() throws IOException {
+        final String oneRun = sort("EJOYQAZ-one-run", 100 * 1024 * 1024, 30, "lz4");
+        final String manyRuns = sort("EJOYQAZ-many-runs", 30000, 3, "lz4");
+        final String rawRuns = sort("EJOYQAZ-raw-runs", 50000, 30, "raw");
+        final long expected = FileUtils.checksumCRC32(new File(oneRun + ".entries"));
+        assertEquals(expected, FileUtils.checksumCRC32(new File(manyRuns + ".entries")));
+        assertEquals(expected, FileUtils.checksumCRC32(new File(rawRuns + ".entries")));
+
+        final AlignmentReaderImpl reader = new AlignmentReaderImpl(manyRuns);
+        reader.readHeader();
+        assertTrue(reader.isSorted());
+        int previousTarget = -1;
+        int previousPosition = -1;
+        int count = 0;
+        for (final Alignments.AlignmentEntry entry : reader) {
+            assertTrue("entries must be sorted", entry.getTargetIndex() > previousTarget ||
+                    entry.getTargetIndex() == previousTarget && entry.getPosition() >= previousPosition);
+            previousTarget = entry.getTargetIndex();
+            previousPosition = entry.getPosition();
+            count++;
+        }
+        reader.close();
+        assertEquals(40001, count);
+    }
+
+    private String sort(final String name, final long splitSize, final int filesPerMerge, final String runFormat)
+            throws IOException {
+        final String output = FilenameUtils.concat(BASE_TEST_DIR, name);
+        final SortMode mode = new SortMode();
+        mode.setInput("test-data/alignment-hybrid-codec/EJOYQAZ-small-gzip.header");
+        mode.setOutput(output);
+        mode.setNumThreads(2);
+        mode.setSplitSize(splitSize);
+        mode.setFilesPerMerge(filesPerMerge);
+        mode.setRunFormat(runFormat);
+        mode.execute();
+        return output;
+    }
 }
@@ -18,15 +18,22 @@
 
 package org.campagnelab.goby.readers;
 
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import org.apache.commons.io.FileUtils;
 import org.campagnelab.goby.readers.vcf.ColumnInfo;
 import org.campagnelab.goby.readers.vcf.ColumnType;
 import org.campagnelab.goby.readers.vcf.Columns;
 import org.campagnelab.goby.readers.vcf.VCFParser;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 
@@ -419,6 +426,68 @@ public class TestVCFParser {
         parser.setCacheFieldPermutation(false);
         parser.readHeader();
     }
+
+    @Test
+    public void testParseWithThreads() throws IOException, VCFParser.SyntaxException {
+        final File file = new File("test-results/vcf-parser/generated.vcf.gz");
+        FileUtils.forceMkdir(file.getParentFile());
+        final PrintWriter writer = new PrintWriter(new BlockCompressedOutputStream(file));
+        writer.println("##fileformat=VCFv4.1");
+        writer.println("##INFO=<ID=DP,Number=1,Type=Integer,Description=\"Depth\">");
+        writer.println("##INFO=<ID=P,Number=1,Type=Float,Description=\"P-value\">");
+        writer.println("##INFO=<ID=SOMATIC,Number=0,Type=Flag,Description=\"Somatic\">");
+        writer.println("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">");
+        writer.println("##FORMAT=<ID=GQ,Number=1,Type=Integer,Description=\"Genotype quality\">");
+        writer.println("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tsample1\tsample2");
+        final Random random = new Random(11);
+        final int numLines = 30000;
+        for (int i = 0; i < numLines; i++) {
+            // p-values with few digits, with and without exponent, or as long as Double.toString makes them:
+            final String pValue = random.nextBoolean() ? Double.toString(random.nextDouble()) :
+                    random.nextBoolean() ? "0." + random.nextInt(100000) :
+                            random.nextInt(10) + "." + random.nextInt(1000) + "E-" + random.nextInt(30);
+            // INFO fields in varying order, with an optional flag:
+            final String info = random.nextBoolean() ? "DP=" + random.nextInt(1000) + ";P=" + pValue :
+                    "P=" + pValue + ";SOMATIC;DP=" + random.nextInt(1000);
+            writer.printf("chr%d\t%d\t.\tA\tC\t%d\tPASS\t%s\tGT:GQ\t0/1:%d\t1/1:%d%n",
+                    1 + i / 10000, 1 + i * 7, random.nextInt(100), info, random.nextInt(99), random.nextInt(99));
+        }
+        writer.close();
+
+        final List<String> sequential = parseAllFields(file, 1, numLines);
+        final List<String> parallel = parseAllFields(file, 4, numLines);
+        assertEquals(sequential, parallel);
+    }
+
+    private static List<String> parseAllFields(final File file, final int numThreads, final int numLines)
+            throws IOException, VCFParser.SyntaxException {
+        final VCFParser parser = new VCFParser(file.getPath());
+        parser.setNumThreads(numThreads);
+        parser.readHeader();
+        final int positionIndex = parser.getGlobalFieldIndex("POS", "VALUE");
+        final int pValueIndex = parser.getGlobalFieldIndex("INFO", "P");
+        final int depthIndex = parser.getGlobalFieldIndex("INFO", "DP");
+        final List<String> values = new ArrayList<String>();
+        int lineIndex = 0;
+        while (parser.hasNextDataLine()) {
+            assertEquals(1 + lineIndex * 7, parser.getIntFieldValue(positionIndex));
+            assertEquals(Integer.parseInt(parser.getStringFieldValue(depthIndex)), parser.getIntFieldValue(depthIndex));
+            final double pValue = parser.getDoubleFieldValue(pValueIndex);
+            assertEquals(Double.doubleToLongBits(Double.parseDouble(parser.getStringFieldValue(pValueIndex))),
+                    Double.doubleToLongBits(pValue));
+            final StringBuilder line = new StringBuilder();
+            for (int i = 0; i < parser.countAllFields(); i++) {
+                line.append(parser.getStringFieldValue(i)).append('|');
+            }
+            values.add(line.toString());
+            parser.next();
+            lineIndex++;
+        }
+        parser.close();
+        assertEquals(numLines, lineIndex);
+        return values;
+    }
+
     /*
     @Test
     public void testParseTrickyLarge() throws IOException, VCFParser.SyntaxException {
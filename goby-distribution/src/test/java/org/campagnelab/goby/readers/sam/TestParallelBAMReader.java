@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.readers.sam;
+
+import htsjdk.samtools.*;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.campagnelab.goby.alignments.Alignments;
+import org.campagnelab.goby.alignments.AlignmentReaderImpl;
+import org.campagnelab.goby.modes.SAMToCompactMode;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class TestParallelBAMReader {
+    private static final String BASE_TEST_OUTPUT_DIR = "test-results/parallel-bam";
+    private static final int READ_LENGTH = 50;
+    private static final String BASES = "ACGT";
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_OUTPUT_DIR));
+    }
+
+    @Test
+    public void testInflateSameAsHtsjdk() throws IOException {
+        final File file = new File(BASE_TEST_OUTPUT_DIR, "random.bgzf");
+        final Random random = new Random(7);
+        final BlockCompressedOutputStream output = new BlockCompressedOutputStream(file);
+        final byte[] buffer = new byte[10000];
+        for (int i = 0; i < 1000; i++) {
+            // partly compressible content, written in pieces of varying sizes:
+            for (int j = 0; j < buffer.length; j++) {
+                buffer[j] = (byte) (random.nextInt(8) == 0 ? random.nextInt(256) : 'A' + j % 4);
+            }
+            output.write(buffer, 0, 1 + random.nextInt(buffer.length));
+        }
+        output.close();
+
+        final byte[] expected = IOUtils.toByteArray(new BlockCompressedInputStream(file));
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final InputStream parallel = new ParallelBGZFInputStream(new FileInputStream(file), executor, 3);
+            final byte[] inflated = IOUtils.toByteArray(parallel);
+            parallel.close();
+            assertTrue(expected.length > 1000000);
+            assertArrayEquals(expected, inflated);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testTruncatedInput() throws IOException {
+        final File file = new File(BASE_TEST_OUTPUT_DIR, "truncated.bgzf");
+        final BlockCompressedOutputStream output = new BlockCompressedOutputStream(file);
+        final byte[] buffer = new byte[200000];
+        new Random(3).nextBytes(buffer);
+        output.write(buffer);
+        output.close();
+        // cut the file in the middle of its second block:
+        final byte[] compressed = FileUtils.readFileToByteArray(file);
+        FileUtils.writeByteArrayToFile(file, Arrays.copyOf(compressed, 70000));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final InputStream parallel = new ParallelBGZFInputStream(new FileInputStream(file), executor, 2);
+            try {
+                IOUtils.toByteArray(parallel);
+                fail("a truncated stream must be reported");
+            } catch (FileTruncatedException e) {
+                // expected, as with BlockCompressedInputStream
+            } finally {
+                parallel.close();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testReadSameRecordsAsHtsjdk() throws IOException {
+        final File bamFile = writeBAM("records.bam", 3000);
+        final List<String> expected = new ArrayList<String>();
+        final SAMFileReader samReader = new SAMFileReader(bamFile);
+        for (final SAMRecord record : samReader) {
+            expected.add(record.getSAMString());
+        }
+        samReader.close();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            final ParallelBAMReader reader = new ParallelBAMReader(new FileInputStream(bamFile), executor, 2);
+            assertEquals(1, reader.getFileHeader().getSequenceDictionary().size());
+            final List<String> records = new ArrayList<String>();
+            for (final SAMRecord record : reader) {
+                records.add(record.getSAMString());
+            }
+            reader.close();
+            assertEquals(expected, records);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testConvertWithThreads() throws IOException {
+        final File bamFile = writeBAM("paired.bam", 5000);
+        final List<Alignments.AlignmentEntry> sequential = convert(bamFile, "sequential", 1);
+        final List<Alignments.AlignmentEntry> parallel = convert(bamFile, "parallel", 4);
+        assertEquals(10000, sequential.size());
+        assertEquals(sequential, parallel);
+    }
+
+    private static List<Alignments.AlignmentEntry> convert(final File input, final String basename,
+                                                            final int numThreads) throws IOException {
+        final String outputFilename = new File(BASE_TEST_OUTPUT_DIR, basename).getPath();
+        final SAMToCompactMode importer = new SAMToCompactMode();
+        importer.setInputFile(input.getPath());
+        importer.setOutputFile(outputFilename);
+        importer.setPreserveSoftClips(true);
+        importer.setPreserveReadQualityScores(true);
+        importer.setNumThreads(numThreads);
+        importer.execute();
+
+        final List<Alignments.AlignmentEntry> entries = new ArrayList<Alignments.AlignmentEntry>();
+        final AlignmentReaderImpl reader = new AlignmentReaderImpl(outputFilename);
+        while (reader.hasNext()) {
+            entries.add(reader.next());
+        }
+        reader.close();
+        return entries;
+    }
+
+    /**
+     * Write a coordinate sorted BAM file with pairs of reads on a single reference sequence. Each read has one
+     * mismatch, described by its MD tag.
+     */
+    private static File writeBAM(final String filename, final int numPairs) {
+        final File file = new File(BASE_TEST_OUTPUT_DIR, filename);
+        final SAMFileHeader header = new SAMFileHeader();
+        header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        header.addSequence(new SAMSequenceRecord("chr1", 1000000));
+        final SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, false, file);
+        final Random random = new Random(13);
+        for (int i = 0; i < numPairs; i++) {
+            final int start = 1 + random.nextInt(900000);
+            final int mateStart = start + 100 + random.nextInt(300);
+            final String name = "read-" + i;
+            writer.addAlignment(newRecord(header, random, name, start, mateStart, true));
+            writer.addAlignment(newRecord(header, random, name, mateStart, start, false));
+        }
+        writer.close();
+        return file;
+    }
+
+    private static SAMRecord newRecord(final SAMFileHeader header, final Random random, final String name,
+                                       final int start, final int mateStart, final boolean first) {
+        final SAMRecord record = new SAMRecord(header);
+        record.setReadName(name);
+        record.setReadPairedFlag(true);
+        record.setProperPairFlag(true);
+        record.setFirstOfPairFlag(first);
+        record.setSecondOfPairFlag(!first);
+        record.setReadNegativeStrandFlag(!first);
+        record.setMateNegativeStrandFlag(first);
+        record.setReferenceName("chr1");
+        record.setAlignmentStart(start);
+        record.setMappingQuality(60);
+        record.setCigarString(READ_LENGTH + "M");
+        record.setMateReferenceName("chr1");
+        record.setMateAlignmentStart(mateStart);
+        final int insertSize = Math.abs(mateStart - start) + READ_LENGTH;
+        record.setInferredInsertSize(first ? insertSize : -insertSize);
+        final byte[] bases = new byte[READ_LENGTH];
+        final byte[] qualities = new byte[READ_LENGTH];
+        for (int j = 0; j < READ_LENGTH; j++) {
+            bases[j] = (byte) BASES.charAt(random.nextInt(4));
+            qualities[j] = (byte) (10 + random.nextInt(30));
+        }
+        record.setReadBases(bases);
+        record.setBaseQualities(qualities);
+        final int mismatch = random.nextInt(READ_LENGTH);
+        final char referenceBase = BASES.charAt((BASES.indexOf(bases[mismatch]) + 1) % 4);
+        record.setAttribute("MD", mismatch + String.valueOf(referenceBase) + (READ_LENGTH - mismatch - 1));
+        record.setAttribute("NM", 1);
+        return record;
+    }
+}
@@ -19,13 +19,23 @@
 package org.campagnelab.goby.reads;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import it.unimi.dsi.bits.LongArrayBitVector;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.io.BinIO;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.lang.MutableString;
+import org.apache.commons.io.FileUtils;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.Random;
 
 /**
  * @author Fabien Campagne
@@ -110,6 +120,184 @@ public class TestRandomAccessSequenceCache {
         assertEquals('N', cache.get(1, i++));
     }
 
+    @Test
+    public void testSaveAndMap() throws IOException, ClassNotFoundException {
+        final String seqs = ">chr1 first\n" +
+                "NNACTGNNNACTGMARARRAQANN\n" +
+                ">chr2\n" +
+                "GATTACAGATTACAGATTACAGATTACAGATTACA\n" +
+                ">chr3\n" +
+                "NNNNNANNNNN";
+        final File directory = new File("test-results/sequence-cache");
+        FileUtils.forceMkdir(directory);
+        final String basename = new File(directory, "mapped").getPath();
+        final RandomAccessSequenceCache cache = new RandomAccessSequenceCache();
+        cache.loadFasta(new StringReader(seqs));
+        assertFalse(cache.canLoad(basename));
+        cache.save(basename);
+        assertTrue(new File(basename + ".genome").exists());
+
+        final RandomAccessSequenceCache mapped = new RandomAccessSequenceCache();
+        assertTrue(mapped.canLoad(basename));
+        mapped.load(basename);
+        assertSameSequences(cache, mapped);
+        assertEquals(1, mapped.getReferenceIndex("chr2"));
+        assertEquals("GATTACAGAT", range(mapped, 1, 0, 10));
+        assertEquals(-1, mapped.getRange(0, 4, 4));
+        assertEquals(cache.getRange(1, 3, 14), mapped.getRange(1, 3, 14));
+        FileUtils.forceDeleteOnExit(directory);
+    }
+
+    @Test
+    public void testLoadFormerFormat() throws IOException, ClassNotFoundException {
+        final File directory = new File("test-results/sequence-cache");
+        FileUtils.forceMkdir(directory);
+        final String basename = new File(directory, "former").getPath();
+        // A=11 C=01 T=10 G=00, N stored as G and flagged in the ignore list, for sequence ACNNT:
+        final ObjectArrayList<byte[]> bases = new ObjectArrayList<byte[]>();
+        bases.add(new byte[]{(byte) 0xD0, (byte) 0x80});
+        final LongArrayBitVector ignoreList = LongArrayBitVector.ofLength(5);
+        ignoreList.set(2);
+        ignoreList.set(3);
+        final ObjectArrayList<LongArrayBitVector> ignoreLists = new ObjectArrayList<LongArrayBitVector>();
+        ignoreLists.add(ignoreList);
+        final IntArrayList sizes = new IntArrayList();
+        sizes.add(5);
+        final Object2IntOpenHashMap<String> names = new Object2IntOpenHashMap<String>();
+        names.put("seq", 0);
+        BinIO.storeObject(sizes, basename + ".sizes");
+        BinIO.storeObject(bases, basename + ".bases");
+        BinIO.storeObject(ignoreLists, basename + ".ignore");
+        BinIO.storeObject(names, basename + ".names");
+
+        final RandomAccessSequenceCache cache = new RandomAccessSequenceCache();
+        assertTrue(cache.canLoad(basename));
+        cache.load(basename);
+        assertEquals("ACNNT", range(cache, 0, 0, 5));
+        assertEquals("seq", cache.getReferenceName(0));
+
+        // saving converts the cache to the mapped format:
+        cache.save(basename);
+        final RandomAccessSequenceCache mapped = new RandomAccessSequenceCache();
+        mapped.load(basename);
+        assertSameSequences(cache, mapped);
+        FileUtils.forceDeleteOnExit(directory);
+    }
+
+    @Test
+    public void testSaveLegacyFormat() throws IOException, ClassNotFoundException {
+        final String seqs = ">chr1\n" +
+                "NNACTGNNNACTGMARARRAQANN\n" +
+                ">chr2\n" +
+                "GATTACAGATTACA\n";
+        final File directory = new File("test-results/sequence-cache");
+        FileUtils.forceMkdir(directory);
+        final String basename = new File(directory, "legacy").getPath();
+        final RandomAccessSequenceCache cache = new RandomAccessSequenceCache();
+        cache.loadFasta(new StringReader(seqs));
+        cache.save(basename, true);
+        assertTrue(new File(basename + ".genome").delete());
+
+        final RandomAccessSequenceCache legacy = new RandomAccessSequenceCache();
+        assertTrue(legacy.canLoad(basename));
+        legacy.load(basename);
+        assertSameSequences(cache, legacy);
+        FileUtils.forceDeleteOnExit(directory);
+    }
+
+    @Test
+    public void testShortIgnoreList() throws IOException, ClassNotFoundException {
+        final File directory = new File("test-results/sequence-cache");
+        FileUtils.forceMkdir(directory);
+        final String basename = new File(directory, "short-ignore").getPath();
+        // an ignore list shorter than the sequence, for sequence ACGTA:
+        final ObjectArrayList<byte[]> bases = new ObjectArrayList<byte[]>();
+        bases.add(new byte[]{(byte) 0xD2, (byte) 0xC0});
+        final ObjectArrayList<LongArrayBitVector> ignoreLists = new ObjectArrayList<LongArrayBitVector>();
+        ignoreLists.add(LongArrayBitVector.ofLength(3));
+        final IntArrayList sizes = new IntArrayList();
+        sizes.add(5);
+        final Object2IntOpenHashMap<String> names = new Object2IntOpenHashMap<String>();
+        names.put("seq", 0);
+        BinIO.storeObject(sizes, basename + ".sizes");
+        BinIO.storeObject(bases, basename + ".bases");
+        BinIO.storeObject(ignoreLists, basename + ".ignore");
+        BinIO.storeObject(names, basename + ".names");
+
+        final RandomAccessSequenceCache cache = new RandomAccessSequenceCache();
+        cache.load(basename);
+        assertEquals(5, cache.getLength(0));
+        assertEquals(3, cache.getSequenceSize(0));
+
+        cache.save(basename);
+        final RandomAccessSequenceCache mapped = new RandomAccessSequenceCache();
+        mapped.load(basename);
+        assertSameSequences(cache, mapped);
+        FileUtils.forceDeleteOnExit(directory);
+    }
+
+    private void assertSameSequences(final RandomAccessSequenceCache expected, final RandomAccessSequenceCache actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int referenceIndex = 0; referenceIndex < expected.size(); referenceIndex++) {
+            assertEquals(expected.getReferenceName(referenceIndex), actual.getReferenceName(referenceIndex));
+            final int length = expected.getLength(referenceIndex);
+            assertEquals(length, actual.getLength(referenceIndex));
+            assertEquals(expected.getSequenceSize(referenceIndex), actual.getSequenceSize(referenceIndex));
+            assertEquals(range(expected, referenceIndex, 0, length), range(actual, referenceIndex, 0, length));
+        }
+    }
+
+    private String range(final RandomAccessSequenceCache cache, final int referenceIndex, final int position,
+                         final int length) {
+        final MutableString bases = new MutableString();
+        cache.getRange(referenceIndex, position, length, bases);
+        return bases.toString();
+    }
+
+    @Test
+    public void testGetBases() throws IOException, ClassNotFoundException {
+        final Random random = new Random(12);
+        final MutableString seqs = new MutableString();
+        final String alphabet = "ACGTACGTACGTNR";
+        for (int s = 0; s < 3; s++) {
+            seqs.append(">chr").append(s).append('\n');
+            final int length = 100 + random.nextInt(2000);
+            for (int i = 0; i < length; i++) {
+                final char base = alphabet.charAt(random.nextInt(alphabet.length()));
+                // runs of N of various lengths:
+                final int repeat = base == 'N' ? random.nextInt(70) : 1;
+                for (int r = 0; r < repeat; r++) {
+                    seqs.append(base);
+                }
+            }
+            seqs.append('\n');
+        }
+        final RandomAccessSequenceCache cache = new RandomAccessSequenceCache();
+        cache.loadFasta(new StringReader(seqs.toString()));
+        final File directory = new File("test-results/sequence-cache");
+        FileUtils.forceMkdir(directory);
+        final String basename = new File(directory, "get-bases").getPath();
+        cache.save(basename);
+        final RandomAccessSequenceCache mapped = new RandomAccessSequenceCache();
+        mapped.load(basename);
+
+        for (final RandomAccessSequenceCache genome : new RandomAccessSequenceCache[]{cache, mapped}) {
+            final ReferenceSequenceWindow window = new ReferenceSequenceWindow(genome, 64, 8);
+            for (int trial = 0; trial < 2000; trial++) {
+                final int referenceIndex = random.nextInt(genome.size());
+                final int length = random.nextInt(150);
+                final int position = random.nextInt(genome.getLength(referenceIndex) + 20);
+                final byte[] bases = new byte[length + 3];
+                genome.getBases(referenceIndex, position, bases, 3, length);
+                for (int i = 0; i < length; i++) {
+                    assertEquals(genome.get(referenceIndex, position + i), (char) bases[3 + i]);
+                    assertEquals(genome.get(referenceIndex, position + i), window.get(referenceIndex, position + i));
+                }
+            }
+        }
+        FileUtils.forceDeleteOnExit(directory);
+    }
+
     /**
      * Test creation of a sequence
      * @throws IOException
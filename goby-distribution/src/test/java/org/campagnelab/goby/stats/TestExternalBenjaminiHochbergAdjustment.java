@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.stats;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestExternalBenjaminiHochbergAdjustment {
+    private static final String BASE_TEST_OUTPUT_DIR = "test-results/external-fdr";
+    private static final String[] STATISTICS = {"p-a", "p-b", "p-c"};
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_OUTPUT_DIR));
+    }
+
+    @Test
+    public void testInMemory() throws IOException {
+        compareToBenjaminiHochberg(5000, 0, 100000, 1);
+    }
+
+    @Test
+    public void testSortedRuns() throws IOException {
+        compareToBenjaminiHochberg(5000, 0, 333, 1);
+        compareToBenjaminiHochberg(5000, 0, 100, 4);
+    }
+
+    @Test
+    public void testNumberAboveThreshold() throws IOException {
+        compareToBenjaminiHochberg(3000, 2000, 250, 3);
+    }
+
+    @Test
+    public void testRunsDeleted() throws IOException {
+        final File directory = new File(BASE_TEST_OUTPUT_DIR, "deleted");
+        FileUtils.forceMkdir(directory);
+        final ExternalBenjaminiHochbergAdjustment fdr = new ExternalBenjaminiHochbergAdjustment(1, 10, 2, directory);
+        for (int i = 0; i < 100; i++) {
+            fdr.add(new double[]{i / 100.0});
+        }
+        fdr.adjust(0);
+        assertEquals(0.99, fdr.getQValue(0, 99), 1E-10);
+        assertTrue(directory.list().length > 0);
+        fdr.close();
+        assertEquals(0, directory.list().length);
+    }
+
+    /**
+     * Adjust the same P-values with BenjaminiHochbergAdjustment and with ExternalBenjaminiHochbergAdjustment, and
+     * check that the q-values are identical. P-values include NaN, ties, zeros and ones.
+     */
+    private void compareToBenjaminiHochberg(final int numElements, final int numberAboveThreshold,
+                                            final int maxElementsInMemory, final int numThreads) throws IOException {
+        final Random random = new Random(numElements + maxElementsInMemory);
+        final DifferentialExpressionResults list = new DifferentialExpressionResults();
+        for (final String statistic : STATISTICS) {
+            list.declareStatistic(statistic);
+        }
+        final ExternalBenjaminiHochbergAdjustment external = new ExternalBenjaminiHochbergAdjustment(STATISTICS.length,
+                maxElementsInMemory, numThreads, new File(BASE_TEST_OUTPUT_DIR));
+        try {
+            final double[] pValues = new double[STATISTICS.length];
+            for (int i = 0; i < numElements; i++) {
+                final DifferentialExpressionInfo info = new DifferentialExpressionInfo(Integer.toString(i));
+                info.statistics().size(STATISTICS.length);
+                for (int j = 0; j < STATISTICS.length; j++) {
+                    final int kind = random.nextInt(20);
+                    pValues[j] = kind == 0 ? Double.NaN : kind == 1 ? 0.01 : kind == 2 ? 1 : kind == 3 ? 0 :
+                            random.nextDouble() / (1 + j * 100);
+                    info.statistics().set(j, pValues[j]);
+                }
+                list.add(info);
+                assertEquals(i, external.add(pValues));
+            }
+            final BenjaminiHochbergAdjustment fdr = new BenjaminiHochbergAdjustment();
+            fdr.setNumberAboveThreshold(numberAboveThreshold);
+            external.setNumberAboveThreshold(numberAboveThreshold);
+            // adjust in a different order than the statistics were declared:
+            final int[] adjusted = external.adjust(2, 0, 1);
+            for (final String statistic : new String[]{"p-c", "p-a", "p-b"}) {
+                fdr.adjust(list, statistic);
+            }
+            for (final DifferentialExpressionInfo info : list) {
+                final int element = Integer.parseInt(info.getElementId().toString());
+                for (int j = 0; j < STATISTICS.length; j++) {
+                    final int qValueIndex = list.getStatisticIndex(STATISTICS[j] + "-BH-FDR-q-value");
+                    assertEquals("q-value must match for element " + element,
+                            info.statistics().getDouble(qValueIndex),
+                            external.getQValue(adjusted[(j + 1) % 3], element), 0);
+                }
+            }
+        } finally {
+            external.close();
+        }
+    }
+}
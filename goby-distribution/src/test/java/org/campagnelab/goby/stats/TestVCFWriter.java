@@ -24,12 +24,23 @@ import org.campagnelab.goby.readers.vcf.VCFParser;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectArraySet;
 import it.unimi.dsi.lang.MutableString;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.tribble.readers.TabixReader;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.campagnelab.goby.util.ParallelBlockCompressedOutputStream;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertTrue;
@@ -138,4 +149,65 @@ public class TestVCFWriter {
             fail("some syntax error was reported: " + e.getMessage());
         }
     }
+
+    @Test
+    public void testBlockCompressedWithIndex() throws IOException {
+        final File outputDir = new File("test-results/vcf-writer");
+        FileUtils.forceMkdir(outputDir);
+        final String filename = new File(outputDir, "indexed.vcf.gz").getPath();
+        final StringWriter expected = new StringWriter();
+        writeSortedRecords(new VCFWriter(expected));
+        writeSortedRecords(new VCFWriter(new ParallelBlockCompressedOutputStream(new FileOutputStream(filename), 4),
+                filename + ".tbi"));
+
+        final String content = IOUtils.toString(new BlockCompressedInputStream(new File(filename)));
+        assertEquals(expected.toString(), content);
+
+        final TabixReader tabixReader = new TabixReader(filename);
+        for (final String chromosome : new String[]{"chr1", "chr2", "chr3"}) {
+            for (final int[] region : new int[][]{{1, 100}, {5000, 5100}, {123456, 234567}, {999000, 2000000}}) {
+                final List<String> expectedLines = new ArrayList<String>();
+                for (final String line : content.split("\n")) {
+                    final String[] tokens = line.split("\t");
+                    if (tokens[0].equals(chromosome)) {
+                        final int start = Integer.parseInt(tokens[1]);
+                        if (start <= region[1] && start + tokens[3].length() - 1 >= region[0]) {
+                            expectedLines.add(line);
+                        }
+                    }
+                }
+                final List<String> lines = new ArrayList<String>();
+                final TabixReader.Iterator iterator =
+                        tabixReader.query(String.format("%s:%d-%d", chromosome, region[0], region[1]));
+                String line;
+                while (iterator != null && (line = iterator.next()) != null) {
+                    lines.add(line);
+                }
+                assertEquals(expectedLines, lines);
+            }
+        }
+        tabixReader.close();
+    }
+
+    private void writeSortedRecords(final VCFWriter writer) {
+        final int infoIndex = writer.defineField("INFO", "DP", 1, ColumnType.Integer, "Depth");
+        final int formatIndex = writer.defineField("FORMAT", "GT", 1, ColumnType.String, "Genotype");
+        writer.defineSamples(new String[]{"SampleA", "SampleB"});
+        writer.writeHeader();
+        final Random random = new Random(17);
+        for (final String chromosome : new String[]{"chr1", "chr2", "chr3"}) {
+            int position = 0;
+            while ((position += 1 + random.nextInt(40)) < 1000000) {
+                writer.setChromosome(chromosome);
+                writer.setPosition(position);
+                writer.setReferenceAllele(random.nextInt(10) == 0 ? "ACGT" : "A");
+                writer.addAlternateAllele("C");
+                writer.setInfo(infoIndex, random.nextInt(100));
+                writer.setSampleValue(formatIndex, 0, "0/1");
+                writer.setSampleValue(formatIndex, 1, "1/1");
+                writer.writeRecord();
+            }
+        }
+        writer.close();
+    }
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2010 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.util.barcode;
+
+import it.unimi.dsi.lang.MutableString;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The indexed matcher must return the same matches as the scanning matchers.
+ */
+public class TestIndexedBarcodeMatcher {
+    private static final String[] SHORT_BARCODES = {"ACGTAC", "ACGTAG", "TTGCAA", "GGCATC", "CATGCA"};
+
+    @Test
+    public void testSameAsPostBarcodeMatcher() {
+        for (int mismatches = 0; mismatches <= 2; mismatches++) {
+            compare(TestPostBarcodeMatcher.TEST_BARCODES, 5, mismatches, true, 17 + mismatches);
+            compare(SHORT_BARCODES, 4, mismatches, true, 23 + mismatches);
+        }
+    }
+
+    @Test
+    public void testSameAsPreBarcodeMatcher() {
+        for (int mismatches = 0; mismatches <= 2; mismatches++) {
+            compare(TestPostBarcodeMatcher.TEST_BARCODES, 5, mismatches, false, 31 + mismatches);
+            compare(SHORT_BARCODES, 4, mismatches, false, 41 + mismatches);
+        }
+    }
+
+    @Test
+    public void testIndexed() {
+        final IndexedBarcodeMatcher matcher = new IndexedBarcodeMatcher(SHORT_BARCODES, 4, 1, true);
+        assertTrue(matcher.isIndexed());
+        final BarcodeMatcherResult match = matcher.matchSequence(new MutableString("TTTTTTTTTTGGCAT"));
+        assertEquals(3, match.getBarcodeIndex());
+        assertEquals(0, match.getNumberOfDiffs());
+        assertEquals(10, match.getSequenceLength());
+        assertEquals(5, match.getBarcodeMatchLength());
+        assertNull(matcher.matchSequence(new MutableString("TTTTTTTTTTTTTTT")));
+    }
+
+    private void compare(final String[] barcodes, final int minimalMatchLength, final int mismatches,
+                         final boolean is3Prime, final long seed) {
+        final Random random = new Random(seed);
+        final BarcodeMatcher scanning = is3Prime ? new PostBarcodeMatcher(barcodes, minimalMatchLength, mismatches) :
+                new PreBarcodeMatcher(barcodes, minimalMatchLength, mismatches);
+        final IndexedBarcodeMatcher indexed = new IndexedBarcodeMatcher(barcodes, minimalMatchLength, mismatches,
+                is3Prime);
+        final IndexedBarcodeMatcher copy = new IndexedBarcodeMatcher(indexed);
+        final int barcodeLength = barcodes[0].length();
+        for (int i = 0; i < 5000; i++) {
+            final MutableString sequence = read(random, barcodes, minimalMatchLength, is3Prime);
+            final BarcodeMatcherResult expected = scanning.matchSequence(sequence);
+            final BarcodeMatcherResult actual = indexed.matchSequence(sequence);
+            final String message = sequence + " k=" + mismatches + " length=" + barcodeLength;
+            assertSame(message, expected, actual);
+            assertSame(message, expected, copy.matchSequence(sequence));
+        }
+    }
+
+    private static void assertSame(final String message, final BarcodeMatcherResult expected,
+                                   final BarcodeMatcherResult actual) {
+        if (expected == null) {
+            assertNull(message, actual);
+            return;
+        }
+        assertTrue(message, actual != null);
+        assertEquals(message, expected.getBarcodeIndex(), actual.getBarcodeIndex());
+        assertEquals(message, expected.getNumberOfDiffs(), actual.getNumberOfDiffs());
+        assertEquals(message, expected.getSequenceStartPosition(), actual.getSequenceStartPosition());
+        assertEquals(message, expected.getSequenceLength(), actual.getSequenceLength());
+        assertEquals(message, expected.getBarcodeStartPosition(), actual.getBarcodeStartPosition());
+        assertEquals(message, expected.getBarcodeMatchLength(), actual.getBarcodeMatchLength());
+        assertEquals(message, expected.isAmbiguous(), actual.isAmbiguous());
+    }
+
+    /**
+     * A random read with a possibly truncated and mutated barcode at the expected end.
+     */
+    private static MutableString read(final Random random, final String[] barcodes, final int minimalMatchLength,
+                                      final boolean is3Prime) {
+        final MutableString insert = random(random, 10 + random.nextInt(20));
+        final String barcode = barcodes[random.nextInt(barcodes.length)];
+        final int length = minimalMatchLength + random.nextInt(barcode.length() - minimalMatchLength + 1);
+        final MutableString portion = new MutableString(is3Prime ? barcode.substring(0, length) :
+                barcode.substring(barcode.length() - length));
+        final int numMutations = random.nextInt(4);
+        for (int m = 0; m < numMutations; m++) {
+            portion.charAt(random.nextInt(portion.length()), TestPostBarcodeMatcher.ACGT[random.nextInt(4)]);
+        }
+        if (random.nextInt(50) == 0) {
+            portion.charAt(random.nextInt(portion.length()), 'N');
+        }
+        if (random.nextInt(20) == 0) {
+            return random(random, insert.length() + portion.length());
+        }
+        return is3Prime ? insert.append(portion) : portion.append(insert);
+    }
+
+    private static MutableString random(final Random random, final int length) {
+        final MutableString sequence = new MutableString(length);
+        for (int i = 0; i < length; i++) {
+            sequence.append(TestPostBarcodeMatcher.ACGT[random.nextInt(4)]);
+        }
+        return sequence;
+    }
+}